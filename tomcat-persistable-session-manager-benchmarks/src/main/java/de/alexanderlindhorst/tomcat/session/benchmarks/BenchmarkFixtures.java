@@ -0,0 +1,145 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.benchmarks;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+
+import de.alexanderlindhorst.tomcat.session.access.BackendService;
+import de.alexanderlindhorst.tomcat.session.manager.CompactSessionSerializer;
+import de.alexanderlindhorst.tomcat.session.manager.JdkSessionSerializer;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+import de.alexanderlindhorst.tomcat.session.manager.SessionSerializer;
+
+import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
+
+/**
+ * Managers and sessions shared by the benchmarks. Sessions are described by a size ({@code small}, {@code medium},
+ * {@code large}) and an attribute mix ({@code strings}, {@code collections}, {@code objects}).
+ *
+ * @author alindhorst
+ */
+final class BenchmarkFixtures {
+
+    static final String JVM_ROUTE = "bench";
+
+    private BenchmarkFixtures() {
+        //utility class
+    }
+
+    /**
+     * @param serializer {@code jdk} or {@code compact}
+     * @param backendService backend to use, {@code null} for none
+     * @return manager attached to an unstarted context, so attribute events and jvm route work as in a container; sessions
+     * created for it are added to it
+     */
+    static PersistableSessionManager createManager(String serializer, BackendService backendService) {
+        StandardEngine engine = new StandardEngine();
+        engine.setJvmRoute(JVM_ROUTE);
+        StandardContext context = new StandardContext();
+        context.setParent(engine);
+        PersistableSessionManager manager = new PersistableSessionManager();
+        manager.setContext(context);
+        try {
+            setFieldValueForObject(manager, "sessionSerializer", createSerializer(serializer));
+            setFieldValueForObject(manager, "backendService", backendService);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new IllegalStateException("Couldn't set up manager", ex);
+        }
+        return manager;
+    }
+
+    private static SessionSerializer createSerializer(String serializer) {
+        switch (serializer) {
+            case "jdk":
+                return new JdkSessionSerializer();
+            case "compact":
+                return new CompactSessionSerializer();
+            default:
+                throw new IllegalArgumentException("unknown serializer " + serializer);
+        }
+    }
+
+    static PersistableSession createSession(PersistableSessionManager manager, String id, String size, String mix) {
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId(id, false);
+        int attributeCount;
+        int valueLength;
+        switch (size) {
+            case "small":
+                attributeCount = 5;
+                valueLength = 32;
+                break;
+            case "medium":
+                attributeCount = 20;
+                valueLength = 256;
+                break;
+            case "large":
+                attributeCount = 100;
+                valueLength = 1024;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown size " + size);
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            session.setAttribute("attribute" + i, createValue(mix, i, valueLength));
+        }
+        return session;
+    }
+
+    private static Object createValue(String mix, int index, int length) {
+        switch (mix) {
+            case "strings":
+                return text(index, length);
+            case "collections":
+                List<String> list = new ArrayList<>();
+                Map<String, Integer> map = new HashMap<>();
+                for (int i = 0; i < length / 32; i++) {
+                    list.add(text(i, 16));
+                    map.put(text(i, 8), i);
+                }
+                return index % 2 == 0 ? list : map;
+            case "objects":
+                return new CartItem(text(index, length / 2), index, length * 1.5, new Date(1000L * index));
+            default:
+                throw new IllegalArgumentException("unknown attribute mix " + mix);
+        }
+    }
+
+    private static String text(int seed, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + (seed + i) % 26));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Application class as typically found in sessions, only serializable by Java serialization.
+     */
+    static final class CartItem implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String description;
+        private final int quantity;
+        private final double price;
+        private final Date added;
+
+        CartItem(String description, int quantity, double price, Date added) {
+            this.description = description;
+            this.quantity = quantity;
+            this.price = price;
+            this.added = added;
+        }
+    }
+}
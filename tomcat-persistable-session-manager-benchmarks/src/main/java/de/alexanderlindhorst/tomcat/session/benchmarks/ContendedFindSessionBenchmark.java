@@ -0,0 +1,95 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.catalina.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.alexanderlindhorst.tomcat.session.access.FakeBackendService;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static de.alexanderlindhorst.tomcat.session.benchmarks.BenchmarkFixtures.JVM_ROUTE;
+
+/**
+ * Many requests asking for the same session which is not held by this node, as after fail-over from another node. One of
+ * them loads it, the others share that load. Every request drops the session again afterwards so that it keeps being
+ * loaded. Run with {@code -t} to change the number of concurrent requests.
+ *
+ * @author alindhorst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class ContendedFindSessionBenchmark {
+
+    @Param({"0", "200"})
+    private long backendLatencyMicros;
+    private FakeBackendService backendService;
+    private PersistableSessionManager manager;
+
+    @Setup
+    public void setUp() {
+        backendService = new SlowBackendService(TimeUnit.MICROSECONDS.toNanos(backendLatencyMicros));
+        backendService.init();
+        manager = BenchmarkFixtures.createManager("jdk", backendService);
+        PersistableSession shared = BenchmarkFixtures.createSession(manager, "shared." + JVM_ROUTE, "small", "strings");
+        backendService.persistSession(shared);
+        //only known to the backend from now on
+        manager.remove(shared, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        backendService.shutdown();
+    }
+
+    @Benchmark
+    public Session sameSessionFromManyRequests() throws IOException {
+        Session session = manager.findSession("shared.othernode");
+        manager.remove(session, false);
+        return session;
+    }
+
+    /**
+     * Reads take as long as a round trip to a real backend would.
+     */
+    private static final class SlowBackendService extends FakeBackendService {
+
+        private final long latencyNanos;
+
+        private SlowBackendService(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+            return super.getVersionedSessionInternal(sessionId);
+        }
+    }
+}
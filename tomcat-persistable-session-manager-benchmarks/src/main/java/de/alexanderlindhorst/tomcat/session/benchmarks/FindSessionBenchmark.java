@@ -0,0 +1,90 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.alexanderlindhorst.tomcat.session.access.FakeBackendService;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static de.alexanderlindhorst.tomcat.session.benchmarks.BenchmarkFixtures.JVM_ROUTE;
+
+/**
+ * {@code findSession} for a session held by this node, for one held by this node but checked against the backend's version
+ * by the near cache and for one that has to be loaded from the backend, e.g. after fail-over from another node.
+ *
+ * @author alindhorst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindSessionBenchmark {
+
+    @Param({"small", "large"})
+    private String size;
+    @Param({"jdk", "compact"})
+    private String serializer;
+    private FakeBackendService backendService;
+    private PersistableSessionManager manager;
+
+    @Setup
+    public void setUp() {
+        backendService = new FakeBackendService();
+        backendService.init();
+        manager = BenchmarkFixtures.createManager(serializer, backendService);
+        manager.setNearCache(true);
+        PersistableSession local = BenchmarkFixtures.createSession(manager, "local." + JVM_ROUTE, size, "strings");
+        backendService.persistSession(local);
+        PersistableSession cached = BenchmarkFixtures.createSession(manager, "cached." + JVM_ROUTE, size, "strings");
+        backendService.persistSession(cached);
+        PersistableSession remote = BenchmarkFixtures.createSession(manager, "remote." + JVM_ROUTE, size, "strings");
+        backendService.persistSession(remote);
+        //only known to the backend from now on
+        manager.remove(remote, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        backendService.shutdown();
+    }
+
+    @Benchmark
+    public Session localHit() throws IOException {
+        return manager.findSession("local." + JVM_ROUTE);
+    }
+
+    @Benchmark
+    public Session validatedHit() throws IOException {
+        return manager.findSession("cached.othernode");
+    }
+
+    /**
+     * Includes dropping the loaded session from the manager again without touching the backend, so every invocation misses.
+     */
+    @Benchmark
+    public Session backendMiss() throws IOException {
+        Session session = manager.findSession("remote.othernode");
+        manager.remove(session, false);
+        return session;
+    }
+}
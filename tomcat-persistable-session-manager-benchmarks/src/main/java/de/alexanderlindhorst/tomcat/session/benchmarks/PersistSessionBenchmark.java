@@ -0,0 +1,74 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.alexanderlindhorst.tomcat.session.access.FakeBackendService;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+/**
+ * {@code persistSession} against the in-memory backend, so the numbers show the cost on the request thread: serialization,
+ * change detection, compression and handing over to the backend. One attribute changes per invocation, like a typical
+ * request would.
+ *
+ * @author alindhorst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistSessionBenchmark {
+
+    @Param({"small", "large"})
+    private String size;
+    @Param({"jdk", "compact"})
+    private String serializer;
+    @Param({"false", "true"})
+    private boolean deltaPersistence;
+    @Param({"none", "fast"})
+    private String compression;
+    private FakeBackendService backendService;
+    private PersistableSession session;
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        backendService = new FakeBackendService();
+        backendService.setDeltaPersistence(deltaPersistence);
+        backendService.setCompression(compression);
+        backendService.init();
+        PersistableSessionManager manager = BenchmarkFixtures.createManager(serializer, backendService);
+        session = BenchmarkFixtures.createSession(manager, "session", size, "strings");
+        backendService.persistSession(session);
+    }
+
+    @TearDown
+    public void tearDown() {
+        backendService.shutdown();
+    }
+
+    @Benchmark
+    public PersistableSession persist() {
+        session.setAttribute("counter", counter++);
+        backendService.persistSession(session);
+        return session;
+    }
+}
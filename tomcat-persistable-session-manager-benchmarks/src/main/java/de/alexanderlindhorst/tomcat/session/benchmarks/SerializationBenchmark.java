@@ -0,0 +1,65 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.deserializeSessionInto;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.serializeSession;
+
+/**
+ * Serializing and deserializing whole sessions with either serializer.
+ *
+ * @author alindhorst
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"small", "medium", "large"})
+    private String size;
+    @Param({"strings", "collections", "objects"})
+    private String mix;
+    @Param({"jdk", "compact"})
+    private String serializer;
+    private PersistableSessionManager manager;
+    private PersistableSession session;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() {
+        manager = BenchmarkFixtures.createManager(serializer, null);
+        session = BenchmarkFixtures.createSession(manager, "session", size, mix);
+        serialized = serializeSession(session);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializeSession(session);
+    }
+
+    @Benchmark
+    public PersistableSession deserialize() {
+        return deserializeSessionInto(new PersistableSession(manager), serialized);
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access.riak;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.RiakCommand;
+import com.basho.riak.client.api.cap.UnresolvedConflictException;
+import com.basho.riak.client.api.cap.VClock;
+import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
+import com.basho.riak.client.api.commands.kv.DeleteValue;
+import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.commands.kv.StoreValue;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.RiakObject;
+import com.basho.riak.client.core.util.BinaryValue;
+
+import de.alexanderlindhorst.tomcat.session.access.AsyncBackendServiceBase;
+import de.alexanderlindhorst.tomcat.session.access.ExpiryPartition;
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.MAX_RETRY_ATTEMPTS;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.RETRY_BACKOFF_MS;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.attributeNamesOf;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.deleteAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiredBefore;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiryBucketMillis;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiryQueries;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSessionHead;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSessionIfModified;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchLease;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fromVClock;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.hasSeparateAttributes;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.isClusterExpiring;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.isTouchable;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.leaseHolder;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.leaseLocation;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.nextPage;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.sessionLocation;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeLease;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeSessionFields;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storedSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.toVClock;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.touchSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.withAttributes;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Riak backend built on the asynchronous API of the Riak client. Writes and deletes don't occupy the calling thread while
+ * Riak answers, retries are scheduled instead of slept, and the expiry sweep keeps several deletes in flight at once.
+ * Reads still wait for Riak, as the request can't go on without the session.
+ *
+ * @author alindhorst
+ */
+public class AsynchronousRiakService extends AsyncBackendServiceBase {
+
+    private RiakClient client;
+    private ScheduledExecutorService scheduler;
+    private final ExpiryBuckets expiryBuckets = new ExpiryBuckets();
+
+    @Override
+    public void init() {
+        super.init();
+        client = RiakSupport.createClient(this);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "riak-async-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        Future<Boolean> shutdown = client.shutdown();
+        try {
+            shutdown.get(3, SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted during Riak cluster shutdown", ex);
+        } catch (ExecutionException | TimeoutException ex) {
+            LOGGER.warn("Problem occured during Riak cluster shutdown", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc} Riak KV has no time to live per write: the cluster's backend must expire objects itself, e.g. with
+     * bitcask's {@code expiry} or leveldb's {@code expiry.retention.time} set to at least the session expiry threshold. That
+     * expiry has to be declared with {@link #setBackendExpirySeconds(int)}, otherwise sessions are swept as before. Sessions
+     * are then stored without expiry index.
+     */
+    @Override
+    protected boolean isNativeExpirySupported() {
+        return isClusterExpiring(this);
+    }
+
+    /**
+     * {@inheritDoc} This implementation stores the session blindly, using the known version as vector clock, and only reads the
+     * current state from Riak if the store ended up in siblings. The version completed with is the vector clock of the stored
+     * object.
+     */
+    @Override
+    protected CompletableFuture<String> persistSessionInternalAsync(String sessionId, byte[] bytes, String knownVersion) {
+        if (isShuttingDown()) {
+            return failedFuture(new RiakAccessException("Service is shutting down", null));
+        }
+        LOGGER.debug("persistSessionInternalAsync {}", sessionId);
+        Location location = sessionLocation(sessionId);
+        return failWith(storeResolvingSiblings(location, vClock -> storeSession(location, bytes, vClock,
+                expiryBucketMillis(this)), toVClock(knownVersion)), "Couldn't persist session " + sessionId);
+    }
+
+    /**
+     * @param store store command for the given vector clock
+     * @return completed with the vector clock of the stored object
+     */
+    private CompletableFuture<String> storeResolvingSiblings(Location location, Function<VClock, StoreValue> store,
+            VClock vClock) {
+        return executeWithRetry(() -> execute(store.apply(vClock)).thenCompose(response -> {
+            if (response.getNumberOfValues() <= 1) {
+                return completedFuture(response);
+            }
+            LOGGER.debug("storeResolvingSiblings - siblings for {}, resolving with current vclock", location.getKeyAsString());
+            return execute(fetchSessionHead(location)).thenCompose(current -> execute(store.apply(current.getVectorClock())));
+        })).thenApply(response -> fromVClock(response.getVectorClock()));
+    }
+
+    /**
+     * {@inheritDoc} Like {@link SynchronousRiakService#getDeltaWriter()} this implementation stores each attribute under its
+     * own key in the {@code SESSION_ATTRIBUTES} bucket, see
+     * {@link #persistSessionDeltaInternalAsync(String, SessionDelta, String)}.
+     */
+    @Override
+    protected DeltaWriter getDeltaWriter() {
+        return isExpiringNatively() ? null
+                : (sessionId, delta, knownVersion) -> await(persistSessionDeltaInternalAsync(sessionId, delta, knownVersion));
+    }
+
+    /**
+     * Writes the delta in the same order as
+     * {@link SynchronousRiakService#persistSessionDeltaInternal(String, SessionDelta, String)}, storing all changed
+     * attributes at the same time.
+     *
+     * @return completed with the vector clock of the session's fields
+     */
+    @Override
+    protected CompletableFuture<String> persistSessionDeltaInternalAsync(String sessionId, SessionDelta delta,
+            String knownVersion) {
+        if (isShuttingDown()) {
+            return failedFuture(new RiakAccessException("Service is shutting down", null));
+        }
+        LOGGER.debug("persistSessionDeltaInternalAsync {}, {} attributes changed", sessionId, delta.getAttributes().size());
+        Location location = sessionLocation(sessionId);
+        CompletableFuture<Set<String>> removed = completedFuture(delta.getRemovedAttributes());
+        if (delta.isComplete() && knownVersion != null) {
+            removed = storedAttributeNames(location).thenApply(names -> {
+                Set<String> stale = new HashSet<>(names);
+                stale.removeAll(delta.getAttributeNames());
+                return stale;
+            });
+        }
+        CompletableFuture<Set<String>> toRemove = removed;
+        CompletableFuture<String> persist = toRemove.thenCompose(ignored -> CompletableFuture.allOf(
+                delta.getAttributes().entrySet().stream().map(attribute -> executeWithRetry(() -> execute(
+                        storeAttribute(sessionId, attribute.getKey(), attribute.getValue()))))
+                        .toArray(CompletableFuture<?>[]::new)))
+                .thenCompose(ignored -> storeResolvingSiblings(location, vClock -> storeSessionFields(location, delta,
+                        vClock, expiryBucketMillis(this)), toVClock(knownVersion)))
+                .thenCompose(version -> deleteAttributes(sessionId, toRemove.join()).thenApply(ignored -> version));
+        return failWith(persist, "Couldn't persist session " + sessionId);
+    }
+
+    private boolean isStoringAttributesSeparately() {
+        return isDeltaPersistence() && getDeltaWriter() != null;
+    }
+
+    /**
+     * @return completed with the names of the attributes stored individually for the session, empty if there are none
+     */
+    private CompletableFuture<Set<String>> storedAttributeNames(Location location) {
+        return executeWithRetry(() -> execute(fetchSession(location))).thenApply(response -> {
+            RiakObject session = stored(response);
+            return hasSeparateAttributes(session) ? attributeNamesOf(session) : Collections.<String>emptySet();
+        });
+    }
+
+    /**
+     * Deletes the attributes at the same time; an attribute that couldn't be deleted is named by no session anymore and is
+     * only logged.
+     */
+    private CompletableFuture<Void> deleteAttributes(String sessionId, Set<String> names) {
+        return CompletableFuture.allOf(names.stream().map(name -> execute(deleteAttribute(sessionId, name))
+                .handle((ignored, ex) -> {
+                    if (ex != null) {
+                        LOGGER.warn("Couldn't delete attribute {} of session {}", name, sessionId, ex);
+                    }
+                    return null;
+                })).toArray(CompletableFuture<?>[]::new));
+    }
+
+    /**
+     * @return completed with the session as read, reassembled from its attributes if they are stored individually
+     */
+    private CompletableFuture<VersionedBytes> toVersionedBytes(String sessionId, FetchValue.Response response) {
+        if (response.isUnchanged()) {
+            return completedFuture(VersionedBytes.NOT_MODIFIED);
+        }
+        RiakObject session = response.isNotFound() ? null : value(response);
+        if (!hasSeparateAttributes(session)) {
+            return completedFuture(RiakSupport.toVersionedBytes(session));
+        }
+        Map<String, CompletableFuture<RiakObject>> fetches = new LinkedHashMap<>();
+        attributeNamesOf(session).forEach(name -> fetches.put(name, execute(fetchAttribute(sessionId, name))
+                .thenApply(AsynchronousRiakService::stored)));
+        return CompletableFuture.allOf(fetches.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, byte[]> attributes = new LinkedHashMap<>();
+            fetches.forEach((name, fetch) -> {
+                RiakObject attribute = fetch.join();
+                if (attribute != null) {
+                    attributes.put(name, attribute.getValue().getValue());
+                } else {
+                    LOGGER.warn("Attribute {} of session {} is missing, reading the session without it", name, sessionId);
+                }
+            });
+            return RiakSupport.toVersionedBytes(withAttributes(session, attributes));
+        });
+    }
+
+    @Override
+    protected CompletableFuture<Void> deleteSessionInternalAsync(String sessionId) {
+        if (isShuttingDown()) {
+            return failedFuture(new RiakAccessException("Service is shutting down", null));
+        }
+        LOGGER.debug("deleteSessionInternalAsync {}", sessionId);
+        Location location = sessionLocation(sessionId);
+        DeleteValue deleteValue = new DeleteValue.Builder(location).build();
+        CompletableFuture<Void> attributes = isStoringAttributesSeparately()
+                ? storedAttributeNames(location).thenCompose(names -> deleteAttributes(sessionId, names))
+                : completedFuture(null);
+        return failWith(attributes.thenCompose(ignored -> executeWithRetry(() -> execute(deleteValue))),
+                "Couldn't delete session " + sessionId);
+    }
+
+    /**
+     * {@inheritDoc} Like {@link SynchronousRiakService#touchSessionsInternal(Map)} this implementation reads each session
+     * and stores it as read with fresh indexes, at about the cost of writing it back. The sessions are touched in groups of
+     * {@link #getMaxTouchesInFlight()}, each group starting once the previous one completed.
+     */
+    @Override
+    protected CompletableFuture<Map<String, String>> touchSessionsInternalAsync(Map<String, String> knownVersions) {
+        if (isShuttingDown()) {
+            return failedFuture(new RiakAccessException("Service is shutting down", null));
+        }
+        long bucketMillis = expiryBucketMillis(this);
+        List<String> sessionIds = new ArrayList<>(knownVersions.keySet());
+        int groupSize = getMaxTouchesInFlight();
+        Map<String, String> touched = Collections.synchronizedMap(new HashMap<>());
+        CompletableFuture<Void> touches = completedFuture(null);
+        for (int from = 0; from < sessionIds.size(); from += groupSize) {
+            List<String> group = sessionIds.subList(from, Math.min(sessionIds.size(), from + groupSize));
+            touches = touches.thenCompose(ignored -> CompletableFuture.allOf(group.stream()
+                    .map(id -> touch(id, knownVersions.get(id), bucketMillis, touched))
+                    .toArray(CompletableFuture<?>[]::new)));
+        }
+        return touches.thenApply(ignored -> touched);
+    }
+
+    private CompletableFuture<Void> touch(String sessionId, String knownVersion, long bucketMillis,
+            Map<String, String> touched) {
+        Location location = sessionLocation(sessionId);
+        return execute(fetchSession(location)).thenCompose(response -> {
+            RiakObject current = stored(response);
+            return !isTouchable(current, knownVersion) ? completedFuture((Void) null)
+                    : execute(touchSession(location, current, bucketMillis))
+                            .thenAccept(stored -> touched.put(sessionId, fromVClock(stored.getVectorClock())));
+        }).exceptionally(ex -> {
+            LOGGER.debug("Couldn't touch session {}, leaving it to its next access", sessionId, ex);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc} This implementation pages through the expired sessions 1000 ids at a time, following Riak's
+     * continuation, and deletes them in groups of {@link #getMaxExpiryDeletesInFlight()}. With
+     * {@link #getExpiryDeletesPerSecond()} set, the start of each group is delayed to keep the sweep at that rate on average.
+     * Sessions whose delete failed are not returned, the next sweep finds them again. With the {@code timeBuckets} expiry
+     * index only the buckets that became due since the previous sweep are queried, see {@link ExpiryBuckets}.
+     */
+    @Override
+    protected CompletableFuture<List<String>> removeExpiredSessionsInternalAsync() {
+        return removeExpiredSessionsInternalAsync(ExpiryPartition.ALL);
+    }
+
+    /**
+     * {@inheritDoc} This implementation pages through all expired sessions like
+     * {@link #removeExpiredSessionsInternalAsync()}, but deletes only those of the partition.
+     */
+    @Override
+    protected CompletableFuture<List<String>> removeExpiredSessionsInternalAsync(ExpiryPartition partition) {
+        if (getSessionExpiryThreshold() == SESSIONS_NEVER_EXPIRE) {
+            return completedFuture(Collections.<String>emptyList());
+        }
+        long now = currentTimeMillis();
+        long threshold = now - getSessionExpiryThreshold();
+        long bucketMillis = expiryBucketMillis(this);
+        List<Long> dueBuckets = bucketMillis > 0 ? expiryBuckets.dueBuckets(partition, threshold, bucketMillis, now) : null;
+        List<String> removed = new ArrayList<>();
+        Set<String> processedIds = new HashSet<>();
+        SweepPacer pacer = new SweepPacer(getExpiryDeletesPerSecond());
+        boolean catchUp = expiryBuckets.isCatchUpDue(partition, now);
+        CompletableFuture<List<String>> sweep = completedFuture(removed);
+        for (Function<BinaryValue, IntIndexQuery> query : expiryQueries(this, dueBuckets, threshold, catchUp)) {
+            sweep = sweep.thenCompose(ignored -> removeExpiredPages(query, partition, null, removed, processedIds, pacer));
+        }
+        return sweep.thenApply(ignored -> {
+            if (bucketMillis > 0) {
+                expiryBuckets.swept(partition, threshold, bucketMillis, dueBuckets == null, now);
+            }
+            if (catchUp) {
+                expiryBuckets.caughtUp(partition, now);
+            }
+            return removed;
+        });
+    }
+
+    private CompletableFuture<List<String>> removeExpiredPages(Function<BinaryValue, IntIndexQuery> query,
+            ExpiryPartition partition, BinaryValue continuation, List<String> removed, Set<String> processedIds,
+            SweepPacer pacer) {
+        CompletableFuture<IntIndexQuery.Response> pageQuery = executeWithRetry(() -> execute(query.apply(continuation)));
+        return failWith(pageQuery, "Failed to query expired sessions").thenCompose(page -> {
+            List<String> newIds = page.getEntries().stream()
+                    .map(entry -> entry.getRiakObjectLocation().getKeyAsString())
+                    .filter(id -> partition.contains(id) && processedIds.add(id))
+                    .collect(toList());
+            BinaryValue next = nextPage(page);
+            return deleteExpiredSessions(newIds, removed, pacer).thenCompose(ignored -> next == null
+                    ? completedFuture(removed)
+                    : removeExpiredPages(query, partition, next, removed, processedIds, pacer));
+        });
+    }
+
+    private CompletableFuture<Void> deleteExpiredSessions(List<String> sessionIds, List<String> removed, SweepPacer pacer) {
+        int groupSize = getMaxExpiryDeletesInFlight();
+        CompletableFuture<Void> deletes = completedFuture(null);
+        for (int from = 0; from < sessionIds.size(); from += groupSize) {
+            List<String> group = sessionIds.subList(from, Math.min(sessionIds.size(), from + groupSize));
+            deletes = deletes.thenCompose(ignored -> afterDelay(pacer.reserve(group.size())))
+                    .thenCompose(ignored -> CompletableFuture.allOf(group.stream()
+                            .map(id -> deleteExpiredSession(id, removed)).toArray(CompletableFuture<?>[]::new)));
+        }
+        return deletes;
+    }
+
+    private CompletableFuture<Void> deleteExpiredSession(String sessionId, List<String> removed) {
+        return deleteSessionInternalAsync(sessionId).handle((ignored, ex) -> {
+            if (ex == null) {
+                synchronized (removed) {
+                    removed.add(sessionId);
+                }
+            } else {
+                LOGGER.warn("Couldn't delete expired session {}, leaving it to the next sweep", sessionId, ex);
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> afterDelay(long nanos) {
+        if (nanos <= 0) {
+            return completedFuture(null);
+        }
+        CompletableFuture<Void> delayed = new CompletableFuture<>();
+        try {
+            scheduler.schedule(() -> delayed.complete(null), nanos, NANOSECONDS);
+        } catch (RejectedExecutionException ex) {
+            delayed.completeExceptionally(ex);
+        }
+        return delayed;
+    }
+
+    /**
+     * {@inheritDoc} This implementation keeps the lease as owner and end of lease in the {@code SWEEP_LEASES} bucket and
+     * writes it only if it wasn't changed since it was read. A lease that can't be read or written is not granted.
+     */
+    @Override
+    protected boolean acquireExpirySweepLease(String lease, String owner, long durationMillis) {
+        Location location = leaseLocation(lease);
+        CompletableFuture<Boolean> acquired = executeWithRetry(() -> execute(fetchLease(location)))
+                .thenCompose(current -> {
+                    String holder = leaseHolder(current.getValues(), currentTimeMillis());
+                    if (holder != null && !holder.equals(owner)) {
+                        return completedFuture(false);
+                    }
+                    return execute(storeLease(location, owner, currentTimeMillis() + durationMillis,
+                            current.getVectorClock()))
+                            .thenApply(stored -> owner.equals(leaseHolder(stored.getValues(), currentTimeMillis())));
+                });
+        return await(acquired.exceptionally(ex -> {
+            LOGGER.info("Couldn't take lease {}, leaving its sweep to other nodes", lease, ex);
+            return false;
+        }));
+    }
+
+    @Override
+    public List<String> getExpiredSessionIds() {
+        return await(getExpiredSessionIdsAsync());
+    }
+
+    private CompletableFuture<List<String>> getExpiredSessionIdsAsync() {
+        if (getSessionExpiryThreshold() == SESSIONS_NEVER_EXPIRE) {
+            return completedFuture(Collections.<String>emptyList());
+        }
+        long threshold = currentTimeMillis() - getSessionExpiryThreshold();
+        return failWith(execute(expiredBefore(threshold, expiryBucketMillis(this), null)).thenApply(response -> response.getEntries().stream()
+                .map(entry -> entry.getRiakObjectLocation().getKeyAsString())
+                .collect(toList())), "Failed to query expired sessions");
+    }
+
+    @Override
+    protected byte[] getSessionInternal(String sessionId) {
+        VersionedBytes versionedBytes = getVersionedSessionInternal(sessionId);
+        return versionedBytes == null ? null : versionedBytes.getBytes();
+    }
+
+    @Override
+    protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+        if (isShuttingDown()) {
+            throw new RiakAccessException("Service is shutting down", null);
+        }
+        LOGGER.debug("getSessionInternal {}", sessionId);
+        FetchValue fetchValue = fetchSession(sessionLocation(sessionId));
+        return await(failWith(executeWithRetry(() -> execute(fetchValue)
+                .thenCompose(response -> toVersionedBytes(sessionId, response))), "Couldn't fetch session " + sessionId));
+    }
+
+    /**
+     * {@inheritDoc} This implementation hands the known vector clock to Riak, which only sends the session if its vector
+     * clock differs.
+     */
+    @Override
+    protected VersionedBytes getSessionIfNewerInternal(String sessionId, String knownVersion) {
+        if (isShuttingDown()) {
+            throw new RiakAccessException("Service is shutting down", null);
+        }
+        LOGGER.debug("getSessionIfNewerInternal {}", sessionId);
+        FetchValue fetchValue = fetchSessionIfModified(sessionLocation(sessionId), knownVersion);
+        return await(failWith(executeWithRetry(() -> execute(fetchValue)
+                .thenCompose(response -> toVersionedBytes(sessionId, response))), "Couldn't check session " + sessionId));
+    }
+
+    /**
+     * Runs the command without waiting for Riak.
+     */
+    private <T, S> CompletableFuture<T> execute(RiakCommand<T, S> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        client.executeAsync(command).addListener(future -> {
+            if (future.isSuccess()) {
+                result.complete(future.getNow());
+            } else {
+                result.completeExceptionally(future.cause() != null ? future.cause() : new CancellationException());
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Starts the operation again after a pause if it fails, up to {@link RiakSupport#MAX_RETRY_ATTEMPTS} attempts in total.
+     */
+    private <T> CompletableFuture<T> executeWithRetry(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, 1, result);
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> operation, int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> execution;
+        try {
+            execution = operation.get();
+        } catch (RuntimeException ex) {
+            execution = failedFuture(ex);
+        }
+        execution.whenComplete((value, ex) -> {
+            if (ex == null) {
+                if (attempt > 1) {
+                    getSessionMetrics().backendRetried(attempt - 1);
+                }
+                result.complete(value);
+                return;
+            }
+            if (attempt < MAX_RETRY_ATTEMPTS && !isShuttingDown()) {
+                LOGGER.warn("Riak operation failed on attempt {}/{}, retrying", attempt, MAX_RETRY_ATTEMPTS, ex);
+                try {
+                    scheduler.schedule(() -> attempt(operation, attempt + 1, result), RETRY_BACKOFF_MS,
+                            MILLISECONDS);
+                    return;
+                } catch (RejectedExecutionException rejected) {
+                    LOGGER.debug("Retry rejected, service is shutting down", rejected);
+                }
+            }
+            getSessionMetrics().backendRetried(attempt - 1);
+            result.completeExceptionally(ex);
+        });
+    }
+
+    /**
+     * @return {@code null} if the object is gone
+     */
+    private static RiakObject stored(FetchValue.Response response) {
+        try {
+            return storedSession(response);
+        } catch (UnresolvedConflictException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static RiakObject value(FetchValue.Response response) {
+        try {
+            return response.getValue(RiakObject.class);
+        } catch (UnresolvedConflictException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    /**
+     * @return completed like the future, but failing with a {@link RiakAccessException} carrying the message
+     */
+    private static <T> CompletableFuture<T> failWith(CompletableFuture<T> future, String message) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, ex) -> {
+            if (ex == null) {
+                result.complete(value);
+            } else {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                result.completeExceptionally(cause instanceof RiakAccessException ? cause
+                        : new RiakAccessException(message, cause));
+            }
+        });
+        return result;
+    }
+}
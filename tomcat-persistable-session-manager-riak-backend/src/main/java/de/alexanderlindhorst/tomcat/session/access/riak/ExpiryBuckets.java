@@ -0,0 +1,102 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access.riak;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.alexanderlindhorst.tomcat.session.access.ExpiryPartition;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+/**
+ * Plans sweeps over the time-bucketed expiry index. Each partition remembers the last bucket swept, so that the next sweep
+ * only queries the buckets that became due since. Without such a bucket, when too many buckets became due at once, and
+ * once an hour all due buckets are queried as one range instead. Independent of that, the first sweep of a partition and
+ * one sweep an hour also query the index written with the other expiry index setting, see
+ * {@link #isCatchUpDue(ExpiryPartition, long)}.
+ * <p>
+ * Each of these queries is still a coverage query over the whole ring, as is every secondary index query in Riak; the
+ * buckets only narrow the range each vnode reads.
+ *
+ * @author alindhorst
+ */
+final class ExpiryBuckets {
+
+    static final long FULL_SCAN_INTERVAL_MS = HOURS.toMillis(1);
+    static final int MAX_BUCKETS_PER_SWEEP = 60;
+    private final ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> catchUps = new ConcurrentHashMap<>();
+
+    static long bucketOf(long timestamp, long bucketMillis) {
+        return Math.floorDiv(timestamp, bucketMillis);
+    }
+
+    /**
+     * @return last bucket holding only sessions accessed before the threshold
+     */
+    static long lastDueBucket(long threshold, long bucketMillis) {
+        return bucketOf(threshold, bucketMillis) - 1;
+    }
+
+    /**
+     * @return buckets to query in this sweep, {@code null} to query all due buckets as one range instead
+     */
+    List<Long> dueBuckets(ExpiryPartition partition, long threshold, long bucketMillis, long now) {
+        Cursor cursor = cursors.get(partition.getLeaseName());
+        long lastDue = lastDueBucket(threshold, bucketMillis);
+        if (cursor == null || now - cursor.fullScan >= FULL_SCAN_INTERVAL_MS
+                || lastDue - cursor.bucket > MAX_BUCKETS_PER_SWEEP) {
+            return null;
+        }
+        List<Long> due = new ArrayList<>();
+        for (long bucket = cursor.bucket + 1; bucket <= lastDue; bucket++) {
+            due.add(bucket);
+        }
+        return due;
+    }
+
+    /**
+     * Sessions carry only the index of the setting they were written with. While the nodes are switched one by one, those
+     * not switched yet keep writing the other index, and sessions written before the switch keep it until their next
+     * write, so it has to be swept as well for as long as a switch may be in progress.
+     *
+     * @return whether the sweep of the partition has to query the index of the other setting as well, on its first sweep
+     * and once per {@link #FULL_SCAN_INTERVAL_MS}
+     */
+    boolean isCatchUpDue(ExpiryPartition partition, long now) {
+        Long caughtUp = catchUps.get(partition.getLeaseName());
+        return caughtUp == null || now - caughtUp >= FULL_SCAN_INTERVAL_MS;
+    }
+
+    /**
+     * Records a completed sweep that queried the index of the other setting as well.
+     */
+    void caughtUp(ExpiryPartition partition, long now) {
+        catchUps.put(partition.getLeaseName(), now);
+    }
+
+    /**
+     * Records a completed sweep.
+     *
+     * @param fullScan whether the sweep queried all due buckets
+     */
+    void swept(ExpiryPartition partition, long threshold, long bucketMillis, boolean fullScan, long now) {
+        long lastDue = lastDueBucket(threshold, bucketMillis);
+        cursors.compute(partition.getLeaseName(), (name, current) -> new Cursor(lastDue,
+                fullScan || current == null ? now : current.fullScan));
+    }
+
+    private static final class Cursor {
+
+        private final long bucket;
+        private final long fullScan;
+
+        private Cursor(long bucket, long fullScan) {
+            this.bucket = bucket;
+            this.fullScan = fullScan;
+        }
+    }
+}
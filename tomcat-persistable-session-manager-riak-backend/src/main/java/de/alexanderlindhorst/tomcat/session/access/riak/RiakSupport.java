@@ -0,0 +1,450 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access.riak;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.cap.BasicVClock;
+import com.basho.riak.client.api.cap.UnresolvedConflictException;
+import com.basho.riak.client.api.cap.VClock;
+import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
+import com.basho.riak.client.api.commands.kv.DeleteValue;
+import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.commands.kv.StoreValue;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakNode;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.Namespace;
+import com.basho.riak.client.core.query.RiakObject;
+import com.basho.riak.client.core.query.indexes.LongIntIndex;
+import com.basho.riak.client.core.util.BinaryValue;
+
+import de.alexanderlindhorst.tomcat.session.access.BackendServiceBase;
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Riak commands and conversions shared by the synchronous and the asynchronous Riak service.
+ *
+ * @author alindhorst
+ */
+final class RiakSupport {
+
+    static final Namespace SESSIONS = new Namespace("SESSIONS");
+    static final Namespace SWEEP_LEASES = new Namespace("SWEEP_LEASES");
+    static final Namespace SESSION_ATTRIBUTES = new Namespace("SESSION_ATTRIBUTES");
+    /**
+     * Content type of a session whose attributes are stored individually in {@link #SESSION_ATTRIBUTES}.
+     */
+    static final String SEPARATE_ATTRIBUTES = "application/x-session-separate-attributes";
+    static final int BATCH_SIZE = 1000;
+    static final int MAX_RETRY_ATTEMPTS = 3;
+    static final long RETRY_BACKOFF_MS = 100;
+    static final long NO_EXPIRY_INDEX = -1;
+    private static final String LAST_ACCESSED = "_lastAccessed";
+    private static final String EXPIRY_BUCKET = "_expiryBucket";
+    private static final int DEFAULT_PORT = 10017;
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile("^(?<host>[^:,\\s]+)(:(?<port>\\d+))?");
+    private static final Pattern LEASE_PATTERN = Pattern.compile("^(?<owner>.+)\\n(?<until>\\d+)$");
+
+    private RiakSupport() {
+        //utility class
+    }
+
+    /**
+     * Builds a cluster of all nodes listed in the service's backend address, each with the service's connection pool
+     * settings. Riak's client spreads the operations over the nodes.
+     *
+     * @param service service to take the backend address, a comma separated list of {@code host} or {@code host:port}, and
+     * the connection pool settings from
+     * @return client of the started cluster
+     */
+    static RiakClient createClient(BackendServiceBase service) {
+        String backendAddress = service.getBackendAddress();
+        if (isNullOrEmpty(backendAddress)) {
+            throw new IllegalArgumentException("backend address must not be null or empty");
+        }
+        if (service.getMinConnections() < 0 || service.getMaxConnections() < 0
+                || (service.getMaxConnections() > 0 && service.getMinConnections() > service.getMaxConnections())) {
+            throw new IllegalArgumentException("connection limits " + service.getMinConnections() + "/"
+                    + service.getMaxConnections() + " are invalid");
+        }
+        List<RiakNode> nodes = new ArrayList<>();
+        try {
+            for (String nodeAddress : backendAddress.split(",", -1)) {
+                nodes.add(createNode(nodeAddress.trim(), service));
+            }
+            RiakCluster cluster = new RiakCluster.Builder(nodes).build();
+            cluster.start();
+            return new RiakClient(cluster);
+        } catch (UnknownHostException ex) {
+            throw new IllegalStateException("Couldn't configure riak access", ex);
+        }
+    }
+
+    private static RiakNode createNode(String nodeAddress, BackendServiceBase service) throws UnknownHostException {
+        Matcher matcher = ADDRESS_PATTERN.matcher(nodeAddress);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("backend address value " + nodeAddress + " cannot be read");
+        }
+        String portValue = matcher.group("port");
+        int port = DEFAULT_PORT;
+        if (!isNullOrEmpty(portValue)) {
+            port = Integer.valueOf(portValue);
+        }
+        RiakNode.Builder builder = new RiakNode.Builder()
+                .withRemoteAddress(matcher.group("host"))
+                .withRemotePort(port)
+                .withMinConnections(service.getMinConnections())
+                .withIdleTimeout(service.getConnectionIdleTimeout())
+                .withConnectionTimeout(service.getConnectionTimeout())
+                .withBlockOnMaxConnections(service.isBlockOnMaxConnections());
+        if (service.getMaxConnections() > 0) {
+            //the builder rejects 0, its own default for no limit
+            builder.withMaxConnections(service.getMaxConnections());
+        }
+        return builder.build();
+    }
+
+    static Location sessionLocation(String sessionId) {
+        return new Location(SESSIONS, sessionId);
+    }
+
+    /**
+     * Riak KV has no time to live per write, so only an expiry configured for the cluster's backend, declared with
+     * {@code backendExpirySeconds}, lets the services leave expiry to Riak.
+     *
+     * @return whether the declared expiry of the cluster keeps sessions at least for the session expiry threshold
+     */
+    static boolean isClusterExpiring(BackendServiceBase service) {
+        return service.getBackendExpirySeconds() > 0
+                && SECONDS.toMillis(service.getBackendExpirySeconds()) >= service.getSessionExpiryThreshold();
+    }
+
+    /**
+     * @return milliseconds of last access per bucket of the expiry index, {@code 0} if the service doesn't use time buckets,
+     * {@link #NO_EXPIRY_INDEX} if the cluster expires sessions on its own
+     */
+    static long expiryBucketMillis(BackendServiceBase service) {
+        if (service.isExpiringNatively()) {
+            return NO_EXPIRY_INDEX;
+        }
+        return BackendServiceBase.EXPIRY_INDEX_TIME_BUCKETS.equals(service.getExpiryIndex())
+                ? SECONDS.toMillis(service.getExpiryBucketSeconds()) : 0;
+    }
+
+    /**
+     * @param expiryBucketMillis milliseconds per bucket of the expiry index, {@code 0} to index the last access time only,
+     * {@link #NO_EXPIRY_INDEX} to index nothing
+     */
+    static StoreValue storeSession(Location location, byte[] bytes, VClock vClock, long expiryBucketMillis) {
+        return storeSession(location, indexedSession(BinaryValue.create(bytes), RiakObject.DEFAULT_CONTENT_TYPE,
+                expiryBucketMillis), vClock);
+    }
+
+    /**
+     * Stores the fields of a session whose attributes are stored individually, together with the names of all its
+     * attributes.
+     *
+     * @param expiryBucketMillis as for {@link #storeSession(Location, byte[], VClock, long)}
+     */
+    static StoreValue storeSessionFields(Location location, SessionDelta delta, VClock vClock, long expiryBucketMillis) {
+        Map<String, byte[]> names = new LinkedHashMap<>();
+        delta.getAttributeNames().forEach(name -> names.put(name, new byte[0]));
+        byte[] fields = new SessionDelta(delta.getMetadata(), names, Collections.<String>emptySet(),
+                Collections.<String>emptySet(), true).toBytes();
+        return storeSession(location, indexedSession(BinaryValue.create(fields), SEPARATE_ATTRIBUTES, expiryBucketMillis),
+                vClock);
+    }
+
+    private static StoreValue storeSession(Location location, RiakObject session, VClock vClock) {
+        StoreValue.Builder builder = new StoreValue.Builder(session).withLocation(location)
+                .withOption(StoreValue.Option.RETURN_HEAD, true);
+        if (vClock != null) {
+            builder.withVectorClock(vClock);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return {@code true} if the session's attributes are stored individually, see
+     * {@link #storeSessionFields(Location, SessionDelta, VClock, long)}
+     */
+    static boolean hasSeparateAttributes(RiakObject session) {
+        return session != null && SEPARATE_ATTRIBUTES.equals(session.getContentType());
+    }
+
+    /**
+     * @param session session whose attributes are stored individually
+     */
+    static Set<String> attributeNamesOf(RiakObject session) {
+        return SessionDelta.fromBytes(session.getValue().getValue()).getAttributeNames();
+    }
+
+    /**
+     * @param session session whose attributes are stored individually
+     * @param attributes serialized attributes read for the session, by name
+     * @return the session with the given attributes as complete delta, with the vector clock of the stored session
+     */
+    static RiakObject withAttributes(RiakObject session, Map<String, byte[]> attributes) {
+        byte[] metadata = SessionDelta.fromBytes(session.getValue().getValue()).getMetadata();
+        RiakObject reassembled = new RiakObject();
+        reassembled.setValue(BinaryValue.create(new SessionDelta(metadata, attributes, Collections.<String>emptySet(),
+                Collections.<String>emptySet(), true).toBytes()));
+        reassembled.setVClock(session.getVClock());
+        return reassembled;
+    }
+
+    /**
+     * Attributes are keyed by session id and name; as session ids contain no {@code /}, keys of different sessions can't
+     * collide.
+     */
+    static Location attributeLocation(String sessionId, String name) {
+        return new Location(SESSION_ATTRIBUTES, sessionId + "/" + name);
+    }
+
+    static StoreValue storeAttribute(String sessionId, String name, byte[] bytes) {
+        RiakObject attribute = new RiakObject();
+        attribute.setValue(BinaryValue.create(bytes));
+        return new StoreValue.Builder(attribute).withLocation(attributeLocation(sessionId, name)).build();
+    }
+
+    static FetchValue fetchAttribute(String sessionId, String name) {
+        return new FetchValue.Builder(attributeLocation(sessionId, name)).build();
+    }
+
+    static DeleteValue deleteAttribute(String sessionId, String name) {
+        return new DeleteValue.Builder(attributeLocation(sessionId, name)).build();
+    }
+
+    /**
+     * Stores the session as read with the current time in its expiry index, only if nobody wrote it since it was read.
+     * Only the head is returned, for the new vector clock.
+     *
+     * @param current session as read from Riak
+     * @param expiryBucketMillis as for {@link #storeSession(Location, byte[], VClock, long)}
+     */
+    static StoreValue touchSession(Location location, RiakObject current, long expiryBucketMillis) {
+        return new StoreValue.Builder(indexedSession(current.getValue(), current.getContentType(), expiryBucketMillis))
+                .withLocation(location).withVectorClock(current.getVClock())
+                .withOption(StoreValue.Option.IF_NOT_MODIFIED, true)
+                .withOption(StoreValue.Option.RETURN_HEAD, true).build();
+    }
+
+    /**
+     * @param current session as read from Riak, {@code null} if gone
+     * @param knownVersion version the touching node knows, {@code null} if unknown
+     * @return whether the session is still there in the known version; a session written by another node in between was
+     * refreshed by that write, touching it would make the stale content of the touching node look current
+     */
+    static boolean isTouchable(RiakObject current, String knownVersion) {
+        return current != null && (knownVersion == null || knownVersion.equals(fromVClock(current.getVClock())));
+    }
+
+    private static RiakObject indexedSession(BinaryValue value, String contentType, long expiryBucketMillis) {
+        long now = currentTimeMillis();
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(value);
+        riakObject.setContentType(contentType);
+        //one index per write, time buckets replace the last access time
+        if (expiryBucketMillis == 0) {
+            riakObject.getIndexes().getIndex(LongIntIndex.named(LAST_ACCESSED)).add(now);
+        } else if (expiryBucketMillis > 0) {
+            riakObject.getIndexes().getIndex(LongIntIndex.named(EXPIRY_BUCKET))
+                    .add(ExpiryBuckets.bucketOf(now, expiryBucketMillis));
+        }
+        return riakObject;
+    }
+
+    /**
+     * @return {@code null} if the session is gone
+     */
+    static RiakObject storedSession(FetchValue.Response response) throws UnresolvedConflictException {
+        RiakObject value = response.isNotFound() ? null : response.getValue(RiakObject.class);
+        return value == null || value.isDeleted() ? null : value;
+    }
+
+    /**
+     * Reads the vector clock only, to resolve siblings created by a store.
+     */
+    static FetchValue fetchSessionHead(Location location) {
+        return new FetchValue.Builder(location).withOption(FetchValue.Option.HEAD, true)
+                .withOption(FetchValue.Option.DELETED_VCLOCK, true).build();
+    }
+
+    static FetchValue fetchSession(Location location) {
+        return new FetchValue.Builder(location).withOption(FetchValue.Option.DELETED_VCLOCK, true).build();
+    }
+
+    static FetchValue fetchSessionIfModified(Location location, String knownVersion) {
+        return new FetchValue.Builder(location)
+                .withOption(FetchValue.Option.IF_MODIFIED, toVClock(knownVersion))
+                .withOption(FetchValue.Option.DELETED_VCLOCK, true).build();
+    }
+
+    /**
+     * @param continuation continuation of the previous page, {@code null} for the first page
+     */
+    static IntIndexQuery lastAccessedBetween(long fromValue, long toValue, BinaryValue continuation) {
+        IntIndexQuery.Builder builder = new IntIndexQuery.Builder(SESSIONS, LAST_ACCESSED, fromValue, toValue)
+                .withMaxResults(BATCH_SIZE).withPaginationSort(true);
+        if (continuation != null) {
+            builder.withContinuation(continuation);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param continuation continuation of the previous page, {@code null} for the first page
+     */
+    static IntIndexQuery inExpiryBucket(long bucket, BinaryValue continuation) {
+        IntIndexQuery.Builder builder = new IntIndexQuery.Builder(SESSIONS, EXPIRY_BUCKET, bucket)
+                .withMaxResults(BATCH_SIZE).withPaginationSort(true);
+        if (continuation != null) {
+            builder.withContinuation(continuation);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param continuation continuation of the previous page, {@code null} for the first page
+     */
+    static IntIndexQuery inExpiryBucketsUpTo(long lastBucket, BinaryValue continuation) {
+        IntIndexQuery.Builder builder = new IntIndexQuery.Builder(SESSIONS, EXPIRY_BUCKET, 0L, lastBucket)
+                .withMaxResults(BATCH_SIZE).withPaginationSort(true);
+        if (continuation != null) {
+            builder.withContinuation(continuation);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param expiryBucketMillis as returned by {@link #expiryBucketMillis(BackendServiceBase)}
+     * @return query for the sessions not accessed since the threshold, in the expiry index written with these settings
+     */
+    static IntIndexQuery expiredBefore(long threshold, long expiryBucketMillis, BinaryValue continuation) {
+        return expiryBucketMillis > 0
+                ? inExpiryBucketsUpTo(ExpiryBuckets.lastDueBucket(threshold, expiryBucketMillis), continuation)
+                : lastAccessedBetween(0L, threshold, continuation);
+    }
+
+    /**
+     * Every secondary index query is a coverage query in Riak, asking a covering set of vnodes; buckets only narrow what
+     * each of them reads.
+     *
+     * @param service service to take the expiry index settings from
+     * @param dueBuckets buckets of the expiry index to query, {@code null} to query all expired sessions instead
+     * @param catchUp whether to query all expired sessions in the index written with the other expiry index setting as
+     * well, see {@link ExpiryBuckets#isCatchUpDue(de.alexanderlindhorst.tomcat.session.access.ExpiryPartition, long)}
+     * @return paged queries for the expired sessions, each taking the continuation of its previous page
+     */
+    static List<Function<BinaryValue, IntIndexQuery>> expiryQueries(BackendServiceBase service, List<Long> dueBuckets,
+            long threshold, boolean catchUp) {
+        long expiryBucketMillis = expiryBucketMillis(service);
+        List<Function<BinaryValue, IntIndexQuery>> queries = new ArrayList<>();
+        if (dueBuckets != null) {
+            dueBuckets.forEach(bucket -> queries.add(continuation -> inExpiryBucket(bucket, continuation)));
+        } else {
+            queries.add(continuation -> expiredBefore(threshold, expiryBucketMillis, continuation));
+        }
+        if (catchUp && expiryBucketMillis > 0) {
+            queries.add(continuation -> lastAccessedBetween(0L, threshold, continuation));
+        } else if (catchUp && expiryBucketMillis == 0) {
+            long lastBucket = ExpiryBuckets.lastDueBucket(threshold, SECONDS.toMillis(service.getExpiryBucketSeconds()));
+            queries.add(continuation -> inExpiryBucketsUpTo(lastBucket, continuation));
+        }
+        return queries;
+    }
+
+    /**
+     * @return continuation for the next page, {@code null} if this was the last one
+     */
+    static BinaryValue nextPage(IntIndexQuery.Response response) {
+        return response.hasContinuation() ? response.getContinuation() : null;
+    }
+
+    static Location leaseLocation(String lease) {
+        return new Location(SWEEP_LEASES, lease);
+    }
+
+    static FetchValue fetchLease(Location location) {
+        return new FetchValue.Builder(location).build();
+    }
+
+    /**
+     * Stores the lease only if nobody else wrote it since it was read, and returns what Riak holds afterwards.
+     *
+     * @param vClock vector clock of the lease read before, {@code null} if there was none
+     */
+    static StoreValue storeLease(Location location, String owner, long until, VClock vClock) {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(owner + "\n" + until, UTF_8));
+        StoreValue.Builder builder = new StoreValue.Builder(riakObject).withLocation(location)
+                .withOption(StoreValue.Option.RETURN_BODY, true);
+        if (vClock != null) {
+            builder.withVectorClock(vClock).withOption(StoreValue.Option.IF_NOT_MODIFIED, true);
+        } else {
+            builder.withOption(StoreValue.Option.IF_NONE_MATCH, true);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Of leases written concurrently, Riak keeping them as siblings, the one with the lowest owner counts, so that all nodes
+     * agree on the holder.
+     *
+     * @return owner of the lease still running, {@code null} if it ran out or was never taken
+     */
+    static String leaseHolder(List<RiakObject> values, long now) {
+        return values.stream()
+                .filter(value -> !value.isDeleted() && value.hasValue())
+                .map(value -> LEASE_PATTERN.matcher(value.getValue().toStringUtf8()))
+                .filter(matcher -> matcher.matches() && Long.parseLong(matcher.group("until")) > now)
+                .map(matcher -> matcher.group("owner"))
+                .min(Comparator.naturalOrder())
+                .orElse(null);
+    }
+
+    /**
+     * @return {@code null} for a missing value
+     */
+    static VersionedBytes toVersionedBytes(RiakObject value) {
+        return (value == null) ? null : new VersionedBytes(value.getValue().getValue(), fromVClock(value.getVClock()));
+    }
+
+    /**
+     * @return {@link VersionedBytes#NOT_MODIFIED} if Riak answered a conditional fetch as unchanged
+     */
+    static VersionedBytes toVersionedBytes(FetchValue.Response response) throws UnresolvedConflictException {
+        if (response.isUnchanged()) {
+            return VersionedBytes.NOT_MODIFIED;
+        }
+        return toVersionedBytes(response.isNotFound() ? null : response.getValue(RiakObject.class));
+    }
+
+    static VClock toVClock(String version) {
+        return version == null ? null : new BasicVClock(Base64.getDecoder().decode(version));
+    }
+
+    static String fromVClock(VClock vClock) {
+        return vClock == null ? null : Base64.getEncoder().encodeToString(vClock.getBytes());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access.riak;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Spreads the deletes of one expiry sweep evenly, so that the sweep doesn't take connections and Riak capacity away from
+ * requests. Not thread safe, a sweep uses its own pacer.
+ *
+ * @author alindhorst
+ */
+final class SweepPacer {
+
+    private final long intervalNanos;
+    private long next = System.nanoTime();
+
+    /**
+     * @param deletesPerSecond deletes to be started per second at most, {@code 0} for no limit
+     */
+    SweepPacer(int deletesPerSecond) {
+        this.intervalNanos = deletesPerSecond > 0 ? SECONDS.toNanos(1) / deletesPerSecond : 0;
+    }
+
+    /**
+     * Reserves the start of the given number of deletes.
+     *
+     * @return nanoseconds to wait before starting them
+     */
+    long reserve(int deletes) {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long start = Math.max(now, next);
+        next = start + deletes * intervalNanos;
+        return start - now;
+    }
+
+    /**
+     * Waits until another delete may be started.
+     */
+    void awaitTurn() throws InterruptedException {
+        long wait = reserve(1);
+        if (wait > 0) {
+            NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -3,34 +3,67 @@
  */
 package de.alexanderlindhorst.tomcat.session.access.riak;
 
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeoutException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Function;
 
 import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.cap.VClock;
 import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
 import com.basho.riak.client.api.commands.kv.DeleteValue;
 import com.basho.riak.client.api.commands.kv.FetchValue;
 import com.basho.riak.client.api.commands.kv.StoreValue;
-import com.basho.riak.client.core.RiakCluster;
-import com.basho.riak.client.core.RiakNode;
+import com.basho.riak.client.core.RiakFuture;
 import com.basho.riak.client.core.query.Location;
-import com.basho.riak.client.core.query.Namespace;
 import com.basho.riak.client.core.query.RiakObject;
-import com.basho.riak.client.core.query.indexes.LongIntIndex;
 import com.basho.riak.client.core.util.BinaryValue;
-import com.google.common.collect.Lists;
 
 import de.alexanderlindhorst.tomcat.session.access.BackendServiceBase;
+import de.alexanderlindhorst.tomcat.session.access.ExpiryPartition;
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
 
-import static com.google.common.base.Strings.isNullOrEmpty;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.MAX_RETRY_ATTEMPTS;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.RETRY_BACKOFF_MS;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.attributeNamesOf;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.deleteAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiredBefore;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiryBucketMillis;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.expiryQueries;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSessionHead;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchSessionIfModified;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fetchLease;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.fromVClock;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.hasSeparateAttributes;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.isClusterExpiring;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.isTouchable;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.leaseHolder;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.leaseLocation;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.nextPage;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.sessionLocation;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeAttribute;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeLease;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storeSessionFields;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.storedSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.toVClock;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.toVersionedBytes;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.touchSession;
+import static de.alexanderlindhorst.tomcat.session.access.riak.RiakSupport.withAttributes;
 import static java.lang.System.currentTimeMillis;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -41,12 +74,8 @@ import static java.util.stream.Collectors.toList;
  */
 public class SynchronousRiakService extends BackendServiceBase {
 
-    private static final Namespace SESSIONS = new Namespace("SESSIONS");
-    private static final int BATCH_SIZE = 1000;
-    private static final String LAST_ACCESSED = "_lastAccessed";
-    private static final int MAX_RETRY_ATTEMPTS = 3;
-    private static final long RETRY_BACKOFF_MS = 100;
     private RiakClient client;
+    private final ExpiryBuckets expiryBuckets = new ExpiryBuckets();
 
     @FunctionalInterface
     private interface RiakOperation<T> {
@@ -57,7 +86,11 @@ public class SynchronousRiakService extends BackendServiceBase {
         ExecutionException lastException = null;
         for (int attempt = 1; attempt <= MAX_RETRY_ATTEMPTS; attempt++) {
             try {
-                return operation.execute();
+                T result = operation.execute();
+                if (attempt > 1) {
+                    getSessionMetrics().backendRetried(attempt - 1);
+                }
+                return result;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw e;
@@ -69,30 +102,92 @@ public class SynchronousRiakService extends BackendServiceBase {
                 }
             }
         }
+        getSessionMetrics().backendRetried(MAX_RETRY_ATTEMPTS - 1);
         throw lastException;
     }
 
     @Override
     protected void persistSessionInternal(String sessionId, byte[] bytes) {
+        persistSessionInternal(sessionId, bytes, null);
+    }
+
+    /**
+     * {@inheritDoc} This implementation stores the session blindly, using the known version as vector clock, and only reads the
+     * current state from Riak if the store ended up in siblings. The returned version is the vector clock of the stored object.
+     */
+    @Override
+    protected String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
         if (isShuttingDown()) {
             throw new RiakAccessException("Service is shutting down", null);
         }
         LOGGER.debug("persistSessionInternal {}", sessionId);
+        Location location = sessionLocation(sessionId);
         try {
-            executeWithRetry(() -> {
-                Location location = new Location(SESSIONS, sessionId);
-                RiakObject existing = getRiakObjectForSessionId(location);
-                RiakObject riakObject = (existing != null) ? existing : new RiakObject();
-                if (existing != null) {
-                    riakObject.getIndexes().getIndex(LongIntIndex.named(LAST_ACCESSED)).removeAll();
-                }
-                riakObject.setValue(BinaryValue.create(bytes));
-                riakObject.getIndexes().getIndex(LongIntIndex.named(LAST_ACCESSED)).add(currentTimeMillis());
-                StoreValue storeOp = new StoreValue.Builder(riakObject).withLocation(location).build();
-                StoreValue.Response response = client.execute(storeOp);
-                LOGGER.debug("persistSessionInternal - Response: {}", response);
-                return null;
-            });
+            return executeWithRetry(() -> storeResolvingSiblings(location,
+                    vClock -> storeSession(location, bytes, vClock, expiryBucketMillis(this)),
+                    toVClock(knownVersion)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RiakAccessException("Interrupted while persisting session", e);
+        } catch (ExecutionException exception) {
+            throw new RiakAccessException("Couldn't persist session", exception);
+        }
+    }
+
+    /**
+     * @param store store command for the given vector clock
+     * @return vector clock of the stored object
+     */
+    private String storeResolvingSiblings(Location location, Function<VClock, StoreValue> store, VClock vClock)
+            throws ExecutionException, InterruptedException {
+        StoreValue.Response response = client.execute(store.apply(vClock));
+        LOGGER.debug("storeResolvingSiblings - Response: {}", response);
+        if (response.getNumberOfValues() > 1) {
+            LOGGER.debug("storeResolvingSiblings - siblings for {}, resolving with current vclock",
+                    location.getKeyAsString());
+            FetchValue.Response current = client.execute(fetchSessionHead(location));
+            response = client.execute(store.apply(current.getVectorClock()));
+        }
+        return fromVClock(response.getVectorClock());
+    }
+
+    /**
+     * {@inheritDoc} This implementation stores each attribute under its own key in the {@code SESSION_ATTRIBUTES} bucket, see
+     * {@link #persistSessionDeltaInternal(String, SessionDelta, String)}. Attributes not changed for a while aren't written
+     * again, so this is not offered while the cluster expires sessions on its own.
+     */
+    @Override
+    protected DeltaWriter getDeltaWriter() {
+        return isExpiringNatively() ? null : this::persistSessionDeltaInternal;
+    }
+
+    /**
+     * Stores the changed attributes first, each under its own key, then the session's fields together with the names of all
+     * its attributes, and deletes removed attributes last, so that a concurrent read finds every attribute the session names.
+     * The version returned is the vector clock of the session's fields, which are written with every delta. A complete delta
+     * of a session stored before also deletes the attributes it no longer names.
+     */
+    String persistSessionDeltaInternal(String sessionId, SessionDelta delta, String knownVersion) {
+        if (isShuttingDown()) {
+            throw new RiakAccessException("Service is shutting down", null);
+        }
+        LOGGER.debug("persistSessionDeltaInternal {}, {} attributes changed", sessionId, delta.getAttributes().size());
+        Location location = sessionLocation(sessionId);
+        try {
+            Set<String> removed = new HashSet<>(delta.getRemovedAttributes());
+            if (delta.isComplete() && knownVersion != null) {
+                removed.addAll(executeWithRetry(() -> storedAttributeNames(location)));
+                removed.removeAll(delta.getAttributeNames());
+            }
+            for (Map.Entry<String, byte[]> attribute : delta.getAttributes().entrySet()) {
+                StoreValue storeAttribute = storeAttribute(sessionId, attribute.getKey(), attribute.getValue());
+                executeWithRetry(() -> client.execute(storeAttribute));
+            }
+            String version = executeWithRetry(() -> storeResolvingSiblings(location,
+                    vClock -> storeSessionFields(location, delta, vClock, expiryBucketMillis(this)),
+                    toVClock(knownVersion)));
+            deleteAttributes(sessionId, removed);
+            return version;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RiakAccessException("Interrupted while persisting session", e);
@@ -101,18 +196,74 @@ public class SynchronousRiakService extends BackendServiceBase {
         }
     }
 
+    private boolean isStoringAttributesSeparately() {
+        return isDeltaPersistence() && getDeltaWriter() != null;
+    }
+
+    /**
+     * @return names of the attributes stored individually for the session, empty if there are none
+     */
+    private Set<String> storedAttributeNames(Location location) throws ExecutionException, InterruptedException {
+        RiakObject session = storedSession(client.execute(fetchSession(location)));
+        return hasSeparateAttributes(session) ? attributeNamesOf(session) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Deletes the attributes one by one; an attribute that couldn't be deleted is named by no session anymore and is only
+     * logged.
+     */
+    private void deleteAttributes(String sessionId, Set<String> names) throws InterruptedException {
+        for (String name : names) {
+            try {
+                client.execute(deleteAttribute(sessionId, name));
+            } catch (ExecutionException ex) {
+                LOGGER.warn("Couldn't delete attribute {} of session {}", name, sessionId, ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes of a session stored attribute by attribute, all at the same time.
+     *
+     * @return the session as stored, or reassembled from its attributes if they are stored individually
+     */
+    private RiakObject readAttributes(String sessionId, RiakObject session) throws ExecutionException,
+            InterruptedException {
+        if (!hasSeparateAttributes(session)) {
+            return session;
+        }
+        Map<String, RiakFuture<FetchValue.Response, Location>> fetches = new LinkedHashMap<>();
+        for (String name : attributeNamesOf(session)) {
+            fetches.put(name, client.executeAsync(fetchAttribute(sessionId, name)));
+        }
+        Map<String, byte[]> attributes = new LinkedHashMap<>();
+        for (Map.Entry<String, RiakFuture<FetchValue.Response, Location>> fetch : fetches.entrySet()) {
+            RiakObject attribute = storedSession(fetch.getValue().get());
+            if (attribute != null) {
+                attributes.put(fetch.getKey(), attribute.getValue().getValue());
+            } else {
+                LOGGER.warn("Attribute {} of session {} is missing, reading the session without it", fetch.getKey(),
+                        sessionId);
+            }
+        }
+        return withAttributes(session, attributes);
+    }
+
     @Override
     protected byte[] getSessionInternal(String sessionId) {
+        VersionedBytes versionedBytes = getVersionedSessionInternal(sessionId);
+        return versionedBytes == null ? null : versionedBytes.getBytes();
+    }
+
+    @Override
+    protected VersionedBytes getVersionedSessionInternal(String sessionId) {
         if (isShuttingDown()) {
             throw new RiakAccessException("Service is shutting down", null);
         }
         try {
             LOGGER.debug("getSessionInternal {}", sessionId);
-            Location location = new Location(SESSIONS, sessionId);
-            return executeWithRetry(() -> {
-                RiakObject value = getRiakObjectForSessionId(location);
-                return (value == null) ? null : value.getValue().getValue();
-            });
+            Location location = sessionLocation(sessionId);
+            return executeWithRetry(() -> toVersionedBytes(readAttributes(sessionId, getRiakObjectForSessionId(location))));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RiakAccessException("Interrupted while fetching session " + sessionId, e);
@@ -121,6 +272,31 @@ public class SynchronousRiakService extends BackendServiceBase {
         }
     }
 
+    /**
+     * {@inheritDoc} This implementation hands the known vector clock to Riak, which only sends the session if its vector
+     * clock differs.
+     */
+    @Override
+    protected VersionedBytes getSessionIfNewerInternal(String sessionId, String knownVersion) {
+        if (isShuttingDown()) {
+            throw new RiakAccessException("Service is shutting down", null);
+        }
+        try {
+            LOGGER.debug("getSessionIfNewerInternal {}", sessionId);
+            FetchValue fetchValue = fetchSessionIfModified(sessionLocation(sessionId), knownVersion);
+            return executeWithRetry(() -> {
+                FetchValue.Response response = client.execute(fetchValue);
+                return response.isUnchanged() ? VersionedBytes.NOT_MODIFIED
+                        : toVersionedBytes(readAttributes(sessionId, storedSession(response)));
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RiakAccessException("Interrupted while checking session " + sessionId, e);
+        } catch (ExecutionException ex) {
+            throw new RiakAccessException("Couldn't check session " + sessionId, ex);
+        }
+    }
+
     @Override
     protected void deleteSessionInternal(String sessionId) {
         if (isShuttingDown()) {
@@ -128,9 +304,15 @@ public class SynchronousRiakService extends BackendServiceBase {
         }
         try {
             LOGGER.debug("deleteSessionInternal {}", sessionId);
-            Location location = new Location(SESSIONS, sessionId);
+            Location location = sessionLocation(sessionId);
             DeleteValue deleteValue = new DeleteValue.Builder(location).build();
-            executeWithRetry(() -> { client.execute(deleteValue); return null; });
+            executeWithRetry(() -> {
+                if (isStoringAttributesSeparately()) {
+                    deleteAttributes(sessionId, storedAttributeNames(location));
+                }
+                client.execute(deleteValue);
+                return null;
+            });
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RiakAccessException("Interrupted while deleting session " + sessionId, e);
@@ -139,37 +321,67 @@ public class SynchronousRiakService extends BackendServiceBase {
         }
     }
 
+    /**
+     * {@inheritDoc} Riak can't change the indexes of an object without storing it again, so this implementation reads each
+     * session and stores it as read with fresh indexes, without deserializing it. That costs about as much traffic within
+     * Riak as writing the session back; only its serialization on this node is saved. The sessions are touched in groups of
+     * {@link #getMaxTouchesInFlight()}, fetching and then storing the whole group at the same time.
+     */
     @Override
-    public void init() {
-        super.init();
-        if (isNullOrEmpty(getBackendAddress())) {
-            throw new IllegalArgumentException("backend address must not be null or empty");
+    protected Map<String, String> touchSessionsInternal(Map<String, String> knownVersions) {
+        if (isShuttingDown()) {
+            throw new RiakAccessException("Service is shutting down", null);
         }
-        Pattern addressPattern = Pattern.compile("^(?<host>[^:]+)(:(?<port>\\d+))?");
-        Matcher matcher = addressPattern.matcher(getBackendAddress());
-        if (!matcher.matches()) {
-            throw new IllegalArgumentException("backend address value " + getBackendAddress() + " cannot be read");
+        long bucketMillis = expiryBucketMillis(this);
+        List<String> sessionIds = new ArrayList<>(knownVersions.keySet());
+        int groupSize = getMaxTouchesInFlight();
+        Map<String, String> touched = new HashMap<>();
+        try {
+            for (int from = 0; from < sessionIds.size(); from += groupSize) {
+                touchSessions(sessionIds.subList(from, Math.min(sessionIds.size(), from + groupSize)), knownVersions,
+                        bucketMillis, touched);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RiakAccessException("Interrupted while touching sessions", ex);
         }
-        String host = matcher.group("host");
-        String portValue = matcher.group("port");
-        int port = 10017;
-        if (!isNullOrEmpty(portValue)) {
-            port = Integer.valueOf(portValue);
+        return touched;
+    }
+
+    private void touchSessions(List<String> group, Map<String, String> knownVersions, long bucketMillis,
+            Map<String, String> touched) throws InterruptedException {
+        Map<String, RiakFuture<FetchValue.Response, Location>> fetches = new LinkedHashMap<>();
+        for (String sessionId : group) {
+            fetches.put(sessionId, client.executeAsync(fetchSession(sessionLocation(sessionId))));
         }
-        try {
-            RiakNode node = new RiakNode.Builder()
-                    .withRemoteAddress(host)
-                    .withRemotePort(port)
-                    .build();
-            RiakCluster cluster = new RiakCluster.Builder(node)
-                    .build();
-            cluster.start();
-            client = new RiakClient(cluster);
-        } catch (UnknownHostException ex) {
-            throw new IllegalStateException("Couldn't configure riak access", ex);
+        Map<String, RiakFuture<StoreValue.Response, Location>> stores = new LinkedHashMap<>();
+        for (Map.Entry<String, RiakFuture<FetchValue.Response, Location>> fetch : fetches.entrySet()) {
+            String sessionId = fetch.getKey();
+            try {
+                RiakObject current = storedSession(fetch.getValue().get());
+                if (isTouchable(current, knownVersions.get(sessionId))) {
+                    stores.put(sessionId, client.executeAsync(touchSession(sessionLocation(sessionId), current,
+                            bucketMillis)));
+                }
+            } catch (ExecutionException ex) {
+                LOGGER.debug("Couldn't touch session {}, leaving it to its next access", sessionId, ex);
+            }
+        }
+        for (Map.Entry<String, RiakFuture<StoreValue.Response, Location>> store : stores.entrySet()) {
+            try {
+                touched.put(store.getKey(), fromVClock(store.getValue().get().getVectorClock()));
+            } catch (ExecutionException ex) {
+                LOGGER.debug("Couldn't touch session {}, leaving it to its next access", store.getKey(), ex);
+            }
         }
     }
 
+    @Override
+    public void init() {
+        super.init();
+        client = RiakSupport.createClient(this);
+    }
+
     @Override
     public void shutdown() {
         super.shutdown();
@@ -182,37 +394,147 @@ public class SynchronousRiakService extends BackendServiceBase {
     }
 
     /**
-     * {@inheritDoc} This implementation fetches works in batches of 1000 ids. Between the batches there will be a pause of half a
-     * second.
+     * {@inheritDoc} Riak KV has no time to live per write: the cluster's backend must expire objects itself, e.g. with
+     * bitcask's {@code expiry} or leveldb's {@code expiry.retention.time} set to at least the session expiry threshold. That
+     * expiry has to be declared with {@link #setBackendExpirySeconds(int)}, otherwise sessions are swept as before. Sessions
+     * are then stored without expiry index.
      */
     @Override
-    public List<String> removeExpiredSessions() {
-        List<String> accumulated = Lists.newArrayList();
+    protected boolean isNativeExpirySupported() {
+        return isClusterExpiring(this);
+    }
+
+    /**
+     * {@inheritDoc} This implementation pages through the expired sessions 1000 ids at a time, following Riak's
+     * continuation, and deletes them without waiting for each delete. At most {@link #getMaxExpiryDeletesInFlight()} deletes
+     * run at the same time, started at {@link #getExpiryDeletesPerSecond()} per second at most. Sessions whose delete failed
+     * are not returned, the next sweep finds them again. With the {@code timeBuckets} expiry index only the buckets that
+     * became due since the previous sweep are queried, see {@link ExpiryBuckets}.
+     */
+    @Override
+    protected List<String> removeExpiredSessionsInternal() {
+        return sweep(ExpiryPartition.ALL);
+    }
+
+    /**
+     * {@inheritDoc} This implementation pages through all expired sessions like {@link #removeExpiredSessionsInternal()},
+     * but deletes only those of the partition.
+     */
+    @Override
+    protected List<String> removeExpiredSessionsInternal(ExpiryPartition partition) {
+        return sweep(partition);
+    }
+
+    private List<String> sweep(ExpiryPartition partition) {
+        if (getSessionExpiryThreshold() == SESSIONS_NEVER_EXPIRE) {
+            return Collections.<String>emptyList();
+        }
+        long now = currentTimeMillis();
+        long threshold = now - getSessionExpiryThreshold();
+        long bucketMillis = expiryBucketMillis(this);
+        List<Long> dueBuckets = bucketMillis > 0 ? expiryBuckets.dueBuckets(partition, threshold, bucketMillis, now) : null;
         Set<String> processedIds = new HashSet<>();
-        List<String> expiredSessionIds = getExpiredSessionIds();
-        while (!expiredSessionIds.isEmpty()) {
-            boolean anyNew = false;
-            for (String id : expiredSessionIds) {
-                if (processedIds.add(id)) {
-                    deleteSessionInternal(id);
-                    accumulated.add(id);
-                    anyNew = true;
-                }
+        Queue<String> removed = new ConcurrentLinkedQueue<>();
+        boolean catchUp = expiryBuckets.isCatchUpDue(partition, now);
+        Semaphore inFlight = new Semaphore(getMaxExpiryDeletesInFlight());
+        SweepPacer pacer = new SweepPacer(getExpiryDeletesPerSecond());
+        try {
+            for (Function<BinaryValue, IntIndexQuery> query : expiryQueries(this, dueBuckets, threshold, catchUp)) {
+                BinaryValue continuation = null;
+                do {
+                    BinaryValue pageContinuation = continuation;
+                    IntIndexQuery.Response page = executeWithRetry(() -> client.execute(query.apply(pageContinuation)));
+                    for (IntIndexQuery.Response.Entry entry : page.getEntries()) {
+                        String id = entry.getRiakObjectLocation().getKeyAsString();
+                        if (partition.contains(id) && processedIds.add(id)) {
+                            pacer.awaitTurn();
+                            inFlight.acquire();
+                            deleteExpiredSession(id, removed, inFlight);
+                        }
+                    }
+                    continuation = nextPage(page);
+                } while (continuation != null);
+            }
+            //every delete has completed once all permits are back
+            inFlight.acquire(getMaxExpiryDeletesInFlight());
+            if (bucketMillis > 0) {
+                expiryBuckets.swept(partition, threshold, bucketMillis, dueBuckets == null, now);
             }
-            if (!anyNew) {
-                break;
+            if (catchUp) {
+                expiryBuckets.caughtUp(partition, now);
             }
-            expiredSessionIds = getExpiredSessionIds();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RiakAccessException("Interrupted while removing expired sessions", ex);
+        } catch (ExecutionException ex) {
+            throw new RiakAccessException("Failed to query expired sessions", ex);
+        }
+        return new ArrayList<>(removed);
+    }
+
+    /**
+     * With delta persistence the attributes stored individually are deleted first, waiting for Riak.
+     */
+    private void deleteExpiredSession(String sessionId, Queue<String> removed, Semaphore inFlight)
+            throws InterruptedException {
+        Location location = sessionLocation(sessionId);
+        DeleteValue deleteValue = new DeleteValue.Builder(location).build();
+        try {
+            if (isStoringAttributesSeparately()) {
+                deleteAttributes(sessionId, storedAttributeNames(location));
+            }
+        } catch (ExecutionException ex) {
+            LOGGER.warn("Couldn't delete attributes of expired session {}, leaving it to the next sweep", sessionId, ex);
+            inFlight.release();
+            return;
+        }
+        try {
+            client.executeAsync(deleteValue).addListener(future -> {
+                if (future.isSuccess()) {
+                    removed.add(sessionId);
+                } else {
+                    LOGGER.warn("Couldn't delete expired session {}, leaving it to the next sweep", sessionId,
+                            future.cause());
+                }
+                inFlight.release();
+            });
+        } catch (RuntimeException ex) {
+            inFlight.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * {@inheritDoc} This implementation keeps the lease as owner and end of lease in the {@code SWEEP_LEASES} bucket and
+     * writes it only if it wasn't changed since it was read. A lease that can't be read or written is not granted.
+     */
+    @Override
+    protected boolean acquireExpirySweepLease(String lease, String owner, long durationMillis) {
+        Location location = leaseLocation(lease);
+        try {
+            FetchValue.Response current = executeWithRetry(() -> client.execute(fetchLease(location)));
+            String holder = leaseHolder(current.getValues(), currentTimeMillis());
+            if (holder != null && !holder.equals(owner)) {
+                return false;
+            }
+            StoreValue.Response stored = client.execute(storeLease(location, owner, currentTimeMillis() + durationMillis,
+                    current.getVectorClock()));
+            return owner.equals(leaseHolder(stored.getValues(), currentTimeMillis()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RiakAccessException("Interrupted while taking lease " + lease, ex);
+        } catch (ExecutionException ex) {
+            LOGGER.info("Couldn't take lease {}, leaving its sweep to other nodes", lease, ex);
+            return false;
         }
-        return accumulated;
     }
 
     @Override
     public List<String> getExpiredSessionIds() {
-        if (getSessionExpiryThreshold() != -1) {
+        if (getSessionExpiryThreshold() != SESSIONS_NEVER_EXPIRE) {
             try {
                 long threshold = currentTimeMillis() - getSessionExpiryThreshold();
-                IntIndexQuery.Response response = getLastAccessedQueryResults(0l, threshold);
+                IntIndexQuery.Response response = client.execute(expiredBefore(threshold, expiryBucketMillis(this), null));
                 return response.getEntries().stream()
                         .map(entry -> entry.getRiakObjectLocation().getKeyAsString())
                         .collect(toList());
@@ -226,16 +548,7 @@ public class SynchronousRiakService extends BackendServiceBase {
         return Collections.<String>emptyList();
     }
 
-    private IntIndexQuery.Response getLastAccessedQueryResults(long fromValue, long toValue) throws
-            ExecutionException,
-            InterruptedException {
-        return client.execute(new IntIndexQuery.Builder(SESSIONS, LAST_ACCESSED, fromValue, toValue).withMaxResults(BATCH_SIZE).
-                withPaginationSort(true).build());
-    }
-
     private RiakObject getRiakObjectForSessionId(Location location) throws ExecutionException, InterruptedException {
-        FetchValue fetchValue = new FetchValue.Builder(location).withOption(FetchValue.Option.DELETED_VCLOCK, true).build();
-        RiakObject value = client.execute(fetchValue).getValue(RiakObject.class);
-        return value;
+        return client.execute(fetchSession(location)).getValue(RiakObject.class);
     }
 }
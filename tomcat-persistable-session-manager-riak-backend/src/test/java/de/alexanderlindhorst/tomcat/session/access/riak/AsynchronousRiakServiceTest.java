@@ -0,0 +1,503 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access.riak;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.basho.riak.client.api.RiakClient;
+import com.basho.riak.client.api.cap.BasicVClock;
+import com.basho.riak.client.api.cap.VClock;
+import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
+import com.basho.riak.client.api.commands.kv.DeleteValue;
+import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.commands.kv.StoreValue;
+import com.basho.riak.client.core.RiakCluster;
+import com.basho.riak.client.core.RiakFuture;
+import com.basho.riak.client.core.RiakFutureListener;
+import com.basho.riak.client.core.query.Location;
+import com.basho.riak.client.core.query.RiakObject;
+import com.basho.riak.client.core.util.BinaryValue;
+
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+
+import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.getFieldValueFromObject;
+import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
+import static java.lang.Boolean.TRUE;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author alindhorst
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class AsynchronousRiakServiceTest {
+
+    @Mock
+    private RiakCluster cluster;
+    @Mock
+    private Future<Boolean> shutdownFuture;
+    private RiakClient client;
+    private ScheduledExecutorService retryScheduler;
+    private AsynchronousRiakService service;
+    private static final byte[] VCLOCK = new byte[]{1, 2, 3};
+    private static final byte[] STORED_VCLOCK = new byte[]{7, 8, 9};
+    private final byte[] bytes = new byte[]{1};
+
+    @Before
+    public void setup() throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException,
+            InterruptedException, ExecutionException, TimeoutException {
+        client = spy(new RiakClient(cluster));
+        retryScheduler = Executors.newSingleThreadScheduledExecutor();
+        service = new AsynchronousRiakService();
+        setFieldValueForObject(service, "client", client);
+        setFieldValueForObject(service, "scheduler", retryScheduler);
+        when(client.shutdown()).thenReturn(shutdownFuture);
+        when(shutdownFuture.get(3, SECONDS)).thenReturn(TRUE);
+    }
+
+    @After
+    public void tearDown() {
+        retryScheduler.shutdownNow();
+    }
+
+    @Test
+    public void initProvidesClusterAndScheduler() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        service.setBackendAddress("riak");
+        service.init();
+
+        RiakCluster returnedCluster = ((RiakClient) getFieldValueFromObject(service, "client")).getRiakCluster();
+        assertThat(returnedCluster.getNodes().size(), is(1));
+        assertThat(getFieldValueFromObject(service, "scheduler") == retryScheduler, is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initFailsWithNullBackendAddress() {
+        service.init();
+    }
+
+    @Test
+    public void persistSessionInternalAsyncCompletesWithVectorClockOfStoredObject() throws Exception {
+        doReturn(succeeded(storeResponse(1, STORED_VCLOCK))).when(client).executeAsync(any(StoreValue.class));
+
+        CompletableFuture<String> version = service.persistSessionInternalAsync("sessionId", bytes, encode(VCLOCK));
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client).executeAsync(storeCaptor.capture());
+        VClock sent = (VClock) getFieldValueFromObject(storeCaptor.getValue(), "vclock");
+        assertThat(Arrays.equals(sent.getBytes(), VCLOCK), is(true));
+        assertThat(version.get(), is(encode(STORED_VCLOCK)));
+        verify(client, never()).execute(any(StoreValue.class));
+    }
+
+    @Test
+    public void touchSessionsInternalAsyncCompletesWithSessionsStoredAgain() throws Exception {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(VCLOCK));
+        FetchValue.Response storedResponse = mock(FetchValue.Response.class);
+        when(storedResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        FetchValue.Response goneResponse = mock(FetchValue.Response.class);
+        when(goneResponse.isNotFound()).thenReturn(true);
+        doReturn(succeeded(storedResponse), succeeded(goneResponse), succeeded(storedResponse), succeeded(storedResponse))
+                .when(client).executeAsync(any(FetchValue.class));
+        doReturn(succeeded(storeResponse(1, STORED_VCLOCK)), failed(new IllegalStateException("modified")))
+                .when(client).executeAsync(any(StoreValue.class));
+        //one at a time, so the responses are taken in order
+        service.setMaxTouchesInFlight(1);
+        Map<String, String> knownVersions = new LinkedHashMap<>();
+        knownVersions.put("1", encode(VCLOCK));
+        knownVersions.put("2", null);
+        knownVersions.put("3", null);
+        knownVersions.put("4", encode(STORED_VCLOCK));
+
+        Map<String, String> touched = service.touchSessionsInternalAsync(knownVersions).get(5, SECONDS);
+
+        assertThat(touched, is(Collections.singletonMap("1", encode(STORED_VCLOCK))));
+        verify(client, times(4)).executeAsync(any(FetchValue.class));
+        verify(client, times(2)).executeAsync(any(StoreValue.class));
+    }
+
+    @Test
+    public void persistSessionDeltaInternalAsyncStoresFieldsAfterAttributesAndDeletesStaleOnes() throws Exception {
+        FetchValue.Response fieldsResponse = mock(FetchValue.Response.class);
+        when(fieldsResponse.getValue(RiakObject.class)).thenReturn(sessionFields(new HashSet<>(Arrays.asList("a", "b"))));
+        doReturn(succeeded(fieldsResponse)).when(client).executeAsync(any(FetchValue.class));
+        doReturn(succeeded(storeResponse(1, STORED_VCLOCK))).when(client).executeAsync(any(StoreValue.class));
+        doReturn(succeeded(null)).when(client).executeAsync(any(DeleteValue.class));
+        SessionDelta delta = new SessionDelta(bytes, Collections.singletonMap("a", new byte[]{5}),
+                Collections.<String>emptySet(), Collections.<String>emptySet(), true);
+
+        String version = service.persistSessionDeltaInternalAsync("sessionId", delta, encode(VCLOCK)).get(5, SECONDS);
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client, times(2)).executeAsync(storeCaptor.capture());
+        RiakObject fields = (RiakObject) getFieldValueFromObject(storeCaptor.getAllValues().get(1), "value");
+        assertThat(fields.getContentType(), is(RiakSupport.SEPARATE_ATTRIBUTES));
+        ArgumentCaptor<DeleteValue> deleteCaptor = ArgumentCaptor.forClass(DeleteValue.class);
+        verify(client).executeAsync(deleteCaptor.capture());
+        Location deleted = (Location) getFieldValueFromObject(deleteCaptor.getValue(), "location");
+        assertThat(deleted.getKeyAsString(), is("sessionId/b"));
+        assertThat(version, is(encode(STORED_VCLOCK)));
+    }
+
+    @Test
+    public void getVersionedSessionInternalReassemblesSessionStoredAttributeByAttribute() throws Exception {
+        FetchValue.Response fieldsResponse = mock(FetchValue.Response.class);
+        when(fieldsResponse.getValue(RiakObject.class)).thenReturn(sessionFields(Collections.singleton("a")));
+        FetchValue.Response attributeResponse = mock(FetchValue.Response.class);
+        when(attributeResponse.getValue(RiakObject.class)).thenReturn(new RiakObject()
+                .setValue(BinaryValue.create(new byte[]{5})));
+        doReturn(succeeded(fieldsResponse), succeeded(attributeResponse)).when(client).executeAsync(any(FetchValue.class));
+
+        VersionedBytes result = service.getVersionedSessionInternal("sessionId");
+
+        SessionDelta read = SessionDelta.fromBytes(result.getBytes());
+        assertThat(read.getAttributes().get("a")[0], is((byte) 5));
+        assertThat(result.getVersion(), is(encode(VCLOCK)));
+    }
+
+    @Test
+    public void persistSessionInternalAsyncIsNotCompletedBeforeRiakAnswers() {
+        doReturn(mock(RiakFuture.class)).when(client).executeAsync(any(StoreValue.class));
+
+        CompletableFuture<String> version = service.persistSessionInternalAsync("sessionId", bytes, null);
+
+        assertThat(version.isDone(), is(false));
+    }
+
+    @Test
+    public void persistSessionInternalAsyncResolvesSiblingsWithFetchedVectorClock() throws Exception {
+        byte[] fetchedVClock = new byte[]{4, 5, 6};
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getVectorClock()).thenReturn(new BasicVClock(fetchedVClock));
+        doReturn(succeeded(storeResponse(2, null)), succeeded(storeResponse(1, STORED_VCLOCK))).when(client)
+                .executeAsync(any(StoreValue.class));
+        doReturn(succeeded(fetchResponse)).when(client).executeAsync(any(FetchValue.class));
+
+        String version = service.persistSessionInternalAsync("sessionId", bytes, null).get();
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client, times(2)).executeAsync(storeCaptor.capture());
+        VClock sent = (VClock) getFieldValueFromObject(storeCaptor.getAllValues().get(1), "vclock");
+        assertThat(Arrays.equals(sent.getBytes(), fetchedVClock), is(true));
+        assertThat(version, is(encode(STORED_VCLOCK)));
+    }
+
+    @Test
+    public void persistSessionInternalAsyncRetriesFailedStore() throws Exception {
+        doReturn(failed(new IllegalStateException("node down")), succeeded(storeResponse(1, STORED_VCLOCK)))
+                .when(client).executeAsync(any(StoreValue.class));
+
+        String version = service.persistSessionInternalAsync("sessionId", bytes, null).get(5, SECONDS);
+
+        assertThat(version, is(encode(STORED_VCLOCK)));
+        verify(client, times(2)).executeAsync(any(StoreValue.class));
+        assertThat(service.getSessionMetrics().getBackendRetries(), is(1L));
+    }
+
+    @Test
+    public void persistSessionInternalAsyncFailsWithRiakAccessExceptionAfterLastAttempt() throws Exception {
+        doReturn(failed(new IllegalStateException("node down"))).when(client).executeAsync(any(StoreValue.class));
+
+        CompletableFuture<String> version = service.persistSessionInternalAsync("sessionId", bytes, null);
+
+        try {
+            version.get(5, SECONDS);
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause() instanceof RiakAccessException, is(true));
+        }
+        assertThat(version.isCompletedExceptionally(), is(true));
+        verify(client, times(RiakSupport.MAX_RETRY_ATTEMPTS)).executeAsync(any(StoreValue.class));
+    }
+
+    @Test
+    public void persistSessionInternalAsyncFailsWhenShuttingDown() {
+        service.shutdown();
+
+        CompletableFuture<String> version = service.persistSessionInternalAsync("sessionId", bytes, null);
+
+        assertThat(version.isCompletedExceptionally(), is(true));
+        verify(client, never()).executeAsync(any(StoreValue.class));
+    }
+
+    @Test
+    public void deleteSessionInternalAsyncDeletesWithoutWaiting() {
+        doReturn(mock(RiakFuture.class)).when(client).executeAsync(any(DeleteValue.class));
+
+        CompletableFuture<Void> deleted = service.deleteSessionInternalAsync("sessionId");
+
+        verify(client).executeAsync(any(DeleteValue.class));
+        assertThat(deleted.isDone(), is(false));
+    }
+
+    @Test
+    public void getVersionedSessionInternalReturnsVectorClockOfFetchedObject() throws Exception {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(VCLOCK));
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        doReturn(succeeded(fetchValueResponse)).when(client).executeAsync(any(FetchValue.class));
+
+        VersionedBytes result = service.getVersionedSessionInternal("sessionId");
+
+        assertThat(Arrays.equals(result.getBytes(), bytes), is(true));
+        assertThat(result.getVersion(), is(encode(VCLOCK)));
+    }
+
+    @Test
+    public void getSessionInternalReturnsNullForMissingSession() {
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.isNotFound()).thenReturn(true);
+        doReturn(succeeded(fetchValueResponse)).when(client).executeAsync(any(FetchValue.class));
+
+        assertThat(service.getSessionInternal("sessionId"), is(nullValue()));
+    }
+
+    @Test
+    public void getSessionIfNewerInternalReturnsNotModifiedForUnchangedSession() {
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.isUnchanged()).thenReturn(true);
+        doReturn(succeeded(fetchValueResponse)).when(client).executeAsync(any(FetchValue.class));
+
+        VersionedBytes result = service.getSessionIfNewerInternal("sessionId", encode(VCLOCK));
+
+        assertThat(result == VersionedBytes.NOT_MODIFIED, is(true));
+    }
+
+    @Test
+    public void removeExpiredSessionsKeepsConfiguredNumberOfDeletesInFlight() throws Exception {
+        List<String> expired = IntStream.range(0, 40).mapToObj(i -> "id" + i).collect(Collectors.toList());
+        IntIndexQuery.Response queryResponse = queryResponse(expired);
+        doReturn(succeeded(queryResponse)).when(client).executeAsync(any(IntIndexQuery.class));
+        List<RiakFutureListener<Void, Location>> pendingDeletes = new ArrayList<>();
+        RiakFuture<Void, Location> deleteFuture = pending(pendingDeletes);
+        doReturn(deleteFuture).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setMaxExpiryDeletesInFlight(16);
+
+        CompletableFuture<List<String>> removal = service.removeExpiredSessionsAsync();
+
+        assertThat(pendingDeletes.size(), is(16));
+        while (!removal.isDone()) {
+            List<RiakFutureListener<Void, Location>> window = new ArrayList<>(pendingDeletes);
+            pendingDeletes.clear();
+            when(deleteFuture.isSuccess()).thenReturn(true);
+            window.forEach(listener -> listener.handle(deleteFuture));
+        }
+        assertThat(removal.get().size(), is(40));
+        verify(client, times(40)).executeAsync(any(DeleteValue.class));
+    }
+
+    @Test
+    public void removeExpiredSessionsQueriesNextPageWithContinuationOfPrevious() throws Exception {
+        IntIndexQuery.Response firstPage = queryResponse(Arrays.asList("id0", "id1"));
+        when(firstPage.hasContinuation()).thenReturn(true);
+        when(firstPage.getContinuation()).thenReturn(BinaryValue.create("page2"));
+        IntIndexQuery.Response secondPage = queryResponse(Arrays.asList("id2"));
+        doReturn(succeeded(firstPage), succeeded(secondPage)).when(client).executeAsync(any(IntIndexQuery.class));
+        doReturn(succeeded(null)).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+
+        List<String> removed = service.removeExpiredSessionsAsync().get(5, SECONDS);
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        //followed by the catch-up query of the time bucket index
+        verify(client, times(3)).executeAsync(queryCaptor.capture());
+        assertThat(queryCaptor.getAllValues().get(1).getContinuation(), is(BinaryValue.create("page2")));
+        assertThat(queryCaptor.getAllValues().get(2).getIndexName(),
+                is(not(queryCaptor.getAllValues().get(0).getIndexName())));
+        assertThat(removed.size(), is(3));
+    }
+
+    @Test
+    public void removeExpiredSessionsDelaysDeletesToConfiguredRate() throws Exception {
+        List<String> expired = IntStream.range(0, 6).mapToObj(i -> "id" + i).collect(Collectors.toList());
+        IntIndexQuery.Response queryResponse = queryResponse(expired);
+        doReturn(succeeded(queryResponse)).when(client).executeAsync(any(IntIndexQuery.class));
+        doReturn(succeeded(null)).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setMaxExpiryDeletesInFlight(2);
+        service.setExpiryDeletesPerSecond(40);
+
+        long start = System.nanoTime();
+        List<String> removed = service.removeExpiredSessionsAsync().get(5, SECONDS);
+
+        assertThat(removed.size(), is(6));
+        //groups start at 0, 50 and 100 ms
+        assertThat(NANOSECONDS.toMillis(System.nanoTime() - start) >= 95, is(true));
+    }
+
+    @Test
+    public void removeExpiredSessionsSkipsSweepWhileAnotherNodeHoldsLease() throws Exception {
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getValues()).thenReturn(Arrays.asList(lease("other node", System.currentTimeMillis() + 60000)));
+        doReturn(succeeded(fetchResponse)).when(client).executeAsync(any(FetchValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setExpirySweepLeaseSeconds(60);
+
+        List<String> removed = service.removeExpiredSessionsAsync().get(5, SECONDS);
+
+        assertThat(removed.isEmpty(), is(true));
+        verify(client, never()).executeAsync(any(StoreValue.class));
+        verify(client, never()).executeAsync(any(IntIndexQuery.class));
+    }
+
+    @Test
+    public void removeExpiredSessionsSweepsAfterTakingFreeLease() throws Exception {
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        doReturn(succeeded(fetchResponse)).when(client).executeAsync(any(FetchValue.class));
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getValues()).thenReturn(Arrays.asList(lease(service.getExpirySweeperId(),
+                System.currentTimeMillis() + 60000)));
+        doReturn(succeeded(storeResponse)).when(client).executeAsync(any(StoreValue.class));
+        doReturn(succeeded(queryResponse(Arrays.asList("id0", "id1")))).when(client).executeAsync(any(IntIndexQuery.class));
+        doReturn(succeeded(null)).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setExpirySweepLeaseSeconds(60);
+
+        List<String> removed = service.removeExpiredSessionsAsync().get(5, SECONDS);
+
+        assertThat(removed.size(), is(2));
+    }
+
+    @Test
+    public void removeExpiredSessionsWithTimeBucketsQueriesDueBucketsAfterFirstFullScan() throws Exception {
+        doReturn(succeeded(queryResponse(Arrays.asList("id0")))).when(client).executeAsync(any(IntIndexQuery.class));
+        doReturn(succeeded(null)).when(client).executeAsync(any(DeleteValue.class));
+        service.setExpiryIndex("timeBuckets");
+        service.setExpiryBucketSeconds(60);
+        service.setSessionExpiryThreshold(MINUTES.toMillis(30));
+
+        service.removeExpiredSessionsAsync().get(5, SECONDS);
+        service.setSessionExpiryThreshold(MINUTES.toMillis(28));
+        service.removeExpiredSessionsAsync().get(5, SECONDS);
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        verify(client, atLeast(4)).executeAsync(queryCaptor.capture());
+        List<IntIndexQuery> queries = queryCaptor.getAllValues();
+        assertThat(queries.get(0).getMatchValue(), is(nullValue()));
+        assertThat(queries.get(1).getMatchValue(), is(nullValue()));
+        assertThat(queries.subList(2, queries.size()).stream().allMatch(query -> query.getMatchValue() != null), is(true));
+    }
+
+    @Test
+    public void getExpiredSessionIdsIsEmptyForSessionsNeverExpiring() {
+        service.setSessionExpiryThreshold(-1);
+
+        assertThat(service.getExpiredSessionIds().isEmpty(), is(true));
+        verify(client, never()).executeAsync(any(IntIndexQuery.class));
+    }
+
+    private RiakObject sessionFields(Set<String> attributeNames) throws NoSuchFieldException, IllegalAccessException {
+        SessionDelta delta = new SessionDelta(bytes, Collections.<String, byte[]>emptyMap(), Collections.<String>emptySet(),
+                attributeNames, false);
+        StoreValue store = RiakSupport.storeSessionFields(RiakSupport.sessionLocation("sessionId"), delta, null, 0);
+        return ((RiakObject) getFieldValueFromObject(store, "value")).setVClock(new BasicVClock(VCLOCK));
+    }
+
+    private static RiakObject lease(String owner, long until) {
+        return new RiakObject().setValue(BinaryValue.create(owner + "\n" + until));
+    }
+
+    private static StoreValue.Response storeResponse(int numberOfValues, byte[] vClock) {
+        StoreValue.Response response = mock(StoreValue.Response.class);
+        when(response.getNumberOfValues()).thenReturn(numberOfValues);
+        when(response.getVectorClock()).thenReturn(vClock == null ? null : new BasicVClock(vClock));
+        return response;
+    }
+
+    private static IntIndexQuery.Response queryResponse(List<String> ids) {
+        List<IntIndexQuery.Response.Entry> entries = ids.stream().map(id -> {
+            IntIndexQuery.Response.Entry entry = mock(IntIndexQuery.Response.Entry.class);
+            when(entry.getRiakObjectLocation()).thenReturn(new Location(RiakSupport.SESSIONS, id));
+            return entry;
+        }).collect(Collectors.toList());
+        IntIndexQuery.Response response = mock(IntIndexQuery.Response.class);
+        when(response.getEntries()).thenReturn(entries);
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, S> RiakFuture<T, S> succeeded(T value) {
+        RiakFuture<T, S> future = mock(RiakFuture.class);
+        when(future.isSuccess()).thenReturn(true);
+        when(future.getNow()).thenReturn(value);
+        doAnswer(invocation -> {
+            ((RiakFutureListener<T, S>) invocation.getArgument(0)).handle(future);
+            return null;
+        }).when(future).addListener(any());
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, S> RiakFuture<T, S> failed(Throwable cause) {
+        RiakFuture<T, S> future = mock(RiakFuture.class);
+        when(future.isSuccess()).thenReturn(false);
+        when(future.cause()).thenReturn(cause);
+        doAnswer(invocation -> {
+            ((RiakFutureListener<T, S>) invocation.getArgument(0)).handle(future);
+            return null;
+        }).when(future).addListener(any());
+        return future;
+    }
+
+    /**
+     * @return future collecting its listeners instead of notifying them
+     */
+    @SuppressWarnings("unchecked")
+    private static <T, S> RiakFuture<T, S> pending(List<RiakFutureListener<T, S>> listeners) {
+        RiakFuture<T, S> future = mock(RiakFuture.class);
+        doAnswer(invocation -> {
+            listeners.add((RiakFutureListener<T, S>) invocation.getArgument(0));
+            return null;
+        }).when(future).addListener(any());
+        return future;
+    }
+
+    private static String encode(byte[] vClock) {
+        return Base64.getEncoder().encodeToString(vClock);
+    }
+}
@@ -5,12 +5,19 @@ package de.alexanderlindhorst.tomcat.session.access.riak;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.junit.Before;
@@ -28,12 +35,16 @@ import org.slf4j.LoggerFactory;
 
 import com.basho.riak.client.api.RiakClient;
 import com.basho.riak.client.api.RiakCommand;
+import com.basho.riak.client.api.cap.BasicVClock;
+import com.basho.riak.client.api.cap.VClock;
 import com.basho.riak.client.api.commands.indexes.IntIndexQuery;
 import com.basho.riak.client.api.commands.kv.DeleteValue;
 import com.basho.riak.client.api.commands.kv.FetchValue;
+import com.basho.riak.client.api.commands.kv.StoreValue;
 import com.basho.riak.client.core.FutureOperation;
 import com.basho.riak.client.core.RiakCluster;
 import com.basho.riak.client.core.RiakFuture;
+import com.basho.riak.client.core.RiakFutureListener;
 import com.basho.riak.client.core.RiakNode;
 import com.basho.riak.client.core.operations.DeleteOperation;
 import com.basho.riak.client.core.operations.FetchOperation;
@@ -41,24 +52,36 @@ import com.basho.riak.client.core.operations.StoreOperation;
 import com.basho.riak.client.core.query.Location;
 import com.basho.riak.client.core.query.Namespace;
 import com.basho.riak.client.core.query.RiakObject;
+import com.basho.riak.client.core.query.indexes.LongIntIndex;
 import com.basho.riak.client.core.util.BinaryValue;
 
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.getFieldValueFromObject;
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
 import static de.alexanderlindhorst.tomcat.session.access.BackendServiceBase.SESSIONS_NEVER_EXPIRE;
 import static java.lang.Boolean.TRUE;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -78,6 +101,8 @@ public class SynchronousRiakServiceTest {
     private ArgumentCaptor<FutureOperation<?, ?, ?>> operationCaptor;
     private RiakClient client;
     private SynchronousRiakService service;
+    private static final byte[] VCLOCK = new byte[]{1, 2, 3};
+    private static final byte[] STORED_VCLOCK = new byte[]{7, 8, 9};
     private final byte[] bytes = new byte[]{1};
 
     @Before
@@ -145,29 +170,67 @@ public class SynchronousRiakServiceTest {
         assertThat(node.getPort(), is(100));
     }
 
+    @Test
+    public void initBuildsClusterOfAllListedNodes() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        service.setBackendAddress("riak1:100, riak2,riak3:300");
+        service.init();
+
+        List<RiakNode> nodes = ((RiakClient) getFieldValueFromObject(service, "client")).getRiakCluster().getNodes();
+        assertThat(nodes.size(), is(3));
+        assertThat(nodes.get(0).getRemoteAddress(), is("riak1"));
+        assertThat(nodes.get(0).getPort(), is(100));
+        assertThat(nodes.get(1).getRemoteAddress(), is("riak2"));
+        assertThat(nodes.get(1).getPort(), is(10017));
+        assertThat(nodes.get(2).getRemoteAddress(), is("riak3"));
+        assertThat(nodes.get(2).getPort(), is(300));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initFailsWithEmptyNodeInBackendAddress() {
+        service.setBackendAddress("riak1,,riak2");
+        service.init();
+    }
+
+    @Test
+    public void initAppliesConnectionPoolSettingsToAllNodes() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        service.setBackendAddress("riak1,riak2");
+        service.setMinConnections(2);
+        service.setMaxConnections(20);
+        service.setConnectionIdleTimeout(5000);
+        service.setConnectionTimeout(300);
+        service.setBlockOnMaxConnections(true);
+        service.init();
+
+        List<RiakNode> nodes = ((RiakClient) getFieldValueFromObject(service, "client")).getRiakCluster().getNodes();
+        nodes.forEach(node -> {
+            assertThat(node.getMinConnections(), is(2));
+            assertThat(node.getMaxConnections(), is(20));
+            assertThat(node.getIdleTimeout(), is(5000));
+            assertThat(node.getConnectionTimeout(), is(300));
+            assertThat(node.getBlockOnMaxConnections(), is(true));
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initFailsWithMinConnectionsAboveMaxConnections() {
+        service.setBackendAddress("riak");
+        service.setMinConnections(10);
+        service.setMaxConnections(5);
+        service.init();
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void persistSessionInternalRunsStoreCommandOnClusterForNewObject() throws InterruptedException, ExecutionException {
-        @SuppressWarnings("unchecked")
         RiakFuture<StoreOperation.Response, Location> storeFuture = mock(RiakFuture.class);
-        RiakFuture<FetchOperation.Response, Location> fetchFuture = mock(RiakFuture.class);
         StoreOperation.Response storeOperationResponse = mock(StoreOperation.Response.class);
-        FetchOperation.Response fetchOperationResponse = mock(FetchOperation.Response.class);
-        when(fetchOperationResponse.getObjectList()).thenReturn(emptyList());
         when(storeFuture.get()).thenReturn(storeOperationResponse);
-        when(fetchFuture.get()).thenReturn(fetchOperationResponse);
-        when(cluster.execute(any(FutureOperation.class))).thenAnswer(invocation -> {
-            if (StoreOperation.class.equals(invocation.getArguments()[0].getClass())) {
-                return storeFuture;
-            }
-            if (FetchOperation.class.equals(invocation.getArguments()[0].getClass())) {
-                return fetchFuture;
-            }
-            return null;
-        });
+        when(cluster.execute(any(FutureOperation.class))).thenReturn(storeFuture);
         service.persistSessionInternal("sessionId", bytes);
 
-        verify(cluster, times(2)).execute(operationCaptor.capture());
+        verify(cluster, times(1)).execute(operationCaptor.capture());
 
         FutureOperation<?, ?, ?> operation = operationCaptor.getValue();
         assertThat(operation.getClass().getName(), is(StoreOperation.class.getName()));
@@ -176,31 +239,342 @@ public class SynchronousRiakServiceTest {
     @Test
     @SuppressWarnings("unchecked")
     public void persistSessionInternalRunsStoreCommandOnClusterForExistingObject() throws InterruptedException, ExecutionException {
-        @SuppressWarnings("unchecked")
         RiakFuture<StoreOperation.Response, Location> storeFuture = mock(RiakFuture.class);
-        RiakFuture<FetchOperation.Response, Location> fetchFuture = mock(RiakFuture.class);
         StoreOperation.Response storeOperationResponse = mock(StoreOperation.Response.class);
-        FetchOperation.Response fetchOperationResponse = mock(FetchOperation.Response.class);
         when(storeFuture.get()).thenReturn(storeOperationResponse);
-        when(fetchFuture.get()).thenReturn(fetchOperationResponse);
-        when(fetchOperationResponse.getObjectList()).thenReturn(Collections.singletonList(new RiakObject()));
-        when(cluster.execute(any(FutureOperation.class))).thenAnswer(invocation -> {
-            if (StoreOperation.class.equals(invocation.getArguments()[0].getClass())) {
-                return storeFuture;
-            }
-            if (FetchOperation.class.equals(invocation.getArguments()[0].getClass())) {
-                return fetchFuture;
-            }
-            return null;
-        });
-        service.persistSessionInternal("sessionId", bytes);
+        when(cluster.execute(any(FutureOperation.class))).thenReturn(storeFuture);
+        service.persistSessionInternal("sessionId", bytes, encode(VCLOCK));
 
-        verify(cluster, times(2)).execute(operationCaptor.capture());
+        verify(cluster, times(1)).execute(operationCaptor.capture());
 
         FutureOperation<?, ?, ?> operation = operationCaptor.getValue();
         assertThat(operation.getClass().getName(), is(StoreOperation.class.getName()));
     }
 
+    @Test
+    public void persistSessionInternalSendsKnownVersionAsVectorClock() throws InterruptedException, ExecutionException,
+            NoSuchFieldException, IllegalAccessException {
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getNumberOfValues()).thenReturn(1);
+        when(storeResponse.getVectorClock()).thenReturn(new BasicVClock(STORED_VCLOCK));
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+
+        String version = service.persistSessionInternal("sessionId", bytes, encode(VCLOCK));
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client).execute(storeCaptor.capture());
+        VClock sent = (VClock) getFieldValueFromObject(storeCaptor.getValue(), "vclock");
+        assertThat(Arrays.equals(sent.getBytes(), VCLOCK), is(true));
+        assertThat(version, is(encode(STORED_VCLOCK)));
+        verify(client, never()).execute(any(FetchValue.class));
+    }
+
+    @Test
+    public void persistSessionInternalWithTimeBucketsIndexesExpiryBucket() throws InterruptedException,
+            ExecutionException, NoSuchFieldException, IllegalAccessException {
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getNumberOfValues()).thenReturn(1);
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+        service.setExpiryIndex("timeBuckets");
+        service.setExpiryBucketSeconds(60);
+
+        long before = System.currentTimeMillis() / 60000;
+        service.persistSessionInternal("sessionId", bytes, null);
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client).execute(storeCaptor.capture());
+        RiakObject stored = (RiakObject) getFieldValueFromObject(storeCaptor.getValue(), "value");
+        Long bucket = stored.getIndexes().getIndex(LongIntIndex.named("_expiryBucket")).values().iterator().next();
+        assertThat(bucket >= before && bucket <= System.currentTimeMillis() / 60000, is(true));
+        assertThat(stored.getIndexes().getIndex(LongIntIndex.named("_lastAccessed")).size(), is(0));
+    }
+
+    @Test
+    public void persistSessionInternalWithNativeExpiryWritesNoExpiryIndex() throws InterruptedException,
+            ExecutionException, NoSuchFieldException, IllegalAccessException {
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getNumberOfValues()).thenReturn(1);
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+        service.setExpiryIndex("timeBuckets");
+        service.setSessionExpiryThreshold(30000);
+        service.setNativeExpiry(true);
+        service.setBackendExpirySeconds(30);
+
+        service.persistSessionInternal("sessionId", bytes, null);
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client).execute(storeCaptor.capture());
+        RiakObject stored = (RiakObject) getFieldValueFromObject(storeCaptor.getValue(), "value");
+        assertThat(stored.getIndexes().isEmpty(), is(true));
+        assertThat(service.removeExpiredSessions().isEmpty(), is(true));
+        verify(client, never()).execute(any(IntIndexQuery.class));
+    }
+
+    @Test
+    public void nativeExpiryIsOffUnlessClusterExpiryIsDeclaredAndLongEnough() {
+        service.setSessionExpiryThreshold(30000);
+        service.setNativeExpiry(true);
+
+        assertThat(service.isExpiringNatively(), is(false));
+
+        service.setBackendExpirySeconds(29);
+
+        assertThat(service.isExpiringNatively(), is(false));
+
+        service.setBackendExpirySeconds(30);
+
+        assertThat(service.isExpiringNatively(), is(true));
+    }
+
+    @Test
+    public void persistSessionInternalResolvesSiblingsWithFetchedVectorClock() throws InterruptedException, ExecutionException,
+            NoSuchFieldException, IllegalAccessException {
+        byte[] fetchedVClock = new byte[]{4, 5, 6};
+        StoreValue.Response siblingResponse = mock(StoreValue.Response.class);
+        when(siblingResponse.getNumberOfValues()).thenReturn(2);
+        StoreValue.Response resolvedResponse = mock(StoreValue.Response.class);
+        when(resolvedResponse.getNumberOfValues()).thenReturn(1);
+        when(resolvedResponse.getVectorClock()).thenReturn(new BasicVClock(STORED_VCLOCK));
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getVectorClock()).thenReturn(new BasicVClock(fetchedVClock));
+        doReturn(siblingResponse, resolvedResponse).when(client).execute(any(StoreValue.class));
+        doReturn(fetchResponse).when(client).execute(any(FetchValue.class));
+
+        String version = service.persistSessionInternal("sessionId", bytes, null);
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client, times(2)).execute(storeCaptor.capture());
+        verify(client).execute(any(FetchValue.class));
+        assertThat(getFieldValueFromObject(storeCaptor.getAllValues().get(0), "vclock"), is(nullValue()));
+        VClock sent = (VClock) getFieldValueFromObject(storeCaptor.getAllValues().get(1), "vclock");
+        assertThat(Arrays.equals(sent.getBytes(), fetchedVClock), is(true));
+        assertThat(version, is(encode(STORED_VCLOCK)));
+    }
+
+    @Test
+    public void getVersionedSessionInternalReturnsVectorClockOfFetchedObject() throws InterruptedException, ExecutionException {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(VCLOCK));
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        doReturn(fetchValueResponse).when(client).execute(any(FetchValue.class));
+
+        VersionedBytes result = service.getVersionedSessionInternal("sessionId");
+
+        assertThat(Arrays.equals(result.getBytes(), bytes), is(true));
+        assertThat(result.getVersion(), is(encode(VCLOCK)));
+    }
+
+    @Test
+    public void persistSessionDeltaInternalStoresChangedAttributesThenFieldsThenDeletesRemovedOnes()
+            throws InterruptedException, ExecutionException, NoSuchFieldException, IllegalAccessException {
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getNumberOfValues()).thenReturn(1);
+        when(storeResponse.getVectorClock()).thenReturn(new BasicVClock(STORED_VCLOCK));
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+        doReturn(null).when(client).execute(any(DeleteValue.class));
+        SessionDelta delta = new SessionDelta(bytes, singletonMap("cart", new byte[]{5}), newHashSet("flag"),
+                newHashSet("cart", "counter"), false);
+
+        String version = service.persistSessionDeltaInternal("sessionId", delta, encode(VCLOCK));
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client, times(2)).execute(storeCaptor.capture());
+        StoreValue attributeStore = storeCaptor.getAllValues().get(0);
+        assertThat(getFieldValueFromObject(attributeStore, "namespace"), is((Object) RiakSupport.SESSION_ATTRIBUTES));
+        assertThat(getFieldValueFromObject(attributeStore, "key"), is((Object) BinaryValue.create("sessionId/cart")));
+        RiakObject fields = (RiakObject) getFieldValueFromObject(storeCaptor.getAllValues().get(1), "value");
+        assertThat(fields.getContentType(), is(RiakSupport.SEPARATE_ATTRIBUTES));
+        assertThat(SessionDelta.fromBytes(fields.getValue().getValue()).getAttributeNames(),
+                is(newHashSet("cart", "counter")));
+        ArgumentCaptor<DeleteValue> deleteCaptor = ArgumentCaptor.forClass(DeleteValue.class);
+        verify(client).execute(deleteCaptor.capture());
+        Location deleted = (Location) getFieldValueFromObject(deleteCaptor.getValue(), "location");
+        assertThat(deleted.getKeyAsString(), is("sessionId/flag"));
+        assertThat(version, is(encode(STORED_VCLOCK)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getVersionedSessionInternalReassemblesSessionStoredAttributeByAttribute() throws InterruptedException,
+            ExecutionException, NoSuchFieldException, IllegalAccessException {
+        FetchValue.Response fieldsResponse = mock(FetchValue.Response.class);
+        when(fieldsResponse.getValue(RiakObject.class)).thenReturn(sessionFields(newHashSet("cart")));
+        doReturn(fieldsResponse).when(client).execute(any(FetchValue.class));
+        RiakObject attribute = new RiakObject().setValue(BinaryValue.create(new byte[]{5}));
+        FetchValue.Response attributeResponse = mock(FetchValue.Response.class);
+        when(attributeResponse.getValue(RiakObject.class)).thenReturn(attribute);
+        RiakFuture<FetchValue.Response, Location> attributeFuture = mock(RiakFuture.class);
+        when(attributeFuture.get()).thenReturn(attributeResponse);
+        doReturn(attributeFuture).when(client).executeAsync(any(FetchValue.class));
+
+        VersionedBytes result = service.getVersionedSessionInternal("sessionId");
+
+        SessionDelta read = SessionDelta.fromBytes(result.getBytes());
+        assertThat(read.isComplete(), is(true));
+        assertThat(Arrays.equals(read.getMetadata(), bytes), is(true));
+        assertThat(read.getAttributes().get("cart")[0], is((byte) 5));
+        assertThat(result.getVersion(), is(encode(VCLOCK)));
+    }
+
+    @Test
+    public void deleteSessionInternalWithDeltaPersistenceDeletesAttributesStoredIndividually()
+            throws InterruptedException, ExecutionException, NoSuchFieldException, IllegalAccessException {
+        service.setDeltaPersistence(true);
+        FetchValue.Response fieldsResponse = mock(FetchValue.Response.class);
+        when(fieldsResponse.getValue(RiakObject.class)).thenReturn(sessionFields(newHashSet("cart")));
+        doReturn(fieldsResponse).when(client).execute(any(FetchValue.class));
+        doReturn(null).when(client).execute(any(DeleteValue.class));
+
+        service.deleteSessionInternal("sessionId");
+
+        ArgumentCaptor<DeleteValue> deleteCaptor = ArgumentCaptor.forClass(DeleteValue.class);
+        verify(client, times(2)).execute(deleteCaptor.capture());
+        List<String> deleted = new ArrayList<>();
+        for (DeleteValue deleteValue : deleteCaptor.getAllValues()) {
+            deleted.add(((Location) getFieldValueFromObject(deleteValue, "location")).getKeyAsString());
+        }
+        assertThat(deleted, is(newArrayList("sessionId/cart", "sessionId")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void touchSessionsInternalStoresSessionAsReadWithFreshIndexIfUnchanged() throws InterruptedException,
+            ExecutionException, NoSuchFieldException, IllegalAccessException {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(VCLOCK));
+        FetchValue.Response storedResponse = mock(FetchValue.Response.class);
+        when(storedResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        FetchValue.Response goneResponse = mock(FetchValue.Response.class);
+        when(goneResponse.isNotFound()).thenReturn(true);
+        RiakFuture<FetchValue.Response, Location> storedFuture = completed(storedResponse);
+        RiakFuture<FetchValue.Response, Location> goneFuture = completed(goneResponse);
+        doReturn(storedFuture).doReturn(goneFuture).when(client).executeAsync(any(FetchValue.class));
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getVectorClock()).thenReturn(new BasicVClock(STORED_VCLOCK));
+        RiakFuture<StoreValue.Response, Location> storeFuture = completed(storeResponse);
+        doReturn(storeFuture).when(client).executeAsync(any(StoreValue.class));
+        Map<String, String> knownVersions = new LinkedHashMap<>();
+        knownVersions.put("stored", encode(VCLOCK));
+        knownVersions.put("gone", null);
+
+        Map<String, String> touched = service.touchSessionsInternal(knownVersions);
+
+        ArgumentCaptor<StoreValue> storeCaptor = ArgumentCaptor.forClass(StoreValue.class);
+        verify(client).executeAsync(storeCaptor.capture());
+        RiakObject stored = (RiakObject) getFieldValueFromObject(storeCaptor.getValue(), "value");
+        VClock sent = (VClock) getFieldValueFromObject(storeCaptor.getValue(), "vclock");
+        Map<StoreValue.Option<?>, Object> options = (Map<StoreValue.Option<?>, Object>) getFieldValueFromObject(
+                storeCaptor.getValue(), "options");
+        assertThat(touched, is(singletonMap("stored", encode(STORED_VCLOCK))));
+        assertThat(Arrays.equals(stored.getValue().getValue(), bytes), is(true));
+        assertThat(stored.getIndexes().getIndex(LongIntIndex.named("_lastAccessed")).size(), is(1));
+        assertThat(Arrays.equals(sent.getBytes(), VCLOCK), is(true));
+        assertThat(options.get(StoreValue.Option.IF_NOT_MODIFIED), is((Object) true));
+        assertThat(options.get(StoreValue.Option.RETURN_HEAD), is((Object) true));
+        verify(client, never()).execute(any(StoreValue.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void touchSessionsInternalLeavesOutSessionsWrittenMeanwhile() throws InterruptedException,
+            ExecutionException {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(VCLOCK));
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        RiakFuture<FetchValue.Response, Location> fetchFuture = completed(fetchResponse);
+        doReturn(fetchFuture).when(client).executeAsync(any(FetchValue.class));
+        RiakFuture<StoreValue.Response, Location> modified = mock(RiakFuture.class);
+        when(modified.get()).thenThrow(new ExecutionException(new RuntimeException("modified")));
+        doReturn(modified).when(client).executeAsync(any(StoreValue.class));
+        Map<String, String> knownVersions = new HashMap<>();
+        knownVersions.put("writtenElsewhere", encode(STORED_VCLOCK));
+        knownVersions.put("writtenInBetween", encode(VCLOCK));
+
+        Map<String, String> touched = service.touchSessionsInternal(knownVersions);
+
+        assertThat(touched.isEmpty(), is(true));
+        verify(client, times(1)).executeAsync(any(StoreValue.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void touchSessionsInternalFetchesNoMoreThanMaxTouchesInFlightAtOnce() throws InterruptedException,
+            ExecutionException {
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger maxOutstanding = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxOutstanding.accumulateAndGet(outstanding.incrementAndGet(), Math::max);
+            FetchValue.Response goneResponse = mock(FetchValue.Response.class);
+            when(goneResponse.isNotFound()).thenReturn(true);
+            RiakFuture<FetchValue.Response, Location> fetchFuture = mock(RiakFuture.class);
+            when(fetchFuture.get()).thenAnswer(get -> {
+                outstanding.decrementAndGet();
+                return goneResponse;
+            });
+            return fetchFuture;
+        }).when(client).executeAsync(any(FetchValue.class));
+        service.setMaxTouchesInFlight(3);
+        Map<String, String> knownVersions = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            knownVersions.put("session" + i, null);
+        }
+
+        Map<String, String> touched = service.touchSessionsInternal(knownVersions);
+
+        assertThat(touched.isEmpty(), is(true));
+        verify(client, times(10)).executeAsync(any(FetchValue.class));
+        assertThat(maxOutstanding.get(), is(3));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getSessionIfNewerInternalSendsKnownVectorClockAndReportsUnchanged() throws InterruptedException,
+            ExecutionException, NoSuchFieldException, IllegalAccessException {
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.isUnchanged()).thenReturn(true);
+        doReturn(fetchValueResponse).when(client).execute(any(FetchValue.class));
+
+        VersionedBytes result = service.getSessionIfNewerInternal("sessionId", encode(VCLOCK));
+
+        ArgumentCaptor<FetchValue> fetchCaptor = ArgumentCaptor.forClass(FetchValue.class);
+        verify(client).execute(fetchCaptor.capture());
+        Map<FetchValue.Option<?>, Object> options = (Map<FetchValue.Option<?>, Object>) getFieldValueFromObject(
+                fetchCaptor.getValue(), "options");
+        VClock sent = (VClock) options.get(FetchValue.Option.IF_MODIFIED);
+        assertThat(Arrays.equals(sent.getBytes(), VCLOCK), is(true));
+        assertThat(result, is(sameInstance(VersionedBytes.NOT_MODIFIED)));
+    }
+
+    @Test
+    public void getSessionIfNewerInternalReturnsChangedSession() throws InterruptedException, ExecutionException {
+        RiakObject riakObject = new RiakObject();
+        riakObject.setValue(BinaryValue.create(bytes));
+        riakObject.setVClock(new BasicVClock(STORED_VCLOCK));
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.getValue(RiakObject.class)).thenReturn(riakObject);
+        doReturn(fetchValueResponse).when(client).execute(any(FetchValue.class));
+
+        VersionedBytes result = service.getSessionIfNewerInternal("sessionId", encode(VCLOCK));
+
+        assertThat(Arrays.equals(result.getBytes(), bytes), is(true));
+        assertThat(result.getVersion(), is(encode(STORED_VCLOCK)));
+    }
+
+    @Test
+    public void getSessionIfNewerInternalReturnsNullForDeletedSession() throws InterruptedException,
+            ExecutionException {
+        FetchValue.Response fetchValueResponse = mock(FetchValue.Response.class);
+        when(fetchValueResponse.isNotFound()).thenReturn(true);
+        doReturn(fetchValueResponse).when(client).execute(any(FetchValue.class));
+
+        assertThat(service.getSessionIfNewerInternal("sessionId", encode(VCLOCK)), is(nullValue()));
+    }
+
     @Test(expected = RiakAccessException.class)
     @SuppressWarnings("unchecked")
     public void executionExceptionWhilePersistingThrowsRiakAccessException() throws ExecutionException, InterruptedException {
@@ -352,17 +726,15 @@ public class SynchronousRiakServiceTest {
         for (int i = 1000; i < 1500; i++) {
             batch2.add(Integer.toString(i));
         }
-        ArrayList<String> batch3 = newArrayList();
         ArrayList<String> expectedValues = newArrayList();
         expectedValues.addAll(batch1);
         expectedValues.addAll(batch2);
-        QueryOverride.ResponseOverride response1 = new QueryOverride.ResponseOverride(batch1);
+        QueryOverride.ResponseOverride response1 = new QueryOverride.ResponseOverride(batch1, "page2");
         QueryOverride.ResponseOverride response2 = new QueryOverride.ResponseOverride(batch2);
-        QueryOverride.ResponseOverride response3 = new QueryOverride.ResponseOverride(batch3);
-        doAnswer(new MultipleIntIndexQueryResponseAnswer(response1, response2, response3)).when(client).execute(
+        doAnswer(new MultipleIntIndexQueryResponseAnswer(response1, response2)).when(client).execute(
                 any(IntIndexQuery.class));
         service.setSessionExpiryThreshold(30000);
-        doAnswer(new EmptyResponseAnswer()).when(client).execute(any(DeleteValue.class));
+        deletesSucceed();
 
         List<String> expiredSessionIds = service.removeExpiredSessions();
 
@@ -381,11 +753,11 @@ public class SynchronousRiakServiceTest {
         ArrayList<String> expectedValues = newArrayList();
         expectedValues.addAll(batch1);
         expectedValues.addAll(batch2);
-        QueryOverride.ResponseOverride response1 = new QueryOverride.ResponseOverride(batch1);
+        QueryOverride.ResponseOverride response1 = new QueryOverride.ResponseOverride(batch1, "page2");
         QueryOverride.ResponseOverride response2 = new QueryOverride.ResponseOverride(batch2);
         doAnswer(new MultipleIntIndexQueryResponseAnswer(response1, response2)).when(client).execute(any(IntIndexQuery.class));
         service.setSessionExpiryThreshold(30000);
-        doAnswer(new EmptyResponseAnswer()).when(client).execute(any(DeleteValue.class));
+        deletesSucceed();
 
         List<String> expiredSessionIds = service.removeExpiredSessions();
 
@@ -408,7 +780,7 @@ public class SynchronousRiakServiceTest {
         QueryOverride.ResponseOverride response2 = new QueryOverride.ResponseOverride(batch2);
         doAnswer(new MultipleIntIndexQueryResponseAnswer(response1, response2)).when(client).execute(any(IntIndexQuery.class));
         service.setSessionExpiryThreshold(30000);
-        doAnswer(new EmptyResponseAnswer()).when(client).execute(any(DeleteValue.class));
+        deletesSucceed();
 
         List<String> expiredSessionIds = service.removeExpiredSessions();
 
@@ -465,6 +837,7 @@ public class SynchronousRiakServiceTest {
 
         assertThat(result, is(not(nullValue())));
         verify(client, times(3)).execute(any(RiakCommand.class));
+        assertThat(service.getSessionMetrics().getBackendRetries(), is(2L));
     }
 
     @Test(expected = RiakAccessException.class)
@@ -484,19 +857,247 @@ public class SynchronousRiakServiceTest {
         ArrayList<String> page3 = newArrayList("3");
         ArrayList<String> page4 = newArrayList();
         doAnswer(new MultipleIntIndexQueryResponseAnswer(
-                new QueryOverride.ResponseOverride(page1),
-                new QueryOverride.ResponseOverride(page2),
-                new QueryOverride.ResponseOverride(page3),
+                new QueryOverride.ResponseOverride(page1, "page2"),
+                new QueryOverride.ResponseOverride(page2, "page3"),
+                new QueryOverride.ResponseOverride(page3, "page4"),
                 new QueryOverride.ResponseOverride(page4)
         )).when(client).execute(any(IntIndexQuery.class));
-        doAnswer(new EmptyResponseAnswer()).when(client).execute(any(DeleteValue.class));
+        deletesSucceed();
         service.setSessionExpiryThreshold(30000);
 
         List<String> removed = service.removeExpiredSessions();
 
         assertThat(removed.size(), is(4));
         // delete must be called exactly once per unique id
-        verify(client, times(4)).execute(any(DeleteValue.class));
+        verify(client, times(4)).executeAsync(any(DeleteValue.class));
+    }
+
+    @Test
+    public void removeExpiredSessionsQueriesNextPageWithContinuationOfPrevious()
+            throws ExecutionException, InterruptedException {
+        doAnswer(new MultipleIntIndexQueryResponseAnswer(
+                new QueryOverride.ResponseOverride(newArrayList("0", "1"), "page2"),
+                new QueryOverride.ResponseOverride(newArrayList("2"))
+        )).when(client).execute(any(IntIndexQuery.class));
+        deletesSucceed();
+        service.setSessionExpiryThreshold(30000);
+
+        List<String> removed = service.removeExpiredSessions();
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        //followed by the pages of the catch-up query of the time bucket index
+        verify(client, atLeast(2)).execute(queryCaptor.capture());
+        assertThat(queryCaptor.getAllValues().get(0).getContinuation(), is(nullValue()));
+        assertThat(queryCaptor.getAllValues().get(1).getContinuation(), is(BinaryValue.create("page2")));
+        assertThat(queryCaptor.getAllValues().get(1).getIndexName(), is(queryCaptor.getAllValues().get(0).getIndexName()));
+        assertThat(removed.size(), is(3));
+    }
+
+    @Test
+    public void removeExpiredSessionsCatchesUpOnOtherExpiryIndexOnFirstSweepOnly()
+            throws ExecutionException, InterruptedException {
+        doReturn(new QueryOverride.ResponseOverride(emptyList())).when(client).execute(any(IntIndexQuery.class));
+        service.setExpiryBucketSeconds(60);
+        service.setSessionExpiryThreshold(MINUTES.toMillis(30));
+
+        service.removeExpiredSessions();
+        service.removeExpiredSessions();
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        verify(client, times(3)).execute(queryCaptor.capture());
+        List<IntIndexQuery> queries = queryCaptor.getAllValues();
+        //sessions written by nodes still using time buckets
+        assertThat(queries.get(1).getIndexName(), is(not(queries.get(0).getIndexName())));
+        assertThat(queries.get(1).getMatchValue(), is(nullValue()));
+        assertThat(queries.get(2).getIndexName(), is(queries.get(0).getIndexName()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void removeExpiredSessionsKeepsConfiguredNumberOfDeletesInFlight()
+            throws ExecutionException, InterruptedException {
+        List<String> ids = newArrayList();
+        for (int i = 0; i < 50; i++) {
+            ids.add(Integer.toString(i));
+        }
+        doReturn(new QueryOverride.ResponseOverride(ids)).when(client).execute(any(IntIndexQuery.class));
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        ExecutorService riakThreads = Executors.newFixedThreadPool(8);
+        doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            RiakFuture<Void, Location> deleteFuture = mock(RiakFuture.class);
+            when(deleteFuture.isSuccess()).thenReturn(true);
+            doAnswer(listenerInvocation -> {
+                RiakFutureListener<Void, Location> listener = listenerInvocation.getArgument(0);
+                riakThreads.execute(() -> {
+                    sleepQuietly(2);
+                    inFlight.decrementAndGet();
+                    listener.handle(deleteFuture);
+                });
+                return null;
+            }).when(deleteFuture).addListener(any());
+            return deleteFuture;
+        }).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setMaxExpiryDeletesInFlight(4);
+
+        List<String> removed = service.removeExpiredSessions();
+        riakThreads.shutdown();
+
+        assertThat(removed.size(), is(50));
+        assertThat(maxInFlight.get() <= 4, is(true));
+        assertThat(maxInFlight.get() > 1, is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void removeExpiredSessionsLeavesSessionsWithFailedDeleteToNextSweep()
+            throws ExecutionException, InterruptedException {
+        doReturn(new QueryOverride.ResponseOverride(newArrayList("ok", "failing"))).when(client).execute(
+                any(IntIndexQuery.class));
+        RiakFuture<Void, Location> succeeded = mock(RiakFuture.class);
+        when(succeeded.isSuccess()).thenReturn(true);
+        RiakFuture<Void, Location> failed = mock(RiakFuture.class);
+        when(failed.cause()).thenReturn(new IllegalStateException("node down"));
+        doAnswer(invocation -> {
+            ((RiakFutureListener<Void, Location>) invocation.getArgument(0)).handle(succeeded);
+            return null;
+        }).when(succeeded).addListener(any());
+        doAnswer(invocation -> {
+            ((RiakFutureListener<Void, Location>) invocation.getArgument(0)).handle(failed);
+            return null;
+        }).when(failed).addListener(any());
+        doReturn(succeeded, failed).when(client).executeAsync(any(DeleteValue.class));
+        service.setSessionExpiryThreshold(30000);
+
+        List<String> removed = service.removeExpiredSessions();
+
+        assertThat(removed, is(newArrayList("ok")));
+    }
+
+    @Test
+    public void removeExpiredSessionsStartsDeletesAtConfiguredRate() throws ExecutionException, InterruptedException {
+        List<String> ids = newArrayList();
+        for (int i = 0; i < 11; i++) {
+            ids.add(Integer.toString(i));
+        }
+        doReturn(new QueryOverride.ResponseOverride(ids)).when(client).execute(any(IntIndexQuery.class));
+        deletesSucceed();
+        service.setSessionExpiryThreshold(30000);
+        service.setExpiryDeletesPerSecond(100);
+
+        long start = System.nanoTime();
+        List<String> removed = service.removeExpiredSessions();
+
+        assertThat(removed.size(), is(11));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 95, is(true));
+    }
+
+    @Test
+    public void removeExpiredSessionsSkipsSweepWhileAnotherNodeHoldsLease()
+            throws ExecutionException, InterruptedException {
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getValues()).thenReturn(newArrayList(lease("other node", System.currentTimeMillis() + 60000)));
+        doReturn(fetchResponse).when(client).execute(any(FetchValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setExpirySweepLeaseSeconds(60);
+
+        List<String> removed = service.removeExpiredSessions();
+
+        assertThat(removed.isEmpty(), is(true));
+        verify(client, never()).execute(any(StoreValue.class));
+        verify(client, never()).execute(any(IntIndexQuery.class));
+    }
+
+    @Test
+    public void removeExpiredSessionsTakesFreeLeaseAndSweepsOnePartition()
+            throws ExecutionException, InterruptedException {
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getValues()).thenReturn(emptyList());
+        doReturn(fetchResponse).when(client).execute(any(FetchValue.class));
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getValues()).thenReturn(newArrayList(lease(service.getExpirySweeperId(),
+                System.currentTimeMillis() + 60000)));
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+        //"0" and "2" fall into the first of two partitions, "1" and "3" into the second
+        doReturn(new QueryOverride.ResponseOverride(newArrayList("0", "1", "2", "3"))).when(client).execute(
+                any(IntIndexQuery.class));
+        deletesSucceed();
+        service.setSessionExpiryThreshold(30000);
+        service.setExpirySweepLeaseSeconds(60);
+        service.setExpirySweepPartitions(2);
+
+        List<String> removed = service.removeExpiredSessions();
+
+        verify(client).execute(any(StoreValue.class));
+        List<String> sorted = removed.stream().sorted().collect(Collectors.toList());
+        assertThat(sorted.equals(newArrayList("0", "2")) || sorted.equals(newArrayList("1", "3")), is(true));
+    }
+
+    @Test
+    public void removeExpiredSessionsSkipsSweepWhenConcurrentlyWrittenLeaseWins()
+            throws ExecutionException, InterruptedException {
+        FetchValue.Response fetchResponse = mock(FetchValue.Response.class);
+        when(fetchResponse.getValues()).thenReturn(emptyList());
+        doReturn(fetchResponse).when(client).execute(any(FetchValue.class));
+        long until = System.currentTimeMillis() + 60000;
+        StoreValue.Response storeResponse = mock(StoreValue.Response.class);
+        when(storeResponse.getValues()).thenReturn(newArrayList(lease(service.getExpirySweeperId(), until),
+                lease("!other node", until)));
+        doReturn(storeResponse).when(client).execute(any(StoreValue.class));
+        service.setSessionExpiryThreshold(30000);
+        service.setExpirySweepLeaseSeconds(60);
+
+        List<String> removed = service.removeExpiredSessions();
+
+        assertThat(removed.isEmpty(), is(true));
+        verify(client, never()).execute(any(IntIndexQuery.class));
+    }
+
+    @Test
+    public void removeExpiredSessionsWithTimeBucketsQueriesOnlyBucketsDueSincePreviousSweep()
+            throws ExecutionException, InterruptedException {
+        doReturn(new QueryOverride.ResponseOverride(emptyList())).when(client).execute(any(IntIndexQuery.class));
+        service.setExpiryIndex("timeBuckets");
+        service.setExpiryBucketSeconds(60);
+        service.setSessionExpiryThreshold(MINUTES.toMillis(30));
+
+        service.removeExpiredSessions();
+        //moves the threshold three buckets ahead
+        service.setSessionExpiryThreshold(MINUTES.toMillis(27));
+        service.removeExpiredSessions();
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        verify(client, atLeast(5)).execute(queryCaptor.capture());
+        List<IntIndexQuery> queries = queryCaptor.getAllValues();
+        //the first sweep queries all due buckets and catches up on the last access times of sessions written without them
+        assertThat(queries.get(0).getMatchValue(), is(nullValue()));
+        assertThat(queries.get(1).getMatchValue(), is(nullValue()));
+        assertThat(queries.size() == 5 || queries.size() == 6, is(true));
+        for (int i = 3; i < queries.size(); i++) {
+            assertThat(queries.get(i).getMatchValue(), is(queries.get(i - 1).getMatchValue() + 1));
+        }
+    }
+
+    @Test
+    public void removeExpiredSessionsWithTimeBucketsQueriesAllDueBucketsAsRangeWhenTooManyAreDue()
+            throws ExecutionException, InterruptedException {
+        doReturn(new QueryOverride.ResponseOverride(emptyList())).when(client).execute(any(IntIndexQuery.class));
+        service.setExpiryIndex("timeBuckets");
+        service.setExpiryBucketSeconds(60);
+        service.setSessionExpiryThreshold(MINUTES.toMillis(300));
+
+        service.removeExpiredSessions();
+        service.setSessionExpiryThreshold(MINUTES.toMillis(30));
+        service.removeExpiredSessions();
+
+        ArgumentCaptor<IntIndexQuery> queryCaptor = ArgumentCaptor.forClass(IntIndexQuery.class);
+        verify(client, times(3)).execute(queryCaptor.capture());
+        IntIndexQuery range = queryCaptor.getAllValues().get(2);
+        assertThat(range.getMatchValue(), is(nullValue()));
+        assertThat(range.getIndexName(), is(queryCaptor.getAllValues().get(0).getIndexName()));
+        assertThat(range.getIndexName(), is(not(queryCaptor.getAllValues().get(1).getIndexName())));
     }
 
     @Test
@@ -510,6 +1111,46 @@ public class SynchronousRiakServiceTest {
         service.shutdown();
     }
 
+    private static void sleepQuietly(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void deletesSucceed() {
+        RiakFuture<Void, Location> deleteFuture = mock(RiakFuture.class);
+        when(deleteFuture.isSuccess()).thenReturn(true);
+        doAnswer(invocation -> {
+            ((RiakFutureListener<Void, Location>) invocation.getArgument(0)).handle(deleteFuture);
+            return null;
+        }).when(deleteFuture).addListener(any());
+        doReturn(deleteFuture).when(client).executeAsync(any(DeleteValue.class));
+    }
+
+    private RiakObject sessionFields(Set<String> attributeNames) throws NoSuchFieldException, IllegalAccessException {
+        SessionDelta delta = new SessionDelta(bytes, emptyMap(), emptySet(), attributeNames, false);
+        StoreValue store = RiakSupport.storeSessionFields(RiakSupport.sessionLocation("sessionId"), delta, null, 0);
+        return ((RiakObject) getFieldValueFromObject(store, "value")).setVClock(new BasicVClock(VCLOCK));
+    }
+
+    private static RiakObject lease(String owner, long until) {
+        return new RiakObject().setValue(BinaryValue.create(owner + "\n" + until));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RiakFuture<T, Location> completed(T value) throws InterruptedException, ExecutionException {
+        RiakFuture<T, Location> future = mock(RiakFuture.class);
+        when(future.get()).thenReturn(value);
+        return future;
+    }
+
+    private static String encode(byte[] vClock) {
+        return Base64.getEncoder().encodeToString(vClock);
+    }
+
     private static class QueryOverride extends IntIndexQuery {
 
         private QueryOverride(
@@ -520,13 +1161,19 @@ public class SynchronousRiakServiceTest {
         private static class ResponseOverride extends IntIndexQuery.Response {
 
             private final List<Entry> entries;
+            private final BinaryValue continuation;
 
             private ResponseOverride(List<String> returnValues) {
+                this(returnValues, null);
+            }
+
+            private ResponseOverride(List<String> returnValues, String continuation) {
                 super(null, null, null);
                 Namespace ns = new Namespace("SESSIONS");
                 entries = returnValues.stream()
                         .map(id -> new EntryOverride(new Location(ns, BinaryValue.create(id)), BinaryValue.create(id)))
                         .collect(Collectors.toList());
+                this.continuation = continuation == null ? null : BinaryValue.create(continuation);
             }
 
             @Override
@@ -534,6 +1181,16 @@ public class SynchronousRiakServiceTest {
                 return entries;
             }
 
+            @Override
+            public boolean hasContinuation() {
+                return continuation != null;
+            }
+
+            @Override
+            public BinaryValue getContinuation() {
+                return continuation;
+            }
+
             private class EntryOverride extends Entry {
 
                 public EntryOverride(Location riakObjectLocation, BinaryValue indexKey) {
@@ -563,13 +1220,4 @@ public class SynchronousRiakServiceTest {
         }
 
     }
-
-    private class EmptyResponseAnswer implements Answer<RiakCommand<Void, Location>> {
-
-        @Override
-        public RiakCommand<Void, Location> answer(InvocationOnMock invocation) throws Throwable {
-            return null;
-        }
-
-    }
 }
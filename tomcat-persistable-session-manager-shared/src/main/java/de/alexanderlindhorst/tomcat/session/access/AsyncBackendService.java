@@ -0,0 +1,40 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link BackendService} able to write without blocking the calling thread. Writes of the same session are applied in the
+ * order they were issued in.
+ *
+ * @author alindhorst
+ */
+public interface AsyncBackendService extends BackendService {
+
+    /**
+     * Serializes the session on the calling thread and writes it asynchronously. The session is no longer dirty once this
+     * returns; it is marked dirty again if the write fails.
+     *
+     * @param session session to persist
+     * @return completed once the session is in the backend
+     */
+    CompletableFuture<Void> persistSessionAsync(PersistableSession session);
+
+    /**
+     * @param session session to delete, after any write of it still in progress
+     * @return completed once the session is gone from the backend
+     */
+    CompletableFuture<Void> deleteSessionAsync(PersistableSession session);
+
+    /**
+     * Asynchronous variant of {@link #removeExpiredSessions()}.
+     *
+     * @return completed with the persistence keys of the removed sessions
+     */
+    CompletableFuture<List<String>> removeExpiredSessionsAsync();
+}
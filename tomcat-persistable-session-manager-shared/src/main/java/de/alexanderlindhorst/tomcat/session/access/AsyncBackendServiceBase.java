@@ -0,0 +1,346 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics.Operation;
+
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.createSessionDelta;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.sessionDeltaPersisted;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Base for backends whose client writes asynchronously. Subclasses implement the asynchronous variants of the write
+ * operations; the synchronous ones of {@link BackendServiceBase} wait for them. Operations on the same session are started
+ * only once the previous one completed, so they can't overtake each other on different connections.
+ *
+ * @author alindhorst
+ */
+public abstract class AsyncBackendServiceBase extends BackendServiceBase implements AsyncBackendService {
+
+    private static final long IN_FLIGHT_DRAIN_TIMEOUT_SECONDS = 30;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    @Override
+    public void init() {
+        super.init();
+        if (getWriteBehindThreads() > 0) {
+            LOGGER.warn("{} hands asynchronous writes to the write-behind queue, they wait on the calling thread while the "
+                    + "queue is full", getClass().getName());
+        }
+    }
+
+    /**
+     * {@inheritDoc} With write-behind enabled the session is handed to the write-behind queue by
+     * {@link #persistSession(PersistableSession)} instead and the returned future is completed already. With delta
+     * persistence enabled only the changed attributes are written, see
+     * {@link #persistSessionDeltaInternalAsync(String, SessionDelta, String)}.
+     */
+    @Override
+    public final CompletableFuture<Void> persistSessionAsync(PersistableSession session) {
+        if (getWriteBehindThreads() > 0) {
+            return runNow(() -> persistSession(session));
+        }
+        if (deltaWriter() != null) {
+            return persistSessionDeltaAsync(session);
+        }
+        long start = System.nanoTime();
+        Snapshot snapshot;
+        try {
+            snapshot = snapshotSession(session);
+        } catch (RuntimeException ex) {
+            getSessionMetrics().backendOperation(Operation.PERSIST, System.nanoTime() - start, true);
+            return failedFuture(ex);
+        }
+        session.setDirty(false);
+        if (snapshot == null) {
+            getSessionMetrics().backendOperation(Operation.PERSIST, System.nanoTime() - start, false);
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = session.getPersistenceKey();
+        return inOrder(key, () -> persistSessionInternalAsync(key, snapshot.getBytes(), session.getBackendVersion()),
+                (version, ex) -> {
+                    if (ex == null) {
+                        session.setBackendVersion(version);
+                        session.setPersistedContentHash(snapshot.getContentHash());
+                        session.setLastPersistedTime(System.currentTimeMillis());
+                    } else {
+                        session.setDirty(true);
+                    }
+                    getSessionMetrics().backendOperation(Operation.PERSIST, System.nanoTime() - start, ex != null);
+                }).thenApply(version -> null);
+    }
+
+    /**
+     * The delta is created on the calling thread like the snapshot of a whole session.
+     */
+    private CompletableFuture<Void> persistSessionDeltaAsync(PersistableSession session) {
+        long start = System.nanoTime();
+        SessionDelta delta;
+        try {
+            delta = createSessionDelta(session);
+        } catch (RuntimeException ex) {
+            getSessionMetrics().backendOperation(Operation.PERSIST, System.nanoTime() - start, true);
+            return failedFuture(ex);
+        }
+        session.setDirty(false);
+        String key = session.getPersistenceKey();
+        return inOrder(key, () -> persistSessionDeltaInternalAsync(key, delta, session.getBackendVersion()),
+                (version, ex) -> {
+                    if (ex == null) {
+                        session.setBackendVersion(version);
+                        sessionDeltaPersisted(session, delta);
+                        session.setLastPersistedTime(System.currentTimeMillis());
+                    } else {
+                        //the changes of this delta are gone, so the next persist has to be complete again
+                        session.setAttributesPersisted(false);
+                        session.setDirty(true);
+                    }
+                    getSessionMetrics().backendOperation(Operation.PERSIST, System.nanoTime() - start, ex != null);
+                }).thenApply(version -> null);
+    }
+
+    /**
+     * {@inheritDoc} With write-behind enabled the session is deleted by {@link #deleteSession(PersistableSession)} instead
+     * and the returned future is completed already.
+     */
+    @Override
+    public final CompletableFuture<Void> deleteSessionAsync(PersistableSession session) {
+        if (getWriteBehindThreads() > 0) {
+            return runNow(() -> deleteSession(session));
+        }
+        long start = System.nanoTime();
+        String key = session.getPersistenceKey();
+        return inOrder(key, () -> deleteSessionInternalAsync(key), (ignored, ex) -> getSessionMetrics().backendOperation(
+                Operation.DELETE, System.nanoTime() - start, ex != null));
+    }
+
+    /**
+     * {@inheritDoc} With an expiry sweep lease configured the leases are taken from the backend before this method returns,
+     * only the sweep of the partitions held is asynchronous.
+     */
+    @Override
+    public final CompletableFuture<List<String>> removeExpiredSessionsAsync() {
+        long start = System.nanoTime();
+        CompletableFuture<List<String>> removal;
+        try {
+            if (isExpiringNatively()) {
+                removal = CompletableFuture.completedFuture(new ArrayList<>());
+            } else if (getExpirySweepLeaseSeconds() == 0) {
+                removal = removeExpiredSessionsInternalAsync();
+            } else {
+                removal = CompletableFuture.completedFuture(new ArrayList<>());
+                for (ExpiryPartition partition : claimExpiryPartitions()) {
+                    removal = removal.thenCompose(removed -> removeExpiredSessionsInternalAsync(partition)
+                            .thenApply(ids -> {
+                                removed.addAll(ids);
+                                return removed;
+                            }));
+                }
+            }
+        } catch (RuntimeException ex) {
+            removal = failedFuture(ex);
+        }
+        return removal.whenComplete((removed, ex) -> getSessionMetrics().backendOperation(Operation.EXPIRY,
+                System.nanoTime() - start, ex != null));
+    }
+
+    /**
+     * Asynchronous variant of {@link #persistSessionInternal(String, byte[], String)}.
+     *
+     * @param sessionId persistence key of the session
+     * @param bytes serialized session, not changed afterwards
+     * @param knownVersion version of the session last read or written by this node, {@code null} if unknown
+     * @return completed with the version of the written session, {@code null} if unknown
+     */
+    protected abstract CompletableFuture<String> persistSessionInternalAsync(String sessionId, byte[] bytes,
+            String knownVersion);
+
+    protected abstract CompletableFuture<Void> deleteSessionInternalAsync(String sessionId);
+
+    /**
+     * Asynchronous variant of the {@link #getDeltaWriter() delta writer}, used while delta persistence is enabled. This
+     * implementation writes with the delta writer on the calling thread.
+     *
+     * @param sessionId persistence key of the session
+     * @param delta changed and removed attributes, for a complete delta all attributes of the session
+     * @param knownVersion version of the session last read or written by this node, {@code null} if unknown
+     * @return completed with the version of the written session, {@code null} if unknown
+     */
+    protected CompletableFuture<String> persistSessionDeltaInternalAsync(String sessionId, SessionDelta delta,
+            String knownVersion) {
+        try {
+            return CompletableFuture.completedFuture(getDeltaWriter().persistSessionDelta(sessionId, delta, knownVersion));
+        } catch (RuntimeException ex) {
+            return failedFuture(ex);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #removeExpiredSessionsInternal()}.
+     *
+     * @return completed with the persistence keys of the removed sessions
+     */
+    protected abstract CompletableFuture<List<String>> removeExpiredSessionsInternalAsync();
+
+    /**
+     * Asynchronous variant of {@link #removeExpiredSessionsInternal(ExpiryPartition)}. This implementation deletes the ids
+     * returned by {@link #getExpiredSessionIds()} that fall into the partition. A failed delete leaves its session to the
+     * next sweep without failing the others.
+     *
+     * @return completed with the persistence keys of the removed sessions
+     */
+    protected CompletableFuture<List<String>> removeExpiredSessionsInternalAsync(ExpiryPartition partition) {
+        if (partition.isAll()) {
+            return removeExpiredSessionsInternalAsync();
+        }
+        List<String> expired = getExpiredSessionIds().stream().filter(partition::contains).collect(toList());
+        List<String> removed = Collections.synchronizedList(new ArrayList<>());
+        return CompletableFuture.allOf(expired.stream().map(id -> deleteExpiredSession(id, removed))
+                .toArray(CompletableFuture<?>[]::new)).thenApply(ignored -> new ArrayList<>(removed));
+    }
+
+    private CompletableFuture<Void> deleteExpiredSession(String sessionId, List<String> removed) {
+        CompletableFuture<Void> delete;
+        try {
+            delete = deleteSessionInternalAsync(sessionId);
+        } catch (RuntimeException ex) {
+            delete = failedFuture(ex);
+        }
+        return delete.handle((ignored, ex) -> {
+            if (ex == null) {
+                removed.add(sessionId);
+            } else {
+                LOGGER.warn("Couldn't delete expired session {}, leaving it to the next sweep", sessionId, ex);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #touchSessionsInternal(Map)}. This implementation touches nothing.
+     *
+     * @return completed with the version of each session touched by persistence key
+     */
+    protected CompletableFuture<Map<String, String>> touchSessionsInternalAsync(Map<String, String> knownVersions) {
+        return CompletableFuture.completedFuture(new HashMap<>());
+    }
+
+    @Override
+    protected final void persistSessionInternal(String sessionId, byte[] bytes) {
+        persistSessionInternal(sessionId, bytes, null);
+    }
+
+    @Override
+    protected final String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
+        return await(inOrder(sessionId, () -> persistSessionInternalAsync(sessionId, bytes, knownVersion),
+                (version, ex) -> {
+                }));
+    }
+
+    @Override
+    protected final void deleteSessionInternal(String sessionId) {
+        await(inOrder(sessionId, () -> deleteSessionInternalAsync(sessionId), (ignored, ex) -> {
+        }));
+    }
+
+    @Override
+    protected final Map<String, String> touchSessionsInternal(Map<String, String> knownVersions) {
+        return await(touchSessionsInternalAsync(knownVersions));
+    }
+
+    @Override
+    protected final List<String> removeExpiredSessionsInternal() {
+        return await(removeExpiredSessionsInternalAsync());
+    }
+
+    @Override
+    protected final List<String> removeExpiredSessionsInternal(ExpiryPartition partition) {
+        return await(removeExpiredSessionsInternalAsync(partition));
+    }
+
+    /**
+     * {@inheritDoc} This includes asynchronous writes not completed yet.
+     */
+    @Override
+    protected boolean isWritePending(String id) {
+        return super.isWritePending(id) || inFlight.containsKey(id);
+    }
+
+    /**
+     * {@inheritDoc} Writes still in progress are waited for first.
+     */
+    @Override
+    public void shutdown() {
+        CompletableFuture<?>[] pending = inFlight.values().toArray(new CompletableFuture<?>[0]);
+        try {
+            CompletableFuture.allOf(pending).get(IN_FLIGHT_DRAIN_TIMEOUT_SECONDS, SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            LOGGER.warn("{} asynchronous writes didn't complete before shutdown", inFlight.size());
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Starts the operation once the previous one for the same session completed, successful or not. The completion action
+     * runs before the next operation is started.
+     */
+    private <T> CompletableFuture<T> inOrder(String key, Supplier<CompletableFuture<T>> operation,
+            BiConsumer<? super T, ? super Throwable> completion) {
+        CompletableFuture<Void> turn = new CompletableFuture<>();
+        CompletableFuture<Void> previous = inFlight.put(key, turn);
+        CompletableFuture<Void> ready = previous != null ? previous : CompletableFuture.completedFuture(null);
+        CompletableFuture<T> result = ready.thenCompose(ignored -> operation.get()).whenComplete(completion);
+        result.whenComplete((value, ex) -> {
+            inFlight.remove(key, turn);
+            turn.complete(null);
+        });
+        return result;
+    }
+
+    /**
+     * Waits for the future, rethrowing the exception it failed with.
+     */
+    protected static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    protected static <T> CompletableFuture<T> failedFuture(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
+    private static CompletableFuture<Void> runNow(Runnable action) {
+        try {
+            action.run();
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException ex) {
+            return failedFuture(ex);
+        }
+    }
+}
@@ -4,7 +4,9 @@
 package de.alexanderlindhorst.tomcat.session.access;
 
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
 
+import java.util.Collection;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -20,8 +22,39 @@ public interface BackendService {
 
     PersistableSession getSession(PersistableSession emptyShell, String id);
 
+    /**
+     * Reads the serialized session only if the backend holds a version other than the given one. Writes still waiting in
+     * this node's write-behind queue are not taken into account.
+     *
+     * @param id persistence key of the session
+     * @param knownVersion version of the session last read or written, {@code null} to read the session in any case
+     * @return {@link VersionedBytes#NOT_MODIFIED} if the session is still at {@code knownVersion}, otherwise the serialized
+     * session and its version, {@code null} if not found
+     */
+    VersionedBytes getSessionIfNewer(String id, String knownVersion);
+
+    /**
+     * Checks a locally held session against the backend, reading it only if it was changed since {@code cached} was read or
+     * written by this node.
+     *
+     * @param cached session held locally
+     * @param emptyShell session to read the backend's state into if it changed
+     * @param id persistence key of the session
+     * @return {@code cached} if unchanged, the session read into {@code emptyShell} if changed, {@code null} if the session
+     * is gone from the backend
+     */
+    PersistableSession getSessionIfModified(PersistableSession cached, PersistableSession emptyShell, String id);
+
     void deleteSession(PersistableSession session);
 
+    /**
+     * Refreshes the last access time the backend keeps for expiry without writing the sessions, so that sessions which are
+     * read but not changed don't expire in the backend. Touched sessions get their last persisted time updated.
+     *
+     * @param sessions sessions accessed since they were last written or touched
+     */
+    void touchSessions(Collection<PersistableSession> sessions);
+
     void setBackendAddress(String backendAddress);
 
     List<String> getExpiredSessionIds();
@@ -33,4 +66,101 @@ public interface BackendService {
     void setSessionExpiryThreshold(long sessionExpiryThresholdMilliSeconds);
 
     void setSessionManagementLogger(Logger sessionManagementLogger);
+
+    void setWriteBehindThreads(int writeBehindThreads);
+
+    void setWriteBehindQueueCapacity(int writeBehindQueueCapacity);
+
+    void setWriteBehindBackpressure(String writeBehindBackpressure);
+
+    void setDeltaPersistence(boolean deltaPersistence);
+
+    void setCompression(String compression);
+
+    void setCompressionThreshold(int compressionThreshold);
+
+    void setSessionMetrics(SessionMetrics sessionMetrics);
+
+    /**
+     * Connection pool settings apply per backend node and are ignored by backends without connection pool.
+     *
+     * @param minConnections connections kept open to each node
+     */
+    void setMinConnections(int minConnections);
+
+    /**
+     * @param maxConnections connections opened to each node at most, {@code 0} for no limit
+     */
+    void setMaxConnections(int maxConnections);
+
+    /**
+     * @param connectionIdleTimeout milliseconds after which connections above the minimum are closed if unused
+     */
+    void setConnectionIdleTimeout(int connectionIdleTimeout);
+
+    /**
+     * @param connectionTimeout milliseconds to wait for a connection to be established, {@code 0} for the default
+     */
+    void setConnectionTimeout(int connectionTimeout);
+
+    /**
+     * @param blockOnMaxConnections {@code true} to wait for a free connection when all are in use, {@code false} to fail
+     * or try another node instead
+     */
+    void setBlockOnMaxConnections(boolean blockOnMaxConnections);
+
+    /**
+     * @param maxExpiryDeletesInFlight deletes of expired sessions a sweep keeps running at the same time at most
+     */
+    void setMaxExpiryDeletesInFlight(int maxExpiryDeletesInFlight);
+
+    /**
+     * @param maxTouchesInFlight touches of accessed sessions kept running at the same time at most
+     */
+    void setMaxTouchesInFlight(int maxTouchesInFlight);
+
+    /**
+     * @param expiryDeletesPerSecond deletes of expired sessions a sweep starts per second at most, {@code 0} for no limit
+     */
+    void setExpiryDeletesPerSecond(int expiryDeletesPerSecond);
+
+    /**
+     * @param expirySweepLeaseSeconds seconds a node keeps the right to sweep expired sessions after taking it from the
+     * backend, {@code 0} to let every node sweep on its own
+     */
+    void setExpirySweepLeaseSeconds(int expirySweepLeaseSeconds);
+
+    /**
+     * @param expirySweepPartitions number of shares the keyspace is split into for sweeping, each swept by the node holding
+     * its lease
+     */
+    void setExpirySweepPartitions(int expirySweepPartitions);
+
+    /**
+     * @param expiryIndex how the backend finds expired sessions, {@code lastAccessed} or {@code timeBuckets}
+     */
+    void setExpiryIndex(String expiryIndex);
+
+    /**
+     * @param expiryBucketSeconds seconds of last access grouped into one bucket of the {@code timeBuckets} expiry index
+     */
+    void setExpiryBucketSeconds(int expiryBucketSeconds);
+
+    /**
+     * @param nativeExpiry whether to let the backend drop sessions on its own after the session expiry threshold instead of
+     * sweeping it, if the backend supports that
+     */
+    void setNativeExpiry(boolean nativeExpiry);
+
+    /**
+     * @param backendExpirySeconds time after which the backend drops objects not written on its own as configured there,
+     * {@code 0} if it doesn't
+     */
+    void setBackendExpirySeconds(int backendExpirySeconds);
+
+    /**
+     * @return {@code true} if the backend drops sessions not written for the session expiry threshold on its own, so that
+     * expired sessions only need to be dropped locally
+     */
+    boolean isExpiringNatively();
 }
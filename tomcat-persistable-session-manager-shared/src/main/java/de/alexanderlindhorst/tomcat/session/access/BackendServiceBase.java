@@ -3,13 +3,40 @@
  */
 package de.alexanderlindhorst.tomcat.session.access;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.alexanderlindhorst.tomcat.session.access.WriteBehindQueue.Backpressure;
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.SerializationBuffer;
+import de.alexanderlindhorst.tomcat.session.manager.SessionCompressor;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics.Operation;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.applySessionDelta;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.createSessionDelta;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.deserializeSessionInto;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.serializeSession;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.sessionContentHash;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.sessionDeltaPersisted;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 
 /**
  * @author alindhorst
@@ -17,44 +44,600 @@ import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUti
 public abstract class BackendServiceBase implements BackendService {
 
     public static final long SESSIONS_NEVER_EXPIRE = -1;
+    public static final String BACKPRESSURE_BLOCK = "block";
+    public static final String BACKPRESSURE_DROP_OLDEST = "dropOldest";
+    public static final String BACKPRESSURE_SYNC = "sync";
+    public static final String EXPIRY_INDEX_LAST_ACCESSED = "lastAccessed";
+    public static final String EXPIRY_INDEX_TIME_BUCKETS = "timeBuckets";
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_MIN_CONNECTIONS = 1;
+    public static final int DEFAULT_CONNECTION_IDLE_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_EXPIRY_DELETES_IN_FLIGHT = 16;
+    public static final int DEFAULT_MAX_TOUCHES_IN_FLIGHT = 16;
+    public static final int DEFAULT_EXPIRY_BUCKET_SECONDS = 60;
     protected static final Logger LOGGER = LoggerFactory.getLogger(BackendServiceBase.class);
+    private static final long WRITE_BEHIND_DRAIN_TIMEOUT_SECONDS = 30;
     private Logger sessionManagementLogger = LOGGER;
     private String backendAddress;
     private long sessionExpiryThreshold = SESSIONS_NEVER_EXPIRE;
+    private int writeBehindThreads;
+    private int writeBehindQueueCapacity = DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY;
+    private Backpressure writeBehindBackpressure = Backpressure.SYNC;
+    private boolean deltaPersistence;
+    private String compression = SessionCompressor.COMPRESSION_NONE;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private SessionCompressor compressor;
+    private int minConnections = DEFAULT_MIN_CONNECTIONS;
+    private int maxConnections;
+    private int connectionIdleTimeout = DEFAULT_CONNECTION_IDLE_TIMEOUT;
+    private int connectionTimeout;
+    private boolean blockOnMaxConnections;
+    private int maxExpiryDeletesInFlight = DEFAULT_MAX_EXPIRY_DELETES_IN_FLIGHT;
+    private int maxTouchesInFlight = DEFAULT_MAX_TOUCHES_IN_FLIGHT;
+    private int expiryDeletesPerSecond;
+    private int expirySweepLeaseSeconds;
+    private int expirySweepPartitions = 1;
+    private String expiryIndex = EXPIRY_INDEX_LAST_ACCESSED;
+    private boolean nativeExpiry;
+    private int backendExpirySeconds;
+    private int expiryBucketSeconds = DEFAULT_EXPIRY_BUCKET_SECONDS;
+    private final String expirySweeperId = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    private final Set<Integer> heldExpiryPartitions = ConcurrentHashMap.newKeySet();
+    private final LongAdder skippedWriteCount = new LongAdder();
+    private volatile SessionMetrics sessionMetrics = new SessionMetrics();
+    private volatile WriteBehindQueue writeBehindQueue;
     private boolean shuttingDown;
 
     @Override
     public void init() {
         shuttingDown = false;
+        compressor = SessionCompressor.COMPRESSION_NONE.equals(compression) ? null
+                : new SessionCompressor(compression, compressionThreshold);
+        if (deltaPersistence && getDeltaWriter() == null) {
+            LOGGER.warn("{} cannot persist single attributes, falling back to whole sessions", getClass().getName());
+        }
+        if (nativeExpiry && !isNativeExpirySupported()) {
+            LOGGER.warn("{} cannot expire sessions on its own, falling back to expiry sweeps", getClass().getName());
+        }
+        if (writeBehindThreads > 0) {
+            writeBehindQueue = new WriteBehindQueue(writeBehindThreads, writeBehindQueueCapacity, writeBehindBackpressure,
+                    this::writeSnapshot, BackendServiceBase::mergeSnapshots);
+            writeBehindQueue.start();
+        }
     }
 
+    /**
+     * {@inheritDoc} Writes still waiting in the write-behind queue are drained before the service is marked as shutting
+     * down, so subclasses must call this before closing their backend connections.
+     */
     @Override
     public void shutdown() {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.shutdown(WRITE_BEHIND_DRAIN_TIMEOUT_SECONDS, SECONDS);
+            writeBehindQueue = null;
+        }
+        if (compressor != null && compressor.getCompressedCount() > 0) {
+            LOGGER.info("Compressed {} sessions to {} of their size in {} ms", compressor.getCompressedCount(),
+                    String.format("%.2f", compressor.getCompressionRatio()), NANOSECONDS.toMillis(
+                    compressor.getCompressionNanos()));
+        }
         shuttingDown = true;
     }
 
+    /**
+     * {@inheritDoc} The session is serialized on the calling thread. With write-behind enabled the snapshot is handed over to
+     * the writer threads, replacing a still pending snapshot of the same session. With delta persistence enabled on a backend
+     * supporting it, only the attributes changed since the last persist are written. Otherwise the write of a dirty session
+     * that didn't change apart from its access times since it was last written is skipped.
+     */
     @Override
     public final void persistSession(PersistableSession session) {
-        persistSessionInternal(session.getPersistenceKey(), serializeSession(session));
-        session.setDirty(false);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            DeltaWriter deltaWriter = deltaWriter();
+            if (deltaWriter != null) {
+                persistSessionDelta(session, deltaWriter);
+            } else {
+                persistSessionBlob(session);
+            }
+            session.setDirty(false);
+            failed = false;
+        } finally {
+            sessionMetrics.backendOperation(Operation.PERSIST, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Serializes into the calling thread's reused buffer. The content is only copied if it has to outlive this call, i.e. for
+     * the write-behind queue or backends not overriding {@link #persistSessionInternal(String, ByteBuffer, String)}.
+     */
+    private void persistSessionBlob(PersistableSession session) {
+        String key = session.getPersistenceKey();
+        SerializationBuffer buffer = SerializationBuffer.acquire(session.getSerializedSizeHint());
+        try {
+            if (!serializeSession(session, buffer)) {
+                persistSessionVersioned(key, session, null);
+                session.setPersistedContentHash(0);
+                return;
+            }
+            sessionMetrics.sessionSerialized(buffer.size());
+            long contentHash = sessionContentHash(session, buffer.array(), buffer.size());
+            if (isUnchanged(session, contentHash)) {
+                LOGGER.debug("Session {} unchanged since last persist, skipping write", key);
+                skippedWriteCount.increment();
+                return;
+            }
+            ByteBuffer bytes = buffer.toByteBuffer();
+            if (compressor != null) {
+                bytes = compressor.compress(bytes);
+            }
+            WriteBehindQueue queue = writeBehindQueue;
+            if (queue == null || !queue.offer(key, session, toArray(bytes))) {
+                session.setBackendVersion(persistSessionInternal(key, bytes, session.getBackendVersion()));
+            }
+            session.setPersistedContentHash(contentHash);
+            session.setLastPersistedTime(currentTimeMillis());
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Serializes and compresses the session like {@link #persistSession(PersistableSession)} does, but into a copy that may
+     * outlive this call, for writes completing asynchronously.
+     *
+     * @return {@code null} if the session is unchanged since it was last persisted
+     */
+    final Snapshot snapshotSession(PersistableSession session) {
+        SerializationBuffer buffer = SerializationBuffer.acquire(session.getSerializedSizeHint());
+        try {
+            if (!serializeSession(session, buffer)) {
+                return new Snapshot(null, 0);
+            }
+            sessionMetrics.sessionSerialized(buffer.size());
+            long contentHash = sessionContentHash(session, buffer.array(), buffer.size());
+            if (isUnchanged(session, contentHash)) {
+                LOGGER.debug("Session {} unchanged since last persist, skipping write", session.getPersistenceKey());
+                skippedWriteCount.increment();
+                return null;
+            }
+            ByteBuffer bytes = buffer.toByteBuffer();
+            if (compressor != null) {
+                bytes = compressor.compress(bytes);
+            }
+            return new Snapshot(toArray(bytes), contentHash);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Only a session marked dirty is skipped, a persist of any other session is an explicit request to write it. As a
+     * skipped write doesn't refresh the backend's expiry of the session, writes are only skipped while the last write or
+     * touch of the session is younger than half the expiry threshold.
+     */
+    private boolean isUnchanged(PersistableSession session, long contentHash) {
+        if (!session.isDirty() || contentHash != session.getPersistedContentHash()) {
+            return false;
+        }
+        return sessionExpiryThreshold == SESSIONS_NEVER_EXPIRE
+                || session.getLastPersistedTime() >= currentTimeMillis() - sessionExpiryThreshold / 2;
+    }
+
+    private static byte[] toArray(ByteBuffer bytes) {
+        byte[] array = new byte[bytes.remaining()];
+        bytes.duplicate().get(array);
+        return array;
+    }
+
+    private void persistSessionDelta(PersistableSession session, DeltaWriter deltaWriter) {
+        String key = session.getPersistenceKey();
+        SessionDelta delta = createSessionDelta(session);
+        try {
+            WriteBehindQueue queue = writeBehindQueue;
+            if (queue == null || !queue.offer(key, session, delta.toBytes())) {
+                session.setBackendVersion(deltaWriter.persistSessionDelta(key, delta, session.getBackendVersion()));
+            }
+            sessionDeltaPersisted(session, delta);
+            session.setLastPersistedTime(currentTimeMillis());
+        } catch (RuntimeException ex) {
+            //the changes of this delta are gone, so the next persist has to be complete again
+            session.setAttributesPersisted(false);
+            throw ex;
+        }
+    }
+
+    private void writeSnapshot(String key, PersistableSession session, byte[] bytes) {
+        if (SessionDelta.isSessionDelta(bytes)) {
+            try {
+                session.setBackendVersion(getDeltaWriter().persistSessionDelta(key, SessionDelta.fromBytes(bytes),
+                        session.getBackendVersion()));
+            } catch (RuntimeException ex) {
+                session.setAttributesPersisted(false);
+                throw ex;
+            }
+        } else {
+            persistSessionVersioned(key, session, bytes);
+        }
+    }
+
+    private static byte[] mergeSnapshots(byte[] older, byte[] newer) {
+        if (SessionDelta.isSessionDelta(older) && SessionDelta.isSessionDelta(newer)) {
+            return SessionDelta.fromBytes(older).mergeWith(SessionDelta.fromBytes(newer)).toBytes();
+        }
+        return newer;
+    }
+
+    private void persistSessionVersioned(String key, PersistableSession session, byte[] bytes) {
+        session.setBackendVersion(persistSessionInternal(key, bytes, session.getBackendVersion()));
     }
 
     protected abstract void persistSessionInternal(String sessionId, byte[] bytes);
 
+    /**
+     * Version aware variant of {@link #persistSessionInternal(String, byte[])}. Backends supporting versions override this to
+     * make use of the version last seen by this node and to report the version created by this write. This implementation
+     * ignores versions.
+     *
+     * @param sessionId persistence key of the session
+     * @param bytes serialized session
+     * @param knownVersion version of the session last read or written by this node, {@code null} if unknown
+     * @return the version of the written session, {@code null} if unknown
+     */
+    protected String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
+        persistSessionInternal(sessionId, bytes);
+        return null;
+    }
+
+    /**
+     * Writer of attribute level changes, for backends able to store the attributes of a session individually.
+     */
+    @FunctionalInterface
+    protected interface DeltaWriter {
+
+        /**
+         * Writes the given attribute changes.
+         *
+         * @param sessionId persistence key of the session
+         * @param delta changed and removed attributes, for a complete delta all attributes of the session
+         * @param knownVersion version of the session last read or written by this node, {@code null} if unknown
+         * @return the version of the written session, {@code null} if unknown
+         */
+        String persistSessionDelta(String sessionId, SessionDelta delta, String knownVersion);
+    }
+
+    /**
+     * Backends able to store attributes individually return their writer of attribute changes here. When reading, such
+     * backends return the session reassembled by {@link SessionDelta#toBytes()} of a complete delta.
+     *
+     * @return the writer, {@code null} (the default) to always persist whole sessions
+     */
+    protected DeltaWriter getDeltaWriter() {
+        return null;
+    }
+
+    /**
+     * @return the writer of attribute changes if delta persistence is enabled and supported, {@code null} otherwise
+     */
+    final DeltaWriter deltaWriter() {
+        return deltaPersistence ? getDeltaWriter() : null;
+    }
+
+    /**
+     * Variant of {@link #persistSessionInternal(String, byte[], String)} taking the serialized session as a view into a
+     * reused buffer. Backends able to write directly from a buffer override this to save copying the session; the buffer must
+     * not be kept beyond the call. This implementation copies the content and delegates.
+     *
+     * @param sessionId persistence key of the session
+     * @param bytes serialized session between position and limit
+     * @param knownVersion version of the session last read or written by this node, {@code null} if unknown
+     * @return the version of the written session, {@code null} if unknown
+     */
+    protected String persistSessionInternal(String sessionId, ByteBuffer bytes, String knownVersion) {
+        return persistSessionInternal(sessionId, toArray(bytes), knownVersion);
+    }
+
     @Override
     public final PersistableSession getSession(PersistableSession emptyShell, String id) {
-        return deserializeSessionInto(emptyShell, getSessionInternal(id));
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            PersistableSession session = getSessionMeasured(emptyShell, id);
+            failed = false;
+            return session;
+        } finally {
+            sessionMetrics.backendOperation(Operation.GET, System.nanoTime() - start, failed);
+        }
+    }
+
+    private PersistableSession getSessionMeasured(PersistableSession emptyShell, String id) {
+        WriteBehindQueue queue = writeBehindQueue;
+        byte[] pending = queue != null ? queue.getPending(id) : null;
+        if (pending != null) {
+            if (SessionDelta.isSessionDelta(pending)) {
+                SessionDelta delta = SessionDelta.fromBytes(pending);
+                if (!delta.isComplete()) {
+                    //backend state plus the changes not written yet
+                    PersistableSession session = loadSession(emptyShell, id);
+                    return session != null ? applySessionDelta(session, delta) : null;
+                }
+            }
+            return deserializeSessionInto(emptyShell, pending);
+        }
+        return loadSession(emptyShell, id);
+    }
+
+    private PersistableSession loadSession(PersistableSession emptyShell, String id) {
+        return loadSession(emptyShell, getVersionedSessionInternal(id));
+    }
+
+    private static PersistableSession loadSession(PersistableSession emptyShell, VersionedBytes versionedBytes) {
+        if (versionedBytes == null) {
+            return null;
+        }
+        PersistableSession session = deserializeSessionInto(emptyShell, versionedBytes.getBytes());
+        if (session != null) {
+            session.setBackendVersion(versionedBytes.getVersion());
+        }
+        return session;
+    }
+
+    /**
+     * {@inheritDoc} A session with changes still waiting in the write-behind queue is newer than the backend's state and
+     * returned as is.
+     */
+    @Override
+    public final PersistableSession getSessionIfModified(PersistableSession cached, PersistableSession emptyShell,
+            String id) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            PersistableSession session;
+            if (isWritePending(id)) {
+                session = cached;
+            } else {
+                VersionedBytes versionedBytes = getVersionedSession(id, cached.getBackendVersion());
+                session = versionedBytes == VersionedBytes.NOT_MODIFIED ? cached : loadSession(emptyShell, versionedBytes);
+            }
+            failed = false;
+            return session;
+        } finally {
+            sessionMetrics.backendOperation(Operation.GET, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * @param id persistence key of the session
+     * @return {@code true} if a write of this node for the session hasn't reached the backend yet
+     */
+    protected boolean isWritePending(String id) {
+        WriteBehindQueue queue = writeBehindQueue;
+        return queue != null && queue.getPending(id) != null;
+    }
+
+    @Override
+    public final VersionedBytes getSessionIfNewer(String id, String knownVersion) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            VersionedBytes versionedBytes = getVersionedSession(id, knownVersion);
+            failed = false;
+            return versionedBytes;
+        } finally {
+            sessionMetrics.backendOperation(Operation.GET, System.nanoTime() - start, failed);
+        }
+    }
+
+    private VersionedBytes getVersionedSession(String id, String knownVersion) {
+        return knownVersion == null ? getVersionedSessionInternal(id) : getSessionIfNewerInternal(id, knownVersion);
     }
 
     protected abstract byte[] getSessionInternal(String sessionId);
 
+    /**
+     * Version aware variant of {@link #getSessionInternal(String)}. This implementation reports no version.
+     *
+     * @param sessionId persistence key of the session
+     * @return the serialized session and its version, {@code null} if not found
+     */
+    protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+        byte[] bytes = getSessionInternal(sessionId);
+        return bytes != null ? new VersionedBytes(bytes, null) : null;
+    }
+
+    /**
+     * Conditional variant of {@link #getVersionedSessionInternal(String)} backing {@link #getSessionIfNewer(String, String)}.
+     * Backends able to check the version without transferring the session override this. This implementation reads the
+     * session and compares its version, which still saves deserializing an unchanged session.
+     *
+     * @param sessionId persistence key of the session
+     * @param knownVersion version of the session last read or written by this node
+     * @return {@link VersionedBytes#NOT_MODIFIED} if the session is still at {@code knownVersion}, otherwise the serialized
+     * session and its version, {@code null} if not found
+     */
+    protected VersionedBytes getSessionIfNewerInternal(String sessionId, String knownVersion) {
+        VersionedBytes versionedBytes = getVersionedSessionInternal(sessionId);
+        if (versionedBytes != null && knownVersion.equals(versionedBytes.getVersion())) {
+            return VersionedBytes.NOT_MODIFIED;
+        }
+        return versionedBytes;
+    }
+
     @Override
     public final void deleteSession(PersistableSession session) {
-        deleteSessionInternal(session.getPersistenceKey());
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            WriteBehindQueue queue = writeBehindQueue;
+            if (queue != null) {
+                queue.cancel(session.getPersistenceKey());
+            }
+            deleteSessionInternal(session.getPersistenceKey());
+            failed = false;
+        } finally {
+            sessionMetrics.backendOperation(Operation.DELETE, System.nanoTime() - start, failed);
+        }
     }
 
     protected abstract void deleteSessionInternal(String sessionId);
 
+    /**
+     * {@inheritDoc} Sessions with a write of this node still pending are left out, the write refreshes them anyway.
+     */
+    @Override
+    public final void touchSessions(Collection<PersistableSession> sessions) {
+        Map<String, PersistableSession> byKey = new HashMap<>();
+        sessions.stream().filter(session -> !isWritePending(session.getPersistenceKey()))
+                .forEach(session -> byKey.put(session.getPersistenceKey(), session));
+        if (byKey.isEmpty()) {
+            return;
+        }
+        Map<String, String> knownVersions = new HashMap<>();
+        byKey.forEach((key, session) -> knownVersions.put(key, session.getBackendVersion()));
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            long now = currentTimeMillis();
+            touchSessionsInternal(knownVersions).forEach((key, version) -> {
+                PersistableSession session = byKey.get(key);
+                session.setLastPersistedTime(now);
+                //a touch changes the stored version, unless this node wrote the session meanwhile
+                if (version != null && Objects.equals(session.getBackendVersion(), knownVersions.get(key))) {
+                    session.setBackendVersion(version);
+                }
+            });
+            failed = false;
+        } finally {
+            sessionMetrics.backendOperation(Operation.TOUCH, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Refreshes the last access time of stored sessions, and their time to live when expiring natively, without sending
+     * their content. Sessions stored in another version than the one known are left out, their write refreshed them
+     * already. At most {@link #getMaxTouchesInFlight()} touches should run at the same time. This implementation touches
+     * nothing, so sessions are kept alive by their writes only.
+     *
+     * @param knownVersions version of each session last read or written by this node by persistence key, {@code null} if
+     * unknown
+     * @return version of each session touched by persistence key, {@code null} if unknown; sessions gone from the backend
+     * or changed meanwhile are left out
+     */
+    protected Map<String, String> touchSessionsInternal(Map<String, String> knownVersions) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public final List<String> removeExpiredSessions() {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            List<String> removed;
+            if (isExpiringNatively()) {
+                removed = Collections.emptyList();
+            } else if (expirySweepLeaseSeconds == 0) {
+                removed = removeExpiredSessionsInternal();
+            } else {
+                removed = new ArrayList<>();
+                for (ExpiryPartition partition : claimExpiryPartitions()) {
+                    removed.addAll(removeExpiredSessionsInternal(partition));
+                }
+            }
+            failed = false;
+            return removed;
+        } finally {
+            sessionMetrics.backendOperation(Operation.EXPIRY, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Removes all sessions not accessed within the session expiry threshold from the backend.
+     *
+     * @return persistence keys of the removed sessions
+     */
+    protected abstract List<String> removeExpiredSessionsInternal();
+
+    /**
+     * Removes the expired sessions of one partition of the keyspace. This implementation filters the ids returned by
+     * {@link #getExpiredSessionIds()}; backends able to sweep more efficiently should override it.
+     *
+     * @return persistence keys of the removed sessions
+     */
+    protected List<String> removeExpiredSessionsInternal(ExpiryPartition partition) {
+        if (partition.isAll()) {
+            return removeExpiredSessionsInternal();
+        }
+        List<String> removed = getExpiredSessionIds().stream().filter(partition::contains).collect(toList());
+        removed.forEach(this::deleteSessionInternal);
+        return removed;
+    }
+
+    /**
+     * Tells whether the backend can drop sessions on its own once they weren't written for the session expiry threshold.
+     * Backends returning {@code true} write each session with {@link #getSessionExpiryThreshold()} as its time to live if
+     * native expiry is enabled, and don't need to keep track of last access times then. They must also restart that time
+     * to live with {@link #touchSessionsInternal(Map)}, the manager keeps sessions in use but not written alive that way.
+     *
+     * @return {@code true} if the backend supports native expiry, {@code false} (the default) to rely on expiry sweeps
+     */
+    protected boolean isNativeExpirySupported() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc} Sweeps do nothing then.
+     */
+    @Override
+    public final boolean isExpiringNatively() {
+        return nativeExpiry && isNativeExpirySupported() && sessionExpiryThreshold != SESSIONS_NEVER_EXPIRE;
+    }
+
+    /**
+     * Takes or renews a lease stored in the backend, so that nodes sharing the backend can agree on who does a task. A lease
+     * is granted if nobody holds it, if it has run out, or if the owner already holds it. This implementation grants every
+     * lease, leaving every node to sweep on its own; backends shared by several nodes override it.
+     *
+     * @param lease name of the lease
+     * @param owner id of the node asking for the lease
+     * @param durationMillis time after which the lease runs out unless it is renewed
+     * @return whether the owner holds the lease now
+     */
+    protected boolean acquireExpirySweepLease(String lease, String owner, long durationMillis) {
+        return true;
+    }
+
+    /**
+     * Renews the leases of the partitions this node sweeps already and takes over at most one more partition whose lease
+     * is free, so that the partitions spread over the nodes instead of all going to the node sweeping first.
+     *
+     * @return partitions this node holds the lease for
+     */
+    protected final List<ExpiryPartition> claimExpiryPartitions() {
+        long leaseMillis = SECONDS.toMillis(expirySweepLeaseSeconds);
+        int offset = Math.floorMod(expirySweeperId.hashCode(), expirySweepPartitions);
+        List<ExpiryPartition> claimed = new ArrayList<>();
+        boolean tookOver = false;
+        for (int i = 0; i < expirySweepPartitions; i++) {
+            ExpiryPartition partition = new ExpiryPartition((offset + i) % expirySweepPartitions, expirySweepPartitions);
+            boolean held = heldExpiryPartitions.contains(partition.getIndex());
+            if (!held && tookOver) {
+                continue;
+            }
+            if (acquireExpirySweepLease(partition.getLeaseName(), expirySweeperId, leaseMillis)) {
+                heldExpiryPartitions.add(partition.getIndex());
+                tookOver |= !held;
+                claimed.add(partition);
+            } else {
+                heldExpiryPartitions.remove(partition.getIndex());
+            }
+        }
+        LOGGER.debug("Sweeper {} holds expiry partitions {}", expirySweeperId, claimed);
+        return claimed;
+    }
+
     @Override
     public final void setBackendAddress(String backendAddress) {
         this.backendAddress = backendAddress;
@@ -82,7 +665,287 @@ public abstract class BackendServiceBase implements BackendService {
         this.sessionManagementLogger = sessionManagementLogger;
     }
 
+    @Override
+    public final void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    public final int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    @Override
+    public final void setWriteBehindQueueCapacity(int writeBehindQueueCapacity) {
+        this.writeBehindQueueCapacity = writeBehindQueueCapacity;
+    }
+
+    public final int getWriteBehindQueueCapacity() {
+        return writeBehindQueueCapacity;
+    }
+
+    @Override
+    public final void setWriteBehindBackpressure(String writeBehindBackpressure) {
+        if (BACKPRESSURE_BLOCK.equals(writeBehindBackpressure)) {
+            this.writeBehindBackpressure = Backpressure.BLOCK;
+        } else if (BACKPRESSURE_DROP_OLDEST.equals(writeBehindBackpressure)) {
+            this.writeBehindBackpressure = Backpressure.DROP_OLDEST;
+        } else if (BACKPRESSURE_SYNC.equals(writeBehindBackpressure)) {
+            this.writeBehindBackpressure = Backpressure.SYNC;
+        } else {
+            throw new IllegalArgumentException("unknown write-behind backpressure " + writeBehindBackpressure);
+        }
+    }
+
+    @Override
+    public final void setDeltaPersistence(boolean deltaPersistence) {
+        this.deltaPersistence = deltaPersistence;
+    }
+
+    public final boolean isDeltaPersistence() {
+        return deltaPersistence;
+    }
+
+    /**
+     * @param compression {@value SessionCompressor#COMPRESSION_NONE} (the default), {@value SessionCompressor#COMPRESSION_FAST}
+     * or {@value SessionCompressor#COMPRESSION_DENSE}
+     */
+    @Override
+    public final void setCompression(String compression) {
+        if (!SessionCompressor.COMPRESSION_NONE.equals(compression) && !SessionCompressor.COMPRESSION_FAST.equals(compression)
+                && !SessionCompressor.COMPRESSION_DENSE.equals(compression)) {
+            throw new IllegalArgumentException("unknown compression " + compression);
+        }
+        this.compression = compression;
+    }
+
+    public final String getCompression() {
+        return compression;
+    }
+
+    @Override
+    public final void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public final int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @Override
+    public final void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public final int getMinConnections() {
+        return minConnections;
+    }
+
+    @Override
+    public final void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public final int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public final void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    public final int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    @Override
+    public final void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public final int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    @Override
+    public final void setBlockOnMaxConnections(boolean blockOnMaxConnections) {
+        this.blockOnMaxConnections = blockOnMaxConnections;
+    }
+
+    public final boolean isBlockOnMaxConnections() {
+        return blockOnMaxConnections;
+    }
+
+    @Override
+    public final void setMaxExpiryDeletesInFlight(int maxExpiryDeletesInFlight) {
+        if (maxExpiryDeletesInFlight < 1) {
+            throw new IllegalArgumentException("at least one expiry delete must be allowed in flight");
+        }
+        this.maxExpiryDeletesInFlight = maxExpiryDeletesInFlight;
+    }
+
+    public final int getMaxExpiryDeletesInFlight() {
+        return maxExpiryDeletesInFlight;
+    }
+
+    @Override
+    public final void setMaxTouchesInFlight(int maxTouchesInFlight) {
+        if (maxTouchesInFlight < 1) {
+            throw new IllegalArgumentException("at least one touch must be allowed in flight");
+        }
+        this.maxTouchesInFlight = maxTouchesInFlight;
+    }
+
+    public final int getMaxTouchesInFlight() {
+        return maxTouchesInFlight;
+    }
+
+    @Override
+    public final void setExpiryDeletesPerSecond(int expiryDeletesPerSecond) {
+        this.expiryDeletesPerSecond = expiryDeletesPerSecond;
+    }
+
+    public final int getExpiryDeletesPerSecond() {
+        return expiryDeletesPerSecond;
+    }
+
+    @Override
+    public final void setExpirySweepLeaseSeconds(int expirySweepLeaseSeconds) {
+        if (expirySweepLeaseSeconds < 0) {
+            throw new IllegalArgumentException("expiry sweep lease must not be negative");
+        }
+        this.expirySweepLeaseSeconds = expirySweepLeaseSeconds;
+    }
+
+    public final int getExpirySweepLeaseSeconds() {
+        return expirySweepLeaseSeconds;
+    }
+
+    @Override
+    public final void setExpirySweepPartitions(int expirySweepPartitions) {
+        if (expirySweepPartitions < 1) {
+            throw new IllegalArgumentException("at least one expiry sweep partition is required");
+        }
+        this.expirySweepPartitions = expirySweepPartitions;
+        heldExpiryPartitions.clear();
+    }
+
+    public final int getExpirySweepPartitions() {
+        return expirySweepPartitions;
+    }
+
+    @Override
+    public final void setExpiryIndex(String expiryIndex) {
+        if (!EXPIRY_INDEX_LAST_ACCESSED.equals(expiryIndex) && !EXPIRY_INDEX_TIME_BUCKETS.equals(expiryIndex)) {
+            throw new IllegalArgumentException("unknown expiry index " + expiryIndex);
+        }
+        this.expiryIndex = expiryIndex;
+    }
+
+    public final String getExpiryIndex() {
+        return expiryIndex;
+    }
+
+    @Override
+    public final void setNativeExpiry(boolean nativeExpiry) {
+        this.nativeExpiry = nativeExpiry;
+    }
+
+    public final boolean isNativeExpiry() {
+        return nativeExpiry;
+    }
+
+    @Override
+    public final void setBackendExpirySeconds(int backendExpirySeconds) {
+        if (backendExpirySeconds < 0) {
+            throw new IllegalArgumentException("backend expiry must not be negative");
+        }
+        this.backendExpirySeconds = backendExpirySeconds;
+    }
+
+    public final int getBackendExpirySeconds() {
+        return backendExpirySeconds;
+    }
+
+    @Override
+    public final void setExpiryBucketSeconds(int expiryBucketSeconds) {
+        if (expiryBucketSeconds < 1) {
+            throw new IllegalArgumentException("expiry buckets must span at least one second");
+        }
+        this.expiryBucketSeconds = expiryBucketSeconds;
+    }
+
+    public final int getExpiryBucketSeconds() {
+        return expiryBucketSeconds;
+    }
+
+    /**
+     * @return id this node holds expiry sweep leases under, unique for each service instance
+     */
+    public final String getExpirySweeperId() {
+        return expirySweeperId;
+    }
+
+    /**
+     * @return the compressor in use including its ratio and time statistics, {@code null} if compression is off
+     */
+    public final SessionCompressor getSessionCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @param sessionMetrics metrics to record operations into, replacing the service's own
+     */
+    @Override
+    public final void setSessionMetrics(SessionMetrics sessionMetrics) {
+        if (sessionMetrics == null) {
+            throw new IllegalArgumentException("session metrics must not be null");
+        }
+        this.sessionMetrics = sessionMetrics;
+    }
+
+    public final SessionMetrics getSessionMetrics() {
+        return sessionMetrics;
+    }
+
+    /**
+     * @return number of persists skipped because the serialized session was identical to the one last written
+     */
+    public final long getSkippedWriteCount() {
+        return skippedWriteCount.sum();
+    }
+
+    /**
+     * @return number of session writes waiting for or being written by the write-behind threads
+     */
+    public final int getPendingWriteCount() {
+        WriteBehindQueue queue = writeBehindQueue;
+        return queue != null ? queue.size() : 0;
+    }
+
     protected final boolean isShuttingDown() {
         return shuttingDown;
     }
+
+    /**
+     * Serialized, possibly compressed session and the hash of its uncompressed content.
+     */
+    static final class Snapshot {
+
+        private final byte[] bytes;
+        private final long contentHash;
+
+        private Snapshot(byte[] bytes, long contentHash) {
+            this.bytes = bytes;
+            this.contentHash = contentHash;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        long getContentHash() {
+            return contentHash;
+        }
+    }
 }
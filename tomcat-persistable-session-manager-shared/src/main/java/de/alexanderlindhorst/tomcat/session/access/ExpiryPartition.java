@@ -0,0 +1,60 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+/**
+ * Share of the session keyspace swept by one node. A session belongs to the partition its persistence key hashes to, which
+ * is the same on every node.
+ *
+ * @author alindhorst
+ */
+public final class ExpiryPartition {
+
+    public static final ExpiryPartition ALL = new ExpiryPartition(0, 1);
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index number of this partition, starting with {@code 0}
+     * @param count number of partitions the keyspace is split into
+     */
+    public ExpiryPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("partition " + index + " of " + count + " is invalid");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return whether this partition covers the whole keyspace
+     */
+    public boolean isAll() {
+        return count == 1;
+    }
+
+    public boolean contains(String sessionId) {
+        return isAll() || Math.floorMod(sessionId.hashCode(), count) == index;
+    }
+
+    /**
+     * @return name of the lease a node must hold to sweep this partition
+     */
+    public String getLeaseName() {
+        return "expiry-sweep-" + index + "-of-" + count;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpiryPartition{" + index + "/" + count + "}";
+    }
+}
@@ -3,40 +3,166 @@
  */
 package de.alexanderlindhorst.tomcat.session.access;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.System.currentTimeMillis;
 import static java.util.stream.Collectors.toList;
-import static com.google.common.collect.Maps.newHashMap;
 
 /**
  * @author alindhorst
  */
 public class FakeBackendService extends BackendServiceBase {
 
-    private final Map<String, byte[]> sessionStore = newHashMap();
-    private final Map<String, Long> lastAccessed = newHashMap();
+    private final Map<String, byte[]> sessionStore = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastAccessed = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> metadataStore = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, VersionedBytes>> attributeStore = new ConcurrentHashMap<>();
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+    private final Map<String, Map.Entry<String, Long>> leases = new ConcurrentHashMap<>();
+    private final AtomicLong versionCounter = new AtomicLong();
 
     @Override
     protected void persistSessionInternal(String sessionId, byte[] bytes) {
         LOGGER.debug("Call to persistSessionInternal for session {}", sessionId);
+        attributeStore.remove(sessionId);
+        metadataStore.remove(sessionId);
         sessionStore.put(sessionId, bytes);
         lastAccessed.put(sessionId, currentTimeMillis());
     }
 
+    /**
+     * {@inheritDoc} Versions are taken from a counter shared by all sessions.
+     */
+    @Override
+    protected String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
+        String version = Long.toString(versionCounter.incrementAndGet());
+        persistSessionInternal(sessionId, bytes);
+        versions.put(sessionId, version);
+        return version;
+    }
+
+    /**
+     * {@inheritDoc} Each attribute is stored with the version of the write that last changed it.
+     */
+    @Override
+    protected DeltaWriter getDeltaWriter() {
+        return this::persistSessionDelta;
+    }
+
+    private String persistSessionDelta(String sessionId, SessionDelta delta, String knownVersion) {
+        LOGGER.debug("Call to persistSessionDelta for session {}, {} attributes changed", sessionId,
+                delta.getAttributes().size());
+        String version = Long.toString(versionCounter.incrementAndGet());
+        sessionStore.remove(sessionId);
+        attributeStore.compute(sessionId, (id, stored) -> {
+            Map<String, VersionedBytes> attributes = stored == null || delta.isComplete()
+                    ? new ConcurrentHashMap<>() : stored;
+            delta.getRemovedAttributes().forEach(attributes::remove);
+            delta.getAttributes().forEach((name, bytes) -> attributes.put(name, new VersionedBytes(bytes, version)));
+            metadataStore.put(sessionId, delta.getMetadata());
+            return attributes;
+        });
+        versions.put(sessionId, version);
+        lastAccessed.put(sessionId, currentTimeMillis());
+        return version;
+    }
+
+    /**
+     * {@inheritDoc} Sessions not written for the session expiry threshold are dropped when read.
+     */
+    @Override
+    protected boolean isNativeExpirySupported() {
+        return true;
+    }
+
+    private void dropIfOutlived(String sessionId) {
+        Long written = lastAccessed.get(sessionId);
+        if (isExpiringNatively() && written != null && written < currentTimeMillis() - getSessionExpiryThreshold()) {
+            deleteSessionInternal(sessionId);
+        }
+    }
+
     @Override
     protected byte[] getSessionInternal(String sessionId) {
         LOGGER.debug("Call to getSessionInternal for id {}", sessionId);
-        return sessionStore.get(sessionId);
+        dropIfOutlived(sessionId);
+        byte[] bytes = sessionStore.get(sessionId);
+        if (bytes != null) {
+            return bytes;
+        }
+        Map<String, VersionedBytes> attributes = attributeStore.get(sessionId);
+        byte[] metadata = metadataStore.get(sessionId);
+        if (attributes == null || metadata == null) {
+            return null;
+        }
+        Map<String, byte[]> reassembled = new LinkedHashMap<>();
+        attributes.forEach((name, value) -> reassembled.put(name, value.getBytes()));
+        return new SessionDelta(metadata, reassembled, Collections.<String>emptySet(),
+                Collections.<String>emptySet(), true).toBytes();
+    }
+
+    @Override
+    protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+        byte[] bytes = getSessionInternal(sessionId);
+        return bytes != null ? new VersionedBytes(bytes, versions.get(sessionId)) : null;
+    }
+
+    /**
+     * {@inheritDoc} The version counter tells if the session changed, so an unchanged session is neither copied nor
+     * reassembled from its attributes.
+     */
+    @Override
+    protected VersionedBytes getSessionIfNewerInternal(String sessionId, String knownVersion) {
+        dropIfOutlived(sessionId);
+        if (knownVersion.equals(versions.get(sessionId))) {
+            return VersionedBytes.NOT_MODIFIED;
+        }
+        return getVersionedSessionInternal(sessionId);
+    }
+
+    /**
+     * @return version of the write that last changed the attribute, {@code null} if not stored individually
+     */
+    String getAttributeVersion(String sessionId, String name) {
+        Map<String, VersionedBytes> attributes = attributeStore.get(sessionId);
+        VersionedBytes attribute = attributes != null ? attributes.get(name) : null;
+        return attribute != null ? attribute.getVersion() : null;
+    }
+
+    /**
+     * {@inheritDoc} Only the last access time of stored sessions is set, their version is kept.
+     */
+    @Override
+    protected Map<String, String> touchSessionsInternal(Map<String, String> knownVersions) {
+        Map<String, String> touched = new HashMap<>();
+        knownVersions.forEach((id, knownVersion) -> {
+            dropIfOutlived(id);
+            String version = versions.get(id);
+            if (knownVersion != null && !knownVersion.equals(version)) {
+                return;
+            }
+            if (lastAccessed.computeIfPresent(id, (key, time) -> currentTimeMillis()) != null) {
+                touched.put(id, version);
+            }
+        });
+        return touched;
     }
 
     @Override
     protected void deleteSessionInternal(String sessionId) {
         LOGGER.debug("Call to deleteSessionInternal for session id {}", sessionId);
         sessionStore.remove(sessionId);
+        attributeStore.remove(sessionId);
+        metadataStore.remove(sessionId);
+        versions.remove(sessionId);
+        lastAccessed.remove(sessionId);
     }
 
     @Override
@@ -52,15 +178,30 @@ public class FakeBackendService extends BackendServiceBase {
     }
 
     @Override
-    public List<String> removeExpiredSessions() {
+    protected List<String> removeExpiredSessionsInternal() {
         List<String> expiredSessionIds = getExpiredSessionIds();
         expiredSessionIds.forEach(id -> {
             sessionStore.remove(id);
+            attributeStore.remove(id);
+            metadataStore.remove(id);
+            versions.remove(id);
             lastAccessed.remove(id);
         });
         return expiredSessionIds;
     }
 
+    /**
+     * {@inheritDoc} Leases are kept as owner and end of lease per name.
+     */
+    @Override
+    protected boolean acquireExpirySweepLease(String lease, String owner, long durationMillis) {
+        long now = currentTimeMillis();
+        Map.Entry<String, Long> holder = leases.compute(lease, (name, current) -> current == null
+                || current.getKey().equals(owner) || current.getValue() <= now
+                ? new SimpleImmutableEntry<>(owner, now + durationMillis) : current);
+        return holder.getKey().equals(owner);
+    }
+
     @Override
     public List<String> getExpiredSessionIds() {
         if (getSessionExpiryThreshold() == -1) {
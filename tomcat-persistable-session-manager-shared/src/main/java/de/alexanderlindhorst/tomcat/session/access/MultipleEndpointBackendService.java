@@ -4,8 +4,10 @@
 package de.alexanderlindhorst.tomcat.session.access;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,6 +15,8 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.Lists;
 
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.SessionCompressor;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static com.google.common.collect.Lists.newArrayList;
@@ -32,6 +36,27 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
     private String backendAddress;
     private long sessionExpiryThreshold = -1l;
     private Logger sessionManagementLogger = null;
+    private int writeBehindThreads;
+    private int writeBehindQueueCapacity = BackendServiceBase.DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY;
+    private String writeBehindBackpressure = BackendServiceBase.BACKPRESSURE_SYNC;
+    private boolean deltaPersistence;
+    private String compression = SessionCompressor.COMPRESSION_NONE;
+    private int compressionThreshold = BackendServiceBase.DEFAULT_COMPRESSION_THRESHOLD;
+    private SessionMetrics sessionMetrics;
+    private int minConnections = BackendServiceBase.DEFAULT_MIN_CONNECTIONS;
+    private int maxConnections;
+    private int connectionIdleTimeout = BackendServiceBase.DEFAULT_CONNECTION_IDLE_TIMEOUT;
+    private int connectionTimeout;
+    private boolean blockOnMaxConnections;
+    private int maxExpiryDeletesInFlight = BackendServiceBase.DEFAULT_MAX_EXPIRY_DELETES_IN_FLIGHT;
+    private int maxTouchesInFlight = BackendServiceBase.DEFAULT_MAX_TOUCHES_IN_FLIGHT;
+    private int expiryDeletesPerSecond;
+    private int expirySweepLeaseSeconds;
+    private int expirySweepPartitions = 1;
+    private String expiryIndex = BackendServiceBase.EXPIRY_INDEX_LAST_ACCESSED;
+    private boolean nativeExpiry;
+    private int backendExpirySeconds;
+    private int expiryBucketSeconds = BackendServiceBase.DEFAULT_EXPIRY_BUCKET_SECONDS;
 
     @Override
     public final void setBackendAddress(String backendAddress) {
@@ -63,6 +88,29 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
             backendService.setBackendAddress(value);
             backendService.setSessionExpiryThreshold(sessionExpiryThreshold);
             backendService.setSessionManagementLogger(sessionManagementLogger);
+            backendService.setWriteBehindThreads(writeBehindThreads);
+            backendService.setWriteBehindQueueCapacity(writeBehindQueueCapacity);
+            backendService.setWriteBehindBackpressure(writeBehindBackpressure);
+            backendService.setDeltaPersistence(deltaPersistence);
+            backendService.setCompression(compression);
+            backendService.setCompressionThreshold(compressionThreshold);
+            backendService.setMinConnections(minConnections);
+            backendService.setMaxConnections(maxConnections);
+            backendService.setConnectionIdleTimeout(connectionIdleTimeout);
+            backendService.setConnectionTimeout(connectionTimeout);
+            backendService.setBlockOnMaxConnections(blockOnMaxConnections);
+            backendService.setMaxExpiryDeletesInFlight(maxExpiryDeletesInFlight);
+            backendService.setMaxTouchesInFlight(maxTouchesInFlight);
+            backendService.setExpiryDeletesPerSecond(expiryDeletesPerSecond);
+            backendService.setExpirySweepLeaseSeconds(expirySweepLeaseSeconds);
+            backendService.setExpirySweepPartitions(expirySweepPartitions);
+            backendService.setExpiryIndex(expiryIndex);
+            backendService.setNativeExpiry(nativeExpiry);
+            backendService.setBackendExpirySeconds(backendExpirySeconds);
+            backendService.setExpiryBucketSeconds(expiryBucketSeconds);
+            if (sessionMetrics != null) {
+                backendService.setSessionMetrics(sessionMetrics);
+            }
             backendService.init();
             endpointDelegates.add(backendService);
         });
@@ -88,6 +136,14 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
         return newArrayList(ids);
     }
 
+    /**
+     * {@inheritDoc} This is the case if all endpoints expire sessions on their own.
+     */
+    @Override
+    public boolean isExpiringNatively() {
+        return endpointDelegates.stream().allMatch(BackendService::isExpiringNatively);
+    }
+
     @Override
     public List<String> getExpiredSessionIds() {
         Set<String> ids = newHashSet();
@@ -102,12 +158,32 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
 
     @Override
     public PersistableSession getSession(PersistableSession emptyShell, String id) {
+        return getFromFirstEndpoint(delegate -> delegate.getSession(emptyShell, id), id);
+    }
+
+    /**
+     * {@inheritDoc} Version tokens of different endpoints can't be compared, so the session is always read completely.
+     */
+    @Override
+    public VersionedBytes getSessionIfNewer(String id, String knownVersion) {
+        return getFromFirstEndpoint(delegate -> delegate.getSessionIfNewer(id, null), id);
+    }
+
+    /**
+     * {@inheritDoc} As with {@link #getSessionIfNewer(String, String)} the session is always read completely.
+     */
+    @Override
+    public PersistableSession getSessionIfModified(PersistableSession cached, PersistableSession emptyShell, String id) {
+        return getSession(emptyShell, id);
+    }
+
+    private <T> T getFromFirstEndpoint(Function<TYPE, T> read, String id) {
         RuntimeException lastException = null;
         for (TYPE delegate : endpointDelegates) {
             try {
-                PersistableSession session = delegate.getSession(emptyShell, id);
-                if (session != null) {
-                    return session;
+                T result = read.apply(delegate);
+                if (result != null) {
+                    return result;
                 }
             } catch (RuntimeException e) {
                 LOGGER.warn("Delegate {} failed to retrieve session {}, trying next", delegate, id, e);
@@ -125,6 +201,11 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
         endpointDelegates.forEach(delegate -> delegate.deleteSession(session));
     }
 
+    @Override
+    public void touchSessions(Collection<PersistableSession> sessions) {
+        endpointDelegates.forEach(delegate -> delegate.touchSessions(sessions));
+    }
+
     @Override
     public void shutdown() {
         endpointDelegates.forEach(delegate -> delegate.shutdown());
@@ -140,4 +221,112 @@ public class MultipleEndpointBackendService<TYPE extends BackendService> impleme
         this.sessionManagementLogger = sessionManagementLogger;
     }
 
+    @Override
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    @Override
+    public void setWriteBehindQueueCapacity(int writeBehindQueueCapacity) {
+        this.writeBehindQueueCapacity = writeBehindQueueCapacity;
+    }
+
+    @Override
+    public void setWriteBehindBackpressure(String writeBehindBackpressure) {
+        this.writeBehindBackpressure = writeBehindBackpressure;
+    }
+
+    @Override
+    public void setDeltaPersistence(boolean deltaPersistence) {
+        this.deltaPersistence = deltaPersistence;
+    }
+
+    @Override
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * {@inheritDoc} All endpoints record into the given metrics.
+     */
+    @Override
+    public void setSessionMetrics(SessionMetrics sessionMetrics) {
+        this.sessionMetrics = sessionMetrics;
+    }
+
+    @Override
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    @Override
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    @Override
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    @Override
+    public void setBlockOnMaxConnections(boolean blockOnMaxConnections) {
+        this.blockOnMaxConnections = blockOnMaxConnections;
+    }
+
+    @Override
+    public void setMaxExpiryDeletesInFlight(int maxExpiryDeletesInFlight) {
+        this.maxExpiryDeletesInFlight = maxExpiryDeletesInFlight;
+    }
+
+    @Override
+    public void setMaxTouchesInFlight(int maxTouchesInFlight) {
+        this.maxTouchesInFlight = maxTouchesInFlight;
+    }
+
+    @Override
+    public void setExpiryDeletesPerSecond(int expiryDeletesPerSecond) {
+        this.expiryDeletesPerSecond = expiryDeletesPerSecond;
+    }
+
+    @Override
+    public void setExpirySweepLeaseSeconds(int expirySweepLeaseSeconds) {
+        this.expirySweepLeaseSeconds = expirySweepLeaseSeconds;
+    }
+
+    @Override
+    public void setExpirySweepPartitions(int expirySweepPartitions) {
+        this.expirySweepPartitions = expirySweepPartitions;
+    }
+
+    @Override
+    public void setExpiryIndex(String expiryIndex) {
+        this.expiryIndex = expiryIndex;
+    }
+
+    @Override
+    public void setExpiryBucketSeconds(int expiryBucketSeconds) {
+        this.expiryBucketSeconds = expiryBucketSeconds;
+    }
+
+    @Override
+    public void setNativeExpiry(boolean nativeExpiry) {
+        this.nativeExpiry = nativeExpiry;
+    }
+
+    @Override
+    public void setBackendExpirySeconds(int backendExpirySeconds) {
+        this.backendExpirySeconds = backendExpirySeconds;
+    }
+
 }
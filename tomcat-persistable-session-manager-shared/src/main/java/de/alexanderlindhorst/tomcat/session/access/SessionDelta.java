@@ -0,0 +1,186 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attribute level change of a session: the session's own fields (id, timestamps, validity) plus the serialized values of all
+ * attributes changed since the last persist and the names of all attributes removed since then. A complete delta carries
+ * every attribute of the session and replaces whatever the backend held before. An incomplete delta also names all
+ * attributes the session holds, so that backends can keep track of them without reading what they stored before.
+ *
+ * @author alindhorst
+ */
+public final class SessionDelta {
+
+    private static final byte[] MAGIC = new byte[]{'P', 'S', 'D', 1};
+    private final byte[] metadata;
+    private final Map<String, byte[]> attributes;
+    private final Set<String> removedAttributes;
+    private final Set<String> attributeNames;
+    private final boolean complete;
+
+    /**
+     * @param attributeNames names of all attributes of the session, ignored for a complete delta which names them by its
+     * attributes
+     */
+    public SessionDelta(byte[] metadata, Map<String, byte[]> attributes, Set<String> removedAttributes,
+            Set<String> attributeNames, boolean complete) {
+        if (metadata == null) {
+            throw new IllegalArgumentException("metadata must not be null");
+        }
+        this.metadata = metadata;
+        this.attributes = Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        this.removedAttributes = complete ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(new LinkedHashSet<>(removedAttributes));
+        this.attributeNames = complete ? this.attributes.keySet()
+                : Collections.unmodifiableSet(new LinkedHashSet<>(attributeNames));
+        this.complete = complete;
+    }
+
+    /**
+     * @return the session's own fields, serialized
+     */
+    public byte[] getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return serialized values of changed attributes by name, all attributes for a complete delta
+     */
+    public Map<String, byte[]> getAttributes() {
+        return attributes;
+    }
+
+    public Set<String> getRemovedAttributes() {
+        return removedAttributes;
+    }
+
+    /**
+     * @return names of all attributes the session holds, changed or not
+     */
+    public Set<String> getAttributeNames() {
+        return attributeNames;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Combines this delta with a newer one into a single delta having the same effect as applying both in order.
+     *
+     * @param newer delta created after this one
+     * @return combined delta
+     */
+    public SessionDelta mergeWith(SessionDelta newer) {
+        if (newer.complete) {
+            return newer;
+        }
+        Map<String, byte[]> mergedAttributes = new LinkedHashMap<>(attributes);
+        Set<String> mergedRemovals = new LinkedHashSet<>(removedAttributes);
+        newer.removedAttributes.forEach(name -> {
+            mergedAttributes.remove(name);
+            mergedRemovals.add(name);
+        });
+        newer.attributes.forEach((name, value) -> {
+            mergedAttributes.put(name, value);
+            mergedRemovals.remove(name);
+        });
+        return new SessionDelta(newer.metadata, mergedAttributes, mergedRemovals, newer.attributeNames, complete);
+    }
+
+    public byte[] toBytes() {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream(); DataOutputStream stream = new DataOutputStream(out)) {
+            stream.write(MAGIC);
+            stream.writeBoolean(complete);
+            writeBytes(stream, metadata);
+            stream.writeInt(attributes.size());
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                stream.writeUTF(attribute.getKey());
+                writeBytes(stream, attribute.getValue());
+            }
+            stream.writeInt(removedAttributes.size());
+            for (String name : removedAttributes) {
+                stream.writeUTF(name);
+            }
+            if (!complete) {
+                stream.writeInt(attributeNames.size());
+                for (String name : attributeNames) {
+                    stream.writeUTF(name);
+                }
+            }
+            stream.flush();
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Couldn't encode session delta", ex);
+        }
+    }
+
+    /**
+     * @param bytes serialized session, may be {@code null}
+     * @return {@code true} if the bytes were created by {@link #toBytes()}
+     */
+    public static boolean isSessionDelta(byte[] bytes) {
+        if (bytes == null || bytes.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static SessionDelta fromBytes(byte[] bytes) {
+        if (!isSessionDelta(bytes)) {
+            throw new IllegalArgumentException("bytes do not contain a session delta");
+        }
+        try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            stream.skipBytes(MAGIC.length);
+            boolean complete = stream.readBoolean();
+            byte[] metadata = readBytes(stream);
+            int attributeCount = stream.readInt();
+            Map<String, byte[]> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < attributeCount; i++) {
+                attributes.put(stream.readUTF(), readBytes(stream));
+            }
+            int removedCount = stream.readInt();
+            Set<String> removed = new LinkedHashSet<>();
+            for (int i = 0; i < removedCount; i++) {
+                removed.add(stream.readUTF());
+            }
+            Set<String> names = new LinkedHashSet<>();
+            int nameCount = complete ? 0 : stream.readInt();
+            for (int i = 0; i < nameCount; i++) {
+                names.add(stream.readUTF());
+            }
+            return new SessionDelta(metadata, attributes, removed, names, complete);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Couldn't decode session delta", ex);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream stream, byte[] bytes) throws IOException {
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream stream) throws IOException {
+        byte[] bytes = new byte[stream.readInt()];
+        stream.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+/**
+ * Serialized session as read from a backend together with the backend's version token for it.
+ *
+ * @author alindhorst
+ */
+public final class VersionedBytes {
+
+    /**
+     * Answer of a conditional fetch if the session is still at the version known to the caller.
+     */
+    public static final VersionedBytes NOT_MODIFIED = new VersionedBytes(null, null);
+    private final byte[] bytes;
+    private final String version;
+
+    public VersionedBytes(byte[] bytes, String version) {
+        this.bytes = bytes;
+        this.version = version;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the backend's version token, {@code null} if the backend does not support versions
+     */
+    public String getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Bounded queue of serialized sessions waiting to be written to the backend by a pool of writer threads. The queue is keyed
+ * by persistence key: offering a newer snapshot of a session that is still pending is merged with the older one (by default
+ * the newer one simply replaces it), so each session is written at most once per drain cycle. A session is never written by
+ * two writers at the same time, which keeps the order of writes per session intact.
+ *
+ * @author alindhorst
+ */
+final class WriteBehindQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    enum Backpressure {
+        /**
+         * Caller waits until the queue has room again.
+         */
+        BLOCK,
+        /**
+         * Oldest pending write is discarded to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Caller writes synchronously.
+         */
+        SYNC
+    }
+
+    @FunctionalInterface
+    interface Writer {
+
+        void write(String key, PersistableSession session, byte[] bytes);
+    }
+
+    private static final class PendingWrite {
+
+        private final PersistableSession session;
+        private final byte[] bytes;
+
+        private PendingWrite(PersistableSession session, byte[] bytes) {
+            this.session = session;
+            this.bytes = bytes;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition writeFinished = lock.newCondition();
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final Map<String, PendingWrite> inFlight = new LinkedHashMap<>();
+    private final List<Thread> writerThreads = newArrayList();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final int capacity;
+    private final Backpressure backpressure;
+    private final Writer writer;
+    private final BinaryOperator<byte[]> merger;
+    private boolean stopped;
+
+    WriteBehindQueue(int threads, int capacity, Backpressure backpressure, Writer writer) {
+        this(threads, capacity, backpressure, writer, (older, newer) -> newer);
+    }
+
+    /**
+     * @param merger combines a pending snapshot with a newer one of the same session, called with the older one first
+     */
+    WriteBehindQueue(int threads, int capacity, Backpressure backpressure, Writer writer, BinaryOperator<byte[]> merger) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one writer thread is needed");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        this.writer = writer;
+        this.merger = merger;
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::drain, "persistable-session-write-behind-" + i);
+            thread.setDaemon(true);
+            writerThreads.add(thread);
+        }
+    }
+
+    void start() {
+        writerThreads.forEach(Thread::start);
+    }
+
+    /**
+     * Queues the given snapshot for writing.
+     *
+     * @param key persistence key of the session
+     * @param session the session the snapshot was taken from
+     * @param bytes serialized session
+     * @return {@code false} if the snapshot was not queued and the caller has to write it synchronously
+     */
+    boolean offer(String key, PersistableSession session, byte[] bytes) {
+        lock.lock();
+        try {
+            if (stopped) {
+                return false;
+            }
+            PendingWrite previous = pending.get(key);
+            if (previous != null) {
+                pending.put(key, new PendingWrite(session, merger.apply(previous.bytes, bytes)));
+                coalescedCount.incrementAndGet();
+                return true;
+            }
+            while (pending.size() >= capacity) {
+                switch (backpressure) {
+                    case SYNC:
+                        return false;
+                    case DROP_OLDEST:
+                        Iterator<Map.Entry<String, PendingWrite>> oldest = pending.entrySet().iterator();
+                        Map.Entry<String, PendingWrite> dropped = oldest.next();
+                        LOGGER.warn("Write-behind queue full, dropping pending write of session {}", dropped.getKey());
+                        oldest.remove();
+                        lost(dropped.getValue());
+                        droppedCount.incrementAndGet();
+                        break;
+                    case BLOCK:
+                        notFull.await();
+                        if (stopped) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        throw new AssertionError("Unknown backpressure: " + backpressure);
+                }
+            }
+            pending.put(key, new PendingWrite(session, bytes));
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param key persistence key of the session
+     * @return the latest snapshot of the session not yet confirmed by the backend, or {@code null}
+     */
+    byte[] getPending(String key) {
+        lock.lock();
+        try {
+            PendingWrite write = pending.get(key);
+            if (write == null) {
+                write = inFlight.get(key);
+            }
+            return write != null ? write.bytes : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards a pending write and waits for a write already in progress, so that a following delete is not overwritten.
+     *
+     * @param key persistence key of the session
+     */
+    void cancel(String key) {
+        lock.lock();
+        try {
+            if (pending.remove(key) != null) {
+                notFull.signal();
+            }
+            while (inFlight.containsKey(key)) {
+                writeFinished.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return pending.size() + inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops accepting new writes and waits for the writer threads to write everything still pending.
+     *
+     * @param timeout maximum time to wait for all writer threads together
+     * @param unit unit of timeout
+     */
+    void shutdown(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : writerThreads) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                break;
+            }
+            try {
+                thread.join(remainingMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int remaining = size();
+        if (remaining > 0) {
+            LOGGER.warn("Write-behind queue not drained on shutdown, {} session writes are lost", remaining);
+            lock.lock();
+            try {
+                pending.values().forEach(WriteBehindQueue::lost);
+            } finally {
+                lock.unlock();
+            }
+            writerThreads.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * Marks the session of a write that didn't reach the backend as changed, so that it is written completely with its next
+     * persist.
+     */
+    private static void lost(PendingWrite write) {
+        PersistableSession session = write.session;
+        if (session != null) {
+            session.setPersistedContentHash(0);
+            session.setAttributesPersisted(false);
+            session.setDirty(true);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            String key;
+            PendingWrite write;
+            lock.lock();
+            try {
+                Map.Entry<String, PendingWrite> next;
+                while ((next = nextWritable()) == null) {
+                    if (stopped && pending.isEmpty()) {
+                        return;
+                    }
+                    notEmpty.await();
+                }
+                key = next.getKey();
+                write = next.getValue();
+                pending.remove(key);
+                inFlight.put(key, write);
+                notFull.signal();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writer.write(key, write.session, write.bytes);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Couldn't write session " + key + ", it is written again with its next persist", ex);
+                lost(write);
+            } finally {
+                lock.lock();
+                try {
+                    inFlight.remove(key);
+                    writeFinished.signalAll();
+                    //another writer may wait for this key to become writable again
+                    notEmpty.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private Map.Entry<String, PendingWrite> nextWritable() {
+        for (Map.Entry<String, PendingWrite> entry : pending.entrySet()) {
+            if (!inFlight.containsKey(entry.getKey())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Compact binary {@link SessionSerializer}. Strings, boxed primitives, byte arrays, dates and enums are written without class
+ * descriptors, numbers as variable length integers. The common JDK collection types are written element by element with
+ * their class names kept in a per payload registry, so each class name is written at most once. Any other serializable value
+ * falls back to Java serialization for just that value.
+ *
+ * @author alindhorst
+ */
+public class CompactSessionSerializer implements SessionSerializer {
+
+    private static final byte[] SESSION_MAGIC = new byte[]{'P', 'S', 'C', 1};
+    private static final byte ATTRIBUTE_MAGIC = 'C';
+    //positions of lastAccessedTime and thisAccessedTime within the metadata, see PersistableSession#writeMetadata
+    private static final int LAST_ACCESSED_OFFSET = SESSION_MAGIC.length + Long.BYTES;
+    private static final int THIS_ACCESSED_OFFSET = LAST_ACCESSED_OFFSET + Long.BYTES + Integer.BYTES + 2;
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INTEGER = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_TRUE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_FLOAT = 7;
+    private static final int TAG_SHORT = 8;
+    private static final int TAG_BYTE = 9;
+    private static final int TAG_CHARACTER = 10;
+    private static final int TAG_BYTES = 11;
+    private static final int TAG_DATE = 12;
+    private static final int TAG_ENUM = 13;
+    private static final int TAG_COLLECTION = 14;
+    private static final int TAG_MAP = 15;
+    private static final int TAG_SERIALIZED = 16;
+    private static final Map<String, Supplier<Collection<Object>>> COLLECTIONS = new HashMap<>();
+    private static final Map<String, Supplier<Map<Object, Object>>> MAPS = new HashMap<>();
+
+    static {
+        COLLECTIONS.put(ArrayList.class.getName(), ArrayList::new);
+        COLLECTIONS.put(LinkedList.class.getName(), LinkedList::new);
+        COLLECTIONS.put(HashSet.class.getName(), HashSet::new);
+        COLLECTIONS.put(LinkedHashSet.class.getName(), LinkedHashSet::new);
+        MAPS.put(HashMap.class.getName(), HashMap::new);
+        MAPS.put(LinkedHashMap.class.getName(), LinkedHashMap::new);
+    }
+
+    @Override
+    public byte[] serialize(PersistableSession session) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(session, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(PersistableSession session, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(new DataOutputStream(out));
+        encoder.stream.write(SESSION_MAGIC);
+        session.writeMetadata(encoder.stream);
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        for (String name : session.getAttributeNamesInternal()) {
+            Object value = session.getAttributeInternal(name);
+            //like StandardSession, silently leave out values that cannot be serialized at all
+            if (value instanceof Serializable) {
+                attributes.put(name, value);
+            }
+        }
+        encoder.writeVarInt(attributes.size());
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            encoder.writeString(attribute.getKey());
+            encoder.writeValue(attribute.getValue());
+        }
+        encoder.stream.flush();
+    }
+
+    @Override
+    public void deserializeInto(PersistableSession emptyShell, byte[] bytes) throws IOException, ClassNotFoundException {
+        if (!isSession(bytes)) {
+            throw new StreamCorruptedException("not a compact session");
+        }
+        Decoder decoder = new Decoder(new DataInputStream(new ByteArrayInputStream(bytes)));
+        decoder.stream.skipBytes(SESSION_MAGIC.length);
+        emptyShell.readMetadata(decoder.stream);
+        int count = decoder.readVarInt();
+        for (int i = 0; i < count; i++) {
+            String name = decoder.readString();
+            emptyShell.putAttributeInternal(name, decoder.readValue());
+        }
+    }
+
+    @Override
+    public long contentHash(byte[] bytes, int length) {
+        if (!isSession(bytes)) {
+            return PersistableSessionUtils.contentHash(bytes, length);
+        }
+        return PersistableSessionUtils.contentHash(bytes, length, LAST_ACCESSED_OFFSET, LAST_ACCESSED_OFFSET + Long.BYTES,
+                THIS_ACCESSED_OFFSET, THIS_ACCESSED_OFFSET + Long.BYTES);
+    }
+
+    @Override
+    public byte[] serializeAttribute(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Encoder encoder = new Encoder(new DataOutputStream(out));
+        encoder.stream.writeByte(ATTRIBUTE_MAGIC);
+        encoder.writeValue(value);
+        encoder.stream.flush();
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object deserializeAttribute(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (bytes == null || bytes.length == 0 || bytes[0] != ATTRIBUTE_MAGIC) {
+            throw new StreamCorruptedException("not a compact attribute value");
+        }
+        Decoder decoder = new Decoder(new DataInputStream(new ByteArrayInputStream(bytes)));
+        decoder.stream.skipBytes(1);
+        return decoder.readValue();
+    }
+
+    @Override
+    public boolean canDeserialize(byte[] bytes) {
+        return isSession(bytes) || (bytes != null && bytes.length > 0 && bytes[0] == ATTRIBUTE_MAGIC);
+    }
+
+    private static boolean isSession(byte[] bytes) {
+        if (bytes == null || bytes.length < SESSION_MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < SESSION_MAGIC.length; i++) {
+            if (bytes[i] != SESSION_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> loadClass(String name) throws ClassNotFoundException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (classLoader == null) {
+            classLoader = CompactSessionSerializer.class.getClassLoader();
+        }
+        return Class.forName(name, false, classLoader);
+    }
+
+    private static final class Encoder {
+
+        private final DataOutputStream stream;
+        private final Map<String, Integer> classNames = new HashMap<>();
+
+        private Encoder(DataOutputStream stream) {
+            this.stream = stream;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                stream.writeByte(TAG_NULL);
+            } else if (value instanceof String) {
+                stream.writeByte(TAG_STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                stream.writeByte(TAG_INTEGER);
+                writeVarLong(zigZag((Integer) value));
+            } else if (value instanceof Long) {
+                stream.writeByte(TAG_LONG);
+                writeVarLong(zigZag((Long) value));
+            } else if (value instanceof Boolean) {
+                stream.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double) {
+                stream.writeByte(TAG_DOUBLE);
+                stream.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                stream.writeByte(TAG_FLOAT);
+                stream.writeFloat((Float) value);
+            } else if (value instanceof Short) {
+                stream.writeByte(TAG_SHORT);
+                stream.writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                stream.writeByte(TAG_BYTE);
+                stream.writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                stream.writeByte(TAG_CHARACTER);
+                stream.writeChar((Character) value);
+            } else if (value instanceof byte[]) {
+                stream.writeByte(TAG_BYTES);
+                writeBytes((byte[]) value);
+            } else if (value.getClass() == Date.class) {
+                stream.writeByte(TAG_DATE);
+                writeVarLong(zigZag(((Date) value).getTime()));
+            } else if (value instanceof Enum) {
+                stream.writeByte(TAG_ENUM);
+                writeClassName(((Enum<?>) value).getDeclaringClass().getName());
+                writeString(((Enum<?>) value).name());
+            } else if (COLLECTIONS.containsKey(value.getClass().getName())) {
+                Collection<?> collection = (Collection<?>) value;
+                stream.writeByte(TAG_COLLECTION);
+                writeClassName(value.getClass().getName());
+                writeVarInt(collection.size());
+                for (Object element : collection) {
+                    writeValue(element);
+                }
+            } else if (MAPS.containsKey(value.getClass().getName())) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                stream.writeByte(TAG_MAP);
+                writeClassName(value.getClass().getName());
+                writeVarInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof Serializable) {
+                stream.writeByte(TAG_SERIALIZED);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (ObjectOutputStream objectStream = new ObjectOutputStream(out)) {
+                    objectStream.writeObject(value);
+                }
+                writeBytes(out.toByteArray());
+            } else {
+                throw new NotSerializableException(value.getClass().getName());
+            }
+        }
+
+        private void writeClassName(String name) throws IOException {
+            Integer index = classNames.get(name);
+            if (index != null) {
+                writeVarInt(index + 1);
+            } else {
+                writeVarInt(0);
+                writeString(name);
+                classNames.put(name, classNames.size());
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarInt(bytes.length);
+            stream.write(bytes);
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                stream.writeByte((int) ((remaining & 0x7F) | 0x80));
+                remaining >>>= 7;
+            }
+            stream.writeByte((int) remaining);
+        }
+
+        private static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    private static final class Decoder {
+
+        private final DataInputStream stream;
+        private final List<String> classNames = new ArrayList<>();
+
+        private Decoder(DataInputStream stream) {
+            this.stream = stream;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Object readValue() throws IOException, ClassNotFoundException {
+            int tag = stream.readUnsignedByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return readString();
+                case TAG_INTEGER:
+                    return (int) unZigZag(readVarLong());
+                case TAG_LONG:
+                    return unZigZag(readVarLong());
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_DOUBLE:
+                    return stream.readDouble();
+                case TAG_FLOAT:
+                    return stream.readFloat();
+                case TAG_SHORT:
+                    return stream.readShort();
+                case TAG_BYTE:
+                    return stream.readByte();
+                case TAG_CHARACTER:
+                    return stream.readChar();
+                case TAG_BYTES:
+                    return readBytes();
+                case TAG_DATE:
+                    return new Date(unZigZag(readVarLong()));
+                case TAG_ENUM:
+                    Class enumType = loadClass(readClassName());
+                    return Enum.valueOf(enumType, readString());
+                case TAG_COLLECTION:
+                    String collectionType = readClassName();
+                    Supplier<Collection<Object>> collectionFactory = COLLECTIONS.get(collectionType);
+                    if (collectionFactory == null) {
+                        throw new StreamCorruptedException("unsupported collection type " + collectionType);
+                    }
+                    Collection<Object> collection = collectionFactory.get();
+                    int size = readVarInt();
+                    for (int i = 0; i < size; i++) {
+                        collection.add(readValue());
+                    }
+                    return collection;
+                case TAG_MAP:
+                    String mapType = readClassName();
+                    Supplier<Map<Object, Object>> mapFactory = MAPS.get(mapType);
+                    if (mapFactory == null) {
+                        throw new StreamCorruptedException("unsupported map type " + mapType);
+                    }
+                    Map<Object, Object> map = mapFactory.get();
+                    int entries = readVarInt();
+                    for (int i = 0; i < entries; i++) {
+                        map.put(readValue(), readValue());
+                    }
+                    return map;
+                case TAG_SERIALIZED:
+                    try (ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                        return objectStream.readObject();
+                    }
+                default:
+                    throw new StreamCorruptedException("unknown value tag " + tag);
+            }
+        }
+
+        private String readClassName() throws IOException {
+            int index = readVarInt();
+            if (index == 0) {
+                String name = readString();
+                classNames.add(name);
+                return name;
+            }
+            if (index > classNames.size()) {
+                throw new StreamCorruptedException("unknown class reference " + index);
+            }
+            return classNames.get(index - 1);
+        }
+
+        private String readString() throws IOException {
+            return new String(readBytes(), StandardCharsets.UTF_8);
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] bytes = new byte[readVarInt()];
+            stream.readFully(bytes);
+            return bytes;
+        }
+
+        private int readVarInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = stream.readUnsignedByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("malformed variable length number");
+        }
+
+        private static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Default {@link SessionSerializer} based on Java serialization, writing sessions the way {@code StandardSession} does.
+ *
+ * @author alindhorst
+ */
+public class JdkSessionSerializer implements SessionSerializer {
+
+    private static final byte[] STREAM_MAGIC = new byte[]{(byte) 0xAC, (byte) 0xED};
+
+    @Override
+    public byte[] serialize(PersistableSession session) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serialize(session, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void serialize(PersistableSession session, OutputStream out) throws IOException {
+        ObjectOutputStream stream = new ObjectOutputStream(out);
+        session.writeObjectData(stream);
+        stream.flush();
+    }
+
+    @Override
+    public void deserializeInto(PersistableSession emptyShell, byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            emptyShell.readObjectData(stream);
+        }
+    }
+
+    /**
+     * {@inheritDoc} The access times are found by reading the leading fields the way {@code StandardSession} wrote them, the
+     * bytes Java serialization wrote for them are left out.
+     */
+    @Override
+    public long contentHash(byte[] bytes, int length) {
+        PositionedInputStream in = new PositionedInputStream(bytes, length);
+        try (ObjectInputStream stream = new ObjectInputStream(in)) {
+            //creationTime
+            stream.readObject();
+            int lastAccessedStart = in.getPosition();
+            stream.readObject();
+            int lastAccessedEnd = in.getPosition();
+            //maxInactiveInterval, isNew, isValid
+            stream.readObject();
+            stream.readObject();
+            stream.readObject();
+            int thisAccessedStart = in.getPosition();
+            stream.readObject();
+            return PersistableSessionUtils.contentHash(bytes, length, lastAccessedStart, lastAccessedEnd, thisAccessedStart,
+                    in.getPosition());
+        } catch (IOException | ClassNotFoundException ex) {
+            return PersistableSessionUtils.contentHash(bytes, length);
+        }
+    }
+
+    @Override
+    public byte[] serializeAttribute(Object value) throws IOException {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream(); ObjectOutputStream stream = new ObjectOutputStream(out)) {
+            stream.writeObject(value);
+            stream.flush();
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public Object deserializeAttribute(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return stream.readObject();
+        }
+    }
+
+    @Override
+    public boolean canDeserialize(byte[] bytes) {
+        return bytes != null && bytes.length >= STREAM_MAGIC.length && bytes[0] == STREAM_MAGIC[0]
+                && bytes[1] == STREAM_MAGIC[1];
+    }
+
+    private static final class PositionedInputStream extends ByteArrayInputStream {
+
+        PositionedInputStream(byte[] bytes, int length) {
+            super(bytes, 0, length);
+        }
+
+        int getPosition() {
+            return pos;
+        }
+    }
+}
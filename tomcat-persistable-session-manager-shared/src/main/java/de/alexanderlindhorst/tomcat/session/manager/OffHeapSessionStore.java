@@ -0,0 +1,127 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serialized sessions kept in direct memory, outside of the garbage collected heap. Used by the
+ * {@link PersistableSessionManager} as second tier for sessions it doesn't want to keep deserialized. When full, the
+ * sessions stored longest ago are dropped; they are still in the backend.
+ *
+ * @author alindhorst
+ */
+final class OffHeapSessionStore {
+
+    private final long capacity;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long usedBytes;
+
+    OffHeapSessionStore(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Copies the serialized session into direct memory, replacing a previously stored copy.
+     *
+     * @param id id of the session on this node
+     * @param content serialized session
+     * @param session the session, for its backend version and content hash
+     * @return {@code false} if the session is larger than the whole store
+     */
+    boolean put(String id, SerializationBuffer content, PersistableSession session) {
+        int size = content.size();
+        if (size > capacity) {
+            return false;
+        }
+        //allocate and copy outside of the lock, direct memory is zeroed on allocation
+        ByteBuffer memory = ByteBuffer.allocateDirect(size);
+        memory.put(content.array(), 0, size);
+        memory.flip();
+        Entry entry = new Entry(memory, session.getBackendVersion(), session.getPersistedContentHash());
+        synchronized (this) {
+            Entry previous = entries.remove(id);
+            if (previous != null) {
+                usedBytes -= previous.size();
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (usedBytes + size > capacity && eldest.hasNext()) {
+                usedBytes -= eldest.next().size();
+                eldest.remove();
+            }
+            entries.put(id, entry);
+            usedBytes += size;
+        }
+        return true;
+    }
+
+    /**
+     * @param id id of the session on this node
+     * @return the stored session, which is no longer held by this store; {@code null} if not stored
+     */
+    synchronized Entry remove(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            usedBytes -= entry.size();
+        }
+        return entry;
+    }
+
+    synchronized boolean contains(String id) {
+        return entries.containsKey(id);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    static final class Entry {
+
+        private final ByteBuffer memory;
+        private final String backendVersion;
+        private final long persistedContentHash;
+
+        private Entry(ByteBuffer memory, String backendVersion, long persistedContentHash) {
+            this.memory = memory;
+            this.backendVersion = backendVersion;
+            this.persistedContentHash = persistedContentHash;
+        }
+
+        int size() {
+            return memory.limit();
+        }
+
+        /**
+         * @return the serialized session, copied to the heap
+         */
+        byte[] getBytes() {
+            byte[] bytes = new byte[memory.limit()];
+            memory.duplicate().get(bytes);
+            return bytes;
+        }
+
+        String getBackendVersion() {
+            return backendVersion;
+        }
+
+        long getPersistedContentHash() {
+            return persistedContentHash;
+        }
+    }
+}
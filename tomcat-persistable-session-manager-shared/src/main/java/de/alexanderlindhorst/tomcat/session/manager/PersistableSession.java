@@ -3,6 +3,12 @@
  */
 package de.alexanderlindhorst.tomcat.session.manager;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.catalina.Manager;
@@ -19,6 +25,12 @@ public class PersistableSession extends StandardSession {
     private static final long serialVersionUID = 2L;
     private transient AtomicBoolean dirty = new AtomicBoolean(false);
     private transient long lastAccessedLocally = System.currentTimeMillis();
+    private transient volatile String backendVersion;
+    private transient volatile Map<String, Long> persistedAttributeHashes = Collections.emptyMap();
+    private transient volatile boolean attributesPersisted;
+    private transient volatile long persistedContentHash;
+    private transient volatile long lastPersistedTime;
+    private transient volatile int serializedSizeHint;
 
     public PersistableSession(Manager manager) {
         super(manager);
@@ -28,6 +40,15 @@ public class PersistableSession extends StandardSession {
         return calculateJvmRouteAgnosticSessionId(getId());
     }
 
+    /**
+     * Gives a session just read from the backend the id it is known by on this node. Unlike {@link #setId(String)} this
+     * doesn't remove the session under its previous id from its manager, which would delete the backend copy it was read
+     * from.
+     */
+    void setLoadedId(String id) {
+        this.id = id;
+    }
+
     public boolean isDirty() {
         return dirty.get();
     }
@@ -36,12 +57,119 @@ public class PersistableSession extends StandardSession {
         this.dirty.set(dirty);
     }
 
+    /**
+     * @return opaque token identifying the version of this session last read from or written to the backend, {@code null} if
+     * unknown or not supported by the backend
+     */
+    public String getBackendVersion() {
+        return backendVersion;
+    }
+
+    public void setBackendVersion(String backendVersion) {
+        this.backendVersion = backendVersion;
+    }
+
+    /**
+     * @return hash of the serialized form last written to the backend, {@code 0} if unknown
+     */
+    public long getPersistedContentHash() {
+        return persistedContentHash;
+    }
+
+    public void setPersistedContentHash(long persistedContentHash) {
+        this.persistedContentHash = persistedContentHash;
+    }
+
+    /**
+     * @return time this node last wrote the session to the backend, {@code 0} if it didn't yet
+     */
+    public long getLastPersistedTime() {
+        return lastPersistedTime;
+    }
+
+    public void setLastPersistedTime(long lastPersistedTime) {
+        this.lastPersistedTime = lastPersistedTime;
+    }
+
+    /**
+     * @return size in bytes of this session when last serialized, {@code 0} if never serialized
+     */
+    public int getSerializedSizeHint() {
+        return serializedSizeHint;
+    }
+
+    public void setSerializedSizeHint(int serializedSizeHint) {
+        this.serializedSizeHint = serializedSizeHint;
+    }
+
     @Override
     public void setAttribute(String name, Object value) {
         super.setAttribute(name, value);
         fireSessionAttributeSet(new PersistableSessionAttribute(name, value));
     }
 
+    /**
+     * @return {@code true} if the backend holds all attributes of this session individually, so that a delta of changed
+     * attributes is sufficient for the next persist
+     */
+    public boolean isAttributesPersisted() {
+        return attributesPersisted;
+    }
+
+    public void setAttributesPersisted(boolean attributesPersisted) {
+        this.attributesPersisted = attributesPersisted;
+    }
+
+    /**
+     * @return content hash of each attribute's serialized value as last handed to the backend, by attribute name
+     */
+    Map<String, Long> getPersistedAttributeHashes() {
+        return persistedAttributeHashes;
+    }
+
+    void setPersistedAttributeHashes(Map<String, Long> persistedAttributeHashes) {
+        this.persistedAttributeHashes = persistedAttributeHashes;
+    }
+
+    Set<String> getAttributeNamesInternal() {
+        return attributes.keySet();
+    }
+
+    Object getAttributeInternal(String name) {
+        return attributes.get(name);
+    }
+
+    void putAttributeInternal(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    void removeAttributeWithoutNotification(String name) {
+        attributes.remove(name);
+    }
+
+    void writeMetadata(DataOutputStream stream) throws IOException {
+        stream.writeLong(creationTime);
+        stream.writeLong(lastAccessedTime);
+        stream.writeInt(maxInactiveInterval);
+        stream.writeBoolean(isNew);
+        stream.writeBoolean(isValid);
+        stream.writeLong(thisAccessedTime);
+        stream.writeBoolean(id != null);
+        if (id != null) {
+            stream.writeUTF(id);
+        }
+    }
+
+    void readMetadata(DataInputStream stream) throws IOException {
+        creationTime = stream.readLong();
+        lastAccessedTime = stream.readLong();
+        maxInactiveInterval = stream.readInt();
+        isNew = stream.readBoolean();
+        isValid = stream.readBoolean();
+        thisAccessedTime = stream.readLong();
+        id = stream.readBoolean() ? stream.readUTF() : null;
+    }
+
     private void fireSessionAttributeSet(PersistableSessionAttribute sessionAttribute) {
         fireSessionEvent(SESSION_ATTRIBUTE_SET, sessionAttribute);
     }
@@ -3,13 +3,43 @@
  */
 package de.alexanderlindhorst.tomcat.session.manager;
 
+import de.alexanderlindhorst.tomcat.session.access.AsyncBackendService;
 import de.alexanderlindhorst.tomcat.session.access.BackendService;
+import de.alexanderlindhorst.tomcat.session.access.BackendServiceBase;
+import de.alexanderlindhorst.tomcat.session.metrics.MetricsListener;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics.Lookup;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
+import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.SessionEvent;
 import org.apache.catalina.SessionListener;
@@ -22,6 +52,8 @@ import static com.google.common.base.Strings.isNullOrEmpty;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSession.SESSION_ATTRIBUTE_SET;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.calculateJvmRoute;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.calculateJvmRouteAgnosticSessionId;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.deserializeSessionInto;
+import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.serializeSession;
 import static java.lang.System.currentTimeMillis;
 import static org.apache.catalina.Session.SESSION_CREATED_EVENT;
 import static org.apache.catalina.Session.SESSION_DESTROYED_EVENT;
@@ -32,12 +64,64 @@ import static org.apache.catalina.Session.SESSION_DESTROYED_EVENT;
  */
 public class PersistableSessionManager extends ManagerBase implements SessionListener {
 
+    public static final String FLUSH_MODE_IMMEDIATE = "immediate";
+    public static final String FLUSH_MODE_END_OF_REQUEST = "endOfRequest";
+    public static final int DEFAULT_PREFETCH_THREADS = 4;
+    public static final int DEFAULT_PREFETCH_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_EXPIRY_BATCH_SIZE = 1000;
+    public static final int DEFAULT_EXPIRY_TIME_BUDGET_MILLIS = 100;
     private static final Logger LOGGER = LoggerFactory.getLogger("SessionManagement");
-    private final ConcurrentHashMap<String, Object> sessionLoadLocks = new ConcurrentHashMap<>();
+    private static final double EVICTION_LOW_WATER_MARK = 0.9;
+    private static final int PREFETCH_QUEUE_CAPACITY = 1000;
+    private final ConcurrentHashMap<String, CompletableFuture<PersistableSession>> sessionLoads = new ConcurrentHashMap<>();
     private BackendService backendService;
     private String serviceImplementationClassName;
     private String serviceBackendAddress;
     private long sessionExpiryThreshold = -1;
+    private String flushMode = FLUSH_MODE_IMMEDIATE;
+    private int writeBehindThreads;
+    private int writeBehindQueueCapacity = BackendServiceBase.DEFAULT_WRITE_BEHIND_QUEUE_CAPACITY;
+    private String writeBehindBackpressure = BackendServiceBase.BACKPRESSURE_SYNC;
+    private boolean deltaPersistence;
+    private String compression = SessionCompressor.COMPRESSION_NONE;
+    private int compressionThreshold = BackendServiceBase.DEFAULT_COMPRESSION_THRESHOLD;
+    private int minConnections = BackendServiceBase.DEFAULT_MIN_CONNECTIONS;
+    private int maxConnections;
+    private int connectionIdleTimeout = BackendServiceBase.DEFAULT_CONNECTION_IDLE_TIMEOUT;
+    private int connectionTimeout;
+    private boolean blockOnMaxConnections;
+    private int maxExpiryDeletesInFlight = BackendServiceBase.DEFAULT_MAX_EXPIRY_DELETES_IN_FLIGHT;
+    private int expiryDeletesPerSecond;
+    private int expirySweepLeaseSeconds;
+    private int expirySweepPartitions = 1;
+    private String expiryIndex = BackendServiceBase.EXPIRY_INDEX_LAST_ACCESSED;
+    private int expiryBucketSeconds = BackendServiceBase.DEFAULT_EXPIRY_BUCKET_SECONDS;
+    private boolean nativeExpiry;
+    private int backendExpirySeconds;
+    private int touchIntervalSeconds;
+    private int maxTouchesInFlight = BackendServiceBase.DEFAULT_MAX_TOUCHES_IN_FLIGHT;
+    private final Set<PersistableSession> pendingTouches = ConcurrentHashMap.newKeySet();
+    private int expiryBatchSize = DEFAULT_EXPIRY_BATCH_SIZE;
+    private int expiryTimeBudgetMillis = DEFAULT_EXPIRY_TIME_BUDGET_MILLIS;
+    private final Queue<String> expiredIds = new ConcurrentLinkedQueue<>();
+    private boolean expiresProcessed;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private String sessionSerializerClassName = JdkSessionSerializer.class.getName();
+    private SessionSerializer sessionSerializer = new JdkSessionSerializer();
+    private String metricsListenerClassName;
+    private boolean nearCache;
+    private int maxLocalSessions;
+    private long maxLocalSessionBytes;
+    private long offHeapSessionBytes;
+    private int maxIdleOnHeapSeconds = -1;
+    private volatile OffHeapSessionStore offHeapStore;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+    private int prefetchTimeoutMillis = DEFAULT_PREFETCH_TIMEOUT_MILLIS;
+    private volatile ExecutorService prefetchExecutor;
+    private final ConcurrentHashMap<String, CompletableFuture<PersistableSession>> prefetches = new ConcurrentHashMap<>();
+    private final SessionMetrics sessionMetrics = new SessionMetrics();
+    private ObjectName metricsObjectName;
 
     public String getServiceImplementationClassName() {
         return serviceImplementationClassName;
@@ -63,11 +147,440 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
         this.sessionExpiryThreshold = serviceSessionExpiryThreshold;
     }
 
+    public String getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * Defines when changed sessions are written to the backend. {@value #FLUSH_MODE_IMMEDIATE} (the default) persists on every
+     * attribute change, {@value #FLUSH_MODE_END_OF_REQUEST} only marks the session dirty and leaves persisting to the
+     * {@link de.alexanderlindhorst.tomcat.session.valve.FlushSessionAtEndOfRequestValve} which needs to be configured as well.
+     *
+     * @param flushMode one of {@value #FLUSH_MODE_IMMEDIATE} or {@value #FLUSH_MODE_END_OF_REQUEST}
+     */
+    public void setFlushMode(String flushMode) {
+        if (!FLUSH_MODE_IMMEDIATE.equals(flushMode) && !FLUSH_MODE_END_OF_REQUEST.equals(flushMode)) {
+            throw new IllegalArgumentException("unknown flush mode " + flushMode);
+        }
+        this.flushMode = flushMode;
+    }
+
+    public boolean isFlushAtEndOfRequest() {
+        return FLUSH_MODE_END_OF_REQUEST.equals(flushMode);
+    }
+
+    public int getWriteBehindThreads() {
+        return writeBehindThreads;
+    }
+
+    /**
+     * @param writeBehindThreads number of threads writing sessions to the backend asynchronously, {@code 0} (the default)
+     * writes on the request thread
+     */
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    public int getWriteBehindQueueCapacity() {
+        return writeBehindQueueCapacity;
+    }
+
+    /**
+     * @param writeBehindQueueCapacity maximum number of distinct sessions waiting to be written asynchronously
+     */
+    public void setWriteBehindQueueCapacity(int writeBehindQueueCapacity) {
+        this.writeBehindQueueCapacity = writeBehindQueueCapacity;
+    }
+
+    public String getWriteBehindBackpressure() {
+        return writeBehindBackpressure;
+    }
+
+    /**
+     * @param writeBehindBackpressure behaviour for a full write-behind queue: {@value BackendServiceBase#BACKPRESSURE_BLOCK},
+     * {@value BackendServiceBase#BACKPRESSURE_DROP_OLDEST} or {@value BackendServiceBase#BACKPRESSURE_SYNC} (the default)
+     */
+    public void setWriteBehindBackpressure(String writeBehindBackpressure) {
+        this.writeBehindBackpressure = writeBehindBackpressure;
+    }
+
+    public boolean isDeltaPersistence() {
+        return deltaPersistence;
+    }
+
+    /**
+     * @param deltaPersistence {@code true} to persist only changed attributes if the backend supports it. Attributes are
+     * compared by the content hash of their serialized value, so changes made in place are persisted as well.
+     */
+    public void setDeltaPersistence(boolean deltaPersistence) {
+        this.deltaPersistence = deltaPersistence;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression compression of persisted sessions: {@value SessionCompressor#COMPRESSION_NONE} (the default),
+     * {@value SessionCompressor#COMPRESSION_FAST} or {@value SessionCompressor#COMPRESSION_DENSE}
+     */
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold minimum size in bytes of a serialized session to be compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * @param minConnections connections the backend service keeps open to each backend node
+     */
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections connections the backend service opens to each backend node at most, {@code 0} for no limit
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    /**
+     * @param connectionIdleTimeout milliseconds after which unused connections above the minimum are closed
+     */
+    public void setConnectionIdleTimeout(int connectionIdleTimeout) {
+        this.connectionIdleTimeout = connectionIdleTimeout;
+    }
+
+    public int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * @param connectionTimeout milliseconds to wait for a connection to a backend node, {@code 0} for the client's default
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public boolean isBlockOnMaxConnections() {
+        return blockOnMaxConnections;
+    }
+
+    /**
+     * @param blockOnMaxConnections {@code true} to wait for a free connection when all connections to a node are in use
+     */
+    public void setBlockOnMaxConnections(boolean blockOnMaxConnections) {
+        this.blockOnMaxConnections = blockOnMaxConnections;
+    }
+
+    public int getMaxExpiryDeletesInFlight() {
+        return maxExpiryDeletesInFlight;
+    }
+
+    /**
+     * @param maxExpiryDeletesInFlight deletes of expired sessions the backend sweep keeps running at the same time at most
+     */
+    public void setMaxExpiryDeletesInFlight(int maxExpiryDeletesInFlight) {
+        this.maxExpiryDeletesInFlight = maxExpiryDeletesInFlight;
+    }
+
+    public int getExpiryDeletesPerSecond() {
+        return expiryDeletesPerSecond;
+    }
+
+    /**
+     * @param expiryDeletesPerSecond deletes of expired sessions the backend sweep starts per second at most, {@code 0} for no
+     * limit
+     */
+    public void setExpiryDeletesPerSecond(int expiryDeletesPerSecond) {
+        this.expiryDeletesPerSecond = expiryDeletesPerSecond;
+    }
+
+    public int getExpirySweepLeaseSeconds() {
+        return expirySweepLeaseSeconds;
+    }
+
+    /**
+     * @param expirySweepLeaseSeconds seconds a node keeps the right to sweep expired sessions once it took the lease from the
+     * backend, {@code 0} to let every node sweep on its own
+     */
+    public void setExpirySweepLeaseSeconds(int expirySweepLeaseSeconds) {
+        this.expirySweepLeaseSeconds = expirySweepLeaseSeconds;
+    }
+
+    public int getExpirySweepPartitions() {
+        return expirySweepPartitions;
+    }
+
+    /**
+     * @param expirySweepPartitions number of shares the session keyspace is split into, each swept by one node at a time;
+     * only used with an expiry sweep lease
+     */
+    public void setExpirySweepPartitions(int expirySweepPartitions) {
+        this.expirySweepPartitions = expirySweepPartitions;
+    }
+
+    public String getExpiryIndex() {
+        return expiryIndex;
+    }
+
+    /**
+     * @param expiryIndex how the backend finds expired sessions: {@code lastAccessed} scans the last access times of all
+     * sessions, {@code timeBuckets} only the buckets of last access times that became due since the previous sweep
+     */
+    public void setExpiryIndex(String expiryIndex) {
+        this.expiryIndex = expiryIndex;
+    }
+
+    public int getExpiryBucketSeconds() {
+        return expiryBucketSeconds;
+    }
+
+    /**
+     * @param expiryBucketSeconds seconds of last access grouped into one bucket of the {@code timeBuckets} expiry index
+     */
+    public void setExpiryBucketSeconds(int expiryBucketSeconds) {
+        this.expiryBucketSeconds = expiryBucketSeconds;
+    }
+
+    public boolean isNativeExpiry() {
+        return nativeExpiry;
+    }
+
+    /**
+     * @param nativeExpiry whether to let a backend supporting it drop sessions on its own after the session expiry threshold,
+     * leaving only local copies to expire here
+     */
+    public void setNativeExpiry(boolean nativeExpiry) {
+        this.nativeExpiry = nativeExpiry;
+    }
+
+    public int getBackendExpirySeconds() {
+        return backendExpirySeconds;
+    }
+
+    /**
+     * @param backendExpirySeconds time after which the backend drops objects not written on its own, as configured for the
+     * backend itself, {@code 0} (the default) if it doesn't; backends that can't set a time to live per write only expire
+     * natively with this set to at least the session expiry threshold
+     */
+    public void setBackendExpirySeconds(int backendExpirySeconds) {
+        this.backendExpirySeconds = backendExpirySeconds;
+    }
+
+    public int getExpiryBatchSize() {
+        return expiryBatchSize;
+    }
+
+    /**
+     * @param expiryBatchSize maximum number of sessions removed by the backend's expiry sweep that a background run drops
+     * locally, the rest is left to the following runs
+     */
+    public void setExpiryBatchSize(int expiryBatchSize) {
+        this.expiryBatchSize = expiryBatchSize;
+    }
+
+    public int getExpiryTimeBudgetMillis() {
+        return expiryTimeBudgetMillis;
+    }
+
+    /**
+     * @param expiryTimeBudgetMillis time after which a background run stops dropping expired sessions locally, leaving the
+     * rest to the following runs
+     */
+    public void setExpiryTimeBudgetMillis(int expiryTimeBudgetMillis) {
+        this.expiryTimeBudgetMillis = expiryTimeBudgetMillis;
+    }
+
+    public int getTouchIntervalSeconds() {
+        return touchIntervalSeconds;
+    }
+
+    /**
+     * @param touchIntervalSeconds time after which a session read but not written is touched in the backend, so that it
+     * doesn't expire there while in use, {@code 0} (the default) to keep sessions alive by their writes only. Touches are
+     * sent in batches by the background process.
+     */
+    public void setTouchIntervalSeconds(int touchIntervalSeconds) {
+        this.touchIntervalSeconds = touchIntervalSeconds;
+    }
+
+    public int getMaxTouchesInFlight() {
+        return maxTouchesInFlight;
+    }
+
+    /**
+     * @param maxTouchesInFlight touches of accessed sessions the backend keeps running at the same time at most
+     */
+    public void setMaxTouchesInFlight(int maxTouchesInFlight) {
+        this.maxTouchesInFlight = maxTouchesInFlight;
+    }
+
+    public String getSessionSerializerClassName() {
+        return sessionSerializerClassName;
+    }
+
+    /**
+     * @param sessionSerializerClassName implementation of {@link SessionSerializer} used for writing sessions, defaults to
+     * {@link JdkSessionSerializer}; {@link CompactSessionSerializer} produces smaller payloads. Sessions written by either of
+     * them can always be read.
+     */
+    public void setSessionSerializerClassName(String sessionSerializerClassName) {
+        this.sessionSerializerClassName = sessionSerializerClassName;
+    }
+
+    public SessionSerializer getSessionSerializer() {
+        return sessionSerializer;
+    }
+
+    public String getMetricsListenerClassName() {
+        return metricsListenerClassName;
+    }
+
+    /**
+     * @param metricsListenerClassName implementation of {@link MetricsListener} receiving every measurement, none by default
+     */
+    public void setMetricsListenerClassName(String metricsListenerClassName) {
+        this.metricsListenerClassName = metricsListenerClassName;
+    }
+
+    public boolean isNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * @param nearCache {@code true} to check a session held locally against the backend's version whenever it is requested
+     * without or with a foreign jvm route, reading it again only if it was changed by another node. By default such a
+     * session is used as is.
+     */
+    public void setNearCache(boolean nearCache) {
+        this.nearCache = nearCache;
+    }
+
+    public int getMaxLocalSessions() {
+        return maxLocalSessions;
+    }
+
+    /**
+     * @param maxLocalSessions maximum number of sessions held by this node, {@code 0} (the default) for no limit. Checked by
+     * the background process, beyond it the least recently used sessions are dropped locally and read from the backend
+     * again when requested.
+     */
+    public void setMaxLocalSessions(int maxLocalSessions) {
+        this.maxLocalSessions = maxLocalSessions;
+    }
+
+    public long getMaxLocalSessionBytes() {
+        return maxLocalSessionBytes;
+    }
+
+    /**
+     * @param maxLocalSessionBytes maximum serialized size of all sessions held by this node, {@code 0} (the default) for no
+     * limit. Checked by the background process, based on the size of each session when it was last serialized.
+     */
+    public void setMaxLocalSessionBytes(long maxLocalSessionBytes) {
+        this.maxLocalSessionBytes = maxLocalSessionBytes;
+    }
+
+    public long getOffHeapSessionBytes() {
+        return offHeapSessionBytes;
+    }
+
+    /**
+     * @param offHeapSessionBytes size of the direct memory keeping serialized copies of sessions dropped from the heap,
+     * {@code 0} (the default) to keep none. Sessions found there are deserialized instead of read from the backend.
+     */
+    public void setOffHeapSessionBytes(long offHeapSessionBytes) {
+        this.offHeapSessionBytes = offHeapSessionBytes;
+    }
+
+    public int getMaxIdleOnHeapSeconds() {
+        return maxIdleOnHeapSeconds;
+    }
+
+    /**
+     * @param maxIdleOnHeapSeconds time after which a session not accessed is moved off-heap by the background process,
+     * {@code -1} (the default) to only move sessions evicted because of {@link #setMaxLocalSessions(int)} or
+     * {@link #setMaxLocalSessionBytes(long)}. Needs {@link #setOffHeapSessionBytes(long)}.
+     */
+    public void setMaxIdleOnHeapSeconds(int maxIdleOnHeapSeconds) {
+        this.maxIdleOnHeapSeconds = maxIdleOnHeapSeconds;
+    }
+
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    /**
+     * @param prefetchThreads maximum number of threads reading sessions ahead for the
+     * {@link de.alexanderlindhorst.tomcat.session.valve.PrefetchSessionValve}, {@code 0} to disable prefetching. Threads are
+     * only started while there is something to read.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+
+    public int getPrefetchTimeoutMillis() {
+        return prefetchTimeoutMillis;
+    }
+
+    /**
+     * @param prefetchTimeoutMillis time {@link #findSession(String)} waits for a prefetched session at most before it reads
+     * the session itself
+     */
+    public void setPrefetchTimeoutMillis(int prefetchTimeoutMillis) {
+        this.prefetchTimeoutMillis = prefetchTimeoutMillis;
+    }
+
+    private boolean isLocalStoreBounded() {
+        return maxLocalSessions > 0 || maxLocalSessionBytes > 0;
+    }
+
+    /**
+     * @return metrics of this manager and its backend service, also registered as MBean
+     */
+    public SessionMetrics getSessionMetrics() {
+        return sessionMetrics;
+    }
+
     @Override
     protected void initInternal() throws LifecycleException {
         LOGGER.debug("initInternal called");
         super.initInternal();
         try {
+            if (!isNullOrEmpty(metricsListenerClassName)) {
+                Class<?> listenerClass = Class.forName(metricsListenerClassName);
+                if (!MetricsListener.class.isAssignableFrom(listenerClass)) {
+                    throw new LifecycleException(metricsListenerClassName + " does not implement MetricsListener");
+                }
+                sessionMetrics.setListener((MetricsListener) listenerClass.getDeclaredConstructor().newInstance());
+            }
+            Class<?> serializerClass = Class.forName(sessionSerializerClassName);
+            if (!SessionSerializer.class.isAssignableFrom(serializerClass)) {
+                throw new LifecycleException(sessionSerializerClassName + " does not implement SessionSerializer");
+            }
+            sessionSerializer = (SessionSerializer) serializerClass.getDeclaredConstructor().newInstance();
             Class<?> clazz = Class.forName(serviceImplementationClassName);
             if (!BackendService.class.isAssignableFrom(clazz)) {
                 throw new LifecycleException(serviceImplementationClassName + " does not implement BackendService");
@@ -76,11 +589,73 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
             backendService.setBackendAddress(serviceBackendAddress);
             backendService.setSessionManagementLogger(LOGGER);
             backendService.setSessionExpiryThreshold(sessionExpiryThreshold);
+            backendService.setWriteBehindThreads(writeBehindThreads);
+            backendService.setWriteBehindQueueCapacity(writeBehindQueueCapacity);
+            backendService.setWriteBehindBackpressure(writeBehindBackpressure);
+            backendService.setDeltaPersistence(deltaPersistence);
+            backendService.setCompression(compression);
+            backendService.setCompressionThreshold(compressionThreshold);
+            backendService.setMinConnections(minConnections);
+            backendService.setMaxConnections(maxConnections);
+            backendService.setConnectionIdleTimeout(connectionIdleTimeout);
+            backendService.setConnectionTimeout(connectionTimeout);
+            backendService.setBlockOnMaxConnections(blockOnMaxConnections);
+            backendService.setMaxExpiryDeletesInFlight(maxExpiryDeletesInFlight);
+            backendService.setMaxTouchesInFlight(maxTouchesInFlight);
+            backendService.setExpiryDeletesPerSecond(expiryDeletesPerSecond);
+            backendService.setExpirySweepLeaseSeconds(expirySweepLeaseSeconds);
+            backendService.setExpirySweepPartitions(expirySweepPartitions);
+            backendService.setExpiryIndex(expiryIndex);
+            backendService.setExpiryBucketSeconds(expiryBucketSeconds);
+            backendService.setNativeExpiry(nativeExpiry);
+            backendService.setBackendExpirySeconds(backendExpirySeconds);
+            backendService.setSessionMetrics(sessionMetrics);
             backendService.init();
+            offHeapStore = offHeapSessionBytes > 0 ? new OffHeapSessionStore(offHeapSessionBytes) : null;
+            prefetchExecutor = prefetchThreads > 0 ? createPrefetchExecutor() : null;
         } catch (ClassNotFoundException | InstantiationException | IllegalAccessException
                 | NoSuchMethodException | java.lang.reflect.InvocationTargetException ex) {
             throw new LifecycleException(ex);
         }
+        registerMetrics();
+    }
+
+    private ExecutorService createPrefetchExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(PREFETCH_QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "persistable-session-prefetch-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void registerMetrics() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            String host = getContext().getParent() != null ? getContext().getParent().getName() : null;
+            metricsObjectName = new ObjectName("de.alexanderlindhorst.tomcat.session:type=SessionMetrics,host="
+                    + ObjectName.quote(String.valueOf(host)) + ",context=" + ObjectName.quote(String.valueOf(
+                    getContext().getName())));
+            server.registerMBean(sessionMetrics, metricsObjectName);
+        } catch (JMException ex) {
+            LOGGER.warn("Couldn't register session metrics MBean: {}", ex.getMessage());
+            metricsObjectName = null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsObjectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+        } catch (JMException ex) {
+            LOGGER.warn("Couldn't unregister session metrics MBean: {}", ex.getMessage());
+        }
+        metricsObjectName = null;
     }
 
     @Override
@@ -97,7 +672,7 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
         LOGGER.debug("createSession {}", sessionId);
         PersistableSession session = (PersistableSession) super.createSession(sessionId);
         session.setDirty(true);
-        backendService.persistSession(session);
+        persist(session);
         session.addSessionListener(this);
         add(session);
         fireSessionCreated(session);
@@ -132,40 +707,257 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
         if (!needsRefresh) {
             LOGGER.debug("session id has current jvm route, fetching from local storage");
             session = (PersistableSession) super.findSession(id);
-        } else {
-            String newId;
-            if (!isNullOrEmpty(contextJvmRoute)) {
-                newId = jvmRouteAgnosticSessionId + "." + contextJvmRoute;
+            if (session != null) {
+                sessionMetrics.sessionLookup(Lookup.LOCAL_HIT);
+            } else if (isLocalStoreBounded() || offHeapStore != null) {
+                LOGGER.debug("session {} not found locally, may have been evicted, fetching from service", id);
+                session = findOrLoadSession(jvmRouteAgnosticSessionId, id);
             } else {
-                newId = jvmRouteAgnosticSessionId;
+                sessionMetrics.sessionLookup(Lookup.MISS);
             }
+        } else {
+            String newId = toLocalSessionId(jvmRouteAgnosticSessionId);
             LOGGER.debug("session {} has no or not current jvm route, fetching from service for agnostic id {}", id,
                     jvmRouteAgnosticSessionId);
-            Object lock = sessionLoadLocks.computeIfAbsent(jvmRouteAgnosticSessionId, k -> new Object());
-            synchronized (lock) {
-                try {
-                    // Re-check: a concurrent thread may have already loaded and added this session.
-                    session = (PersistableSession) super.findSession(newId);
-                    if (session == null) {
-                        session = backendService.getSession(getSessionShell(), jvmRouteAgnosticSessionId);
-                        if (session != null) {
-                            LOGGER.debug("session found, setting flags");
-                            //reinitialize transient fields
-                            session.setManager(this);
-                            addSessionListenerUniquelyTo(session);
-
-                            LOGGER.debug("setting session id to new id {}", newId);
-                            changeSessionId(session, newId);
-                            add(session);
-                        }
-                    }
-                } finally {
-                    sessionLoadLocks.remove(jvmRouteAgnosticSessionId);
-                }
-            }
+            session = findOrLoadSession(jvmRouteAgnosticSessionId, newId);
         }
         if (session != null) {
             session.touchLastAccessedTime();
+            scheduleTouch(session);
+        }
+        return session;
+    }
+
+    private String toLocalSessionId(String jvmRouteAgnosticSessionId) {
+        String contextJvmRoute = getJvmRoute();
+        if (!isNullOrEmpty(contextJvmRoute)) {
+            return jvmRouteAgnosticSessionId + "." + contextJvmRoute;
+        }
+        return jvmRouteAgnosticSessionId;
+    }
+
+    /**
+     * Starts reading the session with the given id from the backend if {@link #findSession(String)} would have to, so that
+     * the read overlaps with whatever happens before the session is asked for. {@link #findSession(String)} then takes the
+     * result instead of reading again. Reads started for the same session share their result.
+     *
+     * @param id session id as requested by the client
+     * @return {@code true} if a read was started or is running already; it has to be ended by
+     * {@link #discardPrefetchedSession(String)} once the request is done
+     */
+    public boolean prefetchSession(String id) {
+        ExecutorService executor = prefetchExecutor;
+        if (executor == null || isNullOrEmpty(id)) {
+            return false;
+        }
+        String jvmRouteAgnosticSessionId = calculateJvmRouteAgnosticSessionId(id);
+        boolean needsRefresh = needsRefresh(calculateJvmRoute(id), getJvmRoute());
+        String localId = needsRefresh ? toLocalSessionId(jvmRouteAgnosticSessionId) : id;
+        if (sessions.containsKey(localId) || (offHeapStore != null && offHeapStore.contains(localId))) {
+            return false; //nothing to read from the backend
+        }
+        if (!needsRefresh && !isLocalStoreBounded() && offHeapStore == null) {
+            return false; //findSession won't look it up in the backend
+        }
+        CompletableFuture<PersistableSession> future = new CompletableFuture<>();
+        if (prefetches.putIfAbsent(jvmRouteAgnosticSessionId, future) != null) {
+            return true;
+        }
+        try {
+            executor.execute(() -> readPrefetchedSession(jvmRouteAgnosticSessionId, future));
+        } catch (RejectedExecutionException ex) {
+            LOGGER.debug("too many sessions being prefetched, {} will be read on demand", id);
+            prefetches.remove(jvmRouteAgnosticSessionId, future);
+            return false;
+        }
+        LOGGER.debug("prefetching session {}", id);
+        return true;
+    }
+
+    /**
+     * Drops the result of {@link #prefetchSession(String)} if it wasn't taken by {@link #findSession(String)}, so that it
+     * isn't used later on when it may be outdated.
+     *
+     * @param id session id as passed to {@link #prefetchSession(String)}
+     */
+    public void discardPrefetchedSession(String id) {
+        if (isNullOrEmpty(id)) {
+            return;
+        }
+        CompletableFuture<PersistableSession> future = prefetches.remove(calculateJvmRouteAgnosticSessionId(id));
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void readPrefetchedSession(String jvmRouteAgnosticSessionId, CompletableFuture<PersistableSession> future) {
+        if (future.isDone()) {
+            return; //discarded before it was started
+        }
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(getSessionClassLoader());
+        try {
+            future.complete(backendService.getSession(getSessionShell(), jvmRouteAgnosticSessionId));
+        } catch (IOException | RuntimeException ex) {
+            future.completeExceptionally(ex);
+        } catch (Error ex) {
+            //the request taking the prefetched session reads it itself then
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private ClassLoader getSessionClassLoader() {
+        Loader loader = getContext().getLoader();
+        if (loader != null && loader.getClassLoader() != null) {
+            return loader.getClassLoader();
+        }
+        return PersistableSessionManager.class.getClassLoader();
+    }
+
+    private PersistableSession loadFromBackend(String jvmRouteAgnosticSessionId) throws IOException {
+        CompletableFuture<PersistableSession> prefetched = prefetches.remove(jvmRouteAgnosticSessionId);
+        if (prefetched != null) {
+            try {
+                PersistableSession session = prefetched.get(prefetchTimeoutMillis, TimeUnit.MILLISECONDS);
+                LOGGER.debug("using prefetched session {}", jvmRouteAgnosticSessionId);
+                return session;
+            } catch (ExecutionException | CancellationException ex) {
+                LOGGER.debug("prefetching session {} failed, reading it again", jvmRouteAgnosticSessionId, ex);
+            } catch (TimeoutException ex) {
+                LOGGER.debug("prefetching session {} takes too long, reading it again", jvmRouteAgnosticSessionId);
+                prefetched.cancel(false);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for prefetched session " + jvmRouteAgnosticSessionId, ex);
+            }
+        }
+        return backendService.getSession(getSessionShell(), jvmRouteAgnosticSessionId);
+    }
+
+    /**
+     * Loads the session once for all requests asking for it concurrently: the first one loads it, the others wait for and
+     * share its result without blocking on a monitor. Only the waiting requests record their wait and a shared load.
+     */
+    private PersistableSession findOrLoadSession(String jvmRouteAgnosticSessionId, String newId) throws IOException {
+        CompletableFuture<PersistableSession> load = new CompletableFuture<>();
+        long loadRequested = System.nanoTime();
+        CompletableFuture<PersistableSession> running = sessionLoads.putIfAbsent(jvmRouteAgnosticSessionId, load);
+        if (running != null) {
+            PersistableSession session = awaitSessionLoad(running);
+            sessionMetrics.sessionLoadLockWaited(System.nanoTime() - loadRequested);
+            sessionMetrics.sessionLookup(session != null ? Lookup.SHARED_LOAD : Lookup.MISS);
+            return session;
+        }
+        try {
+            PersistableSession session = loadSession(jvmRouteAgnosticSessionId, newId);
+            load.complete(session);
+            return session;
+        } catch (Throwable ex) {
+            //errors as well, requests waiting for this load mustn't wait forever
+            load.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            sessionLoads.remove(jvmRouteAgnosticSessionId, load);
+        }
+    }
+
+    private static PersistableSession awaitSessionLoad(CompletableFuture<PersistableSession> load) throws IOException {
+        try {
+            return load.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    private PersistableSession loadSession(String jvmRouteAgnosticSessionId, String newId) throws IOException {
+        // Re-check: a request finished loading this session just before.
+        PersistableSession session = (PersistableSession) super.findSession(newId);
+        if (session != null && nearCache && !session.isDirty()) {
+            return validateLocalSession(session, jvmRouteAgnosticSessionId, newId);
+        } else if (session != null) {
+            sessionMetrics.sessionLookup(Lookup.LOCAL_HIT);
+            return session;
+        }
+        session = takeOffHeap(newId);
+        if (session != null) {
+            addLoadedSession(session, newId);
+            if (nearCache) {
+                return validateLocalSession(session, jvmRouteAgnosticSessionId, newId);
+            }
+            sessionMetrics.sessionLookup(Lookup.OFF_HEAP_HIT);
+            return session;
+        }
+        session = loadFromBackend(jvmRouteAgnosticSessionId);
+        sessionMetrics.sessionLookup(session != null ? Lookup.BACKEND_LOAD : Lookup.MISS);
+        if (session != null) {
+            addLoadedSession(session, newId);
+        }
+        return session;
+    }
+
+    /**
+     * Replaces the local session by the backend's state if that changed, drops it if it's gone from the backend.
+     */
+    private PersistableSession validateLocalSession(PersistableSession local, String jvmRouteAgnosticSessionId,
+            String newId) throws IOException {
+        PersistableSession session = backendService.getSessionIfModified(local, getSessionShell(),
+                jvmRouteAgnosticSessionId);
+        if (session == local) {
+            LOGGER.debug("local session {} is current", newId);
+            sessionMetrics.sessionLookup(Lookup.VALIDATED_HIT);
+            return local;
+        }
+        //not through remove(Session), the backend is up to date already
+        super.remove(local);
+        sessionMetrics.sessionLookup(session != null ? Lookup.BACKEND_LOAD : Lookup.MISS);
+        if (session != null) {
+            LOGGER.debug("local session {} was changed by another node, replacing it", newId);
+            addLoadedSession(session, newId);
+        }
+        return session;
+    }
+
+    private void addLoadedSession(PersistableSession session, String newId) {
+        LOGGER.debug("session found, setting flags");
+        //reinitialize transient fields
+        session.setManager(this);
+        addSessionListenerUniquelyTo(session);
+
+        String oldId = session.getIdInternal();
+        if (!newId.equals(oldId)) {
+            LOGGER.debug("setting session id to new id {}", newId);
+            session.setLoadedId(newId);
+            session.tellChangedSessionId(newId, oldId, true, true);
+        }
+        add(session);
+    }
+
+    private PersistableSession takeOffHeap(String id) throws IOException {
+        OffHeapSessionStore store = offHeapStore;
+        OffHeapSessionStore.Entry entry = store != null ? store.remove(id) : null;
+        if (entry == null) {
+            return null;
+        }
+        LOGGER.debug("session {} found off-heap", id);
+        PersistableSession session = deserializeSessionInto(getSessionShell(), entry.getBytes());
+        if (session != null) {
+            session.setBackendVersion(entry.getBackendVersion());
+            session.setPersistedContentHash(entry.getPersistedContentHash());
+            session.setSerializedSizeHint(entry.size());
         }
         return session;
     }
@@ -198,6 +990,110 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
         session.addSessionListener(this);
     }
 
+    /**
+     * Drops the least recently used sessions held locally if there are more than allowed, until they are down to 90% of the
+     * limits, so that not every new session causes an eviction run. Sessions with changes not written yet are written
+     * first. Only one thread evicts at a time, others carry on. Called by the background process only, so that requests
+     * adding sessions don't wait for the sort or the writes.
+     */
+    void evictLocalSessions() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<EvictionCandidate> candidates = new ArrayList<>();
+            long bytes = 0;
+            for (Session session : findSessions()) {
+                EvictionCandidate candidate = new EvictionCandidate((PersistableSession) session);
+                candidates.add(candidate);
+                bytes += candidate.size;
+            }
+            int count = candidates.size();
+            boolean countExceeded = maxLocalSessions > 0 && count > maxLocalSessions;
+            boolean bytesExceeded = maxLocalSessionBytes > 0 && bytes > maxLocalSessionBytes;
+            if (!countExceeded && !bytesExceeded) {
+                return;
+            }
+            long countTarget = maxLocalSessions > 0 ? Math.max(1, (long) (maxLocalSessions * EVICTION_LOW_WATER_MARK))
+                    : Long.MAX_VALUE;
+            long bytesTarget = maxLocalSessionBytes > 0 ? (long) (maxLocalSessionBytes * EVICTION_LOW_WATER_MARK)
+                    : Long.MAX_VALUE;
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccessed));
+            for (EvictionCandidate candidate : candidates) {
+                if (count <= countTarget && bytes <= bytesTarget) {
+                    break;
+                }
+                if (evict(candidate.session)) {
+                    count--;
+                    bytes -= candidate.size;
+                }
+            }
+            LOGGER.debug("evicted local sessions, {} sessions of about {} bytes left", count, bytes);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private boolean evict(PersistableSession session) {
+        if (session.isDirty()) {
+            try {
+                //waiting for the write even with an asynchronous backend, the session is gone locally afterwards
+                backendService.persistSession(session);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Couldn't write session {} before evicting it, keeping it", session.getIdInternal(), ex);
+                return false;
+            }
+        }
+        LOGGER.debug("evicting session {}", session.getIdInternal());
+        if (offHeapStore != null) {
+            moveOffHeap(session);
+        }
+        //not through remove(Session), the session stays in the backend
+        super.remove(session);
+        sessionMetrics.sessionEvicted();
+        return true;
+    }
+
+    private void moveOffHeap(PersistableSession session) {
+        SerializationBuffer buffer = SerializationBuffer.acquire(session.getSerializedSizeHint());
+        try {
+            if (!serializeSession(session, buffer) || !offHeapStore.put(session.getIdInternal(), buffer, session)) {
+                LOGGER.debug("session {} can't be kept off-heap", session.getIdInternal());
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Moves sessions not accessed for {@link #getMaxIdleOnHeapSeconds()} off-heap.
+     */
+    void moveIdleSessionsOffHeap() {
+        long idleSince = currentTimeMillis() - maxIdleOnHeapSeconds * 1000L;
+        for (Session session : findSessions()) {
+            PersistableSession candidate = (PersistableSession) session;
+            if (candidate.getLastAccessedTime() < idleSince) {
+                evict(candidate);
+            }
+        }
+    }
+
+    /**
+     * Access time and size taken once, as both may change while candidates are sorted.
+     */
+    private static final class EvictionCandidate {
+
+        private final PersistableSession session;
+        private final long lastAccessed;
+        private final int size;
+
+        private EvictionCandidate(PersistableSession session) {
+            this.session = session;
+            this.lastAccessed = session.getLastAccessedTime();
+            this.size = session.getSerializedSizeHint();
+        }
+    }
+
     public void storeSession(PersistableSession session) {
         LOGGER.debug("storeSession called for id {}", session != null ? session.getId() : "[session is null]");
         if (session == null || !session.isDirty()) {
@@ -205,7 +1101,24 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
             return;
         }
         LOGGER.debug("storing session");
-        backendService.persistSession(session);
+        persist(session);
+    }
+
+    /**
+     * Writes without waiting for the backend if it supports that. Failures of such writes are logged only, the session is
+     * dirty again then and written with its next change or request.
+     */
+    private void persist(PersistableSession session) {
+        if (backendService instanceof AsyncBackendService) {
+            String id = session.getIdInternal();
+            ((AsyncBackendService) backendService).persistSessionAsync(session).whenComplete((ignored, ex) -> {
+                if (ex != null) {
+                    LOGGER.error("Couldn't persist session " + id, ex);
+                }
+            });
+        } else {
+            backendService.persistSession(session);
+        }
     }
 
     @Override
@@ -226,8 +1139,14 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
                 break;
             case SESSION_CREATED_EVENT:
             case SESSION_ATTRIBUTE_SET:
+                if (offHeapStore != null && sessions.get(session.getIdInternal()) != session) {
+                    //changed by a request still holding it after it was moved off-heap, that copy is outdated now
+                    offHeapStore.remove(session.getIdInternal());
+                }
                 session.setDirty(true);
-                storeSession(session);
+                if (!isFlushAtEndOfRequest()) {
+                    storeSession(session);
+                }
                 break;
             default:
                 throw new AssertionError("Unknown event type: " + event.getType());
@@ -237,7 +1156,19 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
     @Override
     public void remove(Session session) {
         super.remove(session);
-        backendService.deleteSession((PersistableSession) session);
+        if (offHeapStore != null) {
+            offHeapStore.remove(session.getIdInternal());
+        }
+        PersistableSession persistableSession = (PersistableSession) session;
+        if (backendService instanceof AsyncBackendService) {
+            ((AsyncBackendService) backendService).deleteSessionAsync(persistableSession).whenComplete((ignored, ex) -> {
+                if (ex != null) {
+                    LOGGER.error("Couldn't delete session " + persistableSession.getIdInternal(), ex);
+                }
+            });
+        } else {
+            backendService.deleteSession(persistableSession);
+        }
     }
 
     /* Life cycle stuff */
@@ -268,41 +1199,187 @@ public class PersistableSessionManager extends ManagerBase implements SessionLis
             backendService.shutdown();
             LOGGER.debug("backend service shutdown seems to have completed");
         }
+        if (offHeapStore != null) {
+            offHeapStore.clear();
+            offHeapStore = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+        prefetches.clear();
+        unregisterMetrics();
         super.destroyInternal();
     }
 
+    /**
+     * Remembers an accessed session for the next batch of touches, unless it was written or touched within
+     * {@link #getTouchIntervalSeconds()}.
+     */
+    private void scheduleTouch(PersistableSession session) {
+        if (touchIntervalSeconds > 0
+                && session.getLastPersistedTime() < currentTimeMillis() - touchIntervalSeconds * 1000L) {
+            pendingTouches.add(session);
+        }
+    }
+
+    /**
+     * Touches the sessions accessed since the previous run in the backend. Sessions written meanwhile or no longer held
+     * locally are left out.
+     */
+    void touchAccessedSessions() {
+        long due = currentTimeMillis() - touchIntervalSeconds * 1000L;
+        List<PersistableSession> touches = new ArrayList<>();
+        for (Iterator<PersistableSession> pending = pendingTouches.iterator(); pending.hasNext();) {
+            PersistableSession session = pending.next();
+            pending.remove();
+            if (session.getLastPersistedTime() < due && sessions.get(session.getIdInternal()) == session) {
+                touches.add(session);
+            }
+        }
+        if (touches.isEmpty()) {
+            return;
+        }
+        LOGGER.debug("touching {} sessions", touches.size());
+        try {
+            backendService.touchSessions(touches);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Couldn't touch " + touches.size() + " sessions, they are touched with their next access", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc} Also touches accessed sessions in the backend, continues dropping sessions expired by the last sweep,
+     * moves idle sessions off-heap and keeps the sessions held locally within their limits.
+     */
     @Override
-    public void processExpires() {
-        if (backendService != null) {
-            LOGGER.debug("removing expired sessions");
+    public void backgroundProcess() {
+        if (backendService != null && touchIntervalSeconds > 0) {
+            //before expiry, so that sessions in use aren't swept
+            touchAccessedSessions();
+        }
+        expiresProcessed = false;
+        super.backgroundProcess();
+        //a run that processed expires used its budget there already
+        if (!expiresProcessed && !expiredIds.isEmpty()) {
+            removeExpiredLocally();
+        }
+        if (offHeapStore != null && maxIdleOnHeapSeconds >= 0) {
+            moveIdleSessionsOffHeap();
+        }
+        if (isLocalStoreBounded()) {
+            evictLocalSessions();
+        }
+    }
 
-            final String idSuffix;
-            if (!isNullOrEmpty(getJvmRoute())) {
-                idSuffix = "." + getJvmRoute();
-            } else {
-                idSuffix = "";
+    @Override
+    public void processExpires() {
+        if (backendService != null && backendService.isExpiringNatively()) {
+            expireLocalSessions();
+        } else if (backendService != null) {
+            if (expiredIds.isEmpty()) {
+                startExpirySweep();
             }
+            removeExpiredLocally();
+            expiresProcessed = true;
+        } else {
+            throw new IllegalStateException("No backend service found, can't process expired sessions");
+        }
+    }
 
-            final long removalThreshold = currentTimeMillis() - getSessionExpiryThreshold();
-
-            backendService.removeExpiredSessions().forEach(id -> {
-                try {
-                    PersistableSession session = (PersistableSession) super.findSession(id + idSuffix);
-                    if (session != null) {
-                        if (session.getLastAccessedTime() < removalThreshold) {
-                            super.remove(session);
-                        } else {
-                            //locally newer than remote, write back
-                            session.setDirty(true);
-                            storeSession(session);
-                        }
-                    }
-                } catch (IOException ex) {
-                    LOGGER.error("Couldn't find session to remove it locally: " + id, ex);
+    /**
+     * Has the backend remove its expired sessions, unless a sweep is still running. An asynchronous backend is not waited
+     * for, the sessions it removed are dropped locally by the background runs after it completed.
+     */
+    private void startExpirySweep() {
+        if (!sweeping.compareAndSet(false, true)) {
+            LOGGER.debug("previous expiry sweep still running");
+            return;
+        }
+        LOGGER.debug("removing expired sessions");
+        if (backendService instanceof AsyncBackendService) {
+            ((AsyncBackendService) backendService).removeExpiredSessionsAsync().whenComplete((ids, ex) -> {
+                if (ex != null) {
+                    LOGGER.error("Couldn't remove expired sessions", ex);
+                } else {
+                    expiredIds.addAll(ids);
                 }
+                sweeping.set(false);
             });
         } else {
-            throw new IllegalStateException("No backend service found, can't process expired sessions");
+            try {
+                expiredIds.addAll(backendService.removeExpiredSessions());
+            } finally {
+                sweeping.set(false);
+            }
+        }
+    }
+
+    /**
+     * Drops local copies of sessions removed by the backend's expiry sweep, at most {@link #getExpiryBatchSize()} and for
+     * {@link #getExpiryTimeBudgetMillis()} at most. Sessions accessed locally since the threshold are written back instead,
+     * without waiting for the backend if it supports that. The budget is checked before each session, so only the first
+     * one is handled once it is used up.
+     */
+    void removeExpiredLocally() {
+        String idSuffix = isNullOrEmpty(getJvmRoute()) ? "" : "." + getJvmRoute();
+        long removalThreshold = currentTimeMillis() - getSessionExpiryThreshold();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(expiryTimeBudgetMillis);
+        for (int processed = 0; processed < expiryBatchSize; processed++) {
+            if (processed > 0 && System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            String id = expiredIds.poll();
+            if (id == null) {
+                return;
+            }
+            //no need to look further than the local map, sessions of other nodes aren't held here
+            PersistableSession session = (PersistableSession) sessions.get(id + idSuffix);
+            if (session == null && offHeapStore != null) {
+                offHeapStore.remove(id + idSuffix);
+            } else if (session != null) {
+                if (session.getLastAccessedTime() < removalThreshold) {
+                    super.remove(session);
+                } else {
+                    //locally newer than remote, write back; the backend copy is gone, so the write mustn't be skipped
+                    session.setPersistedContentHash(0);
+                    session.setDirty(true);
+                    storeSession(session);
+                }
+            }
+        }
+        if (!expiredIds.isEmpty()) {
+            LOGGER.debug("expiry budget used up, leaving further expired sessions to the next background run");
+        }
+    }
+
+    /**
+     * Drops local copies of sessions the backend expires on its own. Sessions accessed since they were last written, which
+     * only happens without changes, are touched once half of their time to live in the backend has passed, so that the
+     * backend doesn't drop them while they are in use.
+     */
+    private void expireLocalSessions() {
+        LOGGER.debug("removing expired local sessions, the backend expires its copies itself");
+        long now = currentTimeMillis();
+        long removalThreshold = now - getSessionExpiryThreshold();
+        long refreshThreshold = now - getSessionExpiryThreshold() / 2;
+        List<PersistableSession> refresh = new ArrayList<>();
+        for (Session found : findSessions()) {
+            PersistableSession session = (PersistableSession) found;
+            long lastAccessed = session.getLastAccessedTime();
+            if (lastAccessed < removalThreshold) {
+                super.remove(session);
+            } else if (session.getLastPersistedTime() < refreshThreshold && lastAccessed > session.getLastPersistedTime()) {
+                refresh.add(session);
+            }
+        }
+        if (refresh.isEmpty()) {
+            return;
+        }
+        try {
+            backendService.touchSessions(refresh);
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Couldn't touch " + refresh.size() + " sessions, they are touched again by the next run", ex);
         }
     }
 
@@ -5,24 +5,39 @@ package de.alexanderlindhorst.tomcat.session.manager;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
+import org.apache.catalina.Manager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
+
+import static com.google.common.collect.Lists.newArrayList;
+
 /**
  * @author lindhrst (original author)
  */
 public final class PersistableSessionUtils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PersistableSessionUtils.class);
+    private static final SessionSerializer JDK_SERIALIZER = new JdkSessionSerializer();
+    private static final SessionSerializer COMPACT_SERIALIZER = new CompactSessionSerializer();
     static final Pattern SESSION_ID_PATTERN = Pattern.compile("^(?<sessionId>[^\\.]+)(\\.(?<jvmRoute>.*))?$");
 
     private PersistableSessionUtils() {
@@ -45,18 +60,31 @@ public final class PersistableSessionUtils {
         if (session == null) {
             return null;
         }
+        SerializationBuffer buffer = SerializationBuffer.acquire(session.getSerializedSizeHint());
+        try {
+            return serializeSession(session, buffer) ? buffer.toByteArray() : null;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Serializes the session into the given buffer, replacing its content, and remembers the resulting size on the session
+     * as hint for the next time.
+     *
+     * @param session session to serialize
+     * @param buffer buffer to write to
+     * @return {@code true} if the session could be serialized
+     */
+    public static boolean serializeSession(PersistableSession session, SerializationBuffer buffer) {
         boolean retry;
         do {
             retry = false;
+            buffer.reset();
             try {
-                byte[] bytes;
-                try (ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        ObjectOutputStream stream = new ObjectOutputStream(out)) {
-                    session.writeObjectData(stream);
-                    stream.flush();
-                    bytes = out.toByteArray();
-                }
-                return bytes;
+                getSessionSerializer(session).serialize(session, buffer);
+                session.setSerializedSizeHint(buffer.size());
+                return true;
             } catch (NotSerializableException ex) {
                 retry = removeNonSerializableAttribute(session);
                 if (!retry) {
@@ -67,7 +95,35 @@ public final class PersistableSessionUtils {
                 LOGGER.error("Couldn't serialize session, will return null value", ex);
             }
         } while (retry);
-        return null;
+        buffer.reset();
+        return false;
+    }
+
+    /**
+     * @param session session to serialize
+     * @return the serializer configured on the session's manager, Java serialization if there is none
+     */
+    static SessionSerializer getSessionSerializer(PersistableSession session) {
+        Manager manager = session.getManager();
+        if (manager instanceof PersistableSessionManager) {
+            SessionSerializer serializer = ((PersistableSessionManager) manager).getSessionSerializer();
+            if (serializer != null) {
+                return serializer;
+            }
+        }
+        return JDK_SERIALIZER;
+    }
+
+    /**
+     * Bytes written by the built-in serializers are always readable, so the serializer can be switched without losing the
+     * sessions already stored.
+     */
+    private static SessionSerializer getDeserializer(PersistableSession session, byte[] bytes) {
+        SessionSerializer configured = getSessionSerializer(session);
+        if (configured.canDeserialize(bytes)) {
+            return configured;
+        }
+        return COMPACT_SERIALIZER.canDeserialize(bytes) ? COMPACT_SERIALIZER : JDK_SERIALIZER;
     }
 
     private static boolean removeNonSerializableAttribute(PersistableSession session) {
@@ -85,6 +141,161 @@ public final class PersistableSessionUtils {
         return false;
     }
 
+    /**
+     * Creates the delta of all attribute changes since the last delta handed to the backend, see
+     * {@link #sessionDeltaPersisted(PersistableSession, SessionDelta)}. If the backend doesn't hold the session's attributes
+     * yet, a complete delta is created. Otherwise every attribute is serialized and only those whose content hash differs
+     * from the one last handed to the backend are part of the delta, so values changed in place without calling
+     * {@code setAttribute} again are found as well.
+     *
+     * @param session session to create the delta for
+     * @return the delta, never {@code null}
+     */
+    public static SessionDelta createSessionDelta(PersistableSession session) {
+        boolean complete = !session.isAttributesPersisted();
+        Map<String, Long> persistedHashes = session.getPersistedAttributeHashes();
+        Map<String, Long> hashes = new HashMap<>();
+        Map<String, byte[]> attributes = new LinkedHashMap<>();
+        for (String name : newArrayList(session.getAttributeNamesInternal())) {
+            byte[] bytes = serializeAttribute(session, name, session.getAttributeInternal(name));
+            if (bytes == null) {
+                continue;
+            }
+            Long hash = contentHash(bytes, bytes.length);
+            hashes.put(name, hash);
+            if (complete || !hash.equals(persistedHashes.get(name))) {
+                attributes.put(name, bytes);
+            }
+        }
+        Set<String> removed = new LinkedHashSet<>(persistedHashes.keySet());
+        removed.removeAll(hashes.keySet());
+        return new SessionDelta(serializeMetadata(session), attributes, removed, hashes.keySet(), complete);
+    }
+
+    /**
+     * Records that the backend holds the given delta, so that the next delta only contains the changes made since. To be
+     * called once the delta was handed to the backend successfully.
+     *
+     * @param session session the delta was created for
+     * @param delta delta created by {@link #createSessionDelta(PersistableSession)}
+     */
+    public static void sessionDeltaPersisted(PersistableSession session, SessionDelta delta) {
+        Map<String, Long> hashes = new HashMap<>(delta.isComplete() ? Collections.<String, Long>emptyMap()
+                : session.getPersistedAttributeHashes());
+        hashes.keySet().retainAll(delta.getAttributeNames());
+        for (Map.Entry<String, byte[]> attribute : delta.getAttributes().entrySet()) {
+            byte[] value = attribute.getValue();
+            hashes.put(attribute.getKey(), contentHash(value, value.length));
+        }
+        session.setPersistedAttributeHashes(hashes);
+        session.setAttributesPersisted(true);
+    }
+
+    /**
+     * 64 bit hash made of CRC32 and Adler32 of the serialized session or attribute.
+     */
+    public static long contentHash(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, length);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Like {@link #contentHash(byte[], int)}, leaving out the given ranges.
+     *
+     * @param bytes bytes to hash
+     * @param length number of bytes to hash
+     * @param skipped start and end offset of each range left out, ranges in ascending order
+     * @return the hash
+     */
+    static long contentHash(byte[] bytes, int length, int... skipped) {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        int offset = 0;
+        for (int i = 0; i + 1 < skipped.length; i += 2) {
+            int end = Math.min(skipped[i], length);
+            crc.update(bytes, offset, end - offset);
+            adler.update(bytes, offset, end - offset);
+            offset = Math.min(skipped[i + 1], length);
+        }
+        crc.update(bytes, offset, length - offset);
+        adler.update(bytes, offset, length - offset);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * Hash of a session serialized into the given bytes without its access times, see
+     * {@link SessionSerializer#contentHash(byte[], int)}.
+     *
+     * @param session the serialized session
+     * @param bytes serialized session
+     * @param length number of bytes of the serialized session
+     * @return the hash
+     */
+    public static long sessionContentHash(PersistableSession session, byte[] bytes, int length) {
+        return getSessionSerializer(session).contentHash(bytes, length);
+    }
+
+    private static byte[] serializeMetadata(PersistableSession session) {
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream(); DataOutputStream stream = new DataOutputStream(out)) {
+            session.writeMetadata(stream);
+            stream.flush();
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Couldn't serialize session metadata", ex);
+        }
+    }
+
+    private static byte[] serializeAttribute(PersistableSession session, String name, Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (!(value instanceof Serializable)) {
+            LOGGER.warn("Skipping non-serializable session attribute '{}' of type {}", name, value.getClass().getName());
+            return null;
+        }
+        try {
+            return getSessionSerializer(session).serializeAttribute(value);
+        } catch (IOException ex) {
+            LOGGER.warn("Skipping session attribute '{}' that couldn't be serialized: {}", name, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Applies the given delta to the session without firing any attribute events.
+     *
+     * @param session session to update
+     * @param delta delta to apply, attributes not mentioned in a complete delta are removed from the session
+     * @return the session, {@code null} if the delta couldn't be read
+     */
+    public static PersistableSession applySessionDelta(PersistableSession session, SessionDelta delta) {
+        try {
+            try (DataInputStream stream = new DataInputStream(new ByteArrayInputStream(delta.getMetadata()))) {
+                session.readMetadata(stream);
+            }
+            if (delta.isComplete()) {
+                session.getAttributeNamesInternal().retainAll(delta.getAttributes().keySet());
+            }
+            delta.getRemovedAttributes().forEach(session::removeAttributeWithoutNotification);
+            Map<String, Long> hashes = new HashMap<>(delta.isComplete() ? Collections.<String, Long>emptyMap()
+                    : session.getPersistedAttributeHashes());
+            hashes.keySet().removeAll(delta.getRemovedAttributes());
+            for (Map.Entry<String, byte[]> attribute : delta.getAttributes().entrySet()) {
+                byte[] value = attribute.getValue();
+                session.putAttributeInternal(attribute.getKey(), getDeserializer(session, value).deserializeAttribute(value));
+                hashes.put(attribute.getKey(), contentHash(value, value.length));
+            }
+            session.setPersistedAttributeHashes(hashes);
+            return session;
+        } catch (IOException | ClassNotFoundException ex) {
+            LOGGER.error("Couldn't apply session delta, will return null value", ex);
+        }
+        return null;
+    }
+
     public static PersistableSession deserializeSessionInto(PersistableSession emptyShell, byte[] bytes) {
         if (emptyShell == null) {
             throw new IllegalArgumentException("empty session must not be null");
@@ -93,14 +304,28 @@ public final class PersistableSessionUtils {
             return null;
         }
         try {
-            LOGGER.debug("Deserializing from byte array of size {}", bytes.length);
-            try (ByteArrayInputStream in = new ByteArrayInputStream(bytes); ObjectInputStream stream = new ObjectInputStream(in)) {
-                emptyShell.readObjectData(stream);
+            byte[] payload = SessionCompressor.decompress(bytes);
+            if (SessionDelta.isSessionDelta(payload)) {
+                return deserializeSessionDeltaInto(emptyShell, SessionDelta.fromBytes(payload));
             }
+            LOGGER.debug("Deserializing from byte array of size {}", payload.length);
+            getDeserializer(emptyShell, payload).deserializeInto(emptyShell, payload);
             return emptyShell;
         } catch (IOException | ClassNotFoundException ex) {
             LOGGER.error("Couldn't deserialize session, will return null value", ex);
         }
         return null;
     }
+
+    private static PersistableSession deserializeSessionDeltaInto(PersistableSession emptyShell, SessionDelta delta) {
+        if (!delta.isComplete()) {
+            LOGGER.error("Couldn't deserialize session from incomplete delta, will return null value");
+            return null;
+        }
+        PersistableSession session = applySessionDelta(emptyShell, delta);
+        if (session != null) {
+            session.setAttributesPersisted(true);
+        }
+        return session;
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable buffer sessions are serialized into. Each thread keeps one buffer for reuse, so serializing a session usually
+ * allocates nothing but the final copy handed to the backend. Buffers grown beyond {@link #MAX_RETAINED_CAPACITY} are not
+ * kept, so a single huge session doesn't pin its size for the life of the thread. Virtual threads, usually started per
+ * request, don't keep a buffer: it would be dropped with the thread before being reused.
+ *
+ * @author alindhorst
+ */
+public final class SerializationBuffer extends ByteArrayOutputStream {
+
+    static final int DEFAULT_CAPACITY = 4096;
+    static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final ThreadLocal<SerializationBuffer> CACHED = new ThreadLocal<>();
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+    private final boolean cached;
+    private boolean inUse;
+
+    private SerializationBuffer(int capacity, boolean cached) {
+        super(capacity);
+        this.cached = cached;
+    }
+
+    /**
+     * Hands out the calling thread's buffer, emptied. If that buffer is still in use further up the stack a new one is
+     * returned instead. Callers must {@link #release()} the buffer once done with its content.
+     *
+     * @param sizeHint expected number of bytes to be written, {@code 0} if unknown
+     * @return an empty buffer with at least the given capacity
+     */
+    public static SerializationBuffer acquire(int sizeHint) {
+        if (isVirtual(Thread.currentThread())) {
+            return new SerializationBuffer(Math.max(DEFAULT_CAPACITY, sizeHint), false);
+        }
+        SerializationBuffer buffer = CACHED.get();
+        if (buffer == null) {
+            buffer = new SerializationBuffer(Math.max(DEFAULT_CAPACITY, sizeHint), true);
+            CACHED.set(buffer);
+        } else if (buffer.inUse) {
+            return new SerializationBuffer(Math.max(DEFAULT_CAPACITY, sizeHint), false);
+        }
+        buffer.inUse = true;
+        buffer.reset();
+        buffer.ensureCapacity(sizeHint);
+        return buffer;
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null; //no virtual threads before Java 21
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Couldn't determine the kind of thread", ex);
+        }
+    }
+
+    /**
+     * Returns the buffer for reuse by the current thread. Its content must not be used afterwards.
+     */
+    public void release() {
+        if (!cached) {
+            return;
+        }
+        inUse = false;
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[DEFAULT_CAPACITY];
+        }
+        reset();
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > buf.length) {
+            buf = Arrays.copyOf(buf, capacity);
+        }
+    }
+
+    /**
+     * @return the backing array, valid from index {@code 0} to {@link #size()}; only until the next write
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * @return view of the content without copying it; only valid until the buffer is written to or released
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+}
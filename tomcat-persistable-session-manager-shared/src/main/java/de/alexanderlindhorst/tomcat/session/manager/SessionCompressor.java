@@ -0,0 +1,202 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized sessions above a size threshold. Compressed payloads start with a small header naming the codec and
+ * the uncompressed length, so they can be told apart from uncompressed ones when reading. Payloads that would not get
+ * smaller are kept as they are.
+ *
+ * @author alindhorst
+ */
+public final class SessionCompressor {
+
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_FAST = "fast";
+    public static final String COMPRESSION_DENSE = "dense";
+    private static final byte[] MAGIC = new byte[]{'P', 'S', 'Z'};
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4;
+    private final int level;
+    private final int threshold;
+    private final LongAdder compressedCount = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    /**
+     * @param compression {@value #COMPRESSION_FAST} or {@value #COMPRESSION_DENSE}
+     * @param threshold minimum payload size in bytes to be compressed
+     */
+    public SessionCompressor(String compression, int threshold) {
+        if (COMPRESSION_FAST.equals(compression)) {
+            level = Deflater.BEST_SPEED;
+        } else if (COMPRESSION_DENSE.equals(compression)) {
+            level = Deflater.BEST_COMPRESSION;
+        } else {
+            throw new IllegalArgumentException("unknown compression " + compression);
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("compression threshold must not be negative");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param bytes serialized session, may be {@code null}
+     * @return the compressed payload, or the given bytes if below threshold or not compressible
+     */
+    public byte[] compress(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        ByteBuffer compressed = compress(ByteBuffer.wrap(bytes));
+        return compressed.array() == bytes ? bytes : compressed.array();
+    }
+
+    /**
+     * Variant of {@link #compress(byte[])} for serialized sessions held in part of a larger array.
+     *
+     * @param bytes serialized session between position and limit, must be backed by an array
+     * @return buffer holding the compressed payload from position {@code 0}, the given buffer if below threshold or not
+     * compressible
+     */
+    public ByteBuffer compress(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        if (length < threshold) {
+            return bytes;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + HEADER_LENGTH);
+            out.write(MAGIC, 0, MAGIC.length);
+            out.write(CODEC_DEFLATE);
+            writeInt(out, length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() >= length) {
+                    return bytes;
+                }
+            }
+            byte[] compressed = out.toByteArray();
+            compressedCount.increment();
+            uncompressedBytes.add(length);
+            compressedBytes.add(compressed.length);
+            return ByteBuffer.wrap(compressed);
+        } finally {
+            deflater.end();
+            compressionNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    public static boolean isCompressed(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param bytes payload as returned by {@link #compress(byte[])}
+     * @return the uncompressed payload, the given bytes if they are not compressed
+     * @throws IOException if the payload is corrupt or uses an unknown codec
+     */
+    public static byte[] decompress(byte[] bytes) throws IOException {
+        if (!isCompressed(bytes)) {
+            return bytes;
+        }
+        byte codec = bytes[MAGIC.length];
+        if (codec != CODEC_DEFLATE) {
+            throw new IOException("unknown compression codec " + codec);
+        }
+        int length = readInt(bytes, MAGIC.length + 1);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            byte[] uncompressed = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(uncompressed, offset, length - offset);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if (offset != length) {
+                throw new IOException("compressed session is truncated");
+            }
+            return uncompressed;
+        } catch (DataFormatException ex) {
+            throw new IOException("compressed session is corrupt", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return number of payloads written compressed
+     */
+    public long getCompressedCount() {
+        return compressedCount.sum();
+    }
+
+    /**
+     * @return total size of compressed payloads before compression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    /**
+     * @return total size of compressed payloads after compression
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return time spent compressing, including attempts that did not pay off
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    /**
+     * @return compressed size divided by uncompressed size over all compressed payloads, {@code 1} if nothing was compressed
+     */
+    public double getCompressionRatio() {
+        long before = getUncompressedBytes();
+        return before == 0 ? 1 : (double) getCompressedBytes() / before;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+}
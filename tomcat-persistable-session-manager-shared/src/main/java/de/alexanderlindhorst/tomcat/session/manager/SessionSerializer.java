@@ -0,0 +1,68 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns sessions and single attribute values into bytes and back. Implementations need to be thread safe and must provide a
+ * public no-argument constructor, they are configured by class name on the {@link PersistableSessionManager}.
+ *
+ * @author alindhorst
+ */
+public interface SessionSerializer {
+
+    /**
+     * @param session session to serialize
+     * @return the serialized session
+     * @throws java.io.NotSerializableException if an attribute value cannot be serialized
+     * @throws IOException on any other serialization problem
+     */
+    byte[] serialize(PersistableSession session) throws IOException;
+
+    /**
+     * Streaming variant of {@link #serialize(PersistableSession)} used on the persist path to write into a reused buffer.
+     * This implementation writes the result of {@link #serialize(PersistableSession)}, serializers override it to avoid the
+     * intermediate array.
+     *
+     * @param session session to serialize
+     * @param out stream to write the serialized session to, not closed by this method
+     * @throws IOException on any serialization problem, see {@link #serialize(PersistableSession)}
+     */
+    default void serialize(PersistableSession session, OutputStream out) throws IOException {
+        out.write(serialize(session));
+    }
+
+    /**
+     * @param emptyShell session to fill with the serialized state
+     * @param bytes serialized session as created by {@link #serialize(PersistableSession)}
+     * @throws IOException if the bytes cannot be read
+     * @throws ClassNotFoundException if an attribute's class is not available
+     */
+    void deserializeInto(PersistableSession emptyShell, byte[] bytes) throws IOException, ClassNotFoundException;
+
+    /**
+     * Hash of a session serialized by this serializer leaving out its access times, so that a session only accessed since
+     * it was last written hashes the same and its write can be skipped. This implementation hashes all bytes, such sessions
+     * are written again.
+     *
+     * @param bytes serialized session as created by {@link #serialize(PersistableSession, OutputStream)}
+     * @param length number of bytes of the serialized session
+     * @return the hash
+     */
+    default long contentHash(byte[] bytes, int length) {
+        return PersistableSessionUtils.contentHash(bytes, length);
+    }
+
+    byte[] serializeAttribute(Object value) throws IOException;
+
+    Object deserializeAttribute(byte[] bytes) throws IOException, ClassNotFoundException;
+
+    /**
+     * @param bytes serialized session or attribute value
+     * @return {@code true} if the bytes were created by this serializer
+     */
+    boolean canDeserialize(byte[] bytes);
+}
@@ -0,0 +1,50 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.metrics;
+
+/**
+ * Receives every measurement taken by {@link SessionMetrics}, e.g. to forward it to a metrics library. Methods are called on
+ * the measuring thread, request threads included, so implementations must be thread safe and return quickly. They must
+ * provide a public no-argument constructor, they are configured by class name on the
+ * {@link de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager}.
+ *
+ * @author alindhorst
+ */
+public interface MetricsListener {
+
+    /**
+     * @param operation the backend operation
+     * @param nanos time the operation took
+     * @param failed {@code true} if the operation ended with an exception
+     */
+    default void backendOperation(SessionMetrics.Operation operation, long nanos, boolean failed) {
+    }
+
+    /**
+     * @param retries number of retries of a single backend call
+     */
+    default void backendRetried(int retries) {
+    }
+
+    /**
+     * @param bytes size of a serialized session before compression
+     */
+    default void sessionSerialized(int bytes) {
+    }
+
+    default void sessionLookup(SessionMetrics.Lookup lookup) {
+    }
+
+    /**
+     * A session was dropped from the local store to keep it within its configured limits; it is still in the backend.
+     */
+    default void sessionEvicted() {
+    }
+
+    /**
+     * @param nanos time a request waited for another request loading the same session from the backend
+     */
+    default void sessionLoadLockWaited(long nanos) {
+    }
+}
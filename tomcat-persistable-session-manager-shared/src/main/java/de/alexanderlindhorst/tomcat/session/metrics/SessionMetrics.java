@@ -0,0 +1,375 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Counters and histograms of the session manager and its backend. Recording only touches lock-free counters, so metrics
+ * stay on in production. Each measurement is also passed on to an optional {@link MetricsListener}.
+ *
+ * @author alindhorst
+ */
+public class SessionMetrics implements MetricsListener, SessionMetricsMBean {
+
+    public enum Operation {
+        PERSIST, GET, DELETE, EXPIRY, TOUCH
+    }
+
+    public enum Lookup {
+        /**
+         * session held by this node
+         */
+        LOCAL_HIT,
+        /**
+         * session held by this node and confirmed by the backend to be current
+         */
+        VALIDATED_HIT,
+        /**
+         * session deserialized from this node's off-heap copy
+         */
+        OFF_HEAP_HIT,
+        /**
+         * session loaded from the backend
+         */
+        BACKEND_LOAD,
+        /**
+         * session loaded by a concurrent request for the same session and shared with this one
+         */
+        SHARED_LOAD,
+        /**
+         * session neither held locally nor found in the backend
+         */
+        MISS
+    }
+
+    private static final double PERCENTILE_99 = 99;
+    private static final double PERCENTILE_50 = 50;
+    private static final double NANOS_PER_MICRO = 1000;
+    private final Map<Operation, Histogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> failures = new EnumMap<>(Operation.class);
+    private final Map<Lookup, LongAdder> lookups = new EnumMap<>(Lookup.class);
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Histogram serializedSizes = new Histogram();
+    private final Histogram lockWaits = new Histogram();
+    private volatile MetricsListener listener;
+
+    public SessionMetrics() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new Histogram());
+            failures.put(operation, new LongAdder());
+        }
+        for (Lookup lookup : Lookup.values()) {
+            lookups.put(lookup, new LongAdder());
+        }
+    }
+
+    /**
+     * @param listener listener to pass measurements on to, {@code null} for none
+     */
+    public void setListener(MetricsListener listener) {
+        this.listener = listener;
+    }
+
+    public MetricsListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public void backendOperation(Operation operation, long nanos, boolean failed) {
+        latencies.get(operation).record(nanos);
+        if (failed) {
+            failures.get(operation).increment();
+        }
+        MetricsListener current = listener;
+        if (current != null) {
+            current.backendOperation(operation, nanos, failed);
+        }
+    }
+
+    @Override
+    public void backendRetried(int retries) {
+        this.retries.add(retries);
+        MetricsListener current = listener;
+        if (current != null) {
+            current.backendRetried(retries);
+        }
+    }
+
+    @Override
+    public void sessionSerialized(int bytes) {
+        serializedSizes.record(bytes);
+        MetricsListener current = listener;
+        if (current != null) {
+            current.sessionSerialized(bytes);
+        }
+    }
+
+    @Override
+    public void sessionLookup(Lookup lookup) {
+        lookups.get(lookup).increment();
+        MetricsListener current = listener;
+        if (current != null) {
+            current.sessionLookup(lookup);
+        }
+    }
+
+    @Override
+    public void sessionEvicted() {
+        evictions.increment();
+        MetricsListener current = listener;
+        if (current != null) {
+            current.sessionEvicted();
+        }
+    }
+
+    @Override
+    public void sessionLoadLockWaited(long nanos) {
+        lockWaits.record(nanos);
+        MetricsListener current = listener;
+        if (current != null) {
+            current.sessionLoadLockWaited(nanos);
+        }
+    }
+
+    public Histogram getLatencies(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    public long getFailures(Operation operation) {
+        return failures.get(operation).sum();
+    }
+
+    public long getLookups(Lookup lookup) {
+        return lookups.get(lookup).sum();
+    }
+
+    public Histogram getSerializedSizes() {
+        return serializedSizes;
+    }
+
+    public Histogram getSessionLoadLockWaitTimes() {
+        return lockWaits;
+    }
+
+    @Override
+    public long getPersistCount() {
+        return getLatencies(Operation.PERSIST).getCount();
+    }
+
+    @Override
+    public long getPersistFailures() {
+        return getFailures(Operation.PERSIST);
+    }
+
+    @Override
+    public double getPersistMeanMicros() {
+        return meanMicros(getLatencies(Operation.PERSIST));
+    }
+
+    @Override
+    public long getPersistP99Micros() {
+        return micros(getLatencies(Operation.PERSIST).getPercentile(PERCENTILE_99));
+    }
+
+    @Override
+    public long getPersistMaxMicros() {
+        return micros(getLatencies(Operation.PERSIST).getMax());
+    }
+
+    @Override
+    public long getGetCount() {
+        return getLatencies(Operation.GET).getCount();
+    }
+
+    @Override
+    public long getGetFailures() {
+        return getFailures(Operation.GET);
+    }
+
+    @Override
+    public double getGetMeanMicros() {
+        return meanMicros(getLatencies(Operation.GET));
+    }
+
+    @Override
+    public long getGetP99Micros() {
+        return micros(getLatencies(Operation.GET).getPercentile(PERCENTILE_99));
+    }
+
+    @Override
+    public long getGetMaxMicros() {
+        return micros(getLatencies(Operation.GET).getMax());
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return getLatencies(Operation.DELETE).getCount();
+    }
+
+    @Override
+    public long getDeleteFailures() {
+        return getFailures(Operation.DELETE);
+    }
+
+    @Override
+    public double getDeleteMeanMicros() {
+        return meanMicros(getLatencies(Operation.DELETE));
+    }
+
+    @Override
+    public long getDeleteP99Micros() {
+        return micros(getLatencies(Operation.DELETE).getPercentile(PERCENTILE_99));
+    }
+
+    @Override
+    public long getDeleteMaxMicros() {
+        return micros(getLatencies(Operation.DELETE).getMax());
+    }
+
+    @Override
+    public long getExpiryCount() {
+        return getLatencies(Operation.EXPIRY).getCount();
+    }
+
+    @Override
+    public long getExpiryFailures() {
+        return getFailures(Operation.EXPIRY);
+    }
+
+    @Override
+    public double getExpiryMeanMicros() {
+        return meanMicros(getLatencies(Operation.EXPIRY));
+    }
+
+    @Override
+    public long getExpiryP99Micros() {
+        return micros(getLatencies(Operation.EXPIRY).getPercentile(PERCENTILE_99));
+    }
+
+    @Override
+    public long getExpiryMaxMicros() {
+        return micros(getLatencies(Operation.EXPIRY).getMax());
+    }
+
+    @Override
+    public long getTouchCount() {
+        return getLatencies(Operation.TOUCH).getCount();
+    }
+
+    @Override
+    public long getTouchFailures() {
+        return getFailures(Operation.TOUCH);
+    }
+
+    @Override
+    public double getTouchMeanMicros() {
+        return meanMicros(getLatencies(Operation.TOUCH));
+    }
+
+    @Override
+    public long getTouchP99Micros() {
+        return micros(getLatencies(Operation.TOUCH).getPercentile(PERCENTILE_99));
+    }
+
+    @Override
+    public long getTouchMaxMicros() {
+        return micros(getLatencies(Operation.TOUCH).getMax());
+    }
+
+    @Override
+    public long getBackendRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public double getSerializedSizeMean() {
+        return serializedSizes.getMean();
+    }
+
+    @Override
+    public long getSerializedSizeP50() {
+        return serializedSizes.getPercentile(PERCENTILE_50);
+    }
+
+    @Override
+    public long getSerializedSizeP99() {
+        return serializedSizes.getPercentile(PERCENTILE_99);
+    }
+
+    @Override
+    public long getSerializedSizeMax() {
+        return serializedSizes.getMax();
+    }
+
+    @Override
+    public long getLocalHits() {
+        return getLookups(Lookup.LOCAL_HIT);
+    }
+
+    @Override
+    public long getValidatedHits() {
+        return getLookups(Lookup.VALIDATED_HIT);
+    }
+
+    @Override
+    public long getOffHeapHits() {
+        return getLookups(Lookup.OFF_HEAP_HIT);
+    }
+
+    @Override
+    public long getBackendLoads() {
+        return getLookups(Lookup.BACKEND_LOAD);
+    }
+
+    @Override
+    public long getSharedLoads() {
+        return getLookups(Lookup.SHARED_LOAD);
+    }
+
+    @Override
+    public long getLookupMisses() {
+        return getLookups(Lookup.MISS);
+    }
+
+    @Override
+    public double getLocalHitRatio() {
+        long localHits = getLocalHits() + getOffHeapHits();
+        long found = localHits + getValidatedHits() + getBackendLoads() + getSharedLoads();
+        return found == 0 ? 0 : (double) localHits / found;
+    }
+
+    @Override
+    public long getLocalEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getSessionLoadLockWaits() {
+        return lockWaits.getCount();
+    }
+
+    @Override
+    public double getSessionLoadLockWaitMeanMicros() {
+        return meanMicros(lockWaits);
+    }
+
+    @Override
+    public long getSessionLoadLockWaitMaxMicros() {
+        return micros(lockWaits.getMax());
+    }
+
+    private static double meanMicros(Histogram histogram) {
+        return histogram.getMean() / NANOS_PER_MICRO;
+    }
+
+    private static long micros(long nanos) {
+        return NANOSECONDS.toMicros(nanos);
+    }
+}
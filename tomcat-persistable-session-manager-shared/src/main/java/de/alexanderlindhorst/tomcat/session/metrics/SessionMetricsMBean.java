@@ -0,0 +1,105 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.metrics;
+
+/**
+ * JMX view of {@link SessionMetrics}. Latencies are given in microseconds, percentiles as upper bound of the histogram bucket
+ * holding them.
+ *
+ * @author alindhorst
+ */
+public interface SessionMetricsMBean {
+
+    long getPersistCount();
+
+    long getPersistFailures();
+
+    double getPersistMeanMicros();
+
+    long getPersistP99Micros();
+
+    long getPersistMaxMicros();
+
+    long getGetCount();
+
+    long getGetFailures();
+
+    double getGetMeanMicros();
+
+    long getGetP99Micros();
+
+    long getGetMaxMicros();
+
+    long getDeleteCount();
+
+    long getDeleteFailures();
+
+    double getDeleteMeanMicros();
+
+    long getDeleteP99Micros();
+
+    long getDeleteMaxMicros();
+
+    long getExpiryCount();
+
+    long getExpiryFailures();
+
+    double getExpiryMeanMicros();
+
+    long getExpiryP99Micros();
+
+    long getExpiryMaxMicros();
+
+    long getTouchCount();
+
+    long getTouchFailures();
+
+    double getTouchMeanMicros();
+
+    long getTouchP99Micros();
+
+    long getTouchMaxMicros();
+
+    long getBackendRetries();
+
+    double getSerializedSizeMean();
+
+    long getSerializedSizeP50();
+
+    long getSerializedSizeP99();
+
+    long getSerializedSizeMax();
+
+    long getLocalHits();
+
+    long getValidatedHits();
+
+    long getOffHeapHits();
+
+    long getBackendLoads();
+
+    /**
+     * @return number of lookups that waited for a concurrent request loading the same session and used its result
+     */
+    long getSharedLoads();
+
+    long getLookupMisses();
+
+    /**
+     * @return share of found sessions that were held locally and used without asking the backend, {@code 0} if no session
+     * was found yet
+     */
+    double getLocalHitRatio();
+
+    /**
+     * @return number of sessions dropped from the local store to keep it within its limits
+     */
+    long getLocalEvictions();
+
+    long getSessionLoadLockWaits();
+
+    double getSessionLoadLockWaitMeanMicros();
+
+    long getSessionLoadLockWaitMaxMicros();
+}
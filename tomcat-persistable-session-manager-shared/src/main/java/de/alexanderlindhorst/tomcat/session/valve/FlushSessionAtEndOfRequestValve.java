@@ -0,0 +1,59 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.valve;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+/**
+ * Persists the session of the current request once after the request has been processed. Meant to be used together with a
+ * {@link PersistableSessionManager} configured with flush mode {@value PersistableSessionManager#FLUSH_MODE_END_OF_REQUEST}, so
+ * that all attribute changes done during a request are coalesced into a single write to the backend.
+ *
+ * @author alindhorst
+ */
+public class FlushSessionAtEndOfRequestValve extends ValveBase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlushSessionAtEndOfRequestValve.class);
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            flush(request);
+        }
+    }
+
+    private void flush(Request request) {
+        //not a known manager -> nothing to flush
+        Manager m = request.getContext().getManager();
+        if (!(m instanceof PersistableSessionManager)) {
+            LOGGER.debug("No compatible session manager found, skipping execution");
+            return;
+        }
+        //invalidated or never created sessions are not returned here
+        Session session = request.getSessionInternal(false);
+        if (!(session instanceof PersistableSession)) {
+            return;
+        }
+        try {
+            ((PersistableSessionManager) m).storeSession((PersistableSession) session);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Couldn't persist session " + session.getId() + " at end of request", ex);
+        }
+    }
+}
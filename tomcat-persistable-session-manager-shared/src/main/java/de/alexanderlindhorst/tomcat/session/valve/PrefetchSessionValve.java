@@ -0,0 +1,55 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.valve;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Starts reading the requested session from the backend as soon as the request enters this valve, so that the backend
+ * latency overlaps with the valves and filters processed before the session is asked for. Meant to be configured as early
+ * as possible, e.g. on the host, ahead of the {@link AdjustSessionIdToJvmRouteValve}. Helps most on failover, when many
+ * requests arrive at a node not holding their sessions.
+ *
+ * @author alindhorst
+ */
+public class PrefetchSessionValve extends ValveBase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchSessionValve.class);
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        //not a known manager -> nothing to prefetch
+        Context context = request.getContext();
+        Manager m = context != null ? context.getManager() : null;
+        String requestedSessionId = request.getRequestedSessionId();
+        if (!(m instanceof PersistableSessionManager) || isNullOrEmpty(requestedSessionId)) {
+            LOGGER.debug("No compatible session manager or no requested session, skipping execution");
+            getNext().invoke(request, response);
+            return;
+        }
+        PersistableSessionManager manager = (PersistableSessionManager) m;
+        boolean prefetching = manager.prefetchSession(requestedSessionId);
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            if (prefetching) {
+                manager.discardPrefetchedSession(requestedSessionId);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.catalina.Context;
+import org.apache.juli.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author alindhorst
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class AsyncBackendServiceBaseTest {
+
+    @Mock
+    private PersistableSessionManager manager;
+    @Mock
+    private Context context;
+    @Mock
+    private Log logger;
+    private ControlledBackendService instance;
+
+    @Before
+    public void setUp() {
+        when(manager.getContext()).thenReturn(context);
+        when(context.getApplicationLifecycleListeners()).thenReturn(new Object[0]);
+        when(context.getLogger()).thenReturn(logger);
+        when(logger.isDebugEnabled()).thenReturn(Boolean.FALSE);
+        when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+        instance = new ControlledBackendService();
+        instance.init();
+    }
+
+    private PersistableSession createSession(String id) {
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId(id);
+        session.setDirty(true);
+        return session;
+    }
+
+    @Test
+    public void persistSessionAsyncReturnsBeforeWriteCompletes() {
+        PersistableSession session = createSession("session.host");
+
+        CompletableFuture<Void> persisted = instance.persistSessionAsync(session);
+
+        assertThat(persisted.isDone(), is(false));
+        assertThat(session.isDirty(), is(false));
+        instance.complete(0, "v1");
+        assertThat(persisted.isDone(), is(true));
+        assertThat(session.getBackendVersion(), is("v1"));
+    }
+
+    @Test
+    public void writesOfSameSessionStartOnlyOncePreviousWriteCompleted() {
+        PersistableSession session = createSession("session.host");
+
+        instance.persistSessionAsync(session);
+        instance.persistSessionAsync(session);
+
+        assertThat(instance.operations, is(newArrayList("persist session")));
+        instance.complete(0, "v1");
+        assertThat(instance.operations, is(newArrayList("persist session", "persist session")));
+    }
+
+    @Test
+    public void writesOfDifferentSessionsRunConcurrently() {
+        instance.persistSessionAsync(createSession("first.host"));
+        instance.persistSessionAsync(createSession("second.host"));
+
+        assertThat(instance.operations, is(newArrayList("persist first", "persist second")));
+    }
+
+    @Test
+    public void failedWriteMarksSessionDirtyAgain() {
+        PersistableSession session = createSession("session.host");
+
+        CompletableFuture<Void> persisted = instance.persistSessionAsync(session);
+        instance.fail(0, new IllegalStateException("backend down"));
+
+        assertThat(persisted.isCompletedExceptionally(), is(true));
+        assertThat(session.isDirty(), is(true));
+        assertThat(instance.getSessionMetrics().getPersistFailures(), is(1L));
+    }
+
+    @Test
+    public void deleteStartsOnlyOncePendingWriteCompleted() {
+        PersistableSession session = createSession("session.host");
+        instance.persistSessionAsync(session);
+
+        CompletableFuture<Void> deleted = instance.deleteSessionAsync(session);
+
+        assertThat(instance.operations, is(newArrayList("persist session")));
+        instance.complete(0, "v1");
+        assertThat(instance.operations, is(newArrayList("persist session", "delete session")));
+        instance.complete(1, null);
+        assertThat(deleted.isDone(), is(true));
+    }
+
+    @Test
+    public void getSessionIfModifiedReturnsCachedSessionWhileWriteIsInFlight() {
+        PersistableSession session = createSession("session.host");
+        instance.persistSessionAsync(session);
+
+        PersistableSession found = instance.getSessionIfModified(session, new PersistableSession(manager), "session");
+
+        assertThat(found, is(sameInstance(session)));
+        assertThat(instance.reads.get(), is(0));
+    }
+
+    @Test
+    public void persistSessionWaitsForAsynchronousWrite() {
+        instance.completeImmediately = true;
+        PersistableSession session = createSession("session.host");
+
+        instance.persistSession(session);
+
+        assertThat(session.getBackendVersion(), is("immediate"));
+        assertThat(instance.operations, is(newArrayList("persist session")));
+    }
+
+    @Test
+    public void deltaWriteRunsAsynchronously() {
+        instance.setDeltaPersistence(true);
+        PersistableSession session = createSession("session.host");
+        session.setAttribute("attribute", "value");
+
+        CompletableFuture<Void> persisted = instance.persistSessionAsync(session);
+
+        assertThat(persisted.isDone(), is(false));
+        assertThat(instance.operations, is(newArrayList("delta session")));
+        instance.complete(0, "v1");
+        assertThat(persisted.isDone(), is(true));
+        assertThat(session.getBackendVersion(), is("v1"));
+        assertThat(session.isAttributesPersisted(), is(true));
+    }
+
+    @Test
+    public void failedDeltaWriteRequiresCompleteDeltaNextTime() {
+        instance.setDeltaPersistence(true);
+        PersistableSession session = createSession("session.host");
+        session.setAttribute("attribute", "value");
+
+        CompletableFuture<Void> persisted = instance.persistSessionAsync(session);
+        instance.fail(0, new IllegalStateException("backend down"));
+
+        assertThat(persisted.isCompletedExceptionally(), is(true));
+        assertThat(session.isDirty(), is(true));
+        assertThat(session.isAttributesPersisted(), is(false));
+    }
+
+    @Test
+    public void failedDeleteOfPartitionSweepLeavesOtherSessionsRemoved() {
+        ExpiryPartition partition = new ExpiryPartition(0, 2);
+        List<String> expired = newArrayList();
+        for (int i = 0; expired.size() < 2; i++) {
+            if (partition.contains("session" + i)) {
+                expired.add("session" + i);
+            }
+        }
+        instance.expired.addAll(expired);
+
+        CompletableFuture<List<String>> removed = instance.removeExpiredSessionsInternalAsync(partition);
+        instance.fail(0, new IllegalStateException("backend down"));
+        instance.complete(1, null);
+
+        assertThat(removed.join(), is(newArrayList(expired.get(1))));
+    }
+
+    /**
+     * Completes its operations only when told to.
+     */
+    private static final class ControlledBackendService extends AsyncBackendServiceBase {
+
+        private final List<String> operations = newArrayList();
+        private final List<CompletableFuture<Object>> pending = newArrayList();
+        private final AtomicInteger reads = new AtomicInteger();
+        private final List<String> expired = newArrayList();
+        private boolean completeImmediately;
+
+        @SuppressWarnings("unchecked")
+        private <T> CompletableFuture<T> start(String operation) {
+            operations.add(operation);
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            pending.add(future);
+            if (completeImmediately) {
+                future.complete("immediate");
+            }
+            return (CompletableFuture<T>) future;
+        }
+
+        private void complete(int index, Object value) {
+            pending.get(index).complete(value);
+        }
+
+        private void fail(int index, Throwable cause) {
+            pending.get(index).completeExceptionally(cause);
+        }
+
+        @Override
+        protected CompletableFuture<String> persistSessionInternalAsync(String sessionId, byte[] bytes,
+                String knownVersion) {
+            return start("persist " + sessionId);
+        }
+
+        @Override
+        protected CompletableFuture<String> persistSessionDeltaInternalAsync(String sessionId, SessionDelta delta,
+                String knownVersion) {
+            return start("delta " + sessionId);
+        }
+
+        @Override
+        protected DeltaWriter getDeltaWriter() {
+            return (sessionId, delta, knownVersion) -> await(persistSessionDeltaInternalAsync(sessionId, delta, knownVersion));
+        }
+
+        @Override
+        protected CompletableFuture<Void> deleteSessionInternalAsync(String sessionId) {
+            return start("delete " + sessionId);
+        }
+
+        @Override
+        protected CompletableFuture<List<String>> removeExpiredSessionsInternalAsync() {
+            return CompletableFuture.completedFuture(Collections.<String>emptyList());
+        }
+
+        @Override
+        protected byte[] getSessionInternal(String sessionId) {
+            reads.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+            reads.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public List<String> getExpiredSessionIds() {
+            return expired;
+        }
+    }
+}
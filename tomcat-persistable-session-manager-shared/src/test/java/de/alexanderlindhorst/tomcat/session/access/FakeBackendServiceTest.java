@@ -4,6 +4,8 @@
 package de.alexanderlindhorst.tomcat.session.access;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -19,8 +21,11 @@ import org.slf4j.LoggerFactory;
 
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+import de.alexanderlindhorst.tomcat.session.manager.SessionCompressor;
 import de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
 
+import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
 import static de.alexanderlindhorst.tomcat.session.access.BackendServiceBase.SESSIONS_NEVER_EXPIRE;
 import static de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils.serializeSession;
@@ -28,7 +33,12 @@ import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.g
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
 import static java.lang.System.currentTimeMillis;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -54,6 +64,7 @@ public class FakeBackendServiceTest {
         when(context.getLogger()).thenReturn(logger);
         when(logger.isDebugEnabled()).thenReturn(Boolean.FALSE);
         when(manager.getJvmRoute()).thenReturn(jvmRoute);
+        when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
     }
 
     @After
@@ -236,6 +247,162 @@ public class FakeBackendServiceTest {
         assertThat(lastAccessReadBack.size(), is(2));
     }
 
+    private void storeSessionsAccessedSecondsAgo(long... secondsAgo) throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        Map<String, byte[]> sessionStore = newHashMap();
+        Map<String, Long> lastAccessed = newHashMap();
+        for (int i = 0; i < secondsAgo.length; i++) {
+            sessionStore.put(Integer.toString(i + 1), new byte[0]);
+            lastAccessed.put(Integer.toString(i + 1), currentTimeMillis() - secondsAgo[i] * 1000);
+        }
+        setFieldValueForObject(instance, "sessionStore", sessionStore);
+        setFieldValueForObject(instance, "lastAccessed", lastAccessed);
+    }
+
+    @Test
+    public void removeExpiredSessionsSkipsSweepWhileAnotherNodeHoldsLease() throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        storeSessionsAccessedSecondsAgo(0, 10, 100);
+        instance.setSessionExpiryThreshold(30000);
+        instance.setExpirySweepLeaseSeconds(60);
+        instance.acquireExpirySweepLease(ExpiryPartition.ALL.getLeaseName(), "other node", 60000);
+
+        List<String> removedSessions = instance.removeExpiredSessions();
+
+        assertThat(removedSessions.isEmpty(), is(true));
+        assertThat(instance.getExpiredSessionIds(), is(newArrayList("3")));
+    }
+
+    @Test
+    public void removeExpiredSessionsTakesOverLeaseThatRanOut() throws IllegalArgumentException, IllegalAccessException,
+            NoSuchFieldException {
+        storeSessionsAccessedSecondsAgo(0, 10, 100);
+        instance.setSessionExpiryThreshold(30000);
+        instance.setExpirySweepLeaseSeconds(60);
+        instance.acquireExpirySweepLease(ExpiryPartition.ALL.getLeaseName(), "other node", 0);
+
+        List<String> removedSessions = instance.removeExpiredSessions();
+
+        assertThat(removedSessions, is(newArrayList("3")));
+        assertThat(instance.acquireExpirySweepLease(ExpiryPartition.ALL.getLeaseName(), "other node", 60000), is(false));
+    }
+
+    @Test
+    public void removeExpiredSessionsTakesOverOnePartitionPerSweep() throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        //"2" and "3" hash to different partitions of two
+        storeSessionsAccessedSecondsAgo(0, 100, 100);
+        instance.setSessionExpiryThreshold(30000);
+        instance.setExpirySweepLeaseSeconds(60);
+        instance.setExpirySweepPartitions(2);
+
+        List<String> firstSweep = instance.removeExpiredSessions();
+        List<String> secondSweep = instance.removeExpiredSessions();
+
+        assertThat(firstSweep.size(), is(1));
+        assertThat(secondSweep.size(), is(1));
+        assertThat(instance.getExpiredSessionIds().isEmpty(), is(true));
+        assertThat(instance.acquireExpirySweepLease(new ExpiryPartition(0, 2).getLeaseName(), "other node", 60000),
+                is(false));
+        assertThat(instance.acquireExpirySweepLease(new ExpiryPartition(1, 2).getLeaseName(), "other node", 60000),
+                is(false));
+    }
+
+    @Test
+    public void removeExpiredSessionsLeavesPartitionsHeldByOtherNodes() throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        storeSessionsAccessedSecondsAgo(0, 100, 100);
+        instance.setSessionExpiryThreshold(30000);
+        instance.setExpirySweepLeaseSeconds(60);
+        instance.setExpirySweepPartitions(2);
+        instance.acquireExpirySweepLease(new ExpiryPartition(1, 2).getLeaseName(), "other node", 60000);
+
+        List<String> removedSessions = instance.removeExpiredSessions();
+
+        assertThat(removedSessions, is(newArrayList("2")));
+        assertThat(instance.removeExpiredSessions().isEmpty(), is(true));
+        assertThat(instance.getExpiredSessionIds(), is(newArrayList("3")));
+    }
+
+    @Test
+    public void removeExpiredSessionsSweepsNothingWhenExpiringNatively() throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        storeSessionsAccessedSecondsAgo(0, 100);
+        instance.setSessionExpiryThreshold(30000);
+        instance.setNativeExpiry(true);
+
+        List<String> removedSessions = instance.removeExpiredSessions();
+
+        assertThat(instance.isExpiringNatively(), is(true));
+        assertThat(removedSessions.isEmpty(), is(true));
+        assertThat(instance.getSessionInternal("1"), is(not(nullValue())));
+        assertThat(instance.getSessionInternal("2"), is(nullValue()));
+        assertThat(instance.getExpiredSessionIds().isEmpty(), is(true));
+    }
+
+    @Test
+    public void touchSessionsKeepsStoredSessionsFromExpiring() throws IllegalArgumentException, IllegalAccessException,
+            NoSuchFieldException {
+        storeSessionsAccessedSecondsAgo(100, 100);
+        instance.setSessionExpiryThreshold(30000);
+        PersistableSession stored = new PersistableSession(manager);
+        stored.setId("1");
+        PersistableSession unknown = new PersistableSession(manager);
+        unknown.setId("3");
+
+        instance.touchSessions(Arrays.asList(stored, unknown));
+
+        assertThat(instance.removeExpiredSessions(), is(newArrayList("2")));
+        assertThat(stored.getLastPersistedTime() > 0, is(true));
+        assertThat(unknown.getLastPersistedTime(), is(0L));
+        assertThat(instance.getSessionInternal("3"), is(nullValue()));
+    }
+
+    @Test
+    public void touchSessionsTakesVersionOfTouchUnlessWrittenMeanwhile() {
+        PersistableSession current = new PersistableSession(manager);
+        current.setId("current");
+        current.setBackendVersion("v1");
+        PersistableSession writtenMeanwhile = new PersistableSession(manager);
+        writtenMeanwhile.setId("writtenMeanwhile");
+        writtenMeanwhile.setBackendVersion("v1");
+        Map<String, String> knownVersions = new HashMap<>();
+        instance = new FakeBackendService() {
+            @Override
+            protected Map<String, String> touchSessionsInternal(Map<String, String> versions) {
+                knownVersions.putAll(versions);
+                Map<String, String> touched = new HashMap<>();
+                versions.keySet().forEach(id -> touched.put(id, "touched"));
+                writtenMeanwhile.setBackendVersion("written");
+                return touched;
+            }
+        };
+
+        instance.touchSessions(Arrays.asList(current, writtenMeanwhile));
+
+        assertThat(knownVersions.get("current"), is("v1"));
+        assertThat(current.getBackendVersion(), is("touched"));
+        assertThat(writtenMeanwhile.getBackendVersion(), is("written"));
+        assertThat(writtenMeanwhile.getLastPersistedTime() > 0, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void touchesWithoutOneInFlightAreRejected() {
+        instance.setMaxTouchesInFlight(0);
+    }
+
+    @Test
+    public void nativeExpiryIsOffForSessionsThatNeverExpire() {
+        instance.setNativeExpiry(true);
+
+        assertThat(instance.isExpiringNatively(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void expirySweepWithoutPartitionsIsRejected() {
+        instance.setExpirySweepPartitions(0);
+    }
+
     @Test
     public void getSessionManagementLoggerReturnsSetLogger() {
         Logger testLogger = LoggerFactory.getLogger("TestLogger");
@@ -244,6 +411,335 @@ public class FakeBackendServiceTest {
         assertThat(instance.getSessionManagementLogger(), is(testLogger));
     }
 
+    @Test
+    public void persistSessionWithWriteBehindIsDrainedOnShutdown() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        instance.setWriteBehindThreads(2);
+        instance.init();
+        for (int i = 0; i < 20; i++) {
+            PersistableSession session = new PersistableSession(manager);
+            session.setId("session" + i);
+            session.setDirty(true);
+            instance.persistSession(session);
+            assertThat(session.isDirty(), is(false));
+        }
+
+        instance.shutdown();
+
+        @SuppressWarnings("unchecked")
+        Map<String, byte[]> map = (Map<String, byte[]>) getFieldValueFromObject(instance, "sessionStore");
+        assertThat(map.size(), is(20));
+        assertThat(instance.getPendingWriteCount(), is(0));
+    }
+
+    @Test
+    public void getSessionWithWriteBehindSeesPendingWrite() {
+        instance.setWriteBehindThreads(1);
+        instance.setWriteBehindQueueCapacity(10);
+        instance.setWriteBehindBackpressure(BackendServiceBase.BACKPRESSURE_BLOCK);
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setId("session");
+        instance.persistSession(session);
+
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+
+        assertThat(found.getId(), is("session"));
+    }
+
+    @Test
+    public void backendVersionIsPassedOnAndUpdatedByPersistAndGet() {
+        List<String> knownVersions = newArrayList();
+        instance = new FakeBackendService() {
+            @Override
+            protected String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
+                knownVersions.add(knownVersion);
+                super.persistSessionInternal(sessionId, bytes);
+                return "v" + knownVersions.size();
+            }
+
+            @Override
+            protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+                return new VersionedBytes(getSessionInternal(sessionId), "fetched");
+            }
+        };
+        PersistableSession session = new PersistableSession(manager);
+        session.setId("session");
+
+        instance.persistSession(session);
+        instance.persistSession(session);
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+
+        assertThat(knownVersions, is(newArrayList(null, "v1")));
+        assertThat(session.getBackendVersion(), is("v2"));
+        assertThat(found.getBackendVersion(), is("fetched"));
+    }
+
+    @Test
+    public void deltaPersistenceStoresAndVersionsAttributesIndividually() {
+        instance.setDeltaPersistence(true);
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        session.setAttribute("cart", "three items");
+        session.setAttribute("counter", 1);
+        instance.persistSession(session);
+
+        session.setAttribute("counter", 2);
+        instance.persistSession(session);
+
+        assertThat(instance.getAttributeVersion("session", "cart"), is("1"));
+        assertThat(instance.getAttributeVersion("session", "counter"), is("2"));
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+        assertThat(found.getAttribute("cart"), is("three items"));
+        assertThat(found.getAttribute("counter"), is(2));
+    }
+
+    @Test
+    public void deltaPersistenceWithWriteBehindMergesPendingDeltas() {
+        instance.setDeltaPersistence(true);
+        instance.setWriteBehindThreads(1);
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        for (int i = 0; i < 50; i++) {
+            session.setAttribute("attribute" + (i % 5), i);
+            instance.persistSession(session);
+        }
+        session.removeAttribute("attribute0");
+        instance.persistSession(session);
+
+        instance.shutdown();
+
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+        assertThat(found.getAttribute("attribute0"), is(nullValue()));
+        assertThat(found.getAttribute("attribute4"), is(49));
+    }
+
+    @Test
+    public void persistingUnchangedSessionIsSkipped() {
+        List<String> written = newArrayList();
+        instance = new FakeBackendService() {
+            @Override
+            protected void persistSessionInternal(String sessionId, byte[] bytes) {
+                written.add(sessionId);
+                super.persistSessionInternal(sessionId, bytes);
+            }
+        };
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setCreationTime(currentTimeMillis() - 1000);
+        session.setId("session");
+        session.setAttribute("counter", 1);
+
+        instance.persistSession(session);
+        session.access();
+        session.setAttribute("counter", 1);
+        session.setDirty(true);
+        session.endAccess();
+        instance.persistSession(session);
+
+        assertThat(written.size(), is(1));
+        assertThat(instance.getSkippedWriteCount(), is(1L));
+        assertThat(session.isDirty(), is(false));
+
+        session.setAttribute("counter", 2);
+        session.setDirty(true);
+        instance.persistSession(session);
+
+        assertThat(written.size(), is(2));
+    }
+
+    @Test
+    public void unchangedSessionIsWrittenOnceHalfTheExpiryThresholdPassed() {
+        instance.setSessionExpiryThreshold(60000);
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+
+        session.setDirty(true);
+        session.setLastPersistedTime(currentTimeMillis() - 30001);
+        instance.persistSession(session);
+
+        assertThat(instance.getSkippedWriteCount(), is(0L));
+        assertThat(session.getLastPersistedTime() > currentTimeMillis() - 30000, is(true));
+    }
+
+    @Test
+    public void unchangedSessionNotMarkedDirtyIsWritten() {
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+
+        instance.persistSession(session);
+
+        assertThat(instance.getSkippedWriteCount(), is(0L));
+    }
+
+    @Test
+    public void persistedSessionRemembersSerializedSizeAndIsStoredExactly() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        session.setAttribute("cart", String.join(",", Collections.nCopies(500, "article")));
+
+        instance.persistSession(session);
+
+        byte[] stored = instance.getSessionInternal("session");
+        assertThat(session.getSerializedSizeHint(), is(stored.length));
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+        assertThat(found.getAttribute("cart"), is(String.join(",", Collections.nCopies(500, "article"))));
+    }
+
+    @Test
+    public void backendOperationsAreMeasured() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+
+        instance.persistSession(session);
+        instance.getSession(new PersistableSession(manager), "session");
+        instance.deleteSession(session);
+        instance.removeExpiredSessions();
+
+        SessionMetrics metrics = instance.getSessionMetrics();
+        assertThat(metrics.getPersistCount(), is(1L));
+        assertThat(metrics.getGetCount(), is(1L));
+        assertThat(metrics.getDeleteCount(), is(1L));
+        assertThat(metrics.getExpiryCount(), is(1L));
+        assertThat(metrics.getSerializedSizeMax(), is((long) session.getSerializedSizeHint()));
+    }
+
+    @Test
+    public void getSessionIfNewerAnswersNotModifiedForCurrentVersion() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+
+        assertThat(instance.getSessionIfNewer("session", session.getBackendVersion()),
+                is(sameInstance(VersionedBytes.NOT_MODIFIED)));
+    }
+
+    @Test
+    public void getSessionIfNewerReturnsNewerVersion() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+        String knownVersion = session.getBackendVersion();
+        session.setAttribute("cart", "three items");
+        instance.persistSession(session);
+
+        VersionedBytes newer = instance.getSessionIfNewer("session", knownVersion);
+
+        assertThat(newer.getVersion(), is(session.getBackendVersion()));
+        assertThat(newer.getVersion(), is(not(knownVersion)));
+        assertThat(Arrays.equals(newer.getBytes(), serializeSession(session)), is(true));
+    }
+
+    @Test
+    public void getSessionIfNewerWithoutKnownVersionReadsSession() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+
+        VersionedBytes read = instance.getSessionIfNewer("session", null);
+
+        assertThat(read.getVersion(), is(session.getBackendVersion()));
+        assertThat(instance.getSessionIfNewer("unknown", null), is(nullValue()));
+    }
+
+    @Test
+    public void getSessionIfModifiedReturnsCachedSessionWhileUnchanged() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+
+        PersistableSession found = instance.getSessionIfModified(session, new PersistableSession(manager), "session");
+
+        assertThat(found, is(sameInstance(session)));
+        assertThat(instance.getSessionMetrics().getGetCount(), is(1L));
+    }
+
+    @Test
+    public void getSessionIfModifiedReadsSessionChangedByOtherNode() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+        PersistableSession otherNodesCopy = instance.getSession(new PersistableSession(manager), "session");
+        otherNodesCopy.setAttribute("cart", "three items");
+        instance.persistSession(otherNodesCopy);
+
+        PersistableSession found = instance.getSessionIfModified(session, new PersistableSession(manager), "session");
+
+        assertThat(found, is(not(sameInstance(session))));
+        assertThat(found.getAttribute("cart"), is("three items"));
+        assertThat(found.getBackendVersion(), is(otherNodesCopy.getBackendVersion()));
+    }
+
+    @Test
+    public void getSessionIfModifiedReturnsNullForDeletedSession() {
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        instance.persistSession(session);
+        instance.deleteSession(session);
+
+        assertThat(instance.getSessionIfModified(session, new PersistableSession(manager), "session"), is(nullValue()));
+    }
+
+    @Test
+    public void compressedSessionIsStoredAndLoaded() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        instance.setCompression(SessionCompressor.COMPRESSION_FAST);
+        instance.setCompressionThreshold(0);
+        instance.init();
+        PersistableSession session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("session");
+        session.setAttribute("cart", String.join(",", Collections.nCopies(500, "article")));
+
+        instance.persistSession(session);
+
+        @SuppressWarnings("unchecked")
+        Map<String, byte[]> map = (Map<String, byte[]>) getFieldValueFromObject(instance, "sessionStore");
+        assertThat(SessionCompressor.isCompressed(map.get("session")), is(true));
+        assertThat(instance.getSessionCompressor().getCompressedCount(), is(1L));
+        PersistableSession found = instance.getSession(new PersistableSession(manager), "session");
+        assertThat(found.getAttribute("cart"), is(session.getAttribute("cart")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCompressionIsRejected() {
+        instance.setCompression("lz4");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownExpiryIndexIsRejected() {
+        instance.setExpiryIndex("lastModified");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownWriteBehindBackpressureIsRejected() {
+        instance.setWriteBehindBackpressure("sometimes");
+    }
+
     @Test
     public void shutdownCorrectlySignaled() {
         instance.shutdown();
@@ -74,6 +74,31 @@ public class MultipleEndpointBackendServiceTest {
         delegates.forEach(delegate -> assertThat(addresses.contains(delegate.getBackendAddress()), is(true)));
     }
 
+    @Test
+    public void connectionPoolSettingsArePassedToAllDelegates() throws NoSuchFieldException, IllegalArgumentException,
+            IllegalAccessException {
+        instance.setBackendServiceType(FakeBackendService.class.getCanonicalName());
+        instance.setBackendAddress("a;b");
+        instance.setMinConnections(2);
+        instance.setMaxConnections(20);
+        instance.setConnectionIdleTimeout(5000);
+        instance.setConnectionTimeout(300);
+        instance.setBlockOnMaxConnections(true);
+        instance.init();
+
+        @SuppressWarnings("unchecked")
+        List<FakeBackendService> delegates = (List<FakeBackendService>) getFieldValueFromObject(instance,
+                "endpointDelegates");
+
+        delegates.forEach(delegate -> {
+            assertThat(delegate.getMinConnections(), is(2));
+            assertThat(delegate.getMaxConnections(), is(20));
+            assertThat(delegate.getConnectionIdleTimeout(), is(5000));
+            assertThat(delegate.getConnectionTimeout(), is(300));
+            assertThat(delegate.isBlockOnMaxConnections(), is(true));
+        });
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void nullBackendAddressThrowsException() {
         instance.setBackendServiceType(FakeBackendService.class.getCanonicalName());
@@ -145,6 +170,30 @@ public class MultipleEndpointBackendServiceTest {
         assertThat(instance.getSession(session, "id"), is(nullValue()));
     }
 
+    @Test
+    public void getSessionIfNewerReadsSessionCompletelyFromFirstEndpointHavingIt() {
+        VersionedBytes found = new VersionedBytes(new byte[]{1}, "v1");
+        when(backend2.getSessionIfNewer("id", null)).thenReturn(found);
+
+        VersionedBytes result = instance.getSessionIfNewer("id", "v0");
+
+        assertThat(result, is(found));
+        verify(backend1).getSessionIfNewer("id", null);
+    }
+
+    @Test
+    public void getSessionIfModifiedReadsSessionCompletely() {
+        PersistableSession cached = mock(PersistableSession.class);
+        PersistableSession found = mock(PersistableSession.class);
+        when(backend1.getSession(any(PersistableSession.class), anyString())).thenReturn(found);
+
+        PersistableSession result = instance.getSessionIfModified(cached, session, "id");
+
+        assertThat(result, is(found));
+        verify(backend1, never()).getSessionIfModified(any(PersistableSession.class), any(PersistableSession.class),
+                anyString());
+    }
+
     @Test(expected = RuntimeException.class)
     public void getSessionRethrowsLastExceptionWhenAllDelegatesFail() {
         when(backend1.getSession(any(PersistableSession.class), anyString()))
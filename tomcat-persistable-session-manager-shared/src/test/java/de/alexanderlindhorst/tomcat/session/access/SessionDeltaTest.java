@@ -0,0 +1,85 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonMap;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class SessionDeltaTest {
+
+    private final byte[] metadata = new byte[]{1};
+    private final byte[] newerMetadata = new byte[]{2};
+
+    @Test
+    public void bytesRoundTrip() {
+        SessionDelta delta = new SessionDelta(metadata, singletonMap("a", new byte[]{3}), newHashSet("b"),
+                newHashSet("a", "c"), false);
+
+        SessionDelta read = SessionDelta.fromBytes(delta.toBytes());
+
+        assertThat(read.isComplete(), is(false));
+        assertThat(read.getMetadata()[0], is((byte) 1));
+        assertThat(read.getAttributes().get("a")[0], is((byte) 3));
+        assertThat(read.getRemovedAttributes(), is(newHashSet("b")));
+        assertThat(read.getAttributeNames(), is(newHashSet("a", "c")));
+    }
+
+    @Test
+    public void javaSerializationIsNotTakenForDelta() {
+        assertThat(SessionDelta.isSessionDelta(new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5}), is(false));
+        assertThat(SessionDelta.isSessionDelta(null), is(false));
+    }
+
+    @Test
+    public void completeDeltaHasNoRemovals() {
+        SessionDelta delta = new SessionDelta(metadata, singletonMap("a", new byte[]{3}), newHashSet("b"), emptySet(),
+                true);
+
+        assertThat(delta.getRemovedAttributes().isEmpty(), is(true));
+        assertThat(delta.getAttributeNames(), is(newHashSet("a")));
+    }
+
+    @Test
+    public void mergeAppliesNewerChangesOnTop() {
+        Map<String, byte[]> olderAttributes = singletonMap("a", new byte[]{1});
+        SessionDelta older = new SessionDelta(metadata, olderAttributes, newHashSet("b", "c"), newHashSet("a"), false);
+        SessionDelta newer = new SessionDelta(newerMetadata, singletonMap("b", new byte[]{2}), newHashSet("a"),
+                newHashSet("b"), false);
+
+        SessionDelta merged = older.mergeWith(newer);
+
+        assertThat(merged.getMetadata()[0], is((byte) 2));
+        assertThat(merged.getAttributes().keySet(), is(newHashSet("b")));
+        assertThat(merged.getRemovedAttributes(), is(newHashSet("a", "c")));
+        assertThat(merged.getAttributeNames(), is(newHashSet("b")));
+        assertThat(merged.isComplete(), is(false));
+    }
+
+    @Test
+    public void mergeKeepsCompletenessOfOlderDelta() {
+        SessionDelta older = new SessionDelta(metadata, singletonMap("a", new byte[]{1}), emptySet(), emptySet(), true);
+        SessionDelta newer = new SessionDelta(newerMetadata, singletonMap("b", new byte[]{2}), newHashSet("a"),
+                newHashSet("b"), false);
+
+        SessionDelta merged = older.mergeWith(newer);
+
+        assertThat(merged.isComplete(), is(true));
+        assertThat(merged.getAttributes().keySet(), is(newHashSet("b")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignBytesAreRejected() {
+        SessionDelta.fromBytes(new byte[]{1, 2, 3, 4, 5});
+    }
+}
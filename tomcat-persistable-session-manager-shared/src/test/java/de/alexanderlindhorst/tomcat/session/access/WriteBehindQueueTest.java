@@ -0,0 +1,253 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.access;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.alexanderlindhorst.tomcat.session.access.WriteBehindQueue.Backpressure;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class WriteBehindQueueTest {
+
+    private final List<String> written = Collections.synchronizedList(newArrayList());
+    private final CountDownLatch release = new CountDownLatch(1);
+    private WriteBehindQueue instance;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (instance != null) {
+            instance.shutdown(5, SECONDS);
+        }
+    }
+
+    private void blockingWrite(String key, PersistableSession session, byte[] bytes) {
+        try {
+            release.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        written.add(key + ":" + bytes[0]);
+    }
+
+    @Test
+    public void newerSnapshotReplacesPendingSnapshotOfSameSession() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, this::blockingWrite);
+
+        instance.offer("a", null, new byte[]{1});
+        instance.offer("a", null, new byte[]{2});
+        instance.offer("a", null, new byte[]{3});
+        instance.start();
+        release.countDown();
+        instance.shutdown(5, SECONDS);
+
+        assertThat(written, is(newArrayList("a:3")));
+        assertThat(instance.getCoalescedCount(), is(2L));
+    }
+
+    @Test
+    public void pendingSnapshotIsMergedWithNewerSnapshotBySuppliedMerger() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, this::blockingWrite,
+                (older, newer) -> new byte[]{(byte) (older[0] + newer[0])});
+
+        instance.offer("a", null, new byte[]{1});
+        instance.offer("a", null, new byte[]{2});
+        instance.start();
+        release.countDown();
+        instance.shutdown(5, SECONDS);
+
+        assertThat(written, is(newArrayList("a:3")));
+    }
+
+    @Test
+    public void shutdownDrainsPendingWrites() {
+        instance = new WriteBehindQueue(2, 10, Backpressure.SYNC, (key, session, bytes) -> written.add(key));
+        instance.start();
+        for (int i = 0; i < 10; i++) {
+            instance.offer(Integer.toString(i), null, new byte[]{1});
+        }
+
+        instance.shutdown(5, SECONDS);
+
+        assertThat(written.size(), is(10));
+        assertThat(instance.size(), is(0));
+    }
+
+    @Test
+    public void offerAfterShutdownRequestsSynchronousWrite() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, (key, session, bytes) -> written.add(key));
+        instance.start();
+        instance.shutdown(5, SECONDS);
+
+        assertThat(instance.offer("a", null, new byte[]{1}), is(false));
+    }
+
+    @Test
+    public void fullQueueRequestsSynchronousWriteForSyncBackpressure() {
+        instance = new WriteBehindQueue(1, 2, Backpressure.SYNC, this::blockingWrite);
+
+        assertThat(instance.offer("a", null, new byte[]{1}), is(true));
+        assertThat(instance.offer("b", null, new byte[]{1}), is(true));
+        assertThat(instance.offer("c", null, new byte[]{1}), is(false));
+        //coalescing does not need room
+        assertThat(instance.offer("a", null, new byte[]{2}), is(true));
+    }
+
+    @Test
+    public void fullQueueDropsOldestForDropOldestBackpressure() {
+        instance = new WriteBehindQueue(1, 2, Backpressure.DROP_OLDEST, this::blockingWrite);
+
+        instance.offer("a", null, new byte[]{1});
+        instance.offer("b", null, new byte[]{1});
+        assertThat(instance.offer("c", null, new byte[]{1}), is(true));
+
+        assertThat(instance.getPending("a"), is(nullValue()));
+        assertThat(instance.getPending("c")[0], is((byte) 1));
+        assertThat(instance.getDroppedCount(), is(1L));
+    }
+
+    @Test
+    public void fullQueueBlocksCallerForBlockBackpressure() throws InterruptedException {
+        instance = new WriteBehindQueue(1, 1, Backpressure.BLOCK, this::blockingWrite);
+        instance.offer("a", null, new byte[]{1});
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread caller = new Thread(() -> {
+            instance.offer("b", null, new byte[]{1});
+            offered.countDown();
+        });
+        caller.start();
+
+        assertThat(offered.await(200, MILLISECONDS), is(false));
+        instance.start();
+        assertThat(offered.await(5, SECONDS), is(true));
+    }
+
+    @Test
+    public void pendingSnapshotIsVisibleUntilWritten() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, this::blockingWrite);
+
+        instance.offer("a", null, new byte[]{7});
+
+        assertThat(instance.getPending("a")[0], is((byte) 7));
+        assertThat(instance.getPending("b"), is(nullValue()));
+    }
+
+    @Test
+    public void cancelDiscardsPendingWrite() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, (key, session, bytes) -> written.add(key));
+
+        instance.offer("a", null, new byte[]{1});
+        instance.cancel("a");
+        instance.start();
+        instance.shutdown(5, SECONDS);
+
+        assertThat(written.isEmpty(), is(true));
+    }
+
+    @Test
+    public void sameSessionIsNeverWrittenConcurrently() throws InterruptedException {
+        AtomicInteger concurrentWrites = new AtomicInteger();
+        AtomicInteger maxConcurrentWrites = new AtomicInteger();
+        instance = new WriteBehindQueue(4, 10, Backpressure.BLOCK, (key, session, bytes) -> {
+            int current = concurrentWrites.incrementAndGet();
+            maxConcurrentWrites.accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            concurrentWrites.decrementAndGet();
+        });
+        instance.start();
+        for (int i = 0; i < 200; i++) {
+            instance.offer("a", null, new byte[]{(byte) i});
+        }
+        instance.shutdown(5, SECONDS);
+
+        assertThat(maxConcurrentWrites.get(), is(1));
+    }
+
+    @Test
+    public void failingWriteDoesNotStopWriterThread() {
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, (key, session, bytes) -> {
+            if ("a".equals(key)) {
+                throw new IllegalStateException("backend unavailable");
+            }
+            written.add(key);
+        });
+        instance.start();
+        instance.offer("a", null, new byte[]{1});
+        instance.offer("b", null, new byte[]{1});
+        instance.shutdown(5, SECONDS);
+
+        assertThat(written, is(newArrayList("b")));
+    }
+
+    @Test
+    public void failedWriteMarksSessionChangedAgain() {
+        PersistableSession session = new PersistableSession(null);
+        session.setPersistedContentHash(42);
+        session.setAttributesPersisted(true);
+        instance = new WriteBehindQueue(1, 10, Backpressure.SYNC, (key, failing, bytes) -> {
+            throw new IllegalStateException("backend unavailable");
+        });
+        instance.start();
+        instance.offer("a", session, new byte[]{1});
+        instance.shutdown(5, SECONDS);
+
+        assertThat(session.isDirty(), is(true));
+        assertThat(session.getPersistedContentHash(), is(0L));
+        assertThat(session.isAttributesPersisted(), is(false));
+    }
+
+    @Test
+    public void droppedWriteMarksSessionChangedAgain() {
+        PersistableSession session = new PersistableSession(null);
+        session.setPersistedContentHash(42);
+        instance = new WriteBehindQueue(1, 1, Backpressure.DROP_OLDEST, this::blockingWrite);
+
+        instance.offer("a", session, new byte[]{1});
+        instance.offer("b", null, new byte[]{1});
+
+        assertThat(session.isDirty(), is(true));
+        assertThat(session.getPersistedContentHash(), is(0L));
+    }
+
+    @Test
+    public void shutdownWaitsForAllWriterThreadsTogetherAtMostTheTimeout() {
+        instance = new WriteBehindQueue(3, 10, Backpressure.SYNC, this::blockingWrite);
+        instance.start();
+        instance.offer("a", null, new byte[]{1});
+        instance.offer("b", null, new byte[]{1});
+        instance.offer("c", null, new byte[]{1});
+
+        long start = System.nanoTime();
+        instance.shutdown(300, MILLISECONDS);
+
+        assertThat(NANOSECONDS.toMillis(System.nanoTime() - start) < 800, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroThreadsAreRejected() {
+        new WriteBehindQueue(0, 10, Backpressure.SYNC, (key, session, bytes) -> {
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.Context;
+import org.apache.juli.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author alindhorst
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class CompactSessionSerializerTest {
+
+    @Mock
+    private PersistableSessionManager manager;
+    private PersistableSession session;
+    private final CompactSessionSerializer serializer = new CompactSessionSerializer();
+
+    @Before
+    public void setup() {
+        Context context = mock(Context.class);
+        Log log = mock(Log.class);
+        when(context.getLogger()).thenReturn(log);
+        when(manager.getContext()).thenReturn(context);
+        when(manager.willAttributeDistribute(anyString(), any())).thenReturn(true);
+        session = new PersistableSession(manager);
+        session.setValid(true);
+        session.setId("compact");
+        session.setMaxInactiveInterval(1800);
+    }
+
+    @Test
+    public void sessionRoundTripKeepsMetadataAndAttributes() throws IOException, ClassNotFoundException {
+        Map<String, Object> cart = new LinkedHashMap<>();
+        cart.put("article-1", 2);
+        cart.put("article-2", newArrayList("red", "large"));
+        session.setAttribute("string", "value");
+        session.setAttribute("int", -17);
+        session.setAttribute("long", Long.MAX_VALUE);
+        session.setAttribute("boolean", true);
+        session.setAttribute("double", 0.5d);
+        session.setAttribute("char", 'x');
+        session.setAttribute("bytes", new byte[]{1, 2});
+        session.setAttribute("date", new Date(1000));
+        session.setAttribute("enum", TimeUnit.SECONDS);
+        session.setAttribute("cart", cart);
+        session.setAttribute("set", newHashSet(1, 2));
+        session.setAttribute("fallback", new BigDecimal("1.25"));
+
+        PersistableSession restored = new PersistableSession(manager);
+        serializer.deserializeInto(restored, serializer.serialize(session));
+
+        assertThat(restored.getIdInternal(), is("compact"));
+        assertThat(restored.getMaxInactiveInterval(), is(1800));
+        assertThat(restored.getCreationTimeInternal(), is(session.getCreationTimeInternal()));
+        assertThat(restored.getAttribute("string"), is("value"));
+        assertThat(restored.getAttribute("int"), is(-17));
+        assertThat(restored.getAttribute("long"), is(Long.MAX_VALUE));
+        assertThat(restored.getAttribute("boolean"), is(true));
+        assertThat(restored.getAttribute("double"), is(0.5d));
+        assertThat(restored.getAttribute("char"), is('x'));
+        assertThat(((byte[]) restored.getAttribute("bytes"))[1], is((byte) 2));
+        assertThat(restored.getAttribute("date"), is(new Date(1000)));
+        assertThat(restored.getAttribute("enum"), is(TimeUnit.SECONDS));
+        assertThat(restored.getAttribute("cart"), is(cart));
+        assertThat(restored.getAttribute("cart").getClass().getName(), is(LinkedHashMap.class.getName()));
+        assertThat(restored.getAttribute("set"), is(new HashSet<>(newHashSet(1, 2))));
+        assertThat(restored.getAttribute("fallback"), is(new BigDecimal("1.25")));
+    }
+
+    @Test
+    public void nonSerializableAttributeIsLeftOut() throws IOException, ClassNotFoundException {
+        session.setAttribute("good", "value");
+        session.setAttribute("bad", new Object());
+
+        PersistableSession restored = new PersistableSession(manager);
+        serializer.deserializeInto(restored, serializer.serialize(session));
+
+        assertThat(restored.getAttribute("good"), is("value"));
+        assertThat(restored.getAttribute("bad"), is(nullValue()));
+    }
+
+    @Test
+    public void payloadIsSmallerThanJavaSerialization() throws IOException {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("sku", "SKU-" + i);
+            item.put("quantity", i);
+            item.put("price", 1000L + i);
+            items.add(item);
+        }
+        session.setAttribute("cart", items);
+        session.setAttribute("counter", 42);
+
+        byte[] compact = serializer.serialize(session);
+        byte[] jdk = new JdkSessionSerializer().serialize(session);
+
+        assertThat(compact.length < jdk.length / 2, is(true));
+    }
+
+    @Test
+    public void attributeRoundTrip() throws IOException, ClassNotFoundException {
+        byte[] bytes = serializer.serializeAttribute(newArrayList(TimeUnit.SECONDS, TimeUnit.SECONDS, "x"));
+
+        assertThat(serializer.canDeserialize(bytes), is(true));
+        assertThat(serializer.deserializeAttribute(bytes), is(newArrayList(TimeUnit.SECONDS, TimeUnit.SECONDS, "x")));
+    }
+
+    @Test
+    public void javaSerializedBytesAreNotClaimed() throws IOException {
+        assertThat(serializer.canDeserialize(new JdkSessionSerializer().serialize(session)), is(false));
+        assertThat(serializer.canDeserialize(new JdkSessionSerializer().serializeAttribute("value")), is(false));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void foreignBytesAreRejected() throws IOException, ClassNotFoundException {
+        serializer.deserializeInto(new PersistableSession(manager), new byte[]{1, 2, 3, 4, 5});
+    }
+
+    @Test
+    public void contentHashLeavesOutAccessTimes() throws IOException {
+        session.setCreationTime(1000);
+        session.setAttribute("cart", "three items");
+        byte[] created = serializer.serialize(session);
+
+        session.access();
+        session.endAccess();
+        session.setAttribute("cart", "three items");
+        byte[] accessed = serializer.serialize(session);
+        session.setAttribute("cart", "four items");
+        byte[] changed = serializer.serialize(session);
+
+        assertThat(accessed, is(not(created)));
+        assertThat(serializer.contentHash(accessed, accessed.length), is(serializer.contentHash(created, created.length)));
+        assertThat(serializer.contentHash(changed, changed.length), is(not(serializer.contentHash(created, created.length))));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class OffHeapSessionStoreTest {
+
+    private final OffHeapSessionStore instance = new OffHeapSessionStore(100);
+
+    @Test
+    public void storedSessionIsHandedOutOnce() {
+        PersistableSession session = new PersistableSession(null);
+        session.setBackendVersion("v1");
+        session.setPersistedContentHash(42);
+
+        put("id", 10, (byte) 7, session);
+        OffHeapSessionStore.Entry entry = instance.remove("id");
+
+        assertThat(Arrays.equals(entry.getBytes(), filled(10, (byte) 7)), is(true));
+        assertThat(entry.getBackendVersion(), is("v1"));
+        assertThat(entry.getPersistedContentHash(), is(42L));
+        assertThat(instance.remove("id"), is(nullValue()));
+        assertThat(instance.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    public void sessionsStoredLongestAgoAreDroppedWhenFull() {
+        PersistableSession session = new PersistableSession(null);
+        put("first", 40, (byte) 1, session);
+        put("second", 40, (byte) 2, session);
+
+        put("third", 40, (byte) 3, session);
+
+        assertThat(instance.remove("first"), is(nullValue()));
+        assertThat(instance.remove("second"), is(notNullValue()));
+        assertThat(instance.remove("third"), is(notNullValue()));
+    }
+
+    @Test
+    public void replacedSessionIsNotCountedTwice() {
+        PersistableSession session = new PersistableSession(null);
+        put("id", 60, (byte) 1, session);
+
+        put("id", 60, (byte) 2, session);
+
+        assertThat(instance.size(), is(1));
+        assertThat(instance.getUsedBytes(), is(60L));
+    }
+
+    @Test
+    public void sessionLargerThanStoreIsRejected() {
+        assertThat(put("id", 101, (byte) 1, new PersistableSession(null)), is(false));
+        assertThat(instance.size(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void storeWithoutCapacityIsRejected() {
+        new OffHeapSessionStore(0);
+    }
+
+    private boolean put(String id, int size, byte value, PersistableSession session) {
+        SerializationBuffer buffer = SerializationBuffer.acquire(size);
+        try {
+            buffer.write(filled(size, value), 0, size);
+            return instance.put(id, buffer, session);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static byte[] filled(int size, byte value) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}
@@ -3,16 +3,25 @@
  */
 package de.alexanderlindhorst.tomcat.session.manager;
 
+import de.alexanderlindhorst.tomcat.session.access.AsyncBackendService;
 import de.alexanderlindhorst.tomcat.session.access.BackendService;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
 
 import org.apache.catalina.Context;
 import org.apache.catalina.Engine;
@@ -24,6 +33,7 @@ import org.apache.catalina.SessionEvent;
 import org.apache.catalina.SessionIdGenerator;
 import org.apache.catalina.SessionListener;
 import org.apache.catalina.session.StandardSession;
+import org.apache.juli.logging.Log;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -35,6 +45,7 @@ import org.mockito.Mock;
 
 import de.alexanderlindhorst.tomcat.session.access.FakeBackendService;
 import de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.Parameter;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics;
 
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionIdListener;
@@ -44,6 +55,7 @@ import static de.alexanderlindhorst.tomcat.session.manager.PersistableSession.SE
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.getFieldValueFromObject;
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.invokeMethod;
 import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
+import static java.lang.System.currentTimeMillis;
 import static java.util.stream.Collectors.toList;
 import static org.apache.catalina.Session.SESSION_CREATED_EVENT;
 import static org.apache.catalina.Session.SESSION_DESTROYED_EVENT;
@@ -51,6 +63,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -72,6 +85,8 @@ public class PersistableSessionManagerTest {
     private Engine engine;
     @Mock
     private SessionListener sessionListener;
+    @Mock
+    private Log contextLogger;
     @Captor
     private ArgumentCaptor<SessionEvent> sessionEventCaptor;
     @InjectMocks
@@ -83,6 +98,7 @@ public class PersistableSessionManagerTest {
         when(context.getParent()).thenReturn(engine);
         when(engine.getJvmRoute()).thenReturn("host");
         when(context.getName()).thenReturn("/mycontext");
+        when(context.getLogger()).thenReturn(contextLogger);
         instance.load();
     }
 
@@ -133,6 +149,49 @@ public class PersistableSessionManagerTest {
         assertThat(result, is(nullValue()));
     }
 
+    @Test
+    public void findSessionRecordsLookupOutcomes() throws IOException {
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("local.host");
+        instance.add(local);
+        when(backendService.getSession(any(PersistableSession.class), eq("remote"))).thenReturn(
+                new PersistableSession(instance));
+        when(backendService.getSession(any(PersistableSession.class), eq("unknown"))).thenReturn(null);
+
+        instance.findSession("local.host");
+        instance.findSession("remote.host1");
+        instance.findSession("unknown.host1");
+
+        SessionMetrics metrics = instance.getSessionMetrics();
+        assertThat(metrics.getLocalHits(), is(1L));
+        assertThat(metrics.getBackendLoads(), is(1L));
+        assertThat(metrics.getLookupMisses(), is(1L));
+        //nobody waited for a concurrent load
+        assertThat(metrics.getSessionLoadLockWaits(), is(0L));
+    }
+
+    @Test
+    public void initPassesMetricsToBackendAndRegistersMBean() throws Exception {
+        instance.setServiceImplementationClassName(FakeBackendService.class.getName());
+        instance.init();
+        try {
+            FakeBackendService service = (FakeBackendService) getFieldValueFromObject(instance, "backendService");
+            assertThat(service.getSessionMetrics(), is(sameInstance(instance.getSessionMetrics())));
+            assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(
+                    "de.alexanderlindhorst.tomcat.session:type=SessionMetrics,host=\"null\",context=\"/mycontext\"")),
+                    is(true));
+        } finally {
+            instance.destroy();
+        }
+    }
+
+    @Test(expected = LifecycleException.class)
+    public void unsuitableMetricsListenerMakesInitFail() throws LifecycleException {
+        instance.setServiceImplementationClassName(FakeBackendService.class.getName());
+        instance.setMetricsListenerClassName(String.class.getName());
+        instance.init();
+    }
+
     @Test
     public void findSessionDoesNotFireSessionCreatedEventOnBackendMiss() throws IOException {
         String sessionId = "mySession.host1";
@@ -272,6 +331,379 @@ public class PersistableSessionManagerTest {
         results.forEach(s -> assertThat(s, is(first)));
         // Backend was queried exactly once despite 10 concurrent callers
         verify(backendService, times(1)).getSession(any(PersistableSession.class), eq("shared"));
+        // Callers that joined the load count as shared loads, the others found the loaded session
+        SessionMetrics metrics = instance.getSessionMetrics();
+        assertThat(metrics.getBackendLoads(), is(1L));
+        assertThat(metrics.getSessionLoadLockWaits(), is(metrics.getSharedLoads()));
+        assertThat(metrics.getBackendLoads() + metrics.getSharedLoads() + metrics.getLocalHits(), is((long) threadCount));
+    }
+
+    @Test
+    public void errorOfSharedLoadIsPassedOnToJoiningRequest() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch fail = new CountDownLatch(1);
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("shared");
+        when(backendService.getSession(any(PersistableSession.class), eq("shared"))).thenAnswer(inv -> {
+            loading.countDown();
+            fail.await();
+            throw new StackOverflowError("deserializing");
+        }).thenReturn(remote);
+        AtomicReference<Throwable> leaderFailure = new AtomicReference<>();
+        AtomicReference<Throwable> joinerFailure = new AtomicReference<>();
+        Thread leader = new Thread(() -> {
+            try {
+                instance.findSession("shared.host2");
+            } catch (Throwable ex) {
+                leaderFailure.set(ex);
+            }
+        });
+        Thread joiner = new Thread(() -> {
+            try {
+                instance.findSession("shared.host2");
+            } catch (Throwable ex) {
+                joinerFailure.set(ex);
+            }
+        });
+
+        leader.start();
+        loading.await(10, TimeUnit.SECONDS);
+        joiner.start();
+        long deadline = currentTimeMillis() + 10000;
+        while (joiner.getState() != Thread.State.WAITING && currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        fail.countDown();
+        leader.join(10000);
+        joiner.join(10000);
+
+        assertThat(joiner.isAlive(), is(false));
+        assertThat(leaderFailure.get() instanceof StackOverflowError, is(true));
+        assertThat(joinerFailure.get() instanceof StackOverflowError, is(true));
+        assertThat(((Map<?, ?>) getFieldValueFromObject(instance, "sessionLoads")).isEmpty(), is(true));
+        assertThat(instance.findSession("shared.host2"), is(sameInstance(remote)));
+    }
+
+    @Test
+    public void findSessionKeepsBackendCopyOfLoadedSession() throws IOException {
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession"))).thenReturn(remote);
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found.getId(), is("mySession.host"));
+        assertThat(instance.findSession("mySession.host"), is(sameInstance(found)));
+        verify(backendService, never()).deleteSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void localSessionIsUsedUncheckedWithoutNearCache() throws IOException {
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(local)));
+        verify(backendService, never()).getSessionIfModified(any(PersistableSession.class), any(PersistableSession.class),
+                any(String.class));
+        verify(backendService, never()).getSession(any(PersistableSession.class), any(String.class));
+    }
+
+    @Test
+    public void nearCacheReturnsLocalSessionConfirmedByBackend() throws IOException {
+        instance.setNearCache(true);
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+        when(backendService.getSessionIfModified(eq(local), any(PersistableSession.class), eq("mySession"))).thenReturn(local);
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(local)));
+        verify(backendService, never()).getSession(any(PersistableSession.class), any(String.class));
+        assertThat(instance.getSessionMetrics().getValidatedHits(), is(1L));
+    }
+
+    @Test
+    public void nearCacheReplacesLocalSessionChangedByOtherNode() throws IOException {
+        instance.setNearCache(true);
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+        PersistableSession changed = new PersistableSession(instance);
+        changed.setId("mySession");
+        when(backendService.getSessionIfModified(eq(local), any(PersistableSession.class), eq("mySession")))
+                .thenReturn(changed);
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(changed)));
+        assertThat(found.getId(), is("mySession.host"));
+        assertThat(instance.findSession("mySession.host"), is(sameInstance(changed)));
+        verify(backendService, never()).deleteSession(any(PersistableSession.class));
+        assertThat(instance.getSessionMetrics().getBackendLoads(), is(1L));
+    }
+
+    @Test
+    public void nearCacheDropsLocalSessionGoneFromBackend() throws IOException {
+        instance.setNearCache(true);
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+        when(backendService.getSessionIfModified(eq(local), any(PersistableSession.class), eq("mySession")))
+                .thenReturn(null);
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(nullValue()));
+        assertThat(instance.findSession("mySession.host"), is(nullValue()));
+        verify(backendService, never()).deleteSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void nearCacheDoesNotCheckLocalSessionWithUnpersistedChanges() throws IOException {
+        instance.setNearCache(true);
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+        local.setDirty(true);
+
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(local)));
+        verify(backendService, never()).getSessionIfModified(any(PersistableSession.class), any(PersistableSession.class),
+                any(String.class));
+    }
+
+    @Test
+    public void exceedingMaxLocalSessionsEvictsLeastRecentlyUsedSessions() throws Exception {
+        instance.setMaxLocalSessions(10);
+        for (int i = 0; i < 11; i++) {
+            addSessionAccessedAt("session" + i + ".host", 1000 + i);
+        }
+        assertThat(instance.getActiveSessions(), is(11));
+
+        instance.backgroundProcess();
+
+        assertThat(instance.getActiveSessions(), is(9));
+        assertThat(instance.findSession("session0.host"), is(nullValue()));
+        assertThat(instance.findSession("session1.host"), is(nullValue()));
+        assertThat(instance.findSession("session2.host"), is(notNullValue()));
+        verify(backendService, never()).deleteSession(any(PersistableSession.class));
+        assertThat(instance.getSessionMetrics().getLocalEvictions(), is(2L));
+    }
+
+    @Test
+    public void dirtySessionIsWrittenBeforeEviction() throws Exception {
+        instance.setMaxLocalSessions(1);
+        PersistableSession dirty = addSessionAccessedAt("dirty.host", 1000);
+        dirty.setDirty(true);
+        addSessionAccessedAt("other.host", 2000);
+
+        instance.backgroundProcess();
+
+        verify(backendService).persistSession(dirty);
+        assertThat(instance.getActiveSessions(), is(1));
+    }
+
+    @Test
+    public void sessionFailingToBeWrittenIsNotEvicted() throws Exception {
+        instance.setMaxLocalSessions(1);
+        PersistableSession dirty = addSessionAccessedAt("dirty.host", 1000);
+        dirty.setDirty(true);
+        doThrow(new RuntimeException("backend unavailable")).when(backendService).persistSession(dirty);
+        addSessionAccessedAt("other.host", 2000);
+
+        instance.backgroundProcess();
+
+        assertThat(instance.findSession("dirty.host"), is(sameInstance(dirty)));
+    }
+
+    @Test
+    public void exceedingMaxLocalSessionBytesEvictsInBackground() throws Exception {
+        instance.setMaxLocalSessionBytes(1000);
+        for (int i = 0; i < 5; i++) {
+            addSessionAccessedAt("session" + i + ".host", 1000 + i).setSerializedSizeHint(300);
+        }
+        assertThat(instance.getActiveSessions(), is(5));
+
+        instance.backgroundProcess();
+
+        assertThat(instance.getActiveSessions(), is(3));
+        assertThat(instance.findSession("session4.host"), is(notNullValue()));
+    }
+
+    @Test
+    public void evictedSessionIsReadFromBackendAgain() throws Exception {
+        instance.setMaxLocalSessions(1);
+        addSessionAccessedAt("evicted.host", 1000);
+        addSessionAccessedAt("other.host", 2000);
+        instance.backgroundProcess();
+        PersistableSession stored = new PersistableSession(instance);
+        when(backendService.getSession(any(PersistableSession.class), eq("evicted"))).thenReturn(stored);
+
+        Session found = instance.findSession("evicted.host");
+
+        assertThat(found, is(sameInstance(stored)));
+        assertThat(found.getId(), is("evicted.host"));
+    }
+
+    @Test
+    public void evictedSessionIsKeptOffHeapAndRestoredWithoutBackend() throws Exception {
+        setFieldValueForObject(instance, "offHeapStore", new OffHeapSessionStore(1024 * 1024));
+        instance.setMaxLocalSessions(1);
+        PersistableSession evicted = addSessionAccessedAt("evicted.host", 1000);
+        evicted.setValid(true);
+        evicted.setBackendVersion("v1");
+        evicted.getSession().setAttribute("cart", "three items");
+        addSessionAccessedAt("other.host", 2000);
+        instance.backgroundProcess();
+
+        PersistableSession found = (PersistableSession) instance.findSession("evicted.host");
+
+        assertThat(found, is(not(sameInstance(evicted))));
+        assertThat(found.getId(), is("evicted.host"));
+        assertThat(found.getAttribute("cart"), is("three items"));
+        assertThat(found.getBackendVersion(), is("v1"));
+        verify(backendService, never()).getSession(any(PersistableSession.class), any(String.class));
+        assertThat(instance.getSessionMetrics().getOffHeapHits(), is(1L));
+    }
+
+    @Test
+    public void idleSessionIsMovedOffHeapByBackgroundProcess() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(1024 * 1024);
+        setFieldValueForObject(instance, "offHeapStore", store);
+        instance.setMaxIdleOnHeapSeconds(60);
+        addSessionAccessedAt("idle.host", 1000).setValid(true);
+        PersistableSession active = new PersistableSession(instance);
+        active.setId("active.host");
+
+        instance.backgroundProcess();
+
+        assertThat(instance.getActiveSessions(), is(1));
+        assertThat(store.size(), is(1));
+        verify(backendService, never()).deleteSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void changingSessionMovedOffHeapDropsOffHeapCopy() throws Exception {
+        OffHeapSessionStore store = new OffHeapSessionStore(1024 * 1024);
+        setFieldValueForObject(instance, "offHeapStore", store);
+        instance.setMaxIdleOnHeapSeconds(60);
+        PersistableSession idle = addSessionAccessedAt("idle.host", 1000);
+        idle.setValid(true);
+        instance.backgroundProcess();
+
+        instance.sessionEvent(new SessionEvent(idle, SESSION_ATTRIBUTE_SET, new PersistableSessionAttribute("a", 1)));
+
+        assertThat(store.size(), is(0));
+    }
+
+    private PersistableSession addSessionAccessedAt(String id, long lastAccessed) throws Exception {
+        PersistableSession session = new PersistableSession(instance);
+        setFieldValueForObject(session, "lastAccessedLocally", lastAccessed);
+        session.setId(id);
+        return session;
+    }
+
+    @Test
+    public void prefetchedSessionIsUsedByFindSession() throws Exception {
+        setFieldValueForObject(instance, "prefetchExecutor", Executors.newSingleThreadExecutor());
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession"))).thenReturn(remote);
+
+        assertThat(instance.prefetchSession("mySession.host2"), is(true));
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(remote)));
+        assertThat(found.getId(), is("mySession.host"));
+        verify(backendService, times(1)).getSession(any(PersistableSession.class), eq("mySession"));
+    }
+
+    @Test
+    public void sessionHeldLocallyIsNotPrefetched() throws Exception {
+        setFieldValueForObject(instance, "prefetchExecutor", Executors.newSingleThreadExecutor());
+        PersistableSession local = new PersistableSession(instance);
+        local.setId("mySession.host");
+
+        assertThat(instance.prefetchSession("mySession.host2"), is(false));
+        assertThat(instance.prefetchSession("mySession.host"), is(false));
+        verify(backendService, never()).getSession(any(PersistableSession.class), any(String.class));
+    }
+
+    @Test
+    public void nothingIsPrefetchedWithoutPrefetchThreads() {
+        assertThat(instance.prefetchSession("mySession.host2"), is(false));
+    }
+
+    @Test
+    public void failedPrefetchIsReadAgainByFindSession() throws Exception {
+        setFieldValueForObject(instance, "prefetchExecutor", Executors.newSingleThreadExecutor());
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession")))
+                .thenThrow(new IllegalStateException("backend unavailable")).thenReturn(remote);
+
+        instance.prefetchSession("mySession.host2");
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(remote)));
+        verify(backendService, times(2)).getSession(any(PersistableSession.class), eq("mySession"));
+    }
+
+    @Test
+    public void prefetchFailingWithErrorIsReadAgainByFindSession() throws Exception {
+        setFieldValueForObject(instance, "prefetchExecutor", Executors.newSingleThreadExecutor());
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession")))
+                .thenThrow(new StackOverflowError("deserializing")).thenReturn(remote);
+
+        instance.prefetchSession("mySession.host2");
+        Session found = instance.findSession("mySession.host2");
+
+        assertThat(found, is(sameInstance(remote)));
+        verify(backendService, times(2)).getSession(any(PersistableSession.class), eq("mySession"));
+    }
+
+    @Test
+    public void prefetchTakingTooLongIsReadAgainByFindSession() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        setFieldValueForObject(instance, "prefetchExecutor", executor);
+        instance.setPrefetchTimeoutMillis(10);
+        CountDownLatch prefetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PersistableSession remote = new PersistableSession(instance);
+        remote.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession"))).thenAnswer(inv -> {
+            prefetching.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return new PersistableSession(instance);
+        }).thenReturn(remote);
+
+        instance.prefetchSession("mySession.host2");
+        prefetching.await(10, TimeUnit.SECONDS);
+        Session found = instance.findSession("mySession.host2");
+        release.countDown();
+        executor.shutdown();
+
+        assertThat(found, is(sameInstance(remote)));
+    }
+
+    @Test
+    public void discardedPrefetchIsNotUsed() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        setFieldValueForObject(instance, "prefetchExecutor", executor);
+        PersistableSession outdated = new PersistableSession(instance);
+        outdated.setId("mySession");
+        PersistableSession current = new PersistableSession(instance);
+        current.setId("mySession");
+        when(backendService.getSession(any(PersistableSession.class), eq("mySession"))).thenReturn(outdated, current);
+
+        instance.prefetchSession("mySession.host2");
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        instance.discardPrefetchedSession("mySession.host2");
+
+        assertThat(instance.findSession("mySession.host2"), is(sameInstance(current)));
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -310,6 +742,42 @@ public class PersistableSessionManagerTest {
         verify(backendService).persistSession(session);
     }
 
+    @Test
+    public void sessionAttributeChangeEventOnlyMarksSessionDirtyForEndOfRequestFlushMode() {
+        instance.setFlushMode(PersistableSessionManager.FLUSH_MODE_END_OF_REQUEST);
+        PersistableSession session = new PersistableSession(instance);
+        SessionEvent event = new SessionEvent(session, SESSION_ATTRIBUTE_SET,
+                new PersistableSessionAttribute("key", "value"));
+
+        instance.sessionEvent(event);
+
+        verify(backendService, never()).persistSession(session);
+        assertThat(session.isDirty(), is(true));
+    }
+
+    @Test
+    public void storeSessionPersistsOnceAfterMultipleAttributeChangesForEndOfRequestFlushMode() {
+        instance.setFlushMode(PersistableSessionManager.FLUSH_MODE_END_OF_REQUEST);
+        PersistableSession session = new PersistableSession(instance);
+        instance.sessionEvent(new SessionEvent(session, SESSION_ATTRIBUTE_SET, new PersistableSessionAttribute("a", 1)));
+        instance.sessionEvent(new SessionEvent(session, SESSION_ATTRIBUTE_SET, new PersistableSessionAttribute("b", 2)));
+
+        instance.storeSession(session);
+
+        verify(backendService, times(1)).persistSession(session);
+    }
+
+    @Test
+    public void flushModeDefaultsToImmediate() {
+        assertThat(instance.getFlushMode(), is(PersistableSessionManager.FLUSH_MODE_IMMEDIATE));
+        assertThat(instance.isFlushAtEndOfRequest(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFlushModeIsRejected() {
+        instance.setFlushMode("sometimes");
+    }
+
     @Test
     public void sessionExpirationEventLeadsToRemovalFromPersistence() {
         PersistableSession session = new PersistableSession(instance);
@@ -347,6 +815,49 @@ public class PersistableSessionManagerTest {
         verify(backendService).persistSession(session);
     }
 
+    @Test
+    public void storeCallWithAsynchronousBackendDoesNotWaitForWrite() throws Exception {
+        AsyncBackendService asyncBackendService = mock(AsyncBackendService.class);
+        when(asyncBackendService.persistSessionAsync(any(PersistableSession.class))).thenReturn(new CompletableFuture<>());
+        setFieldValueForObject(instance, "backendService", asyncBackendService);
+        PersistableSession session = new PersistableSession(instance);
+        session.setDirty(true);
+
+        instance.storeSession(session);
+
+        verify(asyncBackendService).persistSessionAsync(session);
+        verify(asyncBackendService, never()).persistSession(session);
+    }
+
+    @Test
+    public void removeWithAsynchronousBackendDoesNotWaitForDelete() throws Exception {
+        AsyncBackendService asyncBackendService = mock(AsyncBackendService.class);
+        when(asyncBackendService.deleteSessionAsync(any(PersistableSession.class))).thenReturn(new CompletableFuture<>());
+        setFieldValueForObject(instance, "backendService", asyncBackendService);
+        PersistableSession session = new PersistableSession(instance);
+        session.setId("session.host", false);
+
+        instance.remove(session);
+
+        verify(asyncBackendService).deleteSessionAsync(session);
+        verify(asyncBackendService, never()).deleteSession(session);
+    }
+
+    @Test
+    public void evictionWithAsynchronousBackendWaitsForWrite() throws Exception {
+        AsyncBackendService asyncBackendService = mock(AsyncBackendService.class);
+        setFieldValueForObject(instance, "backendService", asyncBackendService);
+        instance.setMaxLocalSessions(1);
+        PersistableSession dirty = addSessionAccessedAt("dirty.host", 1000);
+        dirty.setDirty(true);
+        addSessionAccessedAt("other.host", 2000);
+
+        instance.backgroundProcess();
+
+        verify(asyncBackendService).persistSession(dirty);
+        verify(asyncBackendService, never()).persistSessionAsync(dirty);
+    }
+
     @Test(expected = LifecycleException.class)
     public void missingServiceImplementationMakesInitFail() throws LifecycleException {
         instance.init();
@@ -537,6 +1048,121 @@ public class PersistableSessionManagerTest {
         });
     }
 
+    @Test
+    public void processExpiresOnlyEvictsLocalSessionsWhenBackendExpiresNatively() throws IllegalArgumentException,
+            IllegalAccessException, NoSuchFieldException {
+        instance.setSessionExpiryThreshold(100000);
+        when(backendService.isExpiringNatively()).thenReturn(true);
+        PersistableSession idle = (PersistableSession) instance.createSession("1.host");
+        PersistableSession accessed = (PersistableSession) instance.createSession("2.host");
+        PersistableSession written = (PersistableSession) instance.createSession("3.host");
+        newArrayList(idle, accessed, written).forEach(session -> session.setAttribute("marker", "bla"));
+        setFieldValueForObject(idle, "lastAccessedLocally", 1);
+        accessed.setLastPersistedTime(currentTimeMillis() - 60000);
+        written.setLastPersistedTime(currentTimeMillis());
+        clearInvocations(backendService);
+
+        instance.processExpires();
+
+        verify(backendService, never()).removeExpiredSessions();
+        verify(backendService).touchSessions(newArrayList(accessed));
+        verify(backendService, never()).persistSession(any(PersistableSession.class));
+        assertThat(instance.getSession(idle.getId()), is(nullValue()));
+        assertThat(instance.getSession(accessed.getId()), is(not(nullValue())));
+        assertThat(instance.getSession(written.getId()), is(not(nullValue())));
+    }
+
+    @Test
+    public void touchAccessedSessionsTouchesSessionsReadButNotWrittenOnce() throws IOException {
+        instance.setTouchIntervalSeconds(60);
+        PersistableSession read = (PersistableSession) instance.createSession("1.host");
+        PersistableSession written = (PersistableSession) instance.createSession("2.host");
+        written.setLastPersistedTime(currentTimeMillis());
+        instance.findSession(read.getId());
+        instance.findSession(written.getId());
+
+        instance.touchAccessedSessions();
+        instance.touchAccessedSessions();
+
+        verify(backendService, times(1)).touchSessions(newArrayList(read));
+        verify(backendService, times(1)).touchSessions(any());
+    }
+
+    @Test
+    public void processExpiresDropsAtMostOneBatchAndSweepsAgainOnceAllAreDropped() {
+        instance.setExpiryBatchSize(2);
+        newArrayList("1", "2", "3").forEach(id -> ((StandardSession) instance.createSession(id + ".host"))
+                .setAttribute("marker", "bla"));
+        when(backendService.removeExpiredSessions()).thenReturn(newArrayList("1", "2", "3"), newArrayList());
+
+        instance.processExpires();
+
+        assertThat(instance.getSession("1.host"), is(nullValue()));
+        assertThat(instance.getSession("2.host"), is(nullValue()));
+        assertThat(instance.getSession("3.host"), is(not(nullValue())));
+
+        instance.processExpires();
+
+        assertThat(instance.getSession("3.host"), is(nullValue()));
+        verify(backendService, times(1)).removeExpiredSessions();
+
+        instance.processExpires();
+
+        verify(backendService, times(2)).removeExpiredSessions();
+    }
+
+    @Test
+    public void backgroundProcessDropsOneBatchOnlyWhenProcessingExpires() {
+        instance.setExpiryBatchSize(2);
+        instance.setProcessExpiresFrequency(1);
+        newArrayList("1", "2", "3").forEach(id -> ((StandardSession) instance.createSession(id + ".host"))
+                .setAttribute("marker", "bla"));
+        when(backendService.removeExpiredSessions()).thenReturn(newArrayList("1", "2", "3"));
+
+        instance.backgroundProcess();
+
+        assertThat(instance.getSession("2.host"), is(nullValue()));
+        assertThat(instance.getSession("3.host"), is(not(nullValue())));
+    }
+
+    @Test
+    public void processExpiresStopsBeforeWritingBackOnceBudgetIsUsedUp() {
+        instance.setSessionExpiryThreshold(100000);
+        instance.setExpiryTimeBudgetMillis(0);
+        newArrayList("1", "2").forEach(id -> ((StandardSession) instance.createSession(id + ".host"))
+                .setAttribute("marker", "bla"));
+        when(backendService.removeExpiredSessions()).thenReturn(newArrayList("1", "2"));
+        clearInvocations(backendService);
+
+        instance.processExpires();
+
+        //both were accessed locally, only the first is written back
+        verify(backendService, times(1)).persistSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void processExpiresWithAsynchronousBackendDoesNotWaitForSweep() throws Exception {
+        AsyncBackendService asyncBackendService = mock(AsyncBackendService.class);
+        CompletableFuture<List<String>> sweep = new CompletableFuture<>();
+        when(asyncBackendService.removeExpiredSessionsAsync()).thenReturn(sweep);
+        when(asyncBackendService.persistSessionAsync(any(PersistableSession.class)))
+                .thenReturn(CompletableFuture.completedFuture(null));
+        setFieldValueForObject(instance, "backendService", asyncBackendService);
+        ((StandardSession) instance.createSession("1.host")).setAttribute("marker", "bla");
+
+        instance.processExpires();
+        instance.processExpires();
+
+        assertThat(instance.getSession("1.host"), is(not(nullValue())));
+        verify(asyncBackendService, times(1)).removeExpiredSessionsAsync();
+        verify(asyncBackendService, never()).removeExpiredSessions();
+
+        sweep.complete(newArrayList("1"));
+        instance.processExpires();
+
+        assertThat(instance.getSession("1.host"), is(nullValue()));
+    }
+
     @Test
     public void processExpireRemovesUnknownSession() {
         when(backendService.removeExpiredSessions()).thenReturn(newArrayList("1"));
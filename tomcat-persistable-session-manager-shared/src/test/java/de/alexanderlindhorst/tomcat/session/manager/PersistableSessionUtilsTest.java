@@ -3,12 +3,14 @@
  */
 package de.alexanderlindhorst.tomcat.session.manager;
 
+import de.alexanderlindhorst.tomcat.session.access.SessionDelta;
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionUtils;
 import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
 
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 
 import org.apache.catalina.Context;
 import org.apache.juli.logging.Log;
@@ -18,6 +20,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -96,7 +100,173 @@ public class PersistableSessionUtilsTest {
         assertThat(restored.getAttribute("bad"), is(nullValue()));
     }
 
+    @Test
+    public void firstDeltaIsCompleteAndRestoresSession() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttribute("cart", "three items");
+        session.setAttribute("counter", 1);
+
+        SessionDelta delta = PersistableSessionUtils.createSessionDelta(session);
+
+        assertThat(delta.isComplete(), is(true));
+        assertThat(delta.getAttributes().keySet(), is(newHashSet("cart", "counter")));
+        PersistableSession restored = PersistableSessionUtils.deserializeSessionInto(new PersistableSession(manager),
+                delta.toBytes());
+        assertThat(restored.getId(), is("delta"));
+        assertThat(restored.getAttribute("cart"), is("three items"));
+        assertThat(restored.getAttribute("counter"), is(1));
+        assertThat(restored.isAttributesPersisted(), is(true));
+    }
+
+    @Test
+    public void followingDeltaContainsChangedAndRemovedAttributesOnly() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttribute("cart", "three items");
+        session.setAttribute("counter", 1);
+        session.setAttribute("flag", true);
+        persistDelta(session);
+
+        session.setAttribute("counter", 2);
+        session.removeAttribute("flag");
+        SessionDelta delta = persistDelta(session);
+
+        assertThat(delta.isComplete(), is(false));
+        assertThat(delta.getAttributes().keySet(), is(newHashSet("counter")));
+        assertThat(delta.getRemovedAttributes(), is(newHashSet("flag")));
+        assertThat(PersistableSessionUtils.createSessionDelta(session).getAttributes().isEmpty(), is(true));
+    }
+
+    @Test
+    public void deltaNotPersistedIsPartOfNextDelta() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttribute("cart", "three items");
+        persistDelta(session);
+        session.setAttribute("counter", 1);
+        session.removeAttribute("cart");
+
+        PersistableSessionUtils.createSessionDelta(session);
+        SessionDelta delta = PersistableSessionUtils.createSessionDelta(session);
+
+        assertThat(delta.isComplete(), is(false));
+        assertThat(delta.getAttributes().keySet(), is(newHashSet("counter")));
+        assertThat(delta.getRemovedAttributes(), is(newHashSet("cart")));
+    }
+
+    @Test
+    public void deltasStayCompleteUntilFirstOneIsPersisted() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttribute("cart", "three items");
+
+        PersistableSessionUtils.createSessionDelta(session);
+
+        assertThat(session.isAttributesPersisted(), is(false));
+        assertThat(PersistableSessionUtils.createSessionDelta(session).isComplete(), is(true));
+    }
+
+    @Test
+    public void followingDeltaContainsAttributesChangedInPlace() {
+        session.setValid(true);
+        session.setId("delta");
+        ArrayList<String> cart = newArrayList("first item");
+        session.setAttribute("cart", cart);
+        session.setAttribute("counter", 1);
+        persistDelta(session);
+
+        cart.add("second item");
+        SessionDelta delta = PersistableSessionUtils.createSessionDelta(session);
+
+        assertThat(delta.getAttributes().keySet(), is(newHashSet("cart")));
+        assertThat(delta.getRemovedAttributes().isEmpty(), is(true));
+        assertThat(delta.getAttributeNames(), is(newHashSet("cart", "counter")));
+    }
+
+    @Test
+    public void applyingDeltaUpdatesSessionWithoutTrackingChanges() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttribute("counter", 1);
+        session.setAttribute("flag", true);
+        PersistableSession copy = PersistableSessionUtils.deserializeSessionInto(new PersistableSession(manager),
+                persistDelta(session).toBytes());
+        session.setAttribute("counter", 2);
+        session.removeAttribute("flag");
+
+        PersistableSessionUtils.applySessionDelta(copy, persistDelta(session));
+
+        assertThat(copy.getAttribute("counter"), is(2));
+        assertThat(copy.getAttribute("flag"), is(nullValue()));
+        assertThat(PersistableSessionUtils.createSessionDelta(copy).getAttributes().isEmpty(), is(true));
+    }
+
+    @Test
+    public void incompleteDeltaCannotBeDeserialized() {
+        session.setValid(true);
+        session.setId("delta");
+        session.setAttributesPersisted(true);
+        session.setAttribute("counter", 1);
+
+        byte[] bytes = PersistableSessionUtils.createSessionDelta(session).toBytes();
+
+        assertThat(PersistableSessionUtils.deserializeSessionInto(new PersistableSession(manager), bytes), is(nullValue()));
+    }
+
+    @Test
+    public void sessionSerializerOfManagerIsUsed() {
+        when(manager.getSessionSerializer()).thenReturn(new CompactSessionSerializer());
+        session.setValid(true);
+        session.setAttribute("counter", 1);
+
+        byte[] bytes = PersistableSessionUtils.serializeSession(session);
+
+        assertThat(new CompactSessionSerializer().canDeserialize(bytes), is(true));
+        PersistableSession restored = PersistableSessionUtils.deserializeSessionInto(new PersistableSession(manager), bytes);
+        assertThat(restored.getAttribute("counter"), is(1));
+    }
+
+    @Test
+    public void javaSerializedSessionIsReadableWithOtherSerializerConfigured() throws IOException {
+        session.setValid(true);
+        session.setAttribute("counter", 1);
+        byte[] bytes = new JdkSessionSerializer().serialize(session);
+        when(manager.getSessionSerializer()).thenReturn(new CompactSessionSerializer());
+
+        PersistableSession restored = PersistableSessionUtils.deserializeSessionInto(new PersistableSession(manager), bytes);
+
+        assertThat(restored.getAttribute("counter"), is(1));
+    }
+
     private static class NonSerializableValue {
         // intentionally does not implement Serializable
     }
+
+    @Test
+    public void sessionContentHashLeavesOutAccessTimes() {
+        session.setValid(true);
+        session.setCreationTime(1000);
+        session.setAttribute("cart", "three items");
+        byte[] created = PersistableSessionUtils.serializeSession(session);
+
+        session.access();
+        session.endAccess();
+        session.setAttribute("cart", "three items");
+        byte[] accessed = PersistableSessionUtils.serializeSession(session);
+        session.setAttribute("cart", "four items");
+        byte[] changed = PersistableSessionUtils.serializeSession(session);
+
+        assertThat(accessed, is(not(created)));
+        assertThat(PersistableSessionUtils.sessionContentHash(session, accessed, accessed.length),
+                is(PersistableSessionUtils.sessionContentHash(session, created, created.length)));
+        assertThat(PersistableSessionUtils.sessionContentHash(session, changed, changed.length),
+                is(not(PersistableSessionUtils.sessionContentHash(session, created, created.length))));
+    }
+
+    private static SessionDelta persistDelta(PersistableSession session) {
+        SessionDelta delta = PersistableSessionUtils.createSessionDelta(session);
+        PersistableSessionUtils.sessionDeltaPersisted(session, delta);
+        return delta;
+    }
 }
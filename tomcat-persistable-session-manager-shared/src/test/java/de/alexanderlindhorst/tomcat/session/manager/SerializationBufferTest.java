@@ -0,0 +1,83 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static de.alexanderlindhorst.tomcat.session.manager.SerializationBuffer.MAX_RETAINED_CAPACITY;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class SerializationBufferTest {
+
+    @Test
+    public void releasedBufferIsReusedBySameThread() {
+        SerializationBuffer buffer = SerializationBuffer.acquire(0);
+        buffer.write(1);
+        buffer.release();
+
+        SerializationBuffer reused = SerializationBuffer.acquire(0);
+        reused.release();
+
+        assertThat(reused, is(sameInstance(buffer)));
+        assertThat(reused.size(), is(0));
+    }
+
+    @Test
+    public void bufferInUseIsNotHandedOutTwice() {
+        SerializationBuffer outer = SerializationBuffer.acquire(0);
+        SerializationBuffer inner = SerializationBuffer.acquire(0);
+        inner.release();
+        outer.release();
+
+        assertThat(inner, is(not(sameInstance(outer))));
+        SerializationBuffer next = SerializationBuffer.acquire(0);
+        next.release();
+        assertThat(next, is(sameInstance(outer)));
+    }
+
+    @Test
+    public void sizeHintPresizesBuffer() {
+        SerializationBuffer buffer = SerializationBuffer.acquire(100000);
+        try {
+            assertThat(buffer.array().length >= 100000, is(true));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void oversizedBufferIsNotRetained() {
+        SerializationBuffer buffer = SerializationBuffer.acquire(MAX_RETAINED_CAPACITY + 1);
+        buffer.release();
+
+        SerializationBuffer reused = SerializationBuffer.acquire(0);
+        reused.release();
+
+        assertThat(reused.array().length <= MAX_RETAINED_CAPACITY, is(true));
+    }
+
+    @Test
+    public void byteBufferViewsContentWithoutCopying() {
+        SerializationBuffer buffer = SerializationBuffer.acquire(0);
+        try {
+            buffer.write(new byte[]{1, 2, 3}, 0, 3);
+
+            ByteBuffer view = buffer.toByteBuffer();
+
+            assertThat(view.array(), is(sameInstance(buffer.array())));
+            assertThat(view.remaining(), is(3));
+            assertThat(view.get(2), is((byte) 3));
+        } finally {
+            buffer.release();
+        }
+    }
+}
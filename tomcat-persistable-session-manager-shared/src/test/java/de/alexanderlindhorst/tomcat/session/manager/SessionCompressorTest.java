@@ -0,0 +1,120 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static de.alexanderlindhorst.tomcat.session.manager.SessionCompressor.COMPRESSION_DENSE;
+import static de.alexanderlindhorst.tomcat.session.manager.SessionCompressor.COMPRESSION_FAST;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class SessionCompressorTest {
+
+    private static byte[] repetitive(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i % 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void fastCompressionRoundTrip() throws IOException {
+        SessionCompressor compressor = new SessionCompressor(COMPRESSION_FAST, 100);
+        byte[] bytes = repetitive(10000);
+
+        byte[] compressed = compressor.compress(bytes);
+
+        assertThat(SessionCompressor.isCompressed(compressed), is(true));
+        assertThat(compressed.length < bytes.length, is(true));
+        assertThat(Arrays.equals(SessionCompressor.decompress(compressed), bytes), is(true));
+    }
+
+    @Test
+    public void denseCompressionRoundTrip() throws IOException {
+        SessionCompressor compressor = new SessionCompressor(COMPRESSION_DENSE, 100);
+        byte[] bytes = repetitive(10000);
+
+        assertThat(Arrays.equals(SessionCompressor.decompress(compressor.compress(bytes)), bytes), is(true));
+    }
+
+    @Test
+    public void payloadBelowThresholdIsKept() {
+        SessionCompressor compressor = new SessionCompressor(COMPRESSION_FAST, 100);
+        byte[] bytes = repetitive(99);
+
+        assertThat(compressor.compress(bytes), is(sameInstance(bytes)));
+        assertThat(compressor.getCompressedCount(), is(0L));
+    }
+
+    @Test
+    public void incompressiblePayloadIsKept() {
+        SessionCompressor compressor = new SessionCompressor(COMPRESSION_FAST, 0);
+        byte[] bytes = new byte[2000];
+        new Random(17).nextBytes(bytes);
+
+        assertThat(compressor.compress(bytes), is(sameInstance(bytes)));
+    }
+
+    @Test
+    public void uncompressedPayloadIsReturnedAsIs() throws IOException {
+        byte[] bytes = new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5};
+
+        assertThat(SessionCompressor.decompress(bytes), is(sameInstance(bytes)));
+    }
+
+    @Test
+    public void statisticsAreCollected() {
+        SessionCompressor compressor = new SessionCompressor(COMPRESSION_FAST, 0);
+        byte[] compressed = compressor.compress(repetitive(10000));
+
+        assertThat(compressor.getCompressedCount(), is(1L));
+        assertThat(compressor.getUncompressedBytes(), is(10000L));
+        assertThat(compressor.getCompressedBytes(), is((long) compressed.length));
+        assertThat(compressor.getCompressionRatio() < 1, is(true));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayloadIsRejected() throws IOException {
+        byte[] compressed = new SessionCompressor(COMPRESSION_FAST, 0).compress(repetitive(10000));
+
+        SessionCompressor.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCompressionIsRejected() {
+        new SessionCompressor("lz4", 0);
+    }
+
+    @Test
+    public void compressesSliceOfLargerArray() throws IOException {
+        byte[] content = repetitive(10000);
+        byte[] backing = new byte[content.length + 20];
+        System.arraycopy(content, 0, backing, 10, content.length);
+        ByteBuffer slice = ByteBuffer.wrap(backing, 10, content.length);
+
+        ByteBuffer compressed = new SessionCompressor(COMPRESSION_FAST, 100).compress(slice);
+        byte[] compressedBytes = new byte[compressed.remaining()];
+        compressed.get(compressedBytes);
+
+        assertThat(Arrays.equals(SessionCompressor.decompress(compressedBytes), content), is(true));
+    }
+
+    @Test
+    public void sliceBelowThresholdIsReturnedAsIs() {
+        ByteBuffer slice = ByteBuffer.wrap(repetitive(50), 10, 20);
+
+        assertThat(new SessionCompressor(COMPRESSION_FAST, 100).compress(slice), is(sameInstance(slice)));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.metrics;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * @author alindhorst
+ */
+public class HistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getMean(), is(0d));
+        assertThat(histogram.getPercentile(99), is(0L));
+    }
+
+    @Test
+    public void countMeanAndMaxAreExact() {
+        Histogram histogram = new Histogram();
+
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(90);
+
+        assertThat(histogram.getCount(), is(3L));
+        assertThat(histogram.getMean(), is(40d));
+        assertThat(histogram.getMax(), is(90L));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        long median = histogram.getPercentile(50);
+        long p99 = histogram.getPercentile(99);
+
+        assertThat(median >= 500000 && median <= 500000 * 1.25, is(true));
+        assertThat(p99 >= 990000 && p99 <= 1000000, is(true));
+    }
+
+    @Test
+    public void bucketsCoverAllValuesInOrder() {
+        long previousUpperBound = -1;
+        for (long value : new long[]{0, 1, 3, 4, 5, 7, 8, 15, 16, 1000, 1L << 40, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            long upperBound = Histogram.upperBoundOf(bucket);
+            assertThat(value <= upperBound, is(true));
+            assertThat(upperBound >= previousUpperBound, is(true));
+            previousUpperBound = upperBound;
+        }
+    }
+
+    @Test
+    public void negativeValuesAreRecordedAsZero() {
+        Histogram histogram = new Histogram();
+
+        histogram.record(-5);
+
+        assertThat(histogram.getMax(), is(0L));
+        assertThat(histogram.getPercentile(100), is(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileAboveHundredIsRejected() {
+        new Histogram().getPercentile(101);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.metrics;
+
+import org.junit.Test;
+
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics.Lookup;
+import de.alexanderlindhorst.tomcat.session.metrics.SessionMetrics.Operation;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author alindhorst
+ */
+public class SessionMetricsTest {
+
+    @Test
+    public void operationsAreCountedPerType() {
+        SessionMetrics metrics = new SessionMetrics();
+
+        metrics.backendOperation(Operation.PERSIST, 2000, false);
+        metrics.backendOperation(Operation.PERSIST, 4000, true);
+        metrics.backendOperation(Operation.GET, 1000, false);
+
+        assertThat(metrics.getPersistCount(), is(2L));
+        assertThat(metrics.getPersistFailures(), is(1L));
+        assertThat(metrics.getPersistMeanMicros(), is(3d));
+        assertThat(metrics.getPersistMaxMicros(), is(4L));
+        assertThat(metrics.getGetCount(), is(1L));
+        assertThat(metrics.getDeleteCount(), is(0L));
+    }
+
+    @Test
+    public void localHitRatioIgnoresMisses() {
+        SessionMetrics metrics = new SessionMetrics();
+
+        metrics.sessionLookup(Lookup.LOCAL_HIT);
+        metrics.sessionLookup(Lookup.LOCAL_HIT);
+        metrics.sessionLookup(Lookup.LOCAL_HIT);
+        metrics.sessionLookup(Lookup.BACKEND_LOAD);
+        metrics.sessionLookup(Lookup.SHARED_LOAD);
+        metrics.sessionLookup(Lookup.MISS);
+
+        assertThat(metrics.getLocalHitRatio(), is(0.6));
+        assertThat(metrics.getSharedLoads(), is(1L));
+        assertThat(metrics.getLookupMisses(), is(1L));
+    }
+
+    @Test
+    public void measurementsArePassedOnToListener() {
+        SessionMetrics metrics = new SessionMetrics();
+        MetricsListener listener = mock(MetricsListener.class);
+        metrics.setListener(listener);
+
+        metrics.backendOperation(Operation.DELETE, 10, false);
+        metrics.backendRetried(2);
+        metrics.sessionSerialized(512);
+        metrics.sessionLookup(Lookup.MISS);
+        metrics.sessionLoadLockWaited(30);
+
+        verify(listener).backendOperation(Operation.DELETE, 10, false);
+        verify(listener).backendRetried(2);
+        verify(listener).sessionSerialized(512);
+        verify(listener).sessionLookup(Lookup.MISS);
+        verify(listener).sessionLoadLockWaited(30);
+        assertThat(metrics.getBackendRetries(), is(2L));
+        assertThat(metrics.getSerializedSizeMax(), is(512L));
+        assertThat(metrics.getSessionLoadLockWaits(), is(1L));
+    }
+}
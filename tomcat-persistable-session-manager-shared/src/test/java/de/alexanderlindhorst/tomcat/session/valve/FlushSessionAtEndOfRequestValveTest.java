@@ -0,0 +1,133 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.valve;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSession;
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author alindhorst
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class FlushSessionAtEndOfRequestValveTest {
+
+    @Mock
+    private Request request;
+    @Mock
+    private Response response;
+    @Mock
+    private Context context;
+    @Mock
+    private Manager genericManager;
+    @Mock
+    private Valve next;
+    @Mock
+    private PersistableSessionManager wellKnownManager;
+    @Mock
+    private PersistableSession session;
+    @Mock
+    private Session foreignSession;
+
+    private FlushSessionAtEndOfRequestValve valve;
+
+    @Before
+    public void setup() {
+        valve = new FlushSessionAtEndOfRequestValve();
+        valve.setNext(next);
+        when(request.getContext()).thenReturn(context);
+    }
+
+    @Test
+    public void sessionIsStoredAfterRequestWasProcessed() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(wellKnownManager);
+        when(request.getSessionInternal(false)).thenReturn(session);
+
+        valve.invoke(request, response);
+
+        InOrder order = inOrder(next, wellKnownManager);
+        order.verify(next).invoke(request, response);
+        order.verify(wellKnownManager).storeSession(session);
+    }
+
+    @Test
+    public void sessionIsStoredEvenIfRequestProcessingFailed() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(wellKnownManager);
+        when(request.getSessionInternal(false)).thenReturn(session);
+        doThrow(new ServletException("failure")).when(next).invoke(request, response);
+
+        try {
+            valve.invoke(request, response);
+        } catch (ServletException ex) {
+            //expected
+        }
+
+        verify(wellKnownManager).storeSession(session);
+    }
+
+    @Test
+    public void nothingStoredForUnknownManager() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(genericManager);
+
+        valve.invoke(request, response);
+
+        verify(next).invoke(request, response);
+        verify(request, never()).getSessionInternal(false);
+    }
+
+    @Test
+    public void nothingStoredWithoutSession() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(wellKnownManager);
+        when(request.getSessionInternal(false)).thenReturn(null);
+
+        valve.invoke(request, response);
+
+        verify(wellKnownManager, never()).storeSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void nothingStoredForForeignSessionType() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(wellKnownManager);
+        when(request.getSessionInternal(false)).thenReturn(foreignSession);
+
+        valve.invoke(request, response);
+
+        verify(wellKnownManager, never()).storeSession(any(PersistableSession.class));
+    }
+
+    @Test
+    public void backendFailureWhileStoringDoesNotFailRequest() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(wellKnownManager);
+        when(request.getSessionInternal(false)).thenReturn(session);
+        doThrow(new IllegalStateException("backend unavailable")).when(wellKnownManager).storeSession(session);
+
+        valve.invoke(request, response);
+
+        verify(wellKnownManager).storeSession(session);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.valve;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Manager;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import de.alexanderlindhorst.tomcat.session.manager.PersistableSessionManager;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author alindhorst
+ */
+@RunWith(MockitoJUnitRunner.Silent.class)
+public class PrefetchSessionValveTest {
+
+    @Mock
+    private Request request;
+    @Mock
+    private Response response;
+    @Mock
+    private Context context;
+    @Mock
+    private Manager genericManager;
+    @Mock
+    private Valve next;
+    @Mock
+    private PersistableSessionManager wellKnownManager;
+
+    private PrefetchSessionValve valve;
+
+    @Before
+    public void setup() {
+        valve = new PrefetchSessionValve();
+        valve.setNext(next);
+        when(request.getContext()).thenReturn(context);
+        when(context.getManager()).thenReturn(wellKnownManager);
+    }
+
+    @Test
+    public void prefetchIsStartedBeforeAndDiscardedAfterRequestProcessing() throws IOException, ServletException {
+        when(request.getRequestedSessionId()).thenReturn("mySession.host2");
+        when(wellKnownManager.prefetchSession("mySession.host2")).thenReturn(true);
+
+        valve.invoke(request, response);
+
+        InOrder order = inOrder(wellKnownManager, next);
+        order.verify(wellKnownManager).prefetchSession("mySession.host2");
+        order.verify(next).invoke(request, response);
+        order.verify(wellKnownManager).discardPrefetchedSession("mySession.host2");
+    }
+
+    @Test
+    public void prefetchIsDiscardedEvenIfRequestProcessingFailed() throws IOException, ServletException {
+        when(request.getRequestedSessionId()).thenReturn("mySession.host2");
+        when(wellKnownManager.prefetchSession("mySession.host2")).thenReturn(true);
+        doThrow(new ServletException("failure")).when(next).invoke(request, response);
+
+        try {
+            valve.invoke(request, response);
+        } catch (ServletException ex) {
+            //expected
+        }
+
+        verify(wellKnownManager).discardPrefetchedSession("mySession.host2");
+    }
+
+    @Test
+    public void nothingDiscardedIfNothingPrefetched() throws IOException, ServletException {
+        when(request.getRequestedSessionId()).thenReturn("mySession.host");
+        when(wellKnownManager.prefetchSession("mySession.host")).thenReturn(false);
+
+        valve.invoke(request, response);
+
+        verify(next).invoke(request, response);
+        verify(wellKnownManager, never()).discardPrefetchedSession(anyString());
+    }
+
+    @Test
+    public void nothingPrefetchedWithoutRequestedSession() throws IOException, ServletException {
+        when(request.getRequestedSessionId()).thenReturn(null);
+
+        valve.invoke(request, response);
+
+        verify(next).invoke(request, response);
+        verify(wellKnownManager, never()).prefetchSession(anyString());
+    }
+
+    @Test
+    public void nothingPrefetchedForUnknownManager() throws IOException, ServletException {
+        when(context.getManager()).thenReturn(genericManager);
+        when(request.getRequestedSessionId()).thenReturn("mySession.host2");
+
+        valve.invoke(request, response);
+
+        verify(next).invoke(request, response);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * This software is licensed under the GPL v2 (http://www.gnu.org/licenses/gpl-2.0.html).
+ */
+package de.alexanderlindhorst.tomcat.session.manager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.alexanderlindhorst.tomcat.session.access.FakeBackendService;
+import de.alexanderlindhorst.tomcat.session.access.VersionedBytes;
+
+import static de.alexanderlindhorst.tomcat.session.manager.testutils.TestUtils.setFieldValueForObject;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * Many virtual threads loading, validating and writing a few sessions through a backend that blocks like a network call
+ * would. None of them may block while pinned to its carrier thread. Only compiled and run with the {@code java21} profile.
+ *
+ * @author alindhorst
+ */
+public class VirtualThreadPinningLoadTest {
+
+    private static final int SESSIONS = 50;
+    private static final int REQUESTS = 5000;
+    private SlowBackendService backendService;
+    private PersistableSessionManager manager;
+
+    @Before
+    public void setup() throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setJvmRoute("host");
+        StandardContext context = new StandardContext();
+        context.setParent(engine);
+        manager = new PersistableSessionManager();
+        manager.setContext(context);
+        manager.setNearCache(true);
+        backendService = new SlowBackendService();
+        backendService.init();
+        setFieldValueForObject(manager, "backendService", backendService);
+        for (int i = 0; i < SESSIONS; i++) {
+            PersistableSession session = new PersistableSession(manager);
+            session.setValid(true);
+            session.setId("session" + i + ".host", false);
+            backendService.persistSession(session);
+            //only known to the backend from now on
+            manager.remove(session, false);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        backendService.shutdown();
+    }
+
+    @Test
+    public void requestsOnVirtualThreadsDoNotPinCarrierThreads() throws Exception {
+        //warm up, so class initialization doesn't show up
+        runRequests(SESSIONS);
+        List<String> pinnedStacks = new CopyOnWriteArrayList<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (RecordingStream recording = new RecordingStream()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.onEvent("jdk.VirtualThreadPinned", event -> pinnedStacks.add(describe(event)));
+            recording.startAsync();
+            failure.set(runRequests(REQUESTS));
+            recording.stop();
+        }
+        assertThat(failure.get(), is(nullValue()));
+        assertThat(String.join("\n\n", pinnedStacks), pinnedStacks.size(), is(0));
+    }
+
+    @Test
+    public void virtualThreadsDoNotKeepSerializationBuffers() throws Exception {
+        AtomicReference<SerializationBuffer> first = new AtomicReference<>();
+        AtomicReference<SerializationBuffer> second = new AtomicReference<>();
+        Thread.ofVirtual().start(() -> {
+            SerializationBuffer buffer = SerializationBuffer.acquire(0);
+            buffer.release();
+            first.set(buffer);
+            SerializationBuffer next = SerializationBuffer.acquire(0);
+            next.release();
+            second.set(next);
+        }).join();
+
+        assertThat(second.get(), is(not(sameInstance(first.get()))));
+    }
+
+    /**
+     * @return the first failure of a request, {@code null} if all succeeded
+     */
+    private Throwable runRequests(int count) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < count; i++) {
+                String id = "session" + (i % SESSIONS) + ".othernode";
+                int request = i;
+                executor.execute(() -> {
+                    try {
+                        PersistableSession session = (PersistableSession) manager.findSession(id);
+                        session.setAttribute("lastRequest", request);
+                    } catch (Exception | AssertionError ex) {
+                        failure.compareAndSet(null, ex);
+                    }
+                });
+            }
+        }
+        return failure.get();
+    }
+
+    private static String describe(RecordedEvent event) {
+        StringBuilder description = new StringBuilder("pinned for " + event.getDuration());
+        if (event.getStackTrace() != null) {
+            event.getStackTrace().getFrames().forEach(frame -> description.append("\n\tat ")
+                    .append(frame.getMethod().getType().getName()).append('.').append(frame.getMethod().getName()));
+        }
+        return description.toString();
+    }
+
+    /**
+     * Blocks on every backend access like a round trip to Riak would.
+     */
+    private static final class SlowBackendService extends FakeBackendService {
+
+        @Override
+        protected String persistSessionInternal(String sessionId, byte[] bytes, String knownVersion) {
+            roundTrip();
+            return super.persistSessionInternal(sessionId, bytes, knownVersion);
+        }
+
+        @Override
+        protected VersionedBytes getVersionedSessionInternal(String sessionId) {
+            roundTrip();
+            return super.getVersionedSessionInternal(sessionId);
+        }
+
+        @Override
+        protected VersionedBytes getSessionIfNewerInternal(String sessionId, String knownVersion) {
+            roundTrip();
+            return super.getSessionIfNewerInternal(sessionId, knownVersion);
+        }
+
+        private static void roundTrip() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(1);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}